@@ -0,0 +1,112 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.attribute.resolver.ad.impl;
+
+import java.util.concurrent.TimeUnit;
+import javax.script.ScriptException;
+import javax.security.auth.Subject;
+import org.mla.cbox.shibboleth.idp.authn.impl.TwitterIdPrincipal;
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.resolver.ResolutionException;
+import net.shibboleth.idp.attribute.resolver.ad.impl.ScriptedAttributeDefinition;
+import net.shibboleth.idp.attribute.resolver.context.AttributeResolutionContext;
+import net.shibboleth.idp.attribute.resolver.context.AttributeResolverWorkContext;
+import net.shibboleth.idp.authn.AuthenticationResult;
+import net.shibboleth.idp.authn.context.SubjectContext;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.scripting.EvaluableScript;
+
+/**
+ * Benchmarks {@link TwitterIdAttributeDefinition} against the script it replaces.
+ * 
+ * The script needs a JavaScript engine, so the scripted benchmark only runs on JDKs
+ * that still ship Nashorn.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TwitterIdAttributeDefinitionBenchmark {
+    /** Script previously shipped in attribute-resolver.xml */
+    private static final String SCRIPT =
+            "var TwitterIdPrincipal = Java.type(\"org.mla.cbox.shibboleth.idp.authn.impl.TwitterIdPrincipal\");\n"
+            + "subjectContext = resolutionContext.getParent().getSubcontext(\"net.shibboleth.idp.authn.context.SubjectContext\");\n"
+            + "subjects = subjectContext.getSubjects();\n"
+            + "for each (var subject in subjects) {\n"
+            + "    principals = subject.getPrincipals();\n"
+            + "    for each (var principal in principals) {\n"
+            + "        if (principal instanceof TwitterIdPrincipal) {\n"
+            + "            TwitterId.addValue(principal.getUserId() + \"+twitter.com\");\n"
+            + "        }\n"
+            + "    }\n"
+            + "}\n";
+    
+    /** Native definition */
+    private TwitterIdAttributeDefinition definition;
+    
+    /** Scripted definition */
+    private ScriptedAttributeDefinition scripted;
+    
+    /** Resolution context of a Twitter login */
+    private AttributeResolutionContext resolutionContext;
+    
+    /**
+     * Set up the definitions and the resolution context.
+     * 
+     * @throws ComponentInitializationException if a definition cannot be initialized
+     * @throws ScriptException if the script cannot be compiled
+     */
+    @Setup
+    public void setUp() throws ComponentInitializationException, ScriptException {
+        this.definition = new TwitterIdAttributeDefinition();
+        this.definition.setId("TwitterId");
+        this.definition.initialize();
+        
+        this.scripted = new ScriptedAttributeDefinition();
+        this.scripted.setId("TwitterId");
+        this.scripted.setScript(new EvaluableScript("javascript", SCRIPT));
+        this.scripted.initialize();
+        
+        final Subject subject = new Subject();
+        subject.getPrincipals().add(new TwitterIdPrincipal(783214L));
+        final ProfileRequestContext profileRequestContext = new ProfileRequestContext();
+        profileRequestContext.getSubcontext(SubjectContext.class, true).getAuthenticationResults()
+            .put("authn/Twitter", new AuthenticationResult("authn/Twitter", subject));
+        this.resolutionContext = profileRequestContext.getSubcontext(AttributeResolutionContext.class, true);
+        this.resolutionContext.getSubcontext(AttributeResolverWorkContext.class, true);
+    }
+    
+    @Benchmark
+    public IdPAttribute nativeDefinition() throws ResolutionException {
+        return this.definition.resolve(this.resolutionContext);
+    }
+    
+    @Benchmark
+    public IdPAttribute scriptedDefinition() throws ResolutionException {
+        return this.scripted.resolve(this.resolutionContext);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.security.auth.Subject;
+import net.shibboleth.idp.authn.context.SubjectCanonicalizationContext;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import org.opensaml.profile.action.ProfileAction;
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.aop.target.ThreadLocalTargetSource;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.beans.factory.support.RootBeanDefinition;
+import org.springframework.util.ClassUtils;
+
+/**
+ * Throughput of {@link TwitterSubjectCanonicalization} created per request, as a prototype bean,
+ * against one instance per thread reused across requests, as the per-thread proxies in the flow
+ * bean files do.
+ * 
+ * Every thread canonicalizes its own Twitter user and checks the principal name it gets back, so
+ * running with several threads (-t 4) fails the benchmark if request state leaks between threads
+ * or between requests on the same instance.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TwitterActionReuseBenchmark {
+    
+    /**
+     * Check that a request was canonicalized to its own Twitter user.
+     * 
+     * @param request the request
+     * @return the principal name
+     */
+    private static String verify(final Request request) {
+        final String principalName = request.c14nContext.getPrincipalName();
+        if (!request.expectedName.equals(principalName)) {
+            throw new IllegalStateException("Expected principal " + request.expectedName + " but got "
+                    + principalName);
+        }
+        return principalName;
+    }
+    
+    @Benchmark
+    public String perRequestInstance(final Request request) throws ComponentInitializationException {
+        final TwitterSubjectCanonicalization action = new TwitterSubjectCanonicalization();
+        action.initialize();
+        request.c14nContext.setPrincipalName(null);
+        action.execute(request.profileRequestContext);
+        return verify(request);
+    }
+    
+    @Benchmark
+    public String perThreadInstance(final PerThreadAction shared, final Request request) {
+        request.c14nContext.setPrincipalName(null);
+        shared.action.execute(request.profileRequestContext);
+        return verify(request);
+    }
+    
+    /** Per-thread proxy over a prototype bean, configured like the flow bean files */
+    @State(Scope.Benchmark)
+    public static class PerThreadAction {
+        /** Proxy handing each thread its own action */
+        private ProfileAction action;
+        
+        /** Source of the per-thread actions */
+        private ThreadLocalTargetSource targetSource;
+        
+        /** Set up the bean factory and proxy */
+        @Setup
+        public void setUp() {
+            final RootBeanDefinition definition = new RootBeanDefinition(TwitterSubjectCanonicalization.class);
+            definition.setScope(BeanDefinition.SCOPE_PROTOTYPE);
+            definition.setInitMethodName("initialize");
+            final DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+            beanFactory.registerBeanDefinition("TwitterSubjectCanonicalization", definition);
+            
+            this.targetSource = new ThreadLocalTargetSource();
+            this.targetSource.setTargetBeanName("TwitterSubjectCanonicalization");
+            this.targetSource.setBeanFactory(beanFactory);
+            
+            final ProxyFactory proxyFactory = new ProxyFactory();
+            proxyFactory.setTargetSource(this.targetSource);
+            proxyFactory.setInterfaces(ClassUtils.getAllInterfacesForClass(TwitterSubjectCanonicalization.class));
+            this.action = (ProfileAction) proxyFactory.getProxy();
+        }
+        
+        /** Destroy the per-thread actions */
+        @TearDown
+        public void tearDown() {
+            this.targetSource.destroy();
+        }
+    }
+    
+    /** Contexts of one thread's requests, each thread with its own Twitter user */
+    @State(Scope.Thread)
+    public static class Request {
+        /** Source of distinct Twitter user IDs */
+        private static final AtomicLong NEXT_USER_ID = new AtomicLong(783214L);
+        
+        /** Profile request context holding a subject with a TwitterIdPrincipal */
+        private ProfileRequestContext profileRequestContext;
+        
+        /** Canonicalization context of the profile request context */
+        private SubjectCanonicalizationContext c14nContext;
+        
+        /** Principal name the request should be canonicalized to */
+        private String expectedName;
+        
+        /** Set up the contexts */
+        @Setup
+        public void setUp() {
+            final long userId = NEXT_USER_ID.getAndIncrement();
+            final Subject subject = new Subject();
+            subject.getPrincipals().add(new TwitterIdPrincipal(userId));
+            this.profileRequestContext = new ProfileRequestContext();
+            this.c14nContext = this.profileRequestContext.getSubcontext(SubjectCanonicalizationContext.class, true);
+            this.c14nContext.setSubject(subject);
+            this.expectedName = Long.toString(userId);
+        }
+    }
+}
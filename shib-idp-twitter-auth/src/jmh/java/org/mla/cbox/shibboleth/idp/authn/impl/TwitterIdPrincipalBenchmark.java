@@ -0,0 +1,93 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for {@link TwitterIdPrincipal}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TwitterIdPrincipalBenchmark {
+    /** User ID the principals are built from */
+    private long userId;
+    
+    /** Principal under test */
+    private TwitterIdPrincipal principal;
+    
+    /** Equal principal built separately */
+    private TwitterIdPrincipal same;
+    
+    /** Principal with a different user ID */
+    private TwitterIdPrincipal other;
+    
+    /** Set up the principals. */
+    @Setup
+    public void setUp() {
+        this.userId = 783214L;
+        this.principal = new TwitterIdPrincipal(this.userId);
+        this.same = new TwitterIdPrincipal(this.userId);
+        this.other = new TwitterIdPrincipal(this.userId + 1);
+    }
+    
+    @Benchmark
+    public TwitterIdPrincipal construct() {
+        return new TwitterIdPrincipal(this.userId);
+    }
+    
+    @Benchmark
+    public TwitterIdPrincipal intern() {
+        return TwitterIdPrincipal.valueOf(this.userId);
+    }
+    
+    @Benchmark
+    public String name() {
+        return new TwitterIdPrincipal(this.userId).getName();
+    }
+    
+    @Benchmark
+    public boolean equalsSame() {
+        return this.principal.equals(this.same);
+    }
+    
+    @Benchmark
+    public boolean equalsOther() {
+        return this.principal.equals(this.other);
+    }
+    
+    @Benchmark
+    public int hashCodeOf() {
+        return this.principal.hashCode();
+    }
+    
+    @Benchmark
+    public TwitterIdPrincipal cloneOf() throws CloneNotSupportedException {
+        return this.principal.clone();
+    }
+}
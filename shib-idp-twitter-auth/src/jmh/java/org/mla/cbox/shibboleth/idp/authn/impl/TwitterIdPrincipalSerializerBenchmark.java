@@ -0,0 +1,95 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for {@link TwitterIdPrincipalSerializer}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TwitterIdPrincipalSerializerBenchmark {
+    /** Serializer under test */
+    private TwitterIdPrincipalSerializer serializer;
+    
+    /** Principal to serialize */
+    private TwitterIdPrincipal principal;
+    
+    /** Principal in the compact format */
+    private String compact;
+    
+    /** Principal in the nested format of earlier versions */
+    private String legacy;
+    
+    /** Principal written by another serializer */
+    private String foreign;
+    
+    /**
+     * Set up the serializer and inputs.
+     * 
+     * @throws ComponentInitializationException if the serializer cannot be initialized
+     * @throws IOException if the principal cannot be serialized
+     */
+    @Setup
+    public void setUp() throws ComponentInitializationException, IOException {
+        this.serializer = new TwitterIdPrincipalSerializer();
+        this.serializer.initialize();
+        this.principal = new TwitterIdPrincipal(783214L);
+        this.compact = this.serializer.serialize(this.principal);
+        this.legacy = "{\"Twitter\":\"{\\\"userId\\\":\\\"783214\\\"}\"}";
+        this.foreign = "{\"U\":\"jdoe\"}";
+    }
+    
+    @Benchmark
+    public String serialize() throws IOException {
+        return this.serializer.serialize(this.principal);
+    }
+    
+    @Benchmark
+    public TwitterIdPrincipal deserialize() throws IOException {
+        return this.serializer.deserialize(this.compact);
+    }
+    
+    @Benchmark
+    public TwitterIdPrincipal deserializeLegacy() throws IOException {
+        return this.serializer.deserialize(this.legacy);
+    }
+    
+    @Benchmark
+    public boolean supports() {
+        return this.serializer.supports(this.compact);
+    }
+    
+    @Benchmark
+    public boolean supportsForeign() {
+        return this.serializer.supports(this.foreign);
+    }
+}
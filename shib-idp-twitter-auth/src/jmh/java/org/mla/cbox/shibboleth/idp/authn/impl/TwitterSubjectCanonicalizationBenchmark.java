@@ -0,0 +1,84 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.util.concurrent.TimeUnit;
+import javax.security.auth.Subject;
+import net.shibboleth.idp.authn.context.SubjectCanonicalizationContext;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for {@link TwitterSubjectCanonicalization} and its activation condition
+ * 
+ * Each thread gets its own action and contexts, as each request does in the IdP.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TwitterSubjectCanonicalizationBenchmark {
+    /** Action under test */
+    private TwitterSubjectCanonicalization action;
+    
+    /** Activation condition under test */
+    private TwitterSubjectCanonicalization.ActivationCondition condition;
+    
+    /** Profile request context holding a subject with a TwitterIdPrincipal */
+    private ProfileRequestContext profileRequestContext;
+    
+    /** Canonicalization context of the profile request context */
+    private SubjectCanonicalizationContext c14nContext;
+    
+    /**
+     * Set up the action and contexts.
+     * 
+     * @throws ComponentInitializationException if the action cannot be initialized
+     */
+    @Setup
+    public void setUp() throws ComponentInitializationException {
+        this.action = new TwitterSubjectCanonicalization();
+        this.action.initialize();
+        this.condition = new TwitterSubjectCanonicalization.ActivationCondition();
+        
+        final Subject subject = new Subject();
+        subject.getPrincipals().add(new TwitterIdPrincipal(783214L));
+        this.profileRequestContext = new ProfileRequestContext();
+        this.c14nContext = this.profileRequestContext.getSubcontext(SubjectCanonicalizationContext.class, true);
+        this.c14nContext.setSubject(subject);
+    }
+    
+    @Benchmark
+    public boolean activationCondition() {
+        return this.condition.apply(this.profileRequestContext);
+    }
+    
+    @Benchmark
+    public String canonicalize() {
+        this.action.execute(this.profileRequestContext);
+        return this.c14nContext.getPrincipalName();
+    }
+}
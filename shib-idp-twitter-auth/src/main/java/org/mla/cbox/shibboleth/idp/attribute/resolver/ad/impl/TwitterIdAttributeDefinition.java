@@ -0,0 +1,104 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.attribute.resolver.ad.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.security.auth.Subject;
+import org.mla.cbox.shibboleth.idp.authn.impl.TwitterIdPrincipal;
+import org.opensaml.messaging.context.BaseContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.IdPAttributeValue;
+import net.shibboleth.idp.attribute.StringAttributeValue;
+import net.shibboleth.idp.attribute.resolver.AbstractAttributeDefinition;
+import net.shibboleth.idp.attribute.resolver.ResolutionException;
+import net.shibboleth.idp.attribute.resolver.context.AttributeResolutionContext;
+import net.shibboleth.idp.attribute.resolver.context.AttributeResolverWorkContext;
+import net.shibboleth.idp.authn.context.SubjectContext;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Attribute definition that produces one value for each {@link TwitterIdPrincipal} of the
+ * authenticated subjects: the Twitter user ID followed by a suffix, "+twitter.com" by default.
+ */
+@ThreadSafe
+public class TwitterIdAttributeDefinition extends AbstractAttributeDefinition {
+    /** Default suffix appended to the Twitter user ID */
+    @Nonnull public static final String DEFAULT_SUFFIX = "+twitter.com";
+    
+    /** Suffix appended to the Twitter user ID */
+    @Nonnull private String suffix = DEFAULT_SUFFIX;
+    
+    /** Class logger */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(TwitterIdAttributeDefinition.class);
+    
+    /** Constructor */
+    public TwitterIdAttributeDefinition() {
+        
+    }
+    
+    @Nonnull public String getSuffix() {
+        return this.suffix;
+    }
+    
+    /**
+     * Set the suffix appended to the Twitter user ID
+     * 
+     * @param value the suffix, which may be empty
+     * @return instance of this class
+     */
+    public TwitterIdAttributeDefinition setSuffix(@Nonnull final String value) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.suffix = Constraint.isNotNull(value, "Suffix cannot be null");
+        return this;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    @Nullable protected IdPAttribute doAttributeDefinitionResolve(
+            @Nonnull final AttributeResolutionContext resolutionContext,
+            @Nonnull final AttributeResolverWorkContext workContext) throws ResolutionException {
+        
+        final BaseContext parent = resolutionContext.getParent();
+        final SubjectContext subjectContext = parent == null ? null : parent.getSubcontext(SubjectContext.class);
+        if (subjectContext == null) {
+            log.debug("{} No SubjectContext available", getLogPrefix());
+            return null;
+        }
+        
+        final List<IdPAttributeValue<?>> values = new ArrayList<>(1);
+        for (final Subject subject : subjectContext.getSubjects()) {
+            final Set<TwitterIdPrincipal> principals = subject.getPrincipals(TwitterIdPrincipal.class);
+            for (final TwitterIdPrincipal principal : principals) {
+                values.add(new StringAttributeValue(principal.getName() + this.suffix));
+            }
+        }
+        
+        if (values.isEmpty()) {
+            log.debug("{} No TwitterIdPrincipal in any authenticated subject", getLogPrefix());
+            return null;
+        }
+        
+        final IdPAttribute attribute = new IdPAttribute(getId());
+        attribute.setValues(values);
+        return attribute;
+    }
+}
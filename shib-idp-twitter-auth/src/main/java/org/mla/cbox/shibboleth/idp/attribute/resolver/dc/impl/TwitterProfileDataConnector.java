@@ -0,0 +1,191 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.attribute.resolver.dc.impl;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.security.auth.Subject;
+import org.mla.cbox.shibboleth.idp.authn.impl.TwitterIdPrincipal;
+import org.mla.cbox.shibboleth.idp.authn.impl.TwitterProfile;
+import org.mla.cbox.shibboleth.idp.authn.impl.TwitterProfileCache;
+import org.opensaml.messaging.context.BaseContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.IdPAttributeValue;
+import net.shibboleth.idp.attribute.StringAttributeValue;
+import net.shibboleth.idp.attribute.resolver.AbstractDataConnector;
+import net.shibboleth.idp.attribute.resolver.ResolutionException;
+import net.shibboleth.idp.attribute.resolver.context.AttributeResolutionContext;
+import net.shibboleth.idp.attribute.resolver.context.AttributeResolverWorkContext;
+import net.shibboleth.idp.authn.context.SubjectContext;
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonNegative;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Data connector that exposes the cached Twitter profile of the user identified by the
+ * {@link TwitterIdPrincipal} of the authenticated subject.
+ * 
+ * Profiles are read from the {@link TwitterProfileCache}. A profile that is not cached yet is
+ * fetched in the background, and resolution waits for it only until the fetch deadline, counted
+ * from when the fetch started. A fetch started at login has usually completed by then. If the
+ * full profile is not available in time, a profile seeded from the access token yields only
+ * the screen name, and no profile yields no attributes.
+ */
+@ThreadSafe
+public class TwitterProfileDataConnector extends AbstractDataConnector {
+    /** ID of the screen name attribute */
+    @Nonnull public static final String SCREEN_NAME_ATTRIBUTE = "twitterScreenName";
+    
+    /** ID of the display name attribute */
+    @Nonnull public static final String NAME_ATTRIBUTE = "twitterName";
+    
+    /** ID of the profile image URL attribute */
+    @Nonnull public static final String PROFILE_IMAGE_URL_ATTRIBUTE = "twitterProfileImageUrl";
+    
+    /** Profile cache */
+    @Nullable private TwitterProfileCache profileCache;
+    
+    /** Time in milliseconds from the start of a profile fetch after which it is no longer waited for */
+    @Duration @NonNegative private long fetchDeadline = 500;
+    
+    /** Class logger */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(TwitterProfileDataConnector.class);
+    
+    /** Constructor */
+    public TwitterProfileDataConnector() {
+        
+    }
+    
+    @Nullable public TwitterProfileCache getProfileCache() {
+        return this.profileCache;
+    }
+    
+    @Duration @NonNegative public long getFetchDeadline() {
+        return this.fetchDeadline;
+    }
+    
+    /**
+     * Set how long after the start of a profile fetch resolution stops waiting for it
+     * 
+     * @param deadline the deadline in milliseconds, 0 to never wait
+     * @return instance of this class
+     */
+    public TwitterProfileDataConnector setFetchDeadline(@Duration @NonNegative final long deadline) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.fetchDeadline = Constraint.isGreaterThanOrEqual(0, deadline, "Fetch deadline cannot be negative");
+        return this;
+    }
+    
+    public TwitterProfileDataConnector setProfileCache(@Nonnull final TwitterProfileCache cache) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.profileCache = Constraint.isNotNull(cache, "TwitterProfileCache cannot be null");
+        return this;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        
+        if (this.profileCache == null) {
+            throw new ComponentInitializationException(getLogPrefix() + " TwitterProfileCache cannot be null");
+        }
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    @Nullable protected Map<String, IdPAttribute> doDataConnectorResolve(
+            @Nonnull final AttributeResolutionContext resolutionContext,
+            @Nonnull final AttributeResolverWorkContext workContext) throws ResolutionException {
+        
+        final TwitterIdPrincipal principal = findPrincipal(resolutionContext);
+        if (principal == null) {
+            log.debug("{} No TwitterIdPrincipal in any authenticated subject", getLogPrefix());
+            return null;
+        }
+        
+        this.profileCache.prefetch(principal.getId());
+        final TwitterProfile profile = this.profileCache.get(principal.getId(), this.fetchDeadline);
+        if (profile == null) {
+            log.debug("{} Profile of user {} not available yet", getLogPrefix(), principal.getName());
+            return null;
+        }
+        
+        return toAttributes(profile);
+    }
+    
+    /**
+     * Find the first TwitterIdPrincipal of the authenticated subjects.
+     * 
+     * @param resolutionContext the resolution context
+     * 
+     * @return the principal, or null if there is none
+     */
+    @Nullable protected TwitterIdPrincipal findPrincipal(@Nonnull final AttributeResolutionContext resolutionContext) {
+        final BaseContext parent = resolutionContext.getParent();
+        final SubjectContext subjectContext = parent == null ? null : parent.getSubcontext(SubjectContext.class);
+        if (subjectContext == null) {
+            return null;
+        }
+        
+        for (final Subject subject : subjectContext.getSubjects()) {
+            final Set<TwitterIdPrincipal> principals = subject.getPrincipals(TwitterIdPrincipal.class);
+            if (!principals.isEmpty()) {
+                return principals.iterator().next();
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Build the attributes for a profile.
+     * 
+     * @param profile the profile
+     * 
+     * @return the attributes, keyed by ID
+     */
+    @Nonnull protected Map<String, IdPAttribute> toAttributes(@Nonnull final TwitterProfile profile) {
+        final Map<String, IdPAttribute> attributes = new HashMap<>(4);
+        addAttribute(attributes, SCREEN_NAME_ATTRIBUTE, profile.getScreenName());
+        addAttribute(attributes, NAME_ATTRIBUTE, profile.getName());
+        addAttribute(attributes, PROFILE_IMAGE_URL_ATTRIBUTE, profile.getProfileImageUrl());
+        return attributes;
+    }
+    
+    /**
+     * Add a single valued attribute if the value is known.
+     * 
+     * @param attributes the attributes
+     * @param id the attribute ID
+     * @param value the value, or null
+     */
+    private void addAttribute(@Nonnull final Map<String, IdPAttribute> attributes, @Nonnull final String id,
+            @Nullable final String value) {
+        if (value == null || value.isEmpty()) {
+            return;
+        }
+        final IdPAttribute attribute = new IdPAttribute(id);
+        attribute.setValues(Collections.<IdPAttributeValue<?>>singletonList(new StringAttributeValue(value)));
+        attributes.put(id, attribute);
+    }
+}
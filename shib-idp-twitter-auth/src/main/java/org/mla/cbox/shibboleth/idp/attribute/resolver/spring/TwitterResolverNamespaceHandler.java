@@ -0,0 +1,36 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.attribute.resolver.spring;
+
+import javax.annotation.Nonnull;
+import org.mla.cbox.shibboleth.idp.attribute.resolver.spring.ad.TwitterIdAttributeDefinitionParser;
+import org.mla.cbox.shibboleth.idp.attribute.resolver.spring.dc.TwitterProfileDataConnectorParser;
+import net.shibboleth.ext.spring.util.BaseSpringNamespaceHandler;
+
+/**
+ * Namespace handler for the Twitter attribute resolver plugins
+ */
+public class TwitterResolverNamespaceHandler extends BaseSpringNamespaceHandler {
+    /** Namespace for the Twitter attribute resolver plugins */
+    @Nonnull public static final String NAMESPACE = "urn:mla:cbox:shibboleth:resolver:twitter";
+    
+    /** {@inheritDoc} */
+    @Override
+    public void init() {
+        registerBeanDefinitionParser(TwitterIdAttributeDefinitionParser.TYPE_NAME,
+                new TwitterIdAttributeDefinitionParser());
+        registerBeanDefinitionParser(TwitterProfileDataConnectorParser.TYPE_NAME,
+                new TwitterProfileDataConnectorParser());
+    }
+}
@@ -0,0 +1,49 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.attribute.resolver.spring.ad;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.namespace.QName;
+import org.mla.cbox.shibboleth.idp.attribute.resolver.ad.impl.TwitterIdAttributeDefinition;
+import org.mla.cbox.shibboleth.idp.attribute.resolver.spring.TwitterResolverNamespaceHandler;
+import org.springframework.beans.factory.support.BeanDefinitionBuilder;
+import org.springframework.beans.factory.xml.ParserContext;
+import org.w3c.dom.Element;
+import net.shibboleth.idp.attribute.resolver.spring.ad.BaseAttributeDefinitionParser;
+
+/**
+ * Spring bean definition parser for {@link TwitterIdAttributeDefinition}
+ */
+public class TwitterIdAttributeDefinitionParser extends BaseAttributeDefinitionParser {
+    /** Schema type name */
+    @Nonnull public static final QName TYPE_NAME = new QName(TwitterResolverNamespaceHandler.NAMESPACE, "TwitterId");
+    
+    /** {@inheritDoc} */
+    @Override
+    protected Class<TwitterIdAttributeDefinition> getBeanClass(@Nullable final Element element) {
+        return TwitterIdAttributeDefinition.class;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    protected void doParse(@Nonnull final Element config, @Nonnull final ParserContext parserContext,
+            @Nonnull final BeanDefinitionBuilder builder) {
+        super.doParse(config, parserContext, builder);
+        
+        if (config.hasAttributeNS(null, "suffix")) {
+            builder.addPropertyValue("suffix", config.getAttributeNS(null, "suffix"));
+        }
+    }
+}
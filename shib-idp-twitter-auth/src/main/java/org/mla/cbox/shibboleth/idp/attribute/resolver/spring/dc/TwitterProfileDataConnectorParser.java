@@ -0,0 +1,49 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.attribute.resolver.spring.dc;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.namespace.QName;
+import org.mla.cbox.shibboleth.idp.attribute.resolver.dc.impl.TwitterProfileDataConnector;
+import org.mla.cbox.shibboleth.idp.attribute.resolver.spring.TwitterResolverNamespaceHandler;
+import org.springframework.beans.factory.support.BeanDefinitionBuilder;
+import org.springframework.beans.factory.xml.ParserContext;
+import org.w3c.dom.Element;
+import net.shibboleth.idp.attribute.resolver.spring.dc.AbstractDataConnectorParser;
+
+/**
+ * Spring bean definition parser for {@link TwitterProfileDataConnector}
+ */
+public class TwitterProfileDataConnectorParser extends AbstractDataConnectorParser {
+    /** Schema type name */
+    @Nonnull public static final QName TYPE_NAME = new QName(TwitterResolverNamespaceHandler.NAMESPACE,
+            "TwitterProfile");
+    
+    /** {@inheritDoc} */
+    @Override
+    protected Class<TwitterProfileDataConnector> getBeanClass(@Nullable final Element element) {
+        return TwitterProfileDataConnector.class;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    protected void doV2Parse(@Nonnull final Element config, @Nonnull final ParserContext parserContext,
+            @Nonnull final BeanDefinitionBuilder builder) {
+        builder.addPropertyReference("profileCache", config.getAttributeNS(null, "profileCacheRef"));
+        if (config.hasAttributeNS(null, "fetchDeadline")) {
+            builder.addPropertyValue("fetchDeadline", config.getAttributeNS(null, "fetchDeadline"));
+        }
+    }
+}
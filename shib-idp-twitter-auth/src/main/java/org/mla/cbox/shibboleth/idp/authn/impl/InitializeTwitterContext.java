@@ -13,9 +13,23 @@
 */
 package org.mla.cbox.shibboleth.idp.authn.impl;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.servlet.http.HttpServletRequest;
 import org.opensaml.profile.action.ActionSupport;
+import org.opensaml.profile.action.EventIds;
 import org.opensaml.profile.context.ProfileRequestContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,15 +39,60 @@ import net.shibboleth.idp.authn.AbstractAuthenticationAction;
 import net.shibboleth.idp.authn.AuthnEventIds;
 import net.shibboleth.idp.authn.context.AuthenticationContext;
 import net.shibboleth.idp.profile.context.SpringRequestContext;
-import twitter4j.Twitter;
-import twitter4j.TwitterException;
-import twitter4j.TwitterFactory;
-import twitter4j.auth.RequestToken;
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.logic.Constraint;
 
+/**
+ * An action that creates the {@link TwitterContext} and obtains a request token from Twitter.
+ * 
+ * If an executor is configured the request token is fetched on one of its threads and the
+ * action gives up once the timeout expires, signaling {@link TwitterAuthnEventIds#TWITTER_UNAVAILABLE}
+ * so that the flow can fail over instead of holding the servlet thread. If a
+ * {@link TwitterHedgingPolicy} is also configured a call that is slow to answer is hedged with a
+ * second one on the executor and the first token obtained is used; the spare token simply expires.
+ * A hedge is a real call to Twitter made with a consumer key of its own choosing, so it counts
+ * against that key's rate limit and local budget like any other.
+ * 
+ * If a {@link TwitterRequestTokenStore} is configured the request token secret is saved there
+ * and the {@link TwitterContext} only keeps the token itself. The callback is still matched
+ * against that token, so only the secret leaves the login session.
+ * 
+ * In OAuth 2.0 mode the authorization request is built locally instead: the executor, hedging,
+ * metrics and the request token span are skipped as there is no call to Twitter to wait for. The
+ * callback URL then travels in the state of the request, and {@link TwitterOAuth2CallbackServlet}
+ * sends the browser back to it from the registered redirect URI.
+ * 
+ * If {@link TwitterMetrics} are configured the latency and outcome of the request token call
+ * are recorded. If a {@link TwitterTracer} is configured the login is given a correlation ID
+ * and the request token call is recorded as its first span. If a {@link TwitterAuditLogger} is
+ * configured logins that fail in this action are audited.
+ */
 public class InitializeTwitterContext extends AbstractAuthenticationAction {
     /** Twitter integration */
     @Nonnull private TwitterIntegration twitterIntegration;
     
+    /** Executor the request token is fetched on, or null to fetch it on the calling thread */
+    @Nullable private ExecutorService executorService;
+    
+    /** Time in milliseconds to wait for the request token when using the executor */
+    @Duration @Positive private long requestTokenTimeout = 5000;
+    
+    /** Policy deciding when a slow request token call is hedged, or null to never hedge */
+    @Nullable private TwitterHedgingPolicy hedgingPolicy;
+    
+    /** Store for the request token secret, or null to keep it in the TwitterContext */
+    @Nullable private TwitterRequestTokenStore requestTokenStore;
+    
+    /** Metrics the request token call is recorded into, if any */
+    @Nullable private TwitterMetrics metrics;
+    
+    /** Tracer the login is traced with, if any */
+    @Nullable private TwitterTracer tracer;
+    
+    /** Audit log failed logins are written to, if any */
+    @Nullable private TwitterAuditLogger auditLogger;
+    
     /** Class logger */
     @Nonnull private final Logger log = LoggerFactory.getLogger(InitializeTwitterContext.class);
     
@@ -47,16 +106,10 @@ public class InitializeTwitterContext extends AbstractAuthenticationAction {
             @Nonnull final AuthenticationContext authenticationContext) {
         
         /* Create a new TwitterContext */
-        final TwitterContext twitterContext = new TwitterContext();
-        
-        /* Set the Twitter integration details for the context */
-        twitterContext.setTwitterIntegration(this.twitterIntegration);
-        log.debug("{} Created TwitterContext using TwitterIntegration with consumer key {}", getLogPrefix(), this.twitterIntegration.getOauthConsumerKey());
-        
-        /* Create a new Twitter class instance and add it to the context */
-        Twitter twitter = new TwitterFactory().getInstance();
-        twitter.setOAuthConsumer(this.twitterIntegration.getOauthConsumerKey(), this.twitterIntegration.getOauthConsumerSecret());
-        twitterContext.setTwitter(twitter);
+        final TwitterContext twitterContext = new TwitterContext().setStartTime(System.currentTimeMillis());
+        if (this.tracer != null) {
+            log.debug("{} Tracing login as {}", getLogPrefix(), this.tracer.startTrace(twitterContext));
+        }
         
         /* Find the Spring context and from it the current flow execution URL */
         SpringRequestContext springRequestContext = (SpringRequestContext) profileRequestContext.getSubcontext(SpringRequestContext.class);
@@ -75,23 +128,249 @@ public class InitializeTwitterContext extends AbstractAuthenticationAction {
         String callbackUrl = callbackUrlBuilder.toString();
         
         /* Query Twitter for the request token and include the callback URL */
+        TwitterRequestToken requestToken;
+        String outcome = TwitterMetrics.ERROR;
+        final boolean local = this.twitterIntegration.getMode() == TwitterIntegration.Mode.OAUTH2;
+        final boolean recorded = this.metrics != null && !local;
+        final long started = recorded ? this.metrics.callStarted(TwitterMetrics.Call.REQUEST_TOKEN) : 0;
+        final TwitterSpan span = this.tracer != null && !local
+                ? this.tracer.startSpan(twitterContext, TwitterTracer.REQUEST_TOKEN_SPAN) : TwitterSpan.NOT_SAMPLED;
         try {
             log.debug("{} Obtaining request token with callback URL {}", getLogPrefix(), callbackUrl);
-            RequestToken requestToken = twitter.getOAuthRequestToken(callbackUrl);
-            twitterContext.setRequestToken(requestToken);
-            log.debug("{} Obtained request token", getLogPrefix());
-        } catch (TwitterException e) {
-            log.error("{} Error obtaining request token from Twitter: {}", getLogPrefix(), e.getErrorMessage());
+            requestToken = local
+                    ? this.twitterIntegration.getRequestToken(callbackUrl) : fetchRequestToken(callbackUrl);
+            log.debug("{} Obtained request token using consumer key {}", getLogPrefix(), requestToken.getConsumerKeyId());
+            outcome = TwitterMetrics.SUCCESS;
+            span.attribute("consumerKey", requestToken.getConsumerKeyId());
+        } catch (TimeoutException e) {
+            outcome = TwitterMetrics.TIMEOUT;
+            log.warn("{} No request token from Twitter within {} ms", getLogPrefix(), this.requestTokenTimeout);
+            ActionSupport.buildEvent(profileRequestContext, TwitterAuthnEventIds.TWITTER_UNAVAILABLE);
+            return;
+        } catch (RejectedExecutionException e) {
+            outcome = TwitterMetrics.REJECTED;
+            log.warn("{} Too many pending request token calls, not calling Twitter", getLogPrefix());
+            ActionSupport.buildEvent(profileRequestContext, TwitterAuthnEventIds.TWITTER_UNAVAILABLE);
+            return;
+        } catch (TwitterOverloadedException e) {
+            outcome = TwitterMetrics.OVERLOADED;
+            log.warn("{} {}", getLogPrefix(), e.getMessage());
+            ActionSupport.buildEvent(profileRequestContext, TwitterAuthnEventIds.TWITTER_OVERLOADED);
+            return;
+        } catch (TwitterUnavailableException e) {
+            outcome = TwitterMetrics.UNAVAILABLE;
+            log.warn("{} {}", getLogPrefix(), e.getMessage());
+            ActionSupport.buildEvent(profileRequestContext, TwitterAuthnEventIds.TWITTER_UNAVAILABLE);
+            return;
+        } catch (TwitterOAuthException e) {
+            outcome = TwitterMetrics.outcomeOf(e);
+            log.error("{} Error obtaining request token from Twitter: {}", getLogPrefix(), e.getMessage());
             ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.NO_CREDENTIALS);
             return;
+        } finally {
+            if (recorded) {
+                this.metrics.callEnded(TwitterMetrics.Call.REQUEST_TOKEN, started, outcome);
+            }
+            span.attribute("outcome", outcome).end();
+            if (!TwitterMetrics.SUCCESS.equals(outcome)) {
+                audit(twitterContext, request, outcome);
+            }
         }
         
+        /* Keep the secret in the store if there is one */
+        if (this.requestTokenStore != null) {
+            try {
+                this.requestTokenStore.save(requestToken);
+            } catch (IOException e) {
+                log.error("{} Error storing request token: {}", getLogPrefix(), e.getMessage());
+                audit(twitterContext, request, TwitterMetrics.STORE_ERROR);
+                ActionSupport.buildEvent(profileRequestContext, EventIds.IO_ERROR);
+                return;
+            }
+            requestToken = requestToken.withoutSecret();
+        }
+        twitterContext.setRequestToken(requestToken);
+        twitterContext.setRedirectTime(System.currentTimeMillis());
+        
         /* Save the context as a sub context to the authentication context */
         authenticationContext.addSubcontext(twitterContext, true);
         
         return;
     }
     
+    /**
+     * Write the audit event of a login that failed in this action.
+     * 
+     * @param twitterContext the context of the login
+     * @param request the current request
+     * @param outcome the outcome of the login
+     */
+    private void audit(@Nonnull final TwitterContext twitterContext, @Nonnull final HttpServletRequest request,
+            @Nonnull final String outcome) {
+        if (this.auditLogger != null) {
+            this.auditLogger.log(new TwitterAuditEvent()
+                .setOutcome(outcome)
+                .setTraceId(twitterContext.getTraceId())
+                .setClientAddress(request.getRemoteAddr())
+                .setRequestTokenTime(System.currentTimeMillis() - twitterContext.getStartTime()));
+        }
+    }
+    
+    /**
+     * Obtain the request token, on the executor if one is configured.
+     * 
+     * @param callbackUrl the callback URL
+     * 
+     * @return the request token
+     * 
+     * @throws TwitterOAuthException if Twitter could not be queried or refused the request
+     * @throws TimeoutException if the executor did not obtain the token within the timeout
+     * @throws RejectedExecutionException if the executor cannot accept another call
+     */
+    @Nonnull TwitterRequestToken fetchRequestToken(@Nonnull final String callbackUrl)
+            throws TwitterOAuthException, TimeoutException {
+        if (this.executorService == null) {
+            return this.twitterIntegration.getRequestToken(callbackUrl);
+        }
+        
+        if (this.hedgingPolicy != null) {
+            return fetchHedgedRequestToken(callbackUrl, this.hedgingPolicy);
+        }
+        
+        final Future<TwitterRequestToken> future = this.executorService.submit(newRequestTokenCall(callbackUrl, null));
+        
+        try {
+            return future.get(this.requestTokenTimeout, TimeUnit.MILLISECONDS);
+        } catch (final ExecutionException e) {
+            throw requestTokenFailure(e);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            throw new TwitterOAuthException("Interrupted while obtaining request token", e);
+        } catch (final TimeoutException e) {
+            future.cancel(true);
+            throw e;
+        }
+    }
+    
+    /**
+     * Obtain the request token on the executor, starting a second call if the first has not
+     * answered within the hedge delay and the policy allows it. The first token obtained is
+     * returned and the other call is cancelled. A call already talking to Twitter is left to
+     * finish so that the circuit breaker and concurrency limiter see its real outcome rather
+     * than an interruption. A call that fails does not fail the fetch while the other may still
+     * answer.
+     * 
+     * @param callbackUrl the callback URL
+     * @param policy the hedging policy
+     * 
+     * @return the request token
+     * 
+     * @throws TwitterOAuthException if Twitter could not be queried or refused every call
+     * @throws TimeoutException if no call obtained the token within the timeout
+     * @throws RejectedExecutionException if the executor cannot accept the first call
+     */
+    @Nonnull private TwitterRequestToken fetchHedgedRequestToken(@Nonnull final String callbackUrl,
+            @Nonnull final TwitterHedgingPolicy policy) throws TwitterOAuthException, TimeoutException {
+        final long deadline = System.currentTimeMillis() + this.requestTokenTimeout;
+        final CompletionService<TwitterRequestToken> completionService =
+                new ExecutorCompletionService<TwitterRequestToken>(this.executorService);
+        final List<Future<TwitterRequestToken>> pending = new ArrayList<Future<TwitterRequestToken>>(2);
+        Future<TwitterRequestToken> hedge = null;
+        boolean obtained = false;
+        
+        pending.add(completionService.submit(newRequestTokenCall(callbackUrl, policy)));
+        policy.onCall();
+        try {
+            /* Wait for the hedge delay before considering a second call */
+            Future<TwitterRequestToken> done = null;
+            final long hedgeDelay = policy.getHedgeDelay();
+            if (hedgeDelay != TwitterHedgingPolicy.NO_HEDGE && hedgeDelay < this.requestTokenTimeout) {
+                done = completionService.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+                if (done == null && policy.tryAcquireHedge()) {
+                    try {
+                        hedge = completionService.submit(newRequestTokenCall(callbackUrl, policy));
+                        pending.add(hedge);
+                        log.debug("{} No request token after {} ms, hedging the call", getLogPrefix(), hedgeDelay);
+                    } catch (final RejectedExecutionException e) {
+                        log.debug("{} Executor refused the hedged request token call", getLogPrefix());
+                    }
+                }
+            }
+            
+            while (true) {
+                if (done == null) {
+                    final long remaining = deadline - System.currentTimeMillis();
+                    done = remaining > 0 ? completionService.poll(remaining, TimeUnit.MILLISECONDS) : null;
+                    if (done == null) {
+                        throw new TimeoutException();
+                    }
+                }
+                pending.remove(done);
+                try {
+                    final TwitterRequestToken requestToken = done.get();
+                    if (done == hedge) {
+                        policy.onHedgeWon();
+                    }
+                    obtained = true;
+                    return requestToken;
+                } catch (final ExecutionException e) {
+                    if (pending.isEmpty()) {
+                        throw requestTokenFailure(e);
+                    }
+                    log.debug("{} Request token call failed, waiting for the other", getLogPrefix());
+                }
+                done = null;
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TwitterOAuthException("Interrupted while obtaining request token", e);
+        } finally {
+            for (final Future<TwitterRequestToken> future : pending) {
+                future.cancel(!obtained);
+            }
+        }
+    }
+    
+    /**
+     * Create a call to Twitter for a request token, recording its latency into the hedging policy
+     * when it succeeds.
+     * 
+     * @param callbackUrl the callback URL
+     * @param policy the hedging policy, or null if calls are not hedged
+     * 
+     * @return the call
+     */
+    @Nonnull private Callable<TwitterRequestToken> newRequestTokenCall(@Nonnull final String callbackUrl,
+            @Nullable final TwitterHedgingPolicy policy) {
+        final TwitterIntegration integration = this.twitterIntegration;
+        return new Callable<TwitterRequestToken>() {
+            @Override
+            public TwitterRequestToken call() throws TwitterOAuthException {
+                final long started = System.currentTimeMillis();
+                final TwitterRequestToken requestToken = integration.getRequestToken(callbackUrl);
+                if (policy != null) {
+                    policy.recordLatency(System.currentTimeMillis() - started);
+                }
+                return requestToken;
+            }
+        };
+    }
+    
+    /**
+     * Unwrap the failure of a request token call made on the executor.
+     * 
+     * @param e the exception thrown by the call's future
+     * 
+     * @return the exception to throw
+     */
+    @Nonnull private TwitterOAuthException requestTokenFailure(@Nonnull final ExecutionException e) {
+        if (e.getCause() instanceof TwitterOAuthException) {
+            return (TwitterOAuthException) e.getCause();
+        }
+        return new TwitterOAuthException("Error obtaining request token", e.getCause());
+    }
+    
     /**
      * Get the TwitterIntegration 
      * 
@@ -111,4 +390,146 @@ public class InitializeTwitterContext extends AbstractAuthenticationAction {
         this.twitterIntegration = twitterIntegration;
         return this;
     }
+    
+    /**
+     * Get the executor the request token is fetched on
+     * 
+     * @return the executor, or null if the request token is fetched on the calling thread
+     */
+    @Nullable public ExecutorService getExecutorService() {
+        return this.executorService;
+    }
+    
+    /**
+     * Set the executor the request token is fetched on. The executor should be bounded
+     * so that a slow Twitter cannot accumulate an unbounded number of calls.
+     * 
+     * @param executor the executor, or null to fetch the request token on the calling thread
+     * @return instance of this class
+     */
+    public InitializeTwitterContext setExecutorService(@Nullable final ExecutorService executor) {
+        this.executorService = executor;
+        return this;
+    }
+    
+    /**
+     * Get the time to wait for the request token when using the executor
+     * 
+     * @return the timeout in milliseconds
+     */
+    @Duration @Positive public long getRequestTokenTimeout() {
+        return this.requestTokenTimeout;
+    }
+    
+    /**
+     * Set the time to wait for the request token when using the executor
+     * 
+     * @param timeout the timeout in milliseconds
+     * @return instance of this class
+     */
+    public InitializeTwitterContext setRequestTokenTimeout(@Duration @Positive final long timeout) {
+        this.requestTokenTimeout = Constraint.isGreaterThan(0, timeout, "Request token timeout must be greater than 0");
+        return this;
+    }
+    
+    /**
+     * Get the policy deciding when a slow request token call is hedged
+     * 
+     * @return the policy, or null if calls are never hedged
+     */
+    @Nullable public TwitterHedgingPolicy getHedgingPolicy() {
+        return this.hedgingPolicy;
+    }
+    
+    /**
+     * Set the policy deciding when a slow request token call is hedged. Hedging needs an
+     * executor and is ignored without one.
+     * 
+     * @param policy the policy, or null to never hedge
+     * @return instance of this class
+     */
+    public InitializeTwitterContext setHedgingPolicy(@Nullable final TwitterHedgingPolicy policy) {
+        this.hedgingPolicy = policy;
+        return this;
+    }
+    
+    /**
+     * Get the store for the request token secret
+     * 
+     * @return the store, or null if the secret is kept in the TwitterContext
+     */
+    @Nullable public TwitterRequestTokenStore getRequestTokenStore() {
+        return this.requestTokenStore;
+    }
+    
+    /**
+     * Set the store for the request token secret
+     * 
+     * @param store the store, or null to keep the secret in the TwitterContext
+     * @return instance of this class
+     */
+    public InitializeTwitterContext setRequestTokenStore(@Nullable final TwitterRequestTokenStore store) {
+        this.requestTokenStore = store;
+        return this;
+    }
+    
+    /**
+     * Get the metrics the request token call is recorded into
+     * 
+     * @return the metrics, or null if none are recorded
+     */
+    @Nullable public TwitterMetrics getMetrics() {
+        return this.metrics;
+    }
+    
+    /**
+     * Set the metrics the request token call is recorded into
+     * 
+     * @param twitterMetrics the metrics, or null to record none
+     * @return instance of this class
+     */
+    public InitializeTwitterContext setMetrics(@Nullable final TwitterMetrics twitterMetrics) {
+        this.metrics = twitterMetrics;
+        return this;
+    }
+    
+    /**
+     * Get the tracer the login is traced with
+     * 
+     * @return the tracer, or null if logins are not traced
+     */
+    @Nullable public TwitterTracer getTracer() {
+        return this.tracer;
+    }
+    
+    /**
+     * Set the tracer the login is traced with
+     * 
+     * @param twitterTracer the tracer, or null to not trace logins
+     * @return instance of this class
+     */
+    public InitializeTwitterContext setTracer(@Nullable final TwitterTracer twitterTracer) {
+        this.tracer = twitterTracer;
+        return this;
+    }
+    
+    /**
+     * Get the audit log failed logins are written to
+     * 
+     * @return the audit log, or null if logins are not audited
+     */
+    @Nullable public TwitterAuditLogger getAuditLogger() {
+        return this.auditLogger;
+    }
+    
+    /**
+     * Set the audit log failed logins are written to
+     * 
+     * @param logger the audit log, or null to not audit logins
+     * @return instance of this class
+     */
+    public InitializeTwitterContext setAuditLogger(@Nullable final TwitterAuditLogger logger) {
+        this.auditLogger = logger;
+        return this;
+    }
 }
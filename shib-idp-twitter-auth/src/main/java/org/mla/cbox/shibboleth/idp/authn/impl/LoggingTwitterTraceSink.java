@@ -0,0 +1,50 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.util.Map;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link TwitterTraceSink} that writes each span as one log line at INFO level, for example
+ * <pre>
+ * trace=5f1c0e9a3b7d2c41 span=accessToken start=1500000000000 duration=182.4ms outcome=success
+ * </pre>
+ */
+@ThreadSafe
+public class LoggingTwitterTraceSink implements TwitterTraceSink {
+    /** Class logger */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(LoggingTwitterTraceSink.class);
+    
+    /** {@inheritDoc} */
+    @Override
+    public void export(@Nonnull final TwitterSpan span) {
+        if (!log.isInfoEnabled()) {
+            return;
+        }
+        
+        final StringBuilder line = new StringBuilder(128)
+            .append("trace=").append(span.getTraceId())
+            .append(" span=").append(span.getName())
+            .append(" start=").append(span.getStartTime())
+            .append(" duration=").append(span.getDurationNanos() / 100000 / 10.0).append("ms");
+        for (final Map.Entry<String, String> attribute : span.getAttributes().entrySet()) {
+            line.append(' ').append(attribute.getKey()).append('=').append(attribute.getValue());
+        }
+        log.info(line.toString());
+    }
+}
@@ -0,0 +1,348 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Timer;
+import java.util.TimerTask;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonNegative;
+import net.shibboleth.utilities.java.support.component.AbstractInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * {@link TwitterAccountIndex} backed by a memory-mapped file of sorted Twitter user IDs.
+ * 
+ * The file, in big-endian byte order, holds:
+ * <ul>
+ * <li>a 16 byte header: the magic number {@link #MAGIC}, the format version, the number of
+ * accounts <i>n</i> and a reserved int</li>
+ * <li><i>n</i> Twitter user IDs as longs, in ascending order without duplicates</li>
+ * <li><i>n</i> + 1 ints giving the offsets of the usernames within the username area</li>
+ * <li>the username area: the usernames in UTF-8, in the order of the IDs</li>
+ * </ul>
+ * 
+ * Lookups are a binary search over the mapped IDs and allocate only the returned username.
+ * The file is checked for changes at a fixed interval and a changed file is mapped and swapped
+ * in as a whole, so lookups always see one consistent version. Files should be replaced by
+ * renaming, never rewritten in place.
+ */
+@ThreadSafe
+public class MappedTwitterAccountIndex extends AbstractInitializableComponent implements TwitterAccountIndex {
+    /** Magic number at the start of the file, "TWIX" */
+    public static final int MAGIC = 0x54574958;
+    
+    /** Version of the file format */
+    public static final int VERSION = 1;
+    
+    /** Size in bytes of the file header */
+    public static final int HEADER_SIZE = 16;
+    
+    /** The index file */
+    @Nullable private File file;
+    
+    /** Time in milliseconds between checks for a changed file, 0 to never check */
+    @Duration @NonNegative private long checkInterval = 60000;
+    
+    /** Currently mapped version of the file */
+    @Nullable private volatile Mapping mapping;
+    
+    /** Timer checking for a changed file */
+    @Nullable private Timer checkTimer;
+    
+    /** Class logger */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(MappedTwitterAccountIndex.class);
+    
+    /** Log prefix */
+    @Nonnull private final String logPrefix = getClass().getSimpleName() + ":";
+    
+    /** Constructor */
+    public MappedTwitterAccountIndex() {
+        
+    }
+    
+    @Nullable public File getFile() {
+        return this.file;
+    }
+    
+    public long getCheckInterval() {
+        return this.checkInterval;
+    }
+    
+    /**
+     * Get the number of accounts in the current version of the file
+     * 
+     * @return the number of accounts
+     */
+    public int getSize() {
+        final Mapping current = this.mapping;
+        return current == null ? 0 : current.count;
+    }
+    
+    public MappedTwitterAccountIndex setFile(@Nonnull final File indexFile) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.file = Constraint.isNotNull(indexFile, "Index file cannot be null");
+        return this;
+    }
+    
+    public MappedTwitterAccountIndex setCheckInterval(@Duration @NonNegative final long interval) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.checkInterval = Constraint.isGreaterThanOrEqual(0, interval, "Check interval cannot be negative");
+        return this;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        
+        if (this.file == null) {
+            throw new ComponentInitializationException(this.logPrefix + " Index file cannot be null");
+        }
+        
+        try {
+            this.mapping = Mapping.load(this.file);
+        } catch (final IOException e) {
+            throw new ComponentInitializationException(this.logPrefix + " Unable to load index file " + this.file, e);
+        }
+        log.info("{} Loaded {} linked accounts from {}", this.logPrefix, this.mapping.count, this.file);
+        
+        if (this.checkInterval > 0) {
+            this.checkTimer = new Timer(getClass().getSimpleName(), true);
+            this.checkTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    reloadIfChanged();
+                }
+            }, this.checkInterval, this.checkInterval);
+        }
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    protected void doDestroy() {
+        if (this.checkTimer != null) {
+            this.checkTimer.cancel();
+        }
+        this.mapping = null;
+        super.doDestroy();
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    @Nullable public String getUsername(final long twitterId) {
+        final Mapping current = this.mapping;
+        if (current == null) {
+            return null;
+        }
+        
+        final int index = current.find(twitterId);
+        return index < 0 ? null : current.username(index);
+    }
+    
+    /**
+     * Map the file again if it has changed since it was last mapped. A file that cannot be
+     * loaded is logged and the current version is kept.
+     */
+    public void reloadIfChanged() {
+        final Mapping current = this.mapping;
+        if (current == null || (this.file.lastModified() == current.lastModified
+                && this.file.length() == current.length)) {
+            return;
+        }
+        
+        try {
+            final Mapping loaded = Mapping.load(this.file);
+            this.mapping = loaded;
+            log.info("{} Reloaded {} linked accounts from {}", this.logPrefix, loaded.count, this.file);
+        } catch (final IOException e) {
+            log.error("{} Unable to reload index file {}, keeping the previous version: {}", this.logPrefix,
+                    this.file, e.getMessage());
+        }
+    }
+    
+    /** One mapped version of the index file, also read by {@link TwitterAccountIndexBuilder} */
+    static final class Mapping {
+        /** The mapped file */
+        @Nonnull private final MappedByteBuffer buffer;
+        
+        /** Number of accounts */
+        final int count;
+        
+        /** Position of the first offset */
+        private final int offsetsStart;
+        
+        /** Position of the username area */
+        private final int usernamesStart;
+        
+        /** Modification time of the file when mapped */
+        private final long lastModified;
+        
+        /** Length of the file when mapped */
+        private final long length;
+        
+        /**
+         * Constructor
+         * 
+         * @param mapped the mapped file
+         * @param accounts the number of accounts
+         * @param modified modification time of the file
+         */
+        private Mapping(@Nonnull final MappedByteBuffer mapped, final int accounts, final long modified) {
+            this.buffer = mapped;
+            this.count = accounts;
+            this.offsetsStart = HEADER_SIZE + accounts * 8;
+            this.usernamesStart = this.offsetsStart + (accounts + 1) * 4;
+            this.lastModified = modified;
+            this.length = mapped.capacity();
+        }
+        
+        /**
+         * Map and validate an index file.
+         * 
+         * @param file the file
+         * 
+         * @return the mapping
+         * 
+         * @throws IOException if the file cannot be read or is not a valid index
+         */
+        @Nonnull static Mapping load(@Nonnull final File file) throws IOException {
+            final long modified = file.lastModified();
+            final MappedByteBuffer mapped;
+            try (final RandomAccessFile raf = new RandomAccessFile(file, "r");
+                    final FileChannel channel = raf.getChannel()) {
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException("Index file is larger than 2 GB");
+                }
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            mapped.order(ByteOrder.BIG_ENDIAN);
+            
+            if (mapped.capacity() < HEADER_SIZE || mapped.getInt(0) != MAGIC) {
+                throw new IOException("Not a Twitter account index");
+            }
+            if (mapped.getInt(4) != VERSION) {
+                throw new IOException("Unsupported index version " + mapped.getInt(4));
+            }
+            final int accounts = mapped.getInt(8);
+            if (accounts < 0 || HEADER_SIZE + accounts * 12L + 4 > mapped.capacity()) {
+                throw new IOException("Index file is truncated");
+            }
+            
+            final Mapping mapping = new Mapping(mapped, accounts, modified);
+            mapping.validate();
+            return mapping;
+        }
+        
+        /**
+         * Check that the IDs are sorted and the offsets stay within the file.
+         * 
+         * @throws IOException if the index is inconsistent
+         */
+        private void validate() throws IOException {
+            for (int i = 1; i < this.count; i++) {
+                if (twitterId(i - 1) >= twitterId(i)) {
+                    throw new IOException("Twitter IDs are not sorted at entry " + i);
+                }
+            }
+            int previous = 0;
+            for (int i = 0; i <= this.count; i++) {
+                final int offset = offset(i);
+                if (offset < previous) {
+                    throw new IOException("Username offsets are not ascending at entry " + i);
+                }
+                previous = offset;
+            }
+            if (this.usernamesStart + (long) previous > this.buffer.capacity()) {
+                throw new IOException("Index file is truncated");
+            }
+        }
+        
+        /**
+         * Get the Twitter user ID of an entry.
+         * 
+         * @param index the entry
+         * 
+         * @return the Twitter user ID
+         */
+        long twitterId(final int index) {
+            return this.buffer.getLong(HEADER_SIZE + index * 8);
+        }
+        
+        /**
+         * Get the offset of the username of an entry.
+         * 
+         * @param index the entry, or the number of entries for the end of the area
+         * 
+         * @return the offset within the username area
+         */
+        private int offset(final int index) {
+            return this.buffer.getInt(this.offsetsStart + index * 4);
+        }
+        
+        /**
+         * Find the entry for a Twitter user ID.
+         * 
+         * @param twitterId the Twitter user ID
+         * 
+         * @return the entry, or -1 if there is none
+         */
+        int find(final long twitterId) {
+            int low = 0;
+            int high = this.count - 1;
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                final long value = twitterId(mid);
+                if (value < twitterId) {
+                    low = mid + 1;
+                } else if (value > twitterId) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+        
+        /**
+         * Decode the username of an entry.
+         * 
+         * @param index the entry
+         * 
+         * @return the username
+         */
+        @Nonnull String username(final int index) {
+            final int start = offset(index);
+            final byte[] bytes = new byte[offset(index + 1) - start];
+            final int position = this.usernamesStart + start;
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = this.buffer.get(position + i);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -13,6 +13,8 @@
 */
 package org.mla.cbox.shibboleth.idp.authn.impl;
 
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.security.auth.Subject;
@@ -25,16 +27,59 @@ import org.slf4j.LoggerFactory;
 import net.shibboleth.idp.authn.AbstractValidationAction;
 import net.shibboleth.idp.authn.AuthnEventIds;
 import net.shibboleth.idp.authn.context.AuthenticationContext;
-import twitter4j.TwitterException;
-import twitter4j.auth.AccessToken;
 
 /**
  * An action that extracts the Twitter Oauth verifier from the query
  * string then queries Twitter for the access token.
  *
+ * Callbacks are checked locally before calling Twitter: the oauth_token parameter must match the
+ * request token issued to the flow, which must have one, and, if a {@link TwitterReplayFilter} is configured, the
+ * verifier must not have been used before.
+ *
+ * If a {@link TwitterRequestTokenStore} is configured the request token secret is taken
+ * back from the store. The {@link TwitterContext} of the flow must still hold the request token,
+ * so a stored token is only accepted by the flow it was issued to.
+ * 
+ * In OAuth 2.0 mode the state, code and error parameters of the callback take the place of
+ * oauth_token, oauth_verifier and denied, and the code is exchanged with the PKCE code verifier
+ * kept as the request token secret. The same {@link TwitterIdPrincipal} results.
+ * 
+ * If {@link TwitterMetrics} are configured the time spent at Twitter, the latency and outcome
+ * of the access token call and the reasons callbacks are rejected are recorded. If a
+ * {@link TwitterTracer} is configured the time spent at Twitter and the access token call are
+ * recorded as spans of the login's trace. If a {@link TwitterAuditLogger} is configured every
+ * callback is audited with its outcome and the timings of the login.
+ * 
+ * Request state is kept in the {@link TwitterContext}, so an instance can be reused across
+ * requests, one thread at a time.
  */
 public class ProcessRedirectFromTwitter extends AbstractValidationAction {
-    @Nullable private TwitterContext twitterContext;
+    /** Twitter integration */
+    @Nonnull private TwitterIntegration twitterIntegration;
+    
+    /** Store for the request token secret, or null if it is kept in the TwitterContext */
+    @Nullable private TwitterRequestTokenStore requestTokenStore;
+    
+    /** Cache the profile of each login is fetched into, if any */
+    @Nullable private TwitterProfileCache profileCache;
+    
+    /** Cookie issued after each login for local re-authentication, if any */
+    @Nullable private TwitterIdentityCookie identityCookie;
+    
+    /** Whether principals are shared through {@link TwitterIdPrincipal#valueOf(long)} */
+    private boolean internPrincipals;
+    
+    /** Metrics the callback is recorded into, if any */
+    @Nullable private TwitterMetrics metrics;
+    
+    /** Tracer the callback is traced with, if any */
+    @Nullable private TwitterTracer tracer;
+    
+    /** Audit log callbacks are written to, if any */
+    @Nullable private TwitterAuditLogger auditLogger;
+    
+    /** Filter of verifiers already used, if any */
+    @Nullable private TwitterReplayFilter replayFilter;
     
     /** Class logger */
     @Nonnull private final Logger log = LoggerFactory.getLogger(ProcessRedirectFromTwitter.class);
@@ -59,9 +104,9 @@ public class ProcessRedirectFromTwitter extends AbstractValidationAction {
         }
         
         /* Ensure that we have a TwitterContext established during initialization of flow */
-        this.twitterContext = authenticationContext.getSubcontext(TwitterContext.class);
-        if (this.twitterContext == null) {
+        if (authenticationContext.getSubcontext(TwitterContext.class) == null) {
             log.info("{} No TwitterContext available within authentication context", getLogPrefix());
+            rejectCallback(newAuditEvent(null), TwitterMetrics.MISSING_CONTEXT);
             handleError(profileRequestContext, authenticationContext, AuthnEventIds.NO_CREDENTIALS,
                     AuthnEventIds.NO_CREDENTIALS);
             return false;
@@ -83,40 +128,426 @@ public class ProcessRedirectFromTwitter extends AbstractValidationAction {
             return;
         }
         
-        /* Obtain the Twitter Oauth verifier from the query string */
-        final String verifier = servletRequest.getParameter("oauth_verifier");
+        /* Obtain the Twitter Oauth verifier, or OAuth 2.0 authorization code, from the query string */
+        final boolean oauth2 = this.twitterIntegration.getMode() == TwitterIntegration.Mode.OAUTH2;
+        final String verifier = servletRequest.getParameter(oauth2 ? "code" : "oauth_verifier");
+        final boolean denied = servletRequest.getParameter(oauth2 ? "error" : "denied") != null;
+        
+        /* Record the time the user spent at Twitter, once per redirect */
+        final TwitterContext twitterContext = authenticationContext.getSubcontext(TwitterContext.class);
+        final TwitterAuditEvent auditEvent = newAuditEvent(twitterContext);
+        if (twitterContext.getRedirectTime() > 0) {
+            if (auditEvent != null) {
+                auditEvent.setTwitterTime(System.currentTimeMillis() - twitterContext.getRedirectTime());
+            }
+            if (this.metrics != null) {
+                this.metrics.redirectCompleted(twitterContext.getRedirectTime());
+            }
+            if (this.tracer != null) {
+                this.tracer.startSpan(twitterContext, TwitterTracer.REDIRECT_SPAN, twitterContext.getRedirectTime())
+                    .attribute("denied", denied)
+                    .end();
+            }
+            twitterContext.setRedirectTime(0);
+        }
+        
         if (verifier == null || verifier.isEmpty()) {
             log.debug("{} No Twitter Oauth verifier in request", getLogPrefix());
+            rejectCallback(auditEvent, denied ? TwitterMetrics.DENIED : TwitterMetrics.MISSING_VERIFIER);
+            ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.NO_CREDENTIALS);
+            return;
+        }
+        
+        log.debug("{} Twitter returned a verifier", getLogPrefix());
+        
+        /* Check the callback against the request token issued to this flow, stored or not */
+        final String token = servletRequest.getParameter(oauth2 ? "state" : "oauth_token");
+        if (token == null || token.isEmpty()) {
+            log.debug("{} No Twitter Oauth token in request", getLogPrefix());
+            rejectCallback(auditEvent, TwitterMetrics.MISSING_TOKEN);
+            ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.NO_CREDENTIALS);
+            return;
+        }
+        final TwitterRequestToken contextToken = twitterContext.getRequestToken();
+        if (contextToken == null) {
+            log.info("{} No request token was issued to this flow", getLogPrefix());
+            rejectCallback(auditEvent, TwitterMetrics.MISSING_REQUEST_TOKEN);
+            ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.NO_CREDENTIALS);
+            return;
+        }
+        if (!contextToken.getToken().equals(token)) {
+            log.info("{} Twitter Oauth token in request does not match the one issued to this flow", getLogPrefix());
+            rejectCallback(auditEvent, TwitterMetrics.TOKEN_MISMATCH);
+            ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.NO_CREDENTIALS);
+            return;
+        }
+        
+        /* Refuse verifiers that were already used */
+        if (this.replayFilter != null && !this.replayFilter.markUsed(verifier)) {
+            log.info("{} Twitter Oauth verifier in request was already used", getLogPrefix());
+            rejectCallback(auditEvent, TwitterMetrics.REPLAYED);
             ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.NO_CREDENTIALS);
             return;
         }
         
-        log.debug("{} Twitter returned verifier {}", getLogPrefix(), verifier);
+        /* Find the request token, either in the context or in the store */
+        final TwitterRequestToken requestToken;
+        try {
+            requestToken = resolveRequestToken(contextToken, twitterContext);
+        } catch (IOException e) {
+            log.error("{} Error reading stored request token: {}", getLogPrefix(), e.getMessage());
+            rejectCallback(auditEvent, TwitterMetrics.STORE_ERROR);
+            ActionSupport.buildEvent(profileRequestContext, EventIds.IO_ERROR);
+            return;
+        }
+        if (requestToken == null) {
+            rejectCallback(auditEvent, TwitterMetrics.MISSING_REQUEST_TOKEN);
+            ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.NO_CREDENTIALS);
+            return;
+        }
         
         /* Query Twitter for the access token */
-        AccessToken accessToken = null;
+        TwitterAccessToken accessToken = null;
+        String outcome = TwitterMetrics.ERROR;
+        final long started = this.metrics != null ? this.metrics.callStarted(TwitterMetrics.Call.ACCESS_TOKEN) : 0;
+        final TwitterSpan span = this.tracer != null
+                ? this.tracer.startSpan(twitterContext, TwitterTracer.ACCESS_TOKEN_SPAN) : TwitterSpan.NOT_SAMPLED;
+        final long accessTokenStarted = auditEvent != null ? System.nanoTime() : 0;
         try {
-            accessToken = this.twitterContext.getTwitter().getOAuthAccessToken(twitterContext.getRequestToken(), verifier);
-        } catch (TwitterException e) {
+            accessToken = this.twitterIntegration.getAccessToken(requestToken, verifier);
+            outcome = TwitterMetrics.SUCCESS;
+            span.attribute("userId", accessToken.getUserId());
+        } catch (TwitterOverloadedException e) {
+            outcome = TwitterMetrics.OVERLOADED;
+            log.warn("{} {}", getLogPrefix(), e.getMessage());
+            ActionSupport.buildEvent(profileRequestContext, TwitterAuthnEventIds.TWITTER_OVERLOADED);
+            return;
+        } catch (TwitterUnavailableException e) {
+            outcome = TwitterMetrics.UNAVAILABLE;
+            log.warn("{} {}", getLogPrefix(), e.getMessage());
+            ActionSupport.buildEvent(profileRequestContext, TwitterAuthnEventIds.TWITTER_UNAVAILABLE);
+            return;
+        } catch (TwitterOAuthException e) {
+            outcome = TwitterMetrics.outcomeOf(e);
             log.warn("{} exception obtaining access token from Twitter: {}", getLogPrefix(), e.getMessage());
             ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.NO_CREDENTIALS);
             return;
+        } finally {
+            if (this.metrics != null) {
+                this.metrics.callEnded(TwitterMetrics.Call.ACCESS_TOKEN, started, outcome);
+            }
+            span.attribute("outcome", outcome).end();
+            if (auditEvent != null) {
+                this.auditLogger.log(auditEvent
+                    .setOutcome(outcome)
+                    .setUserId(accessToken != null ? accessToken.getUserId() : TwitterContext.NO_USER_ID)
+                    .setConsumerKeyId(requestToken.getConsumerKeyId())
+                    .setAccessTokenTime(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - accessTokenStarted)));
+            }
         }
         
-        log.info("{} Login by '{}' succeeded", getLogPrefix(), accessToken.getUserId());
+        /* The audit log carries the success line when configured, keeping it off the request thread */
+        if (auditEvent != null) {
+            log.debug("{} Login by '{}' succeeded", getLogPrefix(), accessToken.getUserId());
+        } else {
+            log.info("{} Login by '{}' succeeded", getLogPrefix(), accessToken.getUserId());
+        }
         
         /* Attach the access token to the Twitter context */
-        this.twitterContext.setAccessToken(accessToken);
+        twitterContext.setAccessToken(accessToken);
+        
+        /* Let the user log in again without going to Twitter */
+        if (this.identityCookie != null) {
+            this.identityCookie.issue(accessToken.getUserId());
+        }
+        
+        /* Start fetching the profile now so that it overlaps with the rest of the login */
+        if (this.profileCache != null) {
+            if (accessToken.getScreenName() != null) {
+                this.profileCache.seed(accessToken.getUserId(), accessToken.getScreenName());
+            } else {
+                this.profileCache.prefetch(accessToken.getUserId());
+            }
+        }
         
         /* Complete the authentication flow by building the authentication result */
         buildAuthenticationResult(profileRequestContext, authenticationContext);
+        addPrincipal(authenticationContext, twitterContext.getUserId());
         ActionSupport.buildProceedEvent(profileRequestContext);
     }
     
-    /** {@inheritDoc} */
+    /**
+     * Start the audit event of a callback.
+     * 
+     * @param twitterContext the context of the login, if any
+     * 
+     * @return the event, or null if callbacks are not audited
+     */
+    @Nullable private TwitterAuditEvent newAuditEvent(@Nullable final TwitterContext twitterContext) {
+        if (this.auditLogger == null) {
+            return null;
+        }
+        
+        final HttpServletRequest servletRequest = getHttpServletRequest();
+        final TwitterAuditEvent event = new TwitterAuditEvent()
+            .setClientAddress(servletRequest != null ? servletRequest.getRemoteAddr() : null);
+        if (twitterContext != null) {
+            event.setTraceId(twitterContext.getTraceId());
+            if (twitterContext.getStartTime() > 0 && twitterContext.getRedirectTime() > 0) {
+                event.setRequestTokenTime(twitterContext.getRedirectTime() - twitterContext.getStartTime());
+            }
+        }
+        return event;
+    }
+    
+    /**
+     * Record a callback rejected before calling Twitter.
+     * 
+     * @param auditEvent the audit event of the callback, if audited
+     * @param outcome the reason the callback was rejected
+     */
+    private void rejectCallback(@Nullable final TwitterAuditEvent auditEvent, @Nonnull final String outcome) {
+        if (this.metrics != null) {
+            this.metrics.callbackRejected(outcome);
+        }
+        if (auditEvent != null) {
+            this.auditLogger.log(auditEvent.setOutcome(outcome));
+        }
+    }
+    
+    /**
+     * Find the request token with its secret.
+     * 
+     * @param contextToken the request token issued to this flow, already checked against the callback
+     * @param twitterContext the Twitter context of the request
+     * 
+     * @return the request token, or null if none is available
+     * 
+     * @throws IOException if the store could not be read
+     */
+    @Nullable private TwitterRequestToken resolveRequestToken(@Nonnull final TwitterRequestToken contextToken,
+            @Nonnull final TwitterContext twitterContext) throws IOException {
+        if (this.requestTokenStore == null) {
+            return contextToken;
+        }
+        
+        final TwitterRequestToken storedToken = this.requestTokenStore.take(contextToken.getToken());
+        if (storedToken == null) {
+            log.info("{} Request token {} is unknown, expired or already used", getLogPrefix(),
+                    contextToken.getToken());
+            return null;
+        }
+        if (!storedToken.getConsumerKeyId().equals(contextToken.getConsumerKeyId())) {
+            log.info("{} Stored request token {} was issued to another consumer key", getLogPrefix(),
+                    contextToken.getToken());
+            return null;
+        }
+        
+        twitterContext.setRequestToken(storedToken.withoutSecret());
+        return storedToken;
+    }
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * The subject is built before the user is known to this method, the Twitter principal is
+     * added to the result afterwards by {@link #addPrincipal(AuthenticationContext, long)}.
+     */
     @Override
     @Nonnull protected Subject populateSubject(@Nonnull final Subject subject) {
-        subject.getPrincipals().add(new TwitterIdPrincipal(this.twitterContext.getAccessToken()));
         return subject;
     }
+    
+    /**
+     * Add the principal of the Twitter user to the authentication result just built. The user ID
+     * is passed along rather than kept in a field, so the action holds no per-request state.
+     * 
+     * @param authenticationContext the authentication context holding the result
+     * @param userId the Twitter user ID
+     */
+    private void addPrincipal(@Nonnull final AuthenticationContext authenticationContext, final long userId) {
+        authenticationContext.getAuthenticationResult().getSubject().getPrincipals().add(
+                this.internPrincipals ? TwitterIdPrincipal.valueOf(userId) : new TwitterIdPrincipal(userId));
+    }
+    
+    /**
+     * Get the TwitterIntegration 
+     * 
+     * @return the Twitter integration details 
+     */
+    @Nonnull public TwitterIntegration getTwitterIntegration(){
+        return this.twitterIntegration;
+    }
+    
+    /**
+     * Set the TwitterIntegration
+     * 
+     * @param twitterIntegration the Twitter integration details 
+     * @return instance of this class
+     */
+    public ProcessRedirectFromTwitter setTwitterIntegration(@Nonnull TwitterIntegration twitterIntegration) {
+        this.twitterIntegration = twitterIntegration;
+        return this;
+    }
+    
+    /**
+     * Get the store for the request token secret
+     * 
+     * @return the store, or null if the secret is kept in the TwitterContext
+     */
+    @Nullable public TwitterRequestTokenStore getRequestTokenStore() {
+        return this.requestTokenStore;
+    }
+    
+    /**
+     * Set the store for the request token secret. With a store configured the callback
+     * does not need the TwitterContext created by {@link InitializeTwitterContext}.
+     * 
+     * @param store the store, or null if the secret is kept in the TwitterContext
+     * @return instance of this class
+     */
+    public ProcessRedirectFromTwitter setRequestTokenStore(@Nullable final TwitterRequestTokenStore store) {
+        this.requestTokenStore = store;
+        return this;
+    }
+    
+    /**
+     * Get whether principals are shared between logins of the same user
+     * 
+     * @return true if principals are interned
+     */
+    public boolean isInternPrincipals() {
+        return this.internPrincipals;
+    }
+    
+    /**
+     * Set whether principals are shared between logins of the same user
+     * 
+     * @param flag true to intern principals
+     * @return instance of this class
+     */
+    public ProcessRedirectFromTwitter setInternPrincipals(final boolean flag) {
+        this.internPrincipals = flag;
+        return this;
+    }
+    
+    /**
+     * Get the profile cache the profile of each login is fetched into
+     * 
+     * @return the profile cache, or null
+     */
+    @Nullable public TwitterProfileCache getProfileCache() {
+        return this.profileCache;
+    }
+    
+    /**
+     * Set the profile cache the profile of each login is fetched into, starting as soon as the access token is obtained
+     * 
+     * @param cache the profile cache, or null
+     * @return instance of this class
+     */
+    public ProcessRedirectFromTwitter setProfileCache(@Nullable final TwitterProfileCache cache) {
+        this.profileCache = cache;
+        return this;
+    }
+    
+    /**
+     * Get the identity cookie issued after each login
+     * 
+     * @return the identity cookie, or null
+     */
+    @Nullable public TwitterIdentityCookie getIdentityCookie() {
+        return this.identityCookie;
+    }
+    
+    /**
+     * Set the identity cookie issued after each login, see {@link ValidateTwitterIdentityCookie}
+     * 
+     * @param cookie the identity cookie, or null to issue none
+     * @return instance of this class
+     */
+    public ProcessRedirectFromTwitter setIdentityCookie(@Nullable final TwitterIdentityCookie cookie) {
+        this.identityCookie = cookie;
+        return this;
+    }
+    
+    /**
+     * Get the metrics the callback is recorded into
+     * 
+     * @return the metrics, or null if none are recorded
+     */
+    @Nullable public TwitterMetrics getMetrics() {
+        return this.metrics;
+    }
+    
+    /**
+     * Set the metrics the callback is recorded into
+     * 
+     * @param twitterMetrics the metrics, or null to record none
+     * @return instance of this class
+     */
+    public ProcessRedirectFromTwitter setMetrics(@Nullable final TwitterMetrics twitterMetrics) {
+        this.metrics = twitterMetrics;
+        return this;
+    }
+    
+    /**
+     * Get the tracer the callback is traced with
+     * 
+     * @return the tracer, or null if logins are not traced
+     */
+    @Nullable public TwitterTracer getTracer() {
+        return this.tracer;
+    }
+    
+    /**
+     * Set the tracer the callback is traced with
+     * 
+     * @param twitterTracer the tracer, or null to not trace logins
+     * @return instance of this class
+     */
+    public ProcessRedirectFromTwitter setTracer(@Nullable final TwitterTracer twitterTracer) {
+        this.tracer = twitterTracer;
+        return this;
+    }
+    
+    /**
+     * Get the audit log callbacks are written to
+     * 
+     * @return the audit log, or null if logins are not audited
+     */
+    @Nullable public TwitterAuditLogger getAuditLogger() {
+        return this.auditLogger;
+    }
+    
+    /**
+     * Set the audit log callbacks are written to
+     * 
+     * @param logger the audit log, or null to not audit logins
+     * @return instance of this class
+     */
+    public ProcessRedirectFromTwitter setAuditLogger(@Nullable final TwitterAuditLogger logger) {
+        this.auditLogger = logger;
+        return this;
+    }
+    
+    /**
+     * Get the filter of verifiers already used
+     * 
+     * @return the filter, or null if replays are left to Twitter to refuse
+     */
+    @Nullable public TwitterReplayFilter getReplayFilter() {
+        return this.replayFilter;
+    }
+    
+    /**
+     * Set the filter of verifiers already used
+     * 
+     * @param filter the filter, or null to leave replays to Twitter to refuse
+     * @return instance of this class
+     */
+    public ProcessRedirectFromTwitter setReplayFilter(@Nullable final TwitterReplayFilter filter) {
+        this.replayFilter = filter;
+        return this;
+    }
 }
@@ -0,0 +1,76 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import com.google.common.base.MoreObjects;
+
+/**
+ * Twitter OAuth access token, carrying the ID of the authenticated user
+ * 
+ * OAuth 2.0 bearer tokens have no secret.
+ */
+public class TwitterAccessToken {
+    /** Access token */
+    @Nonnull private final String token;
+    
+    /** Access token secret, null for a bearer token */
+    @Nullable private final String tokenSecret;
+    
+    /** User ID asserted by Twitter */
+    private final long userId;
+    
+    /** Screen name asserted by Twitter */
+    @Nullable private final String screenName;
+    
+    /**
+     * Constructor
+     * 
+     * @param token the access token
+     * @param tokenSecret the access token secret, or null for a bearer token
+     * @param userId the user ID asserted by Twitter
+     * @param screenName the screen name asserted by Twitter
+     */
+    public TwitterAccessToken(@Nonnull final String token, @Nullable final String tokenSecret, final long userId,
+            @Nullable final String screenName) {
+        this.token = token;
+        this.tokenSecret = tokenSecret;
+        this.userId = userId;
+        this.screenName = screenName;
+    }
+    
+    @Nonnull public String getToken() {
+        return this.token;
+    }
+    
+    @Nullable public String getTokenSecret() {
+        return this.tokenSecret;
+    }
+    
+    public long getUserId() {
+        return this.userId;
+    }
+    
+    @Nullable public String getScreenName() {
+        return this.screenName;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this).add("userId", this.userId).add("screenName", this.screenName)
+                .toString();
+    }
+}
@@ -0,0 +1,31 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import javax.annotation.Nullable;
+
+/**
+ * Index mapping Twitter user IDs to local usernames
+ */
+public interface TwitterAccountIndex {
+    
+    /**
+     * Get the local username linked to a Twitter user ID.
+     * 
+     * @param twitterId the Twitter user ID
+     * 
+     * @return the username, or null if no account is linked
+     */
+    @Nullable String getUsername(long twitterId);
+}
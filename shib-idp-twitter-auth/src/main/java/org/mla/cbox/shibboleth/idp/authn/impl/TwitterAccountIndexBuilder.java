@@ -0,0 +1,714 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Command line tool that builds the index file read by {@link MappedTwitterAccountIndex}
+ * from CSV or TSV exports, in bounded memory.
+ * 
+ * Each input line holds a Twitter user ID and a username separated by a comma, or by a tab
+ * for files ending in .tsv. Lines that do not start with a numeric ID, such as a header, are
+ * skipped. An empty username removes the link, which lets delta files be applied to an
+ * existing index with --base. When an ID appears more than once, the last occurrence wins,
+ * in the order the inputs are given and with the base index first.
+ * 
+ * Inputs are read in chunks that are sorted and spilled to temporary run files, which are
+ * then merged into the index. At most --max-fan-in runs, counting the base index, are open at
+ * once: when there are more, groups of them are first merged into larger runs, keeping only
+ * the last record of each ID in a group, until few enough are left. The index is written next
+ * to the output file and renamed into place once complete.
+ * 
+ * <pre>
+ * TwitterAccountIndexBuilder [--base index] [--chunk-size records] [--max-fan-in runs] [--tmp dir]
+ *     output input...
+ * </pre>
+ */
+public final class TwitterAccountIndexBuilder {
+    /** Default number of records sorted in memory at a time */
+    public static final int DEFAULT_CHUNK_SIZE = 500000;
+    
+    /** Default number of runs merged at once */
+    public static final int DEFAULT_MAX_FAN_IN = 64;
+    
+    /** Largest username accepted, in UTF-8 bytes */
+    private static final int MAX_USERNAME_BYTES = 1024;
+    
+    /** Size of the I/O buffers */
+    private static final int BUFFER_SIZE = 1 << 16;
+    
+    /** Order of records: by Twitter user ID, then by sequence number */
+    private static final Comparator<Record> RECORD_ORDER = new Comparator<Record>() {
+        @Override
+        public int compare(final Record a, final Record b) {
+            if (a.twitterId != b.twitterId) {
+                return a.twitterId < b.twitterId ? -1 : 1;
+            }
+            return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+        }
+    };
+    
+    /** Existing index the inputs are applied to, if any */
+    @Nullable private File base;
+    
+    /** Index file to write */
+    @Nonnull private final File output;
+    
+    /** Input files */
+    @Nonnull private final List<File> inputs;
+    
+    /** Number of records sorted in memory at a time */
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    
+    /** Number of runs merged at once */
+    private int maxFanIn = DEFAULT_MAX_FAN_IN;
+    
+    /** Directory for the run files */
+    @Nullable private File tmpDirectory;
+    
+    /** Sequence number of the next record read */
+    private long nextSequence = 1;
+    
+    /** Number of records read */
+    private long recordsRead;
+    
+    /** Number of lines skipped */
+    private long linesSkipped;
+    
+    /**
+     * Constructor
+     * 
+     * @param outputFile the index file to write
+     * @param inputFiles the input files
+     */
+    public TwitterAccountIndexBuilder(@Nonnull final File outputFile, @Nonnull final List<File> inputFiles) {
+        this.output = outputFile;
+        this.inputs = inputFiles;
+    }
+    
+    public TwitterAccountIndexBuilder setBase(@Nullable final File index) {
+        this.base = index;
+        return this;
+    }
+    
+    public TwitterAccountIndexBuilder setChunkSize(final int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Chunk size must be greater than 0");
+        }
+        this.chunkSize = size;
+        return this;
+    }
+    
+    public TwitterAccountIndexBuilder setMaxFanIn(final int runs) {
+        if (runs < 2) {
+            throw new IllegalArgumentException("Maximum fan-in must be at least 2");
+        }
+        this.maxFanIn = runs;
+        return this;
+    }
+    
+    public TwitterAccountIndexBuilder setTmpDirectory(@Nullable final File directory) {
+        this.tmpDirectory = directory;
+        return this;
+    }
+    
+    /**
+     * Command line entry point.
+     * 
+     * @param args the arguments
+     */
+    public static void main(final String[] args) {
+        File base = null;
+        File tmp = null;
+        int chunkSize = DEFAULT_CHUNK_SIZE;
+        int maxFanIn = DEFAULT_MAX_FAN_IN;
+        final List<File> files = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if ("--base".equals(args[i])) {
+                    base = new File(args[++i]);
+                } else if ("--tmp".equals(args[i])) {
+                    tmp = new File(args[++i]);
+                } else if ("--chunk-size".equals(args[i])) {
+                    chunkSize = Integer.parseInt(args[++i]);
+                } else if ("--max-fan-in".equals(args[i])) {
+                    maxFanIn = Integer.parseInt(args[++i]);
+                } else {
+                    files.add(new File(args[i]));
+                }
+            }
+        } catch (final ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            files.clear();
+        }
+        if (files.size() < 2 || chunkSize <= 0 || maxFanIn < 2) {
+            System.err.println("Usage: " + TwitterAccountIndexBuilder.class.getName()
+                    + " [--base index] [--chunk-size records] [--max-fan-in runs] [--tmp dir] output input...");
+            System.exit(2);
+        }
+        
+        final TwitterAccountIndexBuilder builder = new TwitterAccountIndexBuilder(files.get(0),
+                files.subList(1, files.size()))
+            .setBase(base)
+            .setChunkSize(chunkSize)
+            .setMaxFanIn(maxFanIn)
+            .setTmpDirectory(tmp);
+        try {
+            builder.build();
+        } catch (final IOException e) {
+            System.err.println("Unable to build index: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * Build the index.
+     * 
+     * @return the number of accounts in the index
+     * 
+     * @throws IOException if an input cannot be read or the index cannot be written
+     */
+    public int build() throws IOException {
+        final long start = System.nanoTime();
+        final List<File> runFiles = new ArrayList<>();
+        try {
+            for (final File input : this.inputs) {
+                sortInput(input, runFiles);
+            }
+            final long sorted = System.nanoTime();
+            report("Read %d records from %d files in %.1f s (%.0f records/s), %d lines skipped, %d runs",
+                    this.recordsRead, this.inputs.size(), seconds(sorted - start),
+                    this.recordsRead / Math.max(seconds(sorted - start), 0.001), this.linesSkipped, runFiles.size());
+            
+            final int merges = reduce(runFiles);
+            if (merges > 0) {
+                report("Merged down to %d runs with %d intermediate merges in %.1f s", runFiles.size(), merges,
+                        seconds(System.nanoTime() - sorted));
+            }
+            
+            final int accounts = merge(runFiles);
+            final long merged = System.nanoTime();
+            report("Wrote %d accounts to %s (%d bytes) in %.1f s, %.1f s in total", accounts, this.output,
+                    this.output.length(), seconds(merged - sorted), seconds(merged - start));
+            return accounts;
+        } finally {
+            for (final File runFile : runFiles) {
+                Files.deleteIfExists(runFile.toPath());
+            }
+        }
+    }
+    
+    /**
+     * Read an input file in chunks, writing each sorted chunk to a run file.
+     * 
+     * @param input the input file
+     * @param runFiles the run files, to which new ones are added
+     * 
+     * @throws IOException if the input cannot be read or a run cannot be written
+     */
+    private void sortInput(@Nonnull final File input, @Nonnull final List<File> runFiles) throws IOException {
+        final char delimiter = input.getName().endsWith(".tsv") ? '\t' : ',';
+        final Record[] chunk = new Record[this.chunkSize];
+        int size = 0;
+        
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(input),
+                StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final Record record = parse(line, delimiter);
+                if (record == null) {
+                    this.linesSkipped++;
+                    continue;
+                }
+                chunk[size++] = record;
+                this.recordsRead++;
+                if (size == chunk.length) {
+                    runFiles.add(writeRun(chunk, size));
+                    size = 0;
+                }
+            }
+        }
+        if (size > 0) {
+            runFiles.add(writeRun(chunk, size));
+        }
+    }
+    
+    /**
+     * Parse an input line.
+     * 
+     * @param line the line
+     * @param delimiter the field delimiter
+     * 
+     * @return the record, or null if the line does not hold one
+     */
+    @Nullable private Record parse(@Nonnull final String line, final char delimiter) {
+        final int split = line.indexOf(delimiter);
+        final String id = unquote(split < 0 ? line : line.substring(0, split));
+        if (id.isEmpty()) {
+            return null;
+        }
+        
+        final long twitterId;
+        try {
+            twitterId = Long.parseLong(id);
+        } catch (final NumberFormatException e) {
+            return null;
+        }
+        if (twitterId <= 0) {
+            return null;
+        }
+        
+        final String username = split < 0 ? "" : unquote(line.substring(split + 1));
+        if (username.getBytes(StandardCharsets.UTF_8).length > MAX_USERNAME_BYTES) {
+            return null;
+        }
+        return new Record(twitterId, this.nextSequence++, username.isEmpty() ? null : username);
+    }
+    
+    /**
+     * Trim a field and remove surrounding double quotes.
+     * 
+     * @param field the field
+     * 
+     * @return the value
+     */
+    @Nonnull private static String unquote(@Nonnull final String field) {
+        final String trimmed = field.trim();
+        if (trimmed.length() >= 2 && trimmed.charAt(0) == '"' && trimmed.charAt(trimmed.length() - 1) == '"') {
+            return trimmed.substring(1, trimmed.length() - 1).replace("\"\"", "\"").trim();
+        }
+        return trimmed;
+    }
+    
+    /**
+     * Sort a chunk and write it to a new run file.
+     * 
+     * @param chunk the chunk
+     * @param size the number of records in the chunk
+     * 
+     * @return the run file
+     * 
+     * @throws IOException if the run cannot be written
+     */
+    @Nonnull private File writeRun(@Nonnull final Record[] chunk, final int size) throws IOException {
+        Arrays.sort(chunk, 0, size, RECORD_ORDER);
+        final File runFile = File.createTempFile("twitter-accounts-", ".run", this.tmpDirectory);
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(runFile), BUFFER_SIZE))) {
+            for (int i = 0; i < size; i++) {
+                write(chunk[i], out);
+                chunk[i] = null;
+            }
+        }
+        return runFile;
+    }
+    
+    /**
+     * Write a record to a run file.
+     * 
+     * @param record the record
+     * @param out the run file
+     * 
+     * @throws IOException if the record cannot be written
+     */
+    private static void write(@Nonnull final Record record, @Nonnull final DataOutputStream out)
+            throws IOException {
+        out.writeLong(record.twitterId);
+        out.writeLong(record.sequence);
+        out.writeBoolean(record.username != null);
+        if (record.username != null) {
+            out.writeUTF(record.username);
+        }
+    }
+    
+    /**
+     * Merge groups of run files into larger ones until the final merge, together with the base
+     * index, stays within the maximum fan-in. The oldest runs are merged first and each merged
+     * run joins the back of the list, so every record is rewritten about log(runs) / log(fan-in)
+     * times. A merged run keeps the last record of each ID, removals included, with its sequence
+     * number, so the final merge picks the same winners.
+     * 
+     * @param runFiles the run files, which are replaced by the merged ones
+     * 
+     * @return the number of intermediate merges
+     * 
+     * @throws IOException if a run cannot be read or written
+     */
+    private int reduce(@Nonnull final List<File> runFiles) throws IOException {
+        final int limit = this.maxFanIn - (this.base != null ? 1 : 0);
+        int merges = 0;
+        while (runFiles.size() > limit) {
+            /* Merge no more runs than needed to get down to the limit */
+            final List<File> group = new ArrayList<>(runFiles.subList(0,
+                    Math.min(this.maxFanIn, runFiles.size() - limit + 1)));
+            final File merged = File.createTempFile("twitter-accounts-", ".run", this.tmpDirectory);
+            runFiles.add(merged);
+            mergeRuns(group, merged);
+            for (final File runFile : group) {
+                runFiles.remove(runFile);
+                Files.deleteIfExists(runFile.toPath());
+            }
+            merges++;
+        }
+        return merges;
+    }
+    
+    /**
+     * Merge run files into one.
+     * 
+     * @param group the run files to merge
+     * @param merged the run file to write
+     * 
+     * @throws IOException if a run cannot be read or written
+     */
+    private void mergeRuns(@Nonnull final List<File> group, @Nonnull final File merged) throws IOException {
+        final List<Run> runs = new ArrayList<>(group.size());
+        try (final DataOutputStream out = open(merged)) {
+            for (final File runFile : group) {
+                runs.add(new FileRun(runFile));
+            }
+            final PriorityQueue<Run> queue = newQueue(runs);
+            while (!queue.isEmpty()) {
+                write(pollWinner(queue), out);
+            }
+        } finally {
+            for (final Run run : runs) {
+                run.close();
+            }
+        }
+    }
+    
+    /**
+     * Start a queue of runs ordered by their current record.
+     * 
+     * @param runs the runs, each of which is advanced to its first record
+     * 
+     * @return the queue of the runs that are not empty
+     * 
+     * @throws IOException if a run cannot be read
+     */
+    @Nonnull private static PriorityQueue<Run> newQueue(@Nonnull final List<Run> runs) throws IOException {
+        final PriorityQueue<Run> queue = new PriorityQueue<>(runs.size() + 1, new Comparator<Run>() {
+            @Override
+            public int compare(final Run a, final Run b) {
+                return RECORD_ORDER.compare(a.current, b.current);
+            }
+        });
+        for (final Run run : runs) {
+            if (run.next()) {
+                queue.add(run);
+            }
+        }
+        return queue;
+    }
+    
+    /**
+     * Take all records for the lowest ID in the queue and return the last of them.
+     * 
+     * @param queue the queue, which must not be empty
+     * 
+     * @return the winning record
+     * 
+     * @throws IOException if a run cannot be read
+     */
+    @Nonnull private static Record pollWinner(@Nonnull final PriorityQueue<Run> queue) throws IOException {
+        /* The last record for an ID wins, and the queue yields them in sequence order */
+        Record winner = null;
+        final long twitterId = queue.peek().current.twitterId;
+        while (!queue.isEmpty() && queue.peek().current.twitterId == twitterId) {
+            final Run run = queue.poll();
+            winner = run.current;
+            if (run.next()) {
+                queue.add(run);
+            }
+        }
+        return winner;
+    }
+    
+    /**
+     * Merge the base index and the run files into the output file.
+     * 
+     * @param runFiles the run files
+     * 
+     * @return the number of accounts written
+     * 
+     * @throws IOException if a run cannot be read or the index cannot be written
+     */
+    private int merge(@Nonnull final List<File> runFiles) throws IOException {
+        final List<Run> runs = new ArrayList<>(runFiles.size() + 1);
+        final File directory = this.output.getAbsoluteFile().getParentFile();
+        final File keys = File.createTempFile("twitter-accounts-", ".keys", this.tmpDirectory);
+        final File offsets = File.createTempFile("twitter-accounts-", ".offsets", this.tmpDirectory);
+        final File usernames = File.createTempFile("twitter-accounts-", ".usernames", this.tmpDirectory);
+        final File index = File.createTempFile(this.output.getName() + '-', ".tmp", directory);
+        
+        try {
+            if (this.base != null) {
+                runs.add(new IndexRun(this.base));
+            }
+            for (final File runFile : runFiles) {
+                runs.add(new FileRun(runFile));
+            }
+            final PriorityQueue<Run> queue = newQueue(runs);
+            
+            int accounts = 0;
+            long usernameBytes = 0;
+            try (final DataOutputStream keysOut = open(keys);
+                    final DataOutputStream offsetsOut = open(offsets);
+                    final DataOutputStream usernamesOut = open(usernames)) {
+                while (!queue.isEmpty()) {
+                    final Record winner = pollWinner(queue);
+                    if (winner.username == null) {
+                        continue;
+                    }
+                    
+                    final byte[] bytes = winner.username.getBytes(StandardCharsets.UTF_8);
+                    if (usernameBytes + bytes.length > Integer.MAX_VALUE) {
+                        throw new IOException("Usernames exceed the 2 GB index limit");
+                    }
+                    keysOut.writeLong(winner.twitterId);
+                    offsetsOut.writeInt((int) usernameBytes);
+                    usernamesOut.write(bytes);
+                    usernameBytes += bytes.length;
+                    accounts++;
+                }
+                offsetsOut.writeInt((int) usernameBytes);
+            }
+            
+            assemble(index, accounts, keys, offsets, usernames);
+            Files.move(index.toPath(), this.output.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            return accounts;
+        } finally {
+            for (final Run run : runs) {
+                run.close();
+            }
+            Files.deleteIfExists(keys.toPath());
+            Files.deleteIfExists(offsets.toPath());
+            Files.deleteIfExists(usernames.toPath());
+            Files.deleteIfExists(index.toPath());
+        }
+    }
+    
+    /**
+     * Write the index file from its header and sections.
+     * 
+     * @param index the index file
+     * @param accounts the number of accounts
+     * @param sections the sections, in order
+     * 
+     * @throws IOException if the index cannot be written
+     */
+    private void assemble(@Nonnull final File index, final int accounts, @Nonnull final File... sections)
+            throws IOException {
+        try (final RandomAccessFile raf = new RandomAccessFile(index, "rw");
+                final FileChannel out = raf.getChannel()) {
+            raf.setLength(0);
+            raf.writeInt(MappedTwitterAccountIndex.MAGIC);
+            raf.writeInt(MappedTwitterAccountIndex.VERSION);
+            raf.writeInt(accounts);
+            raf.writeInt(0);
+            for (final File section : sections) {
+                try (final FileInputStream in = new FileInputStream(section);
+                        final FileChannel channel = in.getChannel()) {
+                    long position = 0;
+                    final long size = channel.size();
+                    while (position < size) {
+                        position += channel.transferTo(position, size - position, out);
+                    }
+                }
+            }
+            if (out.size() > Integer.MAX_VALUE) {
+                throw new IOException("Index exceeds the 2 GB limit");
+            }
+            out.force(true);
+        }
+    }
+    
+    /**
+     * Open a buffered output stream.
+     * 
+     * @param file the file
+     * 
+     * @return the stream
+     * 
+     * @throws IOException if the file cannot be opened
+     */
+    @Nonnull private static DataOutputStream open(@Nonnull final File file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+    }
+    
+    /**
+     * Print a progress line.
+     * 
+     * @param format the format
+     * @param args the arguments
+     */
+    private static void report(@Nonnull final String format, final Object... args) {
+        System.out.println(String.format(format, args));
+    }
+    
+    /**
+     * Convert nanoseconds to seconds.
+     * 
+     * @param nanos the nanoseconds
+     * 
+     * @return the seconds
+     */
+    private static double seconds(final long nanos) {
+        return nanos / 1e9;
+    }
+    
+    /** A link between a Twitter user ID and a username, or its removal */
+    private static final class Record {
+        /** Twitter user ID */
+        private final long twitterId;
+        
+        /** Position of the record across all inputs */
+        private final long sequence;
+        
+        /** Username, or null to remove the link */
+        @Nullable private final String username;
+        
+        /**
+         * Constructor
+         * 
+         * @param id the Twitter user ID
+         * @param seq the position of the record across all inputs
+         * @param name the username, or null to remove the link
+         */
+        Record(final long id, final long seq, @Nullable final String name) {
+            this.twitterId = id;
+            this.sequence = seq;
+            this.username = name;
+        }
+    }
+    
+    /** A sorted source of records */
+    private abstract static class Run {
+        /** The current record */
+        @Nullable protected Record current;
+        
+        /**
+         * Advance to the next record.
+         * 
+         * @return false if there are no more records
+         * 
+         * @throws IOException if the source cannot be read
+         */
+        abstract boolean next() throws IOException;
+        
+        /**
+         * Release the source.
+         * 
+         * @throws IOException if the source cannot be closed
+         */
+        void close() throws IOException {
+        }
+    }
+    
+    /** Records of a run file */
+    private static final class FileRun extends Run {
+        /** The run file */
+        @Nonnull private final DataInputStream in;
+        
+        /**
+         * Constructor
+         * 
+         * @param file the run file
+         * 
+         * @throws IOException if the file cannot be opened
+         */
+        FileRun(@Nonnull final File file) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        boolean next() throws IOException {
+            final long twitterId;
+            try {
+                twitterId = this.in.readLong();
+            } catch (final EOFException e) {
+                this.current = null;
+                return false;
+            }
+            final long sequence = this.in.readLong();
+            final String username = this.in.readBoolean() ? this.in.readUTF() : null;
+            this.current = new Record(twitterId, sequence, username);
+            return true;
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        void close() throws IOException {
+            this.in.close();
+        }
+    }
+    
+    /** Accounts of an existing index, ordered before all input records */
+    private static final class IndexRun extends Run {
+        /** The mapped index */
+        @Nonnull private final MappedTwitterAccountIndex.Mapping mapping;
+        
+        /** Position of the next account */
+        private int position;
+        
+        /**
+         * Constructor
+         * 
+         * @param file the index file
+         * 
+         * @throws IOException if the index cannot be loaded
+         */
+        IndexRun(@Nonnull final File file) throws IOException {
+            this.mapping = MappedTwitterAccountIndex.Mapping.load(file);
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        boolean next() {
+            if (this.position >= this.mapping.count) {
+                this.current = null;
+                return false;
+            }
+            this.current = new Record(this.mapping.twitterId(this.position), 0,
+                    this.mapping.username(this.position));
+            this.position++;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Audit record of one Twitter login attempt, written by a {@link TwitterAuditLogger}.
+ * 
+ * An event is filled in by the action handling the attempt and must not be changed once it has
+ * been handed to the logger. Timings that were not measured are -1.
+ */
+@NotThreadSafe
+public class TwitterAuditEvent {
+    /** Source of a login that went to Twitter */
+    public static final String SOURCE_TWITTER = "twitter";
+    
+    /** Source of a login completed from a {@link TwitterIdentityCookie} */
+    public static final String SOURCE_COOKIE = "cookie";
+    
+    /** Time in milliseconds at which the event was created */
+    private final long time = System.currentTimeMillis();
+    
+    /** How the login was handled */
+    @Nonnull private String source = SOURCE_TWITTER;
+    
+    /** Outcome of the attempt, one of the {@link TwitterMetrics} outcomes */
+    @Nullable private String outcome;
+    
+    /** Twitter user ID, or {@link TwitterContext#NO_USER_ID} */
+    private long userId = TwitterContext.NO_USER_ID;
+    
+    /** Identifier of the consumer key used */
+    @Nullable private String consumerKeyId;
+    
+    /** Correlation ID of the login */
+    @Nullable private String traceId;
+    
+    /** Address of the client */
+    @Nullable private String clientAddress;
+    
+    /** Duration in milliseconds of the request token phase */
+    private long requestTokenTime = -1;
+    
+    /** Time in milliseconds the user spent at Twitter */
+    private long twitterTime = -1;
+    
+    /** Duration in milliseconds of the access token call */
+    private long accessTokenTime = -1;
+    
+    /**
+     * Get the time at which the event was created
+     * 
+     * @return the time in milliseconds
+     */
+    public long getTime() {
+        return this.time;
+    }
+    
+    @Nonnull public String getSource() {
+        return this.source;
+    }
+    
+    public TwitterAuditEvent setSource(@Nonnull final String loginSource) {
+        this.source = loginSource;
+        return this;
+    }
+    
+    @Nullable public String getOutcome() {
+        return this.outcome;
+    }
+    
+    public TwitterAuditEvent setOutcome(@Nullable final String attemptOutcome) {
+        this.outcome = attemptOutcome;
+        return this;
+    }
+    
+    public long getUserId() {
+        return this.userId;
+    }
+    
+    public TwitterAuditEvent setUserId(final long id) {
+        this.userId = id;
+        return this;
+    }
+    
+    @Nullable public String getConsumerKeyId() {
+        return this.consumerKeyId;
+    }
+    
+    public TwitterAuditEvent setConsumerKeyId(@Nullable final String keyId) {
+        this.consumerKeyId = keyId;
+        return this;
+    }
+    
+    @Nullable public String getTraceId() {
+        return this.traceId;
+    }
+    
+    public TwitterAuditEvent setTraceId(@Nullable final String id) {
+        this.traceId = id;
+        return this;
+    }
+    
+    @Nullable public String getClientAddress() {
+        return this.clientAddress;
+    }
+    
+    public TwitterAuditEvent setClientAddress(@Nullable final String address) {
+        this.clientAddress = address;
+        return this;
+    }
+    
+    public long getRequestTokenTime() {
+        return this.requestTokenTime;
+    }
+    
+    public TwitterAuditEvent setRequestTokenTime(final long duration) {
+        this.requestTokenTime = duration;
+        return this;
+    }
+    
+    public long getTwitterTime() {
+        return this.twitterTime;
+    }
+    
+    public TwitterAuditEvent setTwitterTime(final long duration) {
+        this.twitterTime = duration;
+        return this;
+    }
+    
+    public long getAccessTokenTime() {
+        return this.accessTokenTime;
+    }
+    
+    public TwitterAuditEvent setAccessTokenTime(final long duration) {
+        this.accessTokenTime = duration;
+        return this;
+    }
+}
@@ -0,0 +1,298 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.component.AbstractInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Writes {@link TwitterAuditEvent}s as one JSON object per line to an audit log category,
+ * off the request thread.
+ * 
+ * Events are queued in a bounded lock-free ring buffer and written in batches by a background
+ * thread, which sleeps for the flush interval when the buffer is empty. When the buffer is full
+ * new events are dropped and counted rather than blocking the login; the writer reports the
+ * number of dropped events as a warning on the class logger.
+ */
+@ThreadSafe
+public class TwitterAuditLogger extends AbstractInitializableComponent {
+    /** Capacity of the buffer, a power of two */
+    @Positive private int capacity = 8192;
+    
+    /** Largest number of events written before the writer checks for shutdown */
+    @Positive private int batchSize = 256;
+    
+    /** Time in milliseconds the writer sleeps when there are no events */
+    @Duration @Positive private long flushInterval = 100;
+    
+    /** Name of the log category the events are written to */
+    @Nonnull private String category = "Shibboleth-Audit.Twitter";
+    
+    /** Buffer of pending events */
+    @Nullable private TwitterAuditRingBuffer<TwitterAuditEvent> buffer;
+    
+    /** Number of events dropped because the buffer was full */
+    @Nonnull private final AtomicLong droppedEvents = new AtomicLong();
+    
+    /** Number of events written to the audit log */
+    @Nonnull private final AtomicLong writtenEvents = new AtomicLong();
+    
+    /** Background writer */
+    @Nullable private Thread writer;
+    
+    /** Whether the writer keeps running */
+    private volatile boolean running;
+    
+    /** Class logger */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(TwitterAuditLogger.class);
+    
+    /** Log prefix */
+    @Nonnull private final String logPrefix = getClass().getSimpleName() + ":";
+    
+    /** Constructor */
+    public TwitterAuditLogger() {
+        
+    }
+    
+    public TwitterAuditLogger setCapacity(@Positive final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        Constraint.isTrue(size >= 2 && Integer.bitCount(size) == 1, "Capacity must be a power of two");
+        this.capacity = size;
+        return this;
+    }
+    
+    public TwitterAuditLogger setBatchSize(@Positive final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.batchSize = (int) Constraint.isGreaterThan(0, size, "Batch size must be greater than 0");
+        return this;
+    }
+    
+    public TwitterAuditLogger setFlushInterval(@Duration @Positive final long interval) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.flushInterval = Constraint.isGreaterThan(0, interval, "Flush interval must be greater than 0");
+        return this;
+    }
+    
+    public TwitterAuditLogger setCategory(@Nonnull final String name) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.category = Constraint.isNotNull(name, "Category cannot be null");
+        return this;
+    }
+    
+    /**
+     * Get the number of events dropped because the buffer was full
+     * 
+     * @return the number of dropped events since the component was initialized
+     */
+    public long getDroppedEvents() {
+        return this.droppedEvents.get();
+    }
+    
+    /**
+     * Get the number of events written to the audit log
+     * 
+     * @return the number of written events since the component was initialized
+     */
+    public long getWrittenEvents() {
+        return this.writtenEvents.get();
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        
+        if (this.category.isEmpty()) {
+            throw new ComponentInitializationException(this.logPrefix + " Category cannot be empty");
+        }
+        
+        this.buffer = new TwitterAuditRingBuffer<>(this.capacity);
+        this.running = true;
+        this.writer = new Thread(new Writer(LoggerFactory.getLogger(this.category)), "TwitterAuditWriter");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    protected void doDestroy() {
+        this.running = false;
+        if (this.writer != null) {
+            LockSupport.unpark(this.writer);
+            try {
+                this.writer.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            this.writer = null;
+        }
+        super.doDestroy();
+    }
+    
+    /**
+     * Queue an event for writing. Never blocks: the event is dropped if the buffer is full.
+     * 
+     * @param event the event, not to be changed afterwards
+     * 
+     * @return false if the event was dropped
+     */
+    public boolean log(@Nonnull final TwitterAuditEvent event) {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        if (this.buffer.offer(event)) {
+            return true;
+        }
+        this.droppedEvents.incrementAndGet();
+        return false;
+    }
+    
+    /** Background task draining the buffer */
+    private final class Writer implements Runnable {
+        /** Logger of the audit category */
+        @Nonnull private final Logger auditLog;
+        
+        /** Factory of the generators formatting events */
+        @Nonnull private final JsonGeneratorFactory generatorFactory =
+                Json.createGeneratorFactory(Collections.<String, Object>emptyMap());
+        
+        /** Number of dropped events already reported */
+        private long reportedDrops;
+        
+        /**
+         * Constructor
+         * 
+         * @param logger logger of the audit category
+         */
+        Writer(@Nonnull final Logger logger) {
+            this.auditLog = logger;
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public void run() {
+            while (running) {
+                if (writeBatch() == 0) {
+                    reportDrops();
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(flushInterval));
+                }
+            }
+            while (writeBatch() > 0) {
+                /* Write what is left on shutdown */
+            }
+            reportDrops();
+        }
+        
+        /**
+         * Write up to one batch of events.
+         * 
+         * @return the number of events written
+         */
+        private int writeBatch() {
+            int written = 0;
+            TwitterAuditEvent event;
+            while (written < batchSize && (event = buffer.poll()) != null) {
+                try {
+                    this.auditLog.info(format(event));
+                    writtenEvents.incrementAndGet();
+                } catch (final RuntimeException e) {
+                    log.error("{} Unable to write audit event: {}", logPrefix, e.getMessage());
+                }
+                written++;
+            }
+            return written;
+        }
+        
+        /** Report events dropped since the last report. */
+        private void reportDrops() {
+            final long dropped = droppedEvents.get();
+            if (dropped != this.reportedDrops) {
+                log.warn("{} Audit buffer full, dropped {} events ({} in total)", logPrefix,
+                        dropped - this.reportedDrops, dropped);
+                this.reportedDrops = dropped;
+            }
+        }
+        
+        /**
+         * Format an event as a JSON object.
+         * 
+         * @param event the event
+         * 
+         * @return the JSON text
+         */
+        @Nonnull private String format(@Nonnull final TwitterAuditEvent event) {
+            final StringWriter text = new StringWriter(256);
+            try (final JsonGenerator generator = this.generatorFactory.createGenerator(text)) {
+                generator.writeStartObject()
+                    .write("time", event.getTime())
+                    .write("source", event.getSource())
+                    .write("outcome", String.valueOf(event.getOutcome()));
+                if (event.getUserId() != TwitterContext.NO_USER_ID) {
+                    generator.write("userId", Long.toString(event.getUserId()));
+                }
+                writeIfPresent(generator, "consumerKey", event.getConsumerKeyId());
+                writeIfPresent(generator, "traceId", event.getTraceId());
+                writeIfPresent(generator, "clientAddress", event.getClientAddress());
+                writeIfMeasured(generator, "requestTokenMs", event.getRequestTokenTime());
+                writeIfMeasured(generator, "twitterMs", event.getTwitterTime());
+                writeIfMeasured(generator, "accessTokenMs", event.getAccessTokenTime());
+                generator.writeEnd();
+            }
+            return text.toString();
+        }
+        
+        /**
+         * Write a string field if it has a value.
+         * 
+         * @param generator the generator
+         * @param name the field name
+         * @param value the value, or null
+         */
+        private void writeIfPresent(@Nonnull final JsonGenerator generator, @Nonnull final String name,
+                @Nullable final String value) {
+            if (value != null) {
+                generator.write(name, value);
+            }
+        }
+        
+        /**
+         * Write a timing if it was measured.
+         * 
+         * @param generator the generator
+         * @param name the field name
+         * @param value the timing, or -1
+         */
+        private void writeIfMeasured(@Nonnull final JsonGenerator generator, @Nonnull final String name,
+                final long value) {
+            if (value >= 0) {
+                generator.write(name, value);
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Bounded lock-free queue for many producers and a single consumer.
+ * 
+ * Each slot carries a sequence number telling producers and the consumer whose turn it is, so
+ * producers only contend on one compare-and-set of the tail and never wait: when the queue is
+ * full {@link #offer(Object)} fails at once.
+ * 
+ * @param <T> type of the elements
+ */
+@ThreadSafe
+final class TwitterAuditRingBuffer<T> {
+    /** The slots */
+    @Nonnull private final AtomicReferenceArray<T> slots;
+    
+    /** Sequence number of each slot */
+    @Nonnull private final AtomicLongArray sequences;
+    
+    /** Mask mapping a position to its slot */
+    private final int mask;
+    
+    /** Next position to fill */
+    @Nonnull private final AtomicLong tail = new AtomicLong();
+    
+    /** Next position to take, only used by the consumer */
+    private long head;
+    
+    /**
+     * Constructor
+     * 
+     * @param capacity the capacity, a power of two
+     */
+    TwitterAuditRingBuffer(final int capacity) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two");
+        }
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            this.sequences.set(i, i);
+        }
+        this.mask = capacity - 1;
+    }
+    
+    /**
+     * Add an element if there is room.
+     * 
+     * @param element the element
+     * 
+     * @return false if the queue was full
+     */
+    boolean offer(@Nonnull final T element) {
+        long position = this.tail.get();
+        while (true) {
+            final int index = (int) position & this.mask;
+            final long difference = this.sequences.get(index) - position;
+            if (difference == 0) {
+                if (this.tail.compareAndSet(position, position + 1)) {
+                    this.slots.set(index, element);
+                    this.sequences.lazySet(index, position + 1);
+                    return true;
+                }
+                position = this.tail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = this.tail.get();
+            }
+        }
+    }
+    
+    /**
+     * Take the oldest element. Must only be called by the consumer thread.
+     * 
+     * @return the element, or null if the queue is empty
+     */
+    @Nullable T poll() {
+        final int index = (int) this.head & this.mask;
+        if (this.sequences.get(index) != this.head + 1) {
+            return null;
+        }
+        final T element = this.slots.get(index);
+        this.slots.lazySet(index, null);
+        this.sequences.lazySet(index, this.head + this.mask + 1);
+        this.head++;
+        return element;
+    }
+}
@@ -0,0 +1,39 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import javax.annotation.Nonnull;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+
+/**
+ * Event identifiers signaled by the Twitter authentication actions, in addition to
+ * those of {@link net.shibboleth.idp.authn.AuthnEventIds}.
+ */
+public final class TwitterAuthnEventIds {
+    
+    /**
+     * ID of event returned if Twitter could not be reached in time, or the call was not attempted
+     * because Twitter is known to be unavailable. The flow can fail over to another login flow.
+     */
+    @Nonnull @NotEmpty public static final String TWITTER_UNAVAILABLE = "TwitterUnavailable";
+    
+    /**
+     * ID of event returned if a call to Twitter was shed because too many calls are in flight.
+     */
+    @Nonnull @NotEmpty public static final String TWITTER_OVERLOADED = "TwitterOverloaded";
+    
+    /** Constructor */
+    private TwitterAuthnEventIds() {
+    }
+}
@@ -0,0 +1,332 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.component.AbstractInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Circuit breaker shared by all calls to Twitter.
+ * 
+ * The outcome of the most recent calls is kept in a fixed size window. A call is bad if it
+ * failed or took longer than the slow call threshold. Once the share of bad calls in a full
+ * enough window reaches the threshold the breaker opens and calls are refused without
+ * contacting Twitter. After the open duration a limited number of probe calls is let through;
+ * the breaker closes if they all succeed and opens again otherwise.
+ * 
+ * If {@link TwitterMetrics} are configured the state of the breaker and the calls it refused
+ * are reported, and its transitions counted. An open breaker reports itself half-open once the
+ * open duration is over, but the transition is only counted when the next call arrives.
+ */
+@ThreadSafe
+public class TwitterCircuitBreaker extends AbstractInitializableComponent {
+    
+    /** Breaker states */
+    public enum State {
+        /** Calls flow normally */
+        CLOSED,
+        /** Calls are refused */
+        OPEN,
+        /** A limited number of probe calls is allowed */
+        HALF_OPEN,
+    }
+    
+    /** Number of recent calls considered */
+    @Positive private int windowSize = 20;
+    
+    /** Minimum number of calls in the window before the breaker may open */
+    @Positive private int minimumCalls = 10;
+    
+    /** Share of bad calls, between 0 and 1, at which the breaker opens */
+    private double failureRateThreshold = 0.5;
+    
+    /** Duration in milliseconds after which a successful call still counts as bad */
+    @Duration @Positive private long slowCallThreshold = 3000;
+    
+    /** Time in milliseconds the breaker stays open before probing */
+    @Duration @Positive private long openDuration = 30000;
+    
+    /** Number of probe calls allowed while half-open */
+    @Positive private int halfOpenProbes = 3;
+    
+    /** Metrics the state is reported into, if any */
+    @Nullable private TwitterMetrics metrics;
+    
+    /** Current state */
+    @GuardedBy("this") @Nonnull private State state = State.CLOSED;
+    
+    /** Outcome of the recent calls, true for a bad call */
+    @GuardedBy("this") private boolean[] window;
+    
+    /** Next position in the window */
+    @GuardedBy("this") private int windowPosition;
+    
+    /** Number of calls recorded in the window */
+    @GuardedBy("this") private int windowCalls;
+    
+    /** Number of bad calls recorded in the window */
+    @GuardedBy("this") private int windowBadCalls;
+    
+    /** Time at which an open breaker moves to half-open */
+    @GuardedBy("this") private long openUntil;
+    
+    /** Number of probes started while half-open */
+    @GuardedBy("this") private int probesStarted;
+    
+    /** Number of probes that succeeded while half-open */
+    @GuardedBy("this") private int probesSucceeded;
+    
+    /** Number of calls refused since the component was initialized */
+    @GuardedBy("this") private long refusedCalls;
+    
+    /** Class logger */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(TwitterCircuitBreaker.class);
+    
+    /** Log prefix */
+    @Nonnull private final String logPrefix = getClass().getSimpleName() + ":";
+    
+    /** Constructor */
+    public TwitterCircuitBreaker() {
+        
+    }
+    
+    public TwitterCircuitBreaker setWindowSize(@Positive final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.windowSize = (int) Constraint.isGreaterThan(0, size, "Window size must be greater than 0");
+        return this;
+    }
+    
+    public TwitterCircuitBreaker setMinimumCalls(@Positive final int calls) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.minimumCalls = (int) Constraint.isGreaterThan(0, calls, "Minimum calls must be greater than 0");
+        return this;
+    }
+    
+    public TwitterCircuitBreaker setFailureRateThreshold(final double threshold) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        Constraint.isTrue(threshold > 0 && threshold <= 1, "Failure rate threshold must be in (0, 1]");
+        this.failureRateThreshold = threshold;
+        return this;
+    }
+    
+    public TwitterCircuitBreaker setSlowCallThreshold(@Duration @Positive final long threshold) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.slowCallThreshold = Constraint.isGreaterThan(0, threshold, "Slow call threshold must be greater than 0");
+        return this;
+    }
+    
+    public TwitterCircuitBreaker setOpenDuration(@Duration @Positive final long duration) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.openDuration = Constraint.isGreaterThan(0, duration, "Open duration must be greater than 0");
+        return this;
+    }
+    
+    public TwitterCircuitBreaker setHalfOpenProbes(@Positive final int probes) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.halfOpenProbes = (int) Constraint.isGreaterThan(0, probes, "Half-open probes must be greater than 0");
+        return this;
+    }
+    
+    public TwitterCircuitBreaker setMetrics(@Nullable final TwitterMetrics twitterMetrics) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.metrics = twitterMetrics;
+        return this;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        
+        if (this.minimumCalls > this.windowSize) {
+            throw new ComponentInitializationException(this.logPrefix + " Minimum calls cannot exceed the window size");
+        }
+        
+        synchronized (this) {
+            this.window = new boolean[this.windowSize];
+        }
+        if (this.metrics != null) {
+            this.metrics.circuitBreakerStarted(this);
+        }
+    }
+    
+    /**
+     * Get the current state
+     * 
+     * @return the state
+     */
+    @Nonnull public synchronized State getState() {
+        if (this.state == State.OPEN && System.currentTimeMillis() >= this.openUntil) {
+            return State.HALF_OPEN;
+        }
+        return this.state;
+    }
+    
+    /**
+     * Get the share of bad calls in the current window
+     * 
+     * @return the failure rate between 0 and 1
+     */
+    public synchronized double getFailureRate() {
+        return this.windowCalls == 0 ? 0 : (double) this.windowBadCalls / this.windowCalls;
+    }
+    
+    /**
+     * Get the number of calls refused since the breaker was initialized
+     * 
+     * @return the number of refused calls
+     */
+    public synchronized long getRefusedCalls() {
+        return this.refusedCalls;
+    }
+    
+    /**
+     * Ask whether a call may be made. Every permitted call must be followed by exactly one
+     * call to {@link #onSuccess(long)} or {@link #onFailure(long)}.
+     * 
+     * @return true iff the call may be made
+     */
+    public synchronized boolean tryAcquirePermission() {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        
+        if (this.state == State.OPEN && System.currentTimeMillis() >= this.openUntil) {
+            transitionTo(State.HALF_OPEN);
+        }
+        
+        switch (this.state) {
+            case CLOSED:
+                return true;
+            case HALF_OPEN:
+                if (this.probesStarted < this.halfOpenProbes) {
+                    this.probesStarted++;
+                    return true;
+                }
+                break;
+            default:
+                break;
+        }
+        
+        this.refusedCalls++;
+        return false;
+    }
+    
+    /**
+     * Record a call that completed.
+     * 
+     * @param elapsedMillis duration of the call in milliseconds
+     */
+    public synchronized void onSuccess(final long elapsedMillis) {
+        final boolean slow = elapsedMillis >= this.slowCallThreshold;
+        
+        if (this.state == State.HALF_OPEN) {
+            if (slow) {
+                transitionTo(State.OPEN);
+            } else if (++this.probesSucceeded >= this.halfOpenProbes) {
+                transitionTo(State.CLOSED);
+            }
+            return;
+        }
+        
+        record(slow);
+    }
+    
+    /**
+     * Record a call that failed because of Twitter or the network.
+     * 
+     * @param elapsedMillis duration of the call in milliseconds
+     */
+    public synchronized void onFailure(final long elapsedMillis) {
+        if (this.state == State.HALF_OPEN) {
+            transitionTo(State.OPEN);
+            return;
+        }
+        
+        record(true);
+    }
+    
+    /**
+     * Record the outcome of a call made while closed, opening the breaker if needed.
+     * 
+     * Calls completing while open were permitted before the breaker opened and are ignored.
+     * 
+     * @param bad whether the call was bad
+     */
+    @GuardedBy("this") private void record(final boolean bad) {
+        if (this.state != State.CLOSED) {
+            return;
+        }
+        
+        if (this.windowCalls == this.windowSize) {
+            if (this.window[this.windowPosition]) {
+                this.windowBadCalls--;
+            }
+        } else {
+            this.windowCalls++;
+        }
+        this.window[this.windowPosition] = bad;
+        if (bad) {
+            this.windowBadCalls++;
+        }
+        this.windowPosition = (this.windowPosition + 1) % this.windowSize;
+        
+        if (this.windowCalls >= this.minimumCalls
+                && this.windowBadCalls >= this.failureRateThreshold * this.windowCalls) {
+            transitionTo(State.OPEN);
+        }
+    }
+    
+    /**
+     * Move to a new state and reset the bookkeeping of the state left.
+     * 
+     * @param newState the new state
+     */
+    @GuardedBy("this") private void transitionTo(@Nonnull final State newState) {
+        switch (newState) {
+            case OPEN:
+                log.warn("{} Opening circuit breaker for {} ms, {} of the last {} calls to Twitter failed or were slow",
+                        this.logPrefix, this.openDuration, this.windowBadCalls, this.windowCalls);
+                this.openUntil = System.currentTimeMillis() + this.openDuration;
+                break;
+            case HALF_OPEN:
+                log.info("{} Circuit breaker half-open, allowing {} probe calls to Twitter", this.logPrefix,
+                        this.halfOpenProbes);
+                this.probesStarted = 0;
+                this.probesSucceeded = 0;
+                break;
+            case CLOSED:
+                log.info("{} Closing circuit breaker, Twitter probe calls succeeded", this.logPrefix);
+                this.windowPosition = 0;
+                this.windowCalls = 0;
+                this.windowBadCalls = 0;
+                break;
+            default:
+                break;
+        }
+        this.state = newState;
+        if (this.metrics != null) {
+            this.metrics.circuitBreakerTransitioned(newState);
+        }
+    }
+
+}
@@ -0,0 +1,286 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonNegative;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.component.AbstractInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Adaptive limit on the number of concurrent calls to Twitter, shared by all logins.
+ * 
+ * The limit follows an additive increase, multiplicative decrease rule driven by observed
+ * latency. The lowest latency seen recently is taken as the latency of an unloaded Twitter;
+ * a call slower than that by more than the tolerance factor, or one that failed, means the
+ * upstream is queueing and the limit shrinks. Otherwise the limit grows by about one for
+ * every limit's worth of calls. Calls over the limit wait briefly for a slot and are shed
+ * when none frees up, rather than piling onto the upstream.
+ * 
+ * The baseline is the lowest latency over the current and the previous probe interval. A fast
+ * outlier, or a latency Twitter no longer reaches, stops counting after two intervals, so the
+ * baseline does not creep down through the jitter of a steady upstream. Nor does it start over
+ * from a single call when an interval begins, which could be slow itself.
+ */
+@ThreadSafe
+public class TwitterConcurrencyLimiter extends AbstractInitializableComponent {
+    /** Initial limit */
+    @Positive private int initialLimit = 10;
+    
+    /** Lowest limit */
+    @Positive private int minLimit = 2;
+    
+    /** Highest limit, usually the size of the connection pool */
+    @Positive private int maxLimit = 20;
+    
+    /** Factor applied to the limit when the upstream is congested */
+    private double backoffRatio = 0.9;
+    
+    /** How much slower than the lowest recent latency a call may be before it signals congestion */
+    private double latencyTolerance = 2.0;
+    
+    /** Number of calls in each interval the lowest recent latency is measured over */
+    @Positive private int latencyProbeInterval = 500;
+    
+    /** Maximum time in milliseconds a call waits for a free slot */
+    @Duration @NonNegative private long maxQueueWait = 200;
+    
+    /** Maximum number of calls waiting for a free slot */
+    @NonNegative private int maxQueueLength = 50;
+    
+    /** Current limit, fractional so that additive increase can be spread over many calls */
+    @GuardedBy("this") private double limit;
+    
+    /** Calls in flight */
+    @GuardedBy("this") private int inFlight;
+    
+    /** Calls waiting for a slot */
+    @GuardedBy("this") private int waiting;
+    
+    /** Lowest latency in nanoseconds in the current probe interval, or -1 */
+    @GuardedBy("this") private long minLatency = -1;
+    
+    /** Lowest latency in nanoseconds in the previous probe interval, or -1 */
+    @GuardedBy("this") private long previousMinLatency = -1;
+    
+    /** Calls completed since the last probe interval began */
+    @GuardedBy("this") private int callsSinceProbe;
+    
+    /** Number of calls shed since the component was initialized */
+    @GuardedBy("this") private long shedCalls;
+    
+    /** Class logger */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(TwitterConcurrencyLimiter.class);
+    
+    /** Log prefix */
+    @Nonnull private final String logPrefix = getClass().getSimpleName() + ":";
+    
+    /** Constructor */
+    public TwitterConcurrencyLimiter() {
+        
+    }
+    
+    public TwitterConcurrencyLimiter setInitialLimit(@Positive final int initial) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.initialLimit = (int) Constraint.isGreaterThan(0, initial, "Initial limit must be greater than 0");
+        return this;
+    }
+    
+    public TwitterConcurrencyLimiter setMinLimit(@Positive final int min) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.minLimit = (int) Constraint.isGreaterThan(0, min, "Minimum limit must be greater than 0");
+        return this;
+    }
+    
+    public TwitterConcurrencyLimiter setMaxLimit(@Positive final int max) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.maxLimit = (int) Constraint.isGreaterThan(0, max, "Maximum limit must be greater than 0");
+        return this;
+    }
+    
+    public TwitterConcurrencyLimiter setBackoffRatio(final double ratio) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        Constraint.isTrue(ratio > 0 && ratio < 1, "Backoff ratio must be in (0, 1)");
+        this.backoffRatio = ratio;
+        return this;
+    }
+    
+    public TwitterConcurrencyLimiter setLatencyTolerance(final double tolerance) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        Constraint.isTrue(tolerance > 1, "Latency tolerance must be greater than 1");
+        this.latencyTolerance = tolerance;
+        return this;
+    }
+    
+    public TwitterConcurrencyLimiter setLatencyProbeInterval(@Positive final int calls) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.latencyProbeInterval = (int) Constraint.isGreaterThan(0, calls, "Probe interval must be greater than 0");
+        return this;
+    }
+    
+    public TwitterConcurrencyLimiter setMaxQueueWait(@Duration @NonNegative final long wait) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.maxQueueWait = Constraint.isGreaterThanOrEqual(0, wait, "Maximum queue wait cannot be negative");
+        return this;
+    }
+    
+    public TwitterConcurrencyLimiter setMaxQueueLength(@NonNegative final int length) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.maxQueueLength = (int) Constraint.isGreaterThanOrEqual(0, length, "Maximum queue length cannot be negative");
+        return this;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        
+        if (this.minLimit > this.maxLimit || this.initialLimit < this.minLimit || this.initialLimit > this.maxLimit) {
+            throw new ComponentInitializationException(this.logPrefix
+                    + " Limits must satisfy minLimit <= initialLimit <= maxLimit");
+        }
+        
+        synchronized (this) {
+            this.limit = this.initialLimit;
+        }
+    }
+    
+    /**
+     * Get the current limit
+     * 
+     * @return the number of calls allowed in flight
+     */
+    public synchronized int getLimit() {
+        return (int) this.limit;
+    }
+    
+    /**
+     * Get the number of calls in flight
+     * 
+     * @return the number of calls in flight
+     */
+    public synchronized int getInFlight() {
+        return this.inFlight;
+    }
+    
+    /**
+     * Get the number of calls shed since the limiter was initialized
+     * 
+     * @return the number of shed calls
+     */
+    public synchronized long getShedCalls() {
+        return this.shedCalls;
+    }
+    
+    /**
+     * Acquire a slot for a call, waiting briefly if none is free. Every acquired slot must be
+     * given back with {@link #release(long, boolean)} or {@link #abandon()}.
+     * 
+     * @return true iff a slot was acquired, false if the call should be shed
+     * 
+     * @throws InterruptedException if interrupted while waiting for a slot
+     */
+    public synchronized boolean tryAcquire() throws InterruptedException {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        
+        if (this.inFlight < (int) this.limit) {
+            this.inFlight++;
+            return true;
+        }
+        
+        if (this.waiting >= this.maxQueueLength || this.maxQueueWait == 0) {
+            this.shedCalls++;
+            return false;
+        }
+        
+        this.waiting++;
+        try {
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.maxQueueWait);
+            long remaining = deadline - System.nanoTime();
+            while (this.inFlight >= (int) this.limit && remaining > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                remaining = deadline - System.nanoTime();
+            }
+            if (this.inFlight < (int) this.limit) {
+                this.inFlight++;
+                return true;
+            }
+            this.shedCalls++;
+            return false;
+        } finally {
+            this.waiting--;
+        }
+    }
+    
+    /**
+     * Give back a slot after a call completed, adjusting the limit.
+     * 
+     * Latency is taken in nanoseconds so that fast or cached responses still give a non-zero
+     * baseline to compare later calls against.
+     * 
+     * @param latencyNanos duration of the call in nanoseconds
+     * @param congested true if the call failed in a way that indicates upstream trouble
+     */
+    public synchronized void release(final long latencyNanos, final boolean congested) {
+        this.inFlight--;
+        
+        if (++this.callsSinceProbe >= this.latencyProbeInterval) {
+            this.callsSinceProbe = 0;
+            this.previousMinLatency = this.minLatency;
+            this.minLatency = -1;
+        }
+        if (!congested && (this.minLatency < 0 || latencyNanos < this.minLatency)) {
+            this.minLatency = latencyNanos;
+        }
+        long baseline = this.minLatency;
+        if (this.previousMinLatency >= 0 && (baseline < 0 || this.previousMinLatency < baseline)) {
+            baseline = this.previousMinLatency;
+        }
+        
+        /* Without a non-zero baseline latency says nothing about congestion */
+        final boolean slow = baseline > 0 && latencyNanos > baseline * this.latencyTolerance;
+        final double previous = this.limit;
+        if (congested || slow) {
+            this.limit = Math.max(this.minLimit, this.limit * this.backoffRatio);
+        } else if (this.inFlight + 1 >= (int) this.limit) {
+            /* Only grow while the limit is actually being used */
+            this.limit = Math.min(this.maxLimit, this.limit + 1.0 / this.limit);
+        }
+        
+        if ((int) this.limit != (int) previous) {
+            log.debug("{} Concurrency limit is now {} (latency {} us, lowest {} us)", this.logPrefix,
+                    (int) this.limit, TimeUnit.NANOSECONDS.toMicros(latencyNanos),
+                    TimeUnit.NANOSECONDS.toMicros(baseline));
+        }
+        
+        notifyAll();
+    }
+    
+    /**
+     * Give back a slot without a call having been made.
+     */
+    public synchronized void abandon() {
+        this.inFlight--;
+        notifyAll();
+    }
+}
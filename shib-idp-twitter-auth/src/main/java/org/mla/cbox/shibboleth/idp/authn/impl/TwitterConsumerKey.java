@@ -0,0 +1,259 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import org.apache.http.HttpStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonNegative;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.component.AbstractInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * A Twitter OAuth consumer key and secret together with the rate-limit budget left for it.
+ * 
+ * When Twitter reports the remaining budget in the x-rate-limit headers of a response those
+ * figures are used until the reported reset time. A 429 answer without figures leaves the key
+ * without budget for {@link #getBudgetWindow()}. Otherwise the budget is unbounded, unless
+ * {@link #getBudget()} is set, in which case it is also capped by a local token bucket holding that
+ * many calls and refilling over the budget window.
+ */
+@ThreadSafe
+public class TwitterConsumerKey extends AbstractInitializableComponent {
+    /** Response header carrying the remaining calls */
+    @Nonnull @NotEmpty private static final String REMAINING_HEADER = "x-rate-limit-remaining";
+    
+    /** Response header carrying the reset time in epoch seconds */
+    @Nonnull @NotEmpty private static final String RESET_HEADER = "x-rate-limit-reset";
+    
+    /** Identifier of the key, kept with the flow between the two OAuth calls */
+    @Nullable private String id;
+    
+    /** Twitter OAuth Consumer Key */
+    @Nullable private String oauthConsumerKey;
+    
+    /** Twitter OAuth Consumer Secret */
+    @Nullable private String oauthConsumerSecret;
+    
+    /** Number of calls allowed locally per budget window, 0 for no local limit */
+    @NonNegative private int budget;
+    
+    /** Budget window in milliseconds, also the time a key rests after a 429 without figures */
+    @Duration @Positive private long budgetWindow = 900000;
+    
+    /** Request signer, built during initialization */
+    @Nullable private TwitterOAuthSigner signer;
+    
+    /** Calls left in the local token bucket */
+    @GuardedBy("this") private double tokens;
+    
+    /** Time the token bucket was last refilled */
+    @GuardedBy("this") private long lastRefill;
+    
+    /** Calls left as reported by Twitter */
+    @GuardedBy("this") private long reportedRemaining;
+    
+    /** Time until which the reported figure holds, 0 if none */
+    @GuardedBy("this") private long reportedResetAt;
+    
+    /** Class logger */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(TwitterConsumerKey.class);
+    
+    /** Log prefix */
+    @Nonnull private final String logPrefix = getClass().getSimpleName() + ":";
+    
+    /** Constructor */
+    public TwitterConsumerKey() {
+        
+    }
+    
+    @Nullable public String getId() {
+        return this.id;
+    }
+    
+    @Nullable public String getOauthConsumerKey() {
+        return this.oauthConsumerKey;
+    }
+    
+    @Nullable public String getOauthConsumerSecret() {
+        return this.oauthConsumerSecret;
+    }
+    
+    public int getBudget() {
+        return this.budget;
+    }
+    
+    public long getBudgetWindow() {
+        return this.budgetWindow;
+    }
+    
+    public TwitterConsumerKey setId(@Nonnull @NotEmpty final String keyId) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.id = keyId;
+        return this;
+    }
+    
+    public TwitterConsumerKey setOauthConsumerKey(@Nonnull @NotEmpty final String key) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.oauthConsumerKey = key;
+        return this;
+    }
+    
+    public TwitterConsumerKey setOauthConsumerSecret(@Nonnull @NotEmpty final String secret) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.oauthConsumerSecret = secret;
+        return this;
+    }
+    
+    /**
+     * Set the number of calls allowed per budget window, to spend the budget of the key evenly
+     * even when Twitter does not report it. Twitter sends no x-rate-limit headers for the OAuth
+     * endpoints, so a local budget is the only limit on them short of a 429 answer, and each
+     * login spends two calls of it.
+     * 
+     * @param calls the number of calls, or 0, the default, for no local limit
+     * @return instance of this class
+     */
+    public TwitterConsumerKey setBudget(@NonNegative final int calls) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.budget = (int) Constraint.isGreaterThanOrEqual(0, calls, "Budget cannot be negative");
+        return this;
+    }
+    
+    public TwitterConsumerKey setBudgetWindow(@Duration @Positive final long window) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.budgetWindow = Constraint.isGreaterThan(0, window, "Budget window must be greater than 0");
+        return this;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        
+        if (this.id == null || this.id.isEmpty()) {
+            throw new ComponentInitializationException(this.logPrefix + " Key identifier cannot be null or empty");
+        }
+        
+        if (this.oauthConsumerKey == null || this.oauthConsumerKey.isEmpty()) {
+            throw new ComponentInitializationException(this.logPrefix + " OAuth consumer key cannot be null or empty");
+        }
+        
+        if (this.oauthConsumerSecret == null || this.oauthConsumerSecret.isEmpty()) {
+            throw new ComponentInitializationException(this.logPrefix + " OAuth consumer secret cannot be null or empty");
+        }
+        
+        this.signer = new TwitterOAuthSigner(this.oauthConsumerKey, this.oauthConsumerSecret);
+        
+        synchronized (this) {
+            this.tokens = this.budget;
+            this.lastRefill = System.currentTimeMillis();
+        }
+    }
+    
+    /**
+     * Get the signer for this key
+     * 
+     * @return the request signer
+     */
+    @Nonnull public TwitterOAuthSigner getSigner() {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        return this.signer;
+    }
+    
+    /**
+     * Get the number of calls currently left for this key
+     * 
+     * @return the remaining budget, infinite if neither Twitter nor a local budget limits it
+     */
+    public synchronized double getRemainingBudget() {
+        final long now = System.currentTimeMillis();
+        final double local;
+        if (this.budget > 0) {
+            refill(now);
+            local = this.tokens;
+        } else {
+            local = Double.POSITIVE_INFINITY;
+        }
+        return now < this.reportedResetAt ? Math.min(this.reportedRemaining, local) : local;
+    }
+    
+    /**
+     * Account for a call about to be made with this key.
+     */
+    public synchronized void consume() {
+        final long now = System.currentTimeMillis();
+        if (this.budget > 0) {
+            refill(now);
+            this.tokens = Math.max(0, this.tokens - 1);
+        }
+        if (now < this.reportedResetAt && this.reportedRemaining > 0) {
+            this.reportedRemaining--;
+        }
+    }
+    
+    /**
+     * Update the budget from a response to a call made with this key.
+     * 
+     * @param response the response
+     */
+    public void recordResponse(@Nonnull final TwitterHttpTransport.Response response) {
+        final String remaining = response.getHeader(REMAINING_HEADER);
+        final String reset = response.getHeader(RESET_HEADER);
+        
+        synchronized (this) {
+            if (remaining != null && reset != null) {
+                try {
+                    this.reportedRemaining = Long.parseLong(remaining.trim());
+                    this.reportedResetAt = Long.parseLong(reset.trim()) * 1000;
+                } catch (final NumberFormatException e) {
+                    log.debug("{} Ignoring malformed rate-limit headers for key {}", this.logPrefix, this.id);
+                }
+            } else if (response.getStatusCode() == 429) {
+                /* Rate limited without figures, rest the key for a budget window */
+                this.reportedRemaining = 0;
+                this.reportedResetAt = System.currentTimeMillis() + this.budgetWindow;
+                this.tokens = 0;
+            }
+        }
+        
+        if (response.getStatusCode() == 429) {
+            log.warn("{} Twitter rate limit reached for consumer key {}", this.logPrefix, this.id);
+        } else if (response.getStatusCode() != HttpStatus.SC_OK) {
+            log.debug("{} Twitter answered {} for consumer key {}", this.logPrefix, response.getStatusCode(), this.id);
+        }
+    }
+    
+    /**
+     * Refill the token bucket for the time elapsed since the last refill.
+     * 
+     * @param now the current time
+     */
+    @GuardedBy("this") private void refill(final long now) {
+        final long elapsed = now - this.lastRefill;
+        if (elapsed > 0) {
+            this.tokens = Math.min(this.budget, this.tokens + (double) elapsed * this.budget / this.budgetWindow);
+            this.lastRefill = now;
+        }
+    }
+}
@@ -13,77 +13,167 @@
 */
 package org.mla.cbox.shibboleth.idp.authn.impl;
 
-
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import org.opensaml.messaging.context.BaseContext;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import net.shibboleth.idp.authn.context.AuthenticationContext;
-import twitter4j.Twitter;
-import twitter4j.auth.AccessToken;
-import twitter4j.auth.RequestToken;
+import net.shibboleth.utilities.java.support.logic.Constraint;
 
 /**
- * Context, usually attached to {@link AuthenticationContext}, that carries a Twitter access token
+ * Context, usually attached to {@link AuthenticationContext}, that carries the state of a Twitter login
+ * 
+ * Only the request token, its secret, the consumer key identifier, the times the login started and
+ * the user was sent to Twitter, the trace of the login and the Twitter user ID are kept.
+ * The authentication URL is only needed to render the redirect and is not serialized.
  */
-public class TwitterContext extends BaseContext {
-    /** Twitter integration details */
-    @Nullable private TwitterIntegration twitterIntegration = null;
+public class TwitterContext extends BaseContext implements Externalizable {
+    /** User ID value meaning no access token has been obtained */
+    public static final long NO_USER_ID = 0;
+    
+    /** Version of the serialized form */
+    private static final byte SERIAL_VERSION = 1;
+    
+    /** Flag marking a serialized request token */
+    private static final int HAS_TOKEN = 0x1;
+    
+    /** Flag marking a serialized request token secret */
+    private static final int HAS_SECRET = 0x2;
+    
+    /** Flag marking a serialized trace ID */
+    private static final int HAS_TRACE = 0x4;
+    
+    /** Flag marking a sampled trace */
+    private static final int TRACE_SAMPLED = 0x8;
+    
+    /** Request token */
+    @Nullable private String token;
+    
+    /** Request token secret, null if kept in a {@link TwitterRequestTokenStore} */
+    @Nullable private String tokenSecret;
     
-    /** Twitter factory instance */
-    @Nullable private Twitter twitter = null;
+    /** Identifier of the consumer key the request token was issued to */
+    @Nullable private String consumerKeyId;
     
-    /** Twitter access token */
-    @Nullable private AccessToken accessToken = null;
+    /** URL the browser is sent to in order to authenticate with Twitter */
+    @Nullable private transient String authenticationUrl;
     
-    /** Twitter request token */
-    @Nullable private RequestToken requestToken = null;
+    /** Time in milliseconds at which the login started, or 0 if unknown */
+    private long startTime;
     
-    /** Class logger */
-    @Nonnull private final Logger log = LoggerFactory.getLogger(TwitterContext.class);
+    /** Time in milliseconds at which the user was sent to Twitter, or 0 if unknown */
+    private long redirectTime;
     
-    /** Log prefix */
-    @Nonnull private final String logPrefix = getClass().getSimpleName() + ":";
+    /** Correlation ID of the login, if traced */
+    @Nullable private String traceId;
+    
+    /** Whether spans of the login are recorded */
+    private boolean traceSampled;
+    
+    /** Twitter user ID, or {@link #NO_USER_ID} */
+    private long userId = NO_USER_ID;
     
     /** Constructor */
     public TwitterContext() {
     }
     
     /**
-     * Get the access token
+     * Get the Twitter user ID
      * 
-     * @return the Twitter access token
+     * @return the user ID, or {@link #NO_USER_ID} if no access token has been obtained
      */
-    @Nullable public AccessToken getAccessToken() {
-        return this.accessToken;
+    public long getUserId() {
+        return this.userId;
     }
     
     /**
-     * Get the request token
+     * Get the time at which the login started
      * 
-     * @return the Twitter request token
+     * @return the time in milliseconds, or 0 if unknown
      */
-    @Nullable public RequestToken getRequestToken() {
-        return this.requestToken;
+    public long getStartTime() {
+        return this.startTime;
     }
     
     /**
-     * Get the Twitter class instance
+     * Set the time at which the login started
      * 
-     * @return the Twitter class instance
+     * @param time the time in milliseconds
+     * 
+     * @return this context
      */
-    @Nullable public Twitter getTwitter() {
-        return this.twitter;
+    public TwitterContext setStartTime(final long time) {
+        this.startTime = time;
+        return this;
     }
     
     /**
-     * Get the Twitter integration
+     * Get the time at which the user was sent to Twitter
      * 
-     * @return the Twitter integration object
+     * @return the time in milliseconds, or 0 if unknown
      */
-    @Nullable public TwitterIntegration getTwitterIntegration() {
-        return this.twitterIntegration;
+    public long getRedirectTime() {
+        return this.redirectTime;
+    }
+    
+    /**
+     * Set the time at which the user was sent to Twitter
+     * 
+     * @param time the time in milliseconds
+     * 
+     * @return this context
+     */
+    public TwitterContext setRedirectTime(final long time) {
+        this.redirectTime = time;
+        return this;
+    }
+    
+    /**
+     * Get the correlation ID of the login
+     * 
+     * @return the correlation ID, or null if the login is not traced
+     */
+    @Nullable public String getTraceId() {
+        return this.traceId;
+    }
+    
+    /**
+     * Get whether spans of the login are recorded
+     * 
+     * @return true if the trace is sampled
+     */
+    public boolean isTraceSampled() {
+        return this.traceSampled;
+    }
+    
+    /**
+     * Set the trace of the login, see {@link TwitterTracer}
+     * 
+     * @param id the correlation ID, or null if the login is not traced
+     * @param sampled whether spans of the login are recorded
+     * 
+     * @return this context
+     */
+    public TwitterContext setTrace(@Nullable final String id, final boolean sampled) {
+        this.traceId = id;
+        this.traceSampled = id != null && sampled;
+        return this;
+    }
+    
+    /**
+     * Get the request token
+     * 
+     * @return the Twitter request token
+     */
+    @Nullable public TwitterRequestToken getRequestToken() {
+        if (this.token == null) {
+            return null;
+        }
+        return new TwitterRequestToken(this.token, this.tokenSecret, this.authenticationUrl, this.consumerKeyId);
     }
     
      
@@ -93,53 +183,99 @@ public class TwitterContext extends BaseContext {
       * @return the URL
       */
      public String twitterLoginUrl() {
-         return this.requestToken.getAuthenticationURL();
+         return this.authenticationUrl;
      }
      
-    /** Set the access token.
+    /** Set the user ID from the access token. The access token itself is not kept.
      * 
-     * @param token the Twitter access token
+     * @param accessToken the Twitter access token
      * 
      * @return this context
      */
-     public TwitterContext setAccessToken(AccessToken token) {
-         this.accessToken = token;
+     public TwitterContext setAccessToken(@Nonnull final TwitterAccessToken accessToken) {
+         this.userId = accessToken.getUserId();
          return this;
      }
      
     /** Set the request token.
      * 
-     * @param token the Twitter request token
+     * @param requestToken the Twitter request token
      * 
      * @return this context
      */
-     public TwitterContext setRequestToken(RequestToken token) {
-         this.requestToken = token;
+     public TwitterContext setRequestToken(@Nullable final TwitterRequestToken requestToken) {
+         if (requestToken == null) {
+             this.token = null;
+             this.tokenSecret = null;
+             this.consumerKeyId = null;
+             this.authenticationUrl = null;
+         } else {
+             this.token = Constraint.isNotNull(requestToken.getToken(), "Request token cannot be null");
+             this.tokenSecret = requestToken.getTokenSecret();
+             this.consumerKeyId =
+                     Constraint.isNotNull(requestToken.getConsumerKeyId(), "Consumer key identifier cannot be null");
+             this.authenticationUrl = requestToken.getAuthenticationUrl();
+         }
          return this;
      }
      
-     
-    /**
-     * Set the Twitter class instance.
-     * 
-     *  @param twitter the Twitter class instance
-     *  
-     *  @return this context
-     */
-     public TwitterContext setTwitter(@Nullable final Twitter twitter) {
-         this.twitter = twitter;
-         return this;
+     /** {@inheritDoc} */
+     @Override
+     public void writeExternal(final ObjectOutput out) throws IOException {
+         int flags = 0;
+         if (this.token != null) {
+             flags |= HAS_TOKEN;
+             if (this.tokenSecret != null) {
+                 flags |= HAS_SECRET;
+             }
+         }
+         
+         if (this.traceId != null) {
+             flags |= HAS_TRACE;
+             if (this.traceSampled) {
+                 flags |= TRACE_SAMPLED;
+             }
+         }
+         
+         out.writeByte(SERIAL_VERSION);
+         out.writeByte(flags);
+         if (this.token != null) {
+             out.writeUTF(this.token);
+             out.writeUTF(this.consumerKeyId);
+             if (this.tokenSecret != null) {
+                 out.writeUTF(this.tokenSecret);
+             }
+         }
+         out.writeLong(this.startTime);
+         out.writeLong(this.redirectTime);
+         if (this.traceId != null) {
+             out.writeUTF(this.traceId);
+         }
+         out.writeLong(this.userId);
      }
      
-    /**
-     * Set the Twitter integration.
-     * 
-     * @param twitterIntegration the Twitter integration
-     * 
-     * @return this context
-     */
-    public TwitterContext setTwitterIntegration(@Nullable final TwitterIntegration twitterIntegration) {
-        this.twitterIntegration = twitterIntegration;
-        return this;
-    }
+     /** {@inheritDoc} */
+     @Override
+     public void readExternal(final ObjectInput in) throws IOException {
+         final byte version = in.readByte();
+         if (version != SERIAL_VERSION) {
+             throw new InvalidObjectException("Unsupported TwitterContext version " + version);
+         }
+         
+         final int flags = in.readByte();
+         if ((flags & HAS_TOKEN) != 0) {
+             this.token = in.readUTF();
+             this.consumerKeyId = in.readUTF();
+             if ((flags & HAS_SECRET) != 0) {
+                 this.tokenSecret = in.readUTF();
+             }
+         }
+         this.startTime = in.readLong();
+         this.redirectTime = in.readLong();
+         if ((flags & HAS_TRACE) != 0) {
+             this.traceId = in.readUTF();
+             this.traceSampled = (flags & TRACE_SAMPLED) != 0;
+         }
+         this.userId = in.readLong();
+     }
 }
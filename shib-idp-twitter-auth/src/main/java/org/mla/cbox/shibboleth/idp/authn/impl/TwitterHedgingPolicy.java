@@ -0,0 +1,279 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.util.Arrays;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.component.AbstractInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Decides when a slow request token call to Twitter is hedged with a second one.
+ * 
+ * The latency of recent successful calls is kept in a fixed size reservoir. A call that has not
+ * answered within the configured percentile of those latencies, bounded by the minimum and
+ * maximum delay, may be hedged. Hedges are paid for out of a budget that grows by the budget
+ * ratio with every call and holds at most a small burst, so hedging adds at most that share of
+ * calls to Twitter and never more than doubles them. No call is hedged until the reservoir holds
+ * enough samples for the percentile to mean something.
+ * 
+ * Each hedge is a request token call of its own, so it is made with whichever consumer key the
+ * integration selects and spends that key's rate limit and local budget. Keys given a local
+ * budget should allow for up to budgetRatio more request token calls per login.
+ */
+@ThreadSafe
+public class TwitterHedgingPolicy extends AbstractInitializableComponent {
+    
+    /** Returned by {@link #getHedgeDelay()} when calls should not be hedged */
+    public static final long NO_HEDGE = -1;
+    
+    /** Percentile, between 0 and 1, of the recent latencies after which a call is hedged */
+    private double percentile = 0.95;
+    
+    /** Lower bound in milliseconds on the hedge delay */
+    @Duration @Positive private long minDelay = 50;
+    
+    /** Upper bound in milliseconds on the hedge delay */
+    @Duration @Positive private long maxDelay = 2000;
+    
+    /** Number of recent latencies kept */
+    @Positive private int reservoirSize = 1000;
+    
+    /** Number of latencies needed before calls are hedged */
+    @Positive private int minSamples = 100;
+    
+    /** Number of latencies recorded between recomputations of the hedge delay */
+    @Positive private int recomputeInterval = 50;
+    
+    /** Share of calls, between 0 and 1, that may be hedged */
+    private double budgetRatio = 0.1;
+    
+    /** Number of hedges that may be spent at once out of an accumulated budget */
+    @Positive private int maxBurst = 10;
+    
+    /** Recent latencies in milliseconds */
+    @GuardedBy("this") private long[] reservoir;
+    
+    /** Next position in the reservoir */
+    @GuardedBy("this") private int reservoirPosition;
+    
+    /** Number of latencies in the reservoir */
+    @GuardedBy("this") private int reservoirCount;
+    
+    /** Number of latencies recorded since the hedge delay was last computed */
+    @GuardedBy("this") private int sinceRecompute;
+    
+    /** Hedges that may currently be spent */
+    @GuardedBy("this") private double budget;
+    
+    /** Number of hedges started since the component was initialized */
+    @GuardedBy("this") private long hedgesStarted;
+    
+    /** Number of hedges that answered before the call they hedged */
+    @GuardedBy("this") private long hedgesWon;
+    
+    /** Number of hedges refused for lack of budget */
+    @GuardedBy("this") private long hedgesRefused;
+    
+    /** Current hedge delay in milliseconds, or {@link #NO_HEDGE} */
+    private volatile long hedgeDelay = NO_HEDGE;
+    
+    /** Class logger */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(TwitterHedgingPolicy.class);
+    
+    /** Log prefix */
+    @Nonnull private final String logPrefix = getClass().getSimpleName() + ":";
+    
+    /** Constructor */
+    public TwitterHedgingPolicy() {
+        
+    }
+    
+    public TwitterHedgingPolicy setPercentile(final double value) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        Constraint.isTrue(value > 0 && value < 1, "Percentile must be in (0, 1)");
+        this.percentile = value;
+        return this;
+    }
+    
+    public TwitterHedgingPolicy setMinDelay(@Duration @Positive final long delay) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.minDelay = Constraint.isGreaterThan(0, delay, "Minimum delay must be greater than 0");
+        return this;
+    }
+    
+    public TwitterHedgingPolicy setMaxDelay(@Duration @Positive final long delay) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.maxDelay = Constraint.isGreaterThan(0, delay, "Maximum delay must be greater than 0");
+        return this;
+    }
+    
+    public TwitterHedgingPolicy setReservoirSize(@Positive final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.reservoirSize = (int) Constraint.isGreaterThan(0, size, "Reservoir size must be greater than 0");
+        return this;
+    }
+    
+    public TwitterHedgingPolicy setMinSamples(@Positive final int samples) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.minSamples = (int) Constraint.isGreaterThan(0, samples, "Minimum samples must be greater than 0");
+        return this;
+    }
+    
+    public TwitterHedgingPolicy setRecomputeInterval(@Positive final int interval) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.recomputeInterval = (int) Constraint.isGreaterThan(0, interval,
+                "Recompute interval must be greater than 0");
+        return this;
+    }
+    
+    public TwitterHedgingPolicy setBudgetRatio(final double ratio) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        Constraint.isTrue(ratio > 0 && ratio <= 1, "Budget ratio must be in (0, 1]");
+        this.budgetRatio = ratio;
+        return this;
+    }
+    
+    public TwitterHedgingPolicy setMaxBurst(@Positive final int burst) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.maxBurst = (int) Constraint.isGreaterThan(0, burst, "Maximum burst must be greater than 0");
+        return this;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        
+        if (this.minDelay > this.maxDelay) {
+            throw new ComponentInitializationException(this.logPrefix + " Minimum delay cannot exceed the maximum delay");
+        }
+        if (this.minSamples > this.reservoirSize) {
+            throw new ComponentInitializationException(this.logPrefix + " Minimum samples cannot exceed the reservoir size");
+        }
+        
+        synchronized (this) {
+            this.reservoir = new long[this.reservoirSize];
+        }
+    }
+    
+    /**
+     * Get the time to wait for a call before hedging it
+     * 
+     * @return the delay in milliseconds, or {@link #NO_HEDGE} if too few calls have been recorded
+     */
+    public long getHedgeDelay() {
+        return this.hedgeDelay;
+    }
+    
+    /**
+     * Get the number of hedges started since the policy was initialized
+     * 
+     * @return the number of hedges started
+     */
+    public synchronized long getHedgesStarted() {
+        return this.hedgesStarted;
+    }
+    
+    /**
+     * Get the number of hedges that answered before the call they hedged
+     * 
+     * @return the number of hedges won
+     */
+    public synchronized long getHedgesWon() {
+        return this.hedgesWon;
+    }
+    
+    /**
+     * Get the number of hedges refused because the budget was spent
+     * 
+     * @return the number of hedges refused
+     */
+    public synchronized long getHedgesRefused() {
+        return this.hedgesRefused;
+    }
+    
+    /**
+     * Record that a call was started, adding to the hedge budget.
+     */
+    public synchronized void onCall() {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        
+        this.budget = Math.min(this.budget + this.budgetRatio, this.maxBurst);
+    }
+    
+    /**
+     * Ask whether a call that has waited for the hedge delay may be hedged. Spends one hedge of
+     * the budget if it may.
+     * 
+     * @return true iff a hedge may be started
+     */
+    public synchronized boolean tryAcquireHedge() {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        
+        if (this.budget < 1) {
+            this.hedgesRefused++;
+            return false;
+        }
+        this.budget--;
+        this.hedgesStarted++;
+        return true;
+    }
+    
+    /**
+     * Record that a hedge answered before the call it hedged.
+     */
+    public synchronized void onHedgeWon() {
+        this.hedgesWon++;
+    }
+    
+    /**
+     * Record the latency of a successful call, hedge or not.
+     * 
+     * @param elapsedMillis duration of the call in milliseconds
+     */
+    public void recordLatency(final long elapsedMillis) {
+        final long[] sorted;
+        synchronized (this) {
+            this.reservoir[this.reservoirPosition] = elapsedMillis;
+            this.reservoirPosition = (this.reservoirPosition + 1) % this.reservoirSize;
+            if (this.reservoirCount < this.reservoirSize) {
+                this.reservoirCount++;
+            }
+            if (this.reservoirCount < this.minSamples || ++this.sinceRecompute < this.recomputeInterval) {
+                return;
+            }
+            this.sinceRecompute = 0;
+            sorted = Arrays.copyOf(this.reservoir, this.reservoirCount);
+        }
+        
+        /* Sort outside the lock, concurrent recomputations simply race to publish */
+        Arrays.sort(sorted);
+        final int index = Math.min(sorted.length - 1, (int) Math.ceil(this.percentile * sorted.length) - 1);
+        final long delay = Math.max(this.minDelay, Math.min(this.maxDelay, sorted[Math.max(0, index)]));
+        if (delay != this.hedgeDelay) {
+            log.debug("{} Hedging Twitter calls after {} ms", this.logPrefix, delay);
+        }
+        this.hedgeDelay = delay;
+    }
+
+}
@@ -0,0 +1,364 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import org.apache.http.Consts;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.component.AbstractInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * HTTP transport used for the OAuth exchanges with Twitter.
+ * 
+ * Connections are kept alive in a bounded pool shared by all logins, and TLS sessions
+ * are cached so that a connection opened after a pooled one expired can still resume
+ * the previous session instead of performing a full handshake.
+ */
+@ThreadSafe
+public class TwitterHttpTransport extends AbstractInitializableComponent {
+    /** Maximum number of pooled connections */
+    @Positive private int maxConnections = 20;
+    
+    /** Connect timeout in milliseconds */
+    @Duration @Positive private long connectTimeout = 5000;
+    
+    /** Read (socket) timeout in milliseconds */
+    @Duration @Positive private long readTimeout = 10000;
+    
+    /** Maximum time in milliseconds to wait for a connection from the pool */
+    @Duration @Positive private long connectionRequestTimeout = 2000;
+    
+    /** Maximum time in milliseconds to keep an idle connection alive */
+    @Duration @Positive private long keepAliveTimeout = 60000;
+    
+    /** Number of TLS sessions cached for resumption */
+    @Positive private int tlsSessionCacheSize = 100;
+    
+    /** Lifetime in milliseconds of a cached TLS session */
+    @Duration @Positive private long tlsSessionTimeout = 3600000;
+    
+    /** Pooling connection manager, built during initialization */
+    @Nullable private PoolingHttpClientConnectionManager connectionManager;
+    
+    /** HTTP client, built during initialization */
+    @Nullable private CloseableHttpClient httpClient;
+    
+    /** Class logger */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(TwitterHttpTransport.class);
+    
+    /** Log prefix */
+    @Nonnull private final String logPrefix = getClass().getSimpleName() + ":";
+    
+    /** Constructor */
+    public TwitterHttpTransport() {
+        
+    }
+    
+    public int getMaxConnections() {
+        return this.maxConnections;
+    }
+    
+    public long getConnectTimeout() {
+        return this.connectTimeout;
+    }
+    
+    public long getReadTimeout() {
+        return this.readTimeout;
+    }
+    
+    public long getConnectionRequestTimeout() {
+        return this.connectionRequestTimeout;
+    }
+    
+    public long getKeepAliveTimeout() {
+        return this.keepAliveTimeout;
+    }
+    
+    public int getTlsSessionCacheSize() {
+        return this.tlsSessionCacheSize;
+    }
+    
+    public long getTlsSessionTimeout() {
+        return this.tlsSessionTimeout;
+    }
+    
+    public TwitterHttpTransport setMaxConnections(@Positive final int max) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.maxConnections = (int) Constraint.isGreaterThan(0, max, "Maximum connections must be greater than 0");
+        return this;
+    }
+    
+    public TwitterHttpTransport setConnectTimeout(@Duration @Positive final long timeout) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.connectTimeout = Constraint.isGreaterThan(0, timeout, "Connect timeout must be greater than 0");
+        return this;
+    }
+    
+    public TwitterHttpTransport setReadTimeout(@Duration @Positive final long timeout) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.readTimeout = Constraint.isGreaterThan(0, timeout, "Read timeout must be greater than 0");
+        return this;
+    }
+    
+    public TwitterHttpTransport setConnectionRequestTimeout(@Duration @Positive final long timeout) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.connectionRequestTimeout =
+                Constraint.isGreaterThan(0, timeout, "Connection request timeout must be greater than 0");
+        return this;
+    }
+    
+    public TwitterHttpTransport setKeepAliveTimeout(@Duration @Positive final long timeout) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.keepAliveTimeout = Constraint.isGreaterThan(0, timeout, "Keep-alive timeout must be greater than 0");
+        return this;
+    }
+    
+    public TwitterHttpTransport setTlsSessionCacheSize(@Positive final int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.tlsSessionCacheSize = (int) Constraint.isGreaterThan(0, size, "TLS session cache size must be greater than 0");
+        return this;
+    }
+    
+    public TwitterHttpTransport setTlsSessionTimeout(@Duration @Positive final long timeout) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.tlsSessionTimeout = Constraint.isGreaterThan(0, timeout, "TLS session timeout must be greater than 0");
+        return this;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        
+        /* A dedicated SSL context so that the session cache is sized for this transport alone */
+        final SSLContext sslContext;
+        try {
+            sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, null, null);
+        } catch (final GeneralSecurityException e) {
+            throw new ComponentInitializationException(this.logPrefix + " Unable to create SSL context", e);
+        }
+        final SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+        sessionContext.setSessionCacheSize(this.tlsSessionCacheSize);
+        sessionContext.setSessionTimeout((int) TimeUnit.MILLISECONDS.toSeconds(this.tlsSessionTimeout));
+        
+        final Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+            .register("https", new SSLConnectionSocketFactory(sslContext))
+            .register("http", PlainConnectionSocketFactory.getSocketFactory())
+            .build();
+        
+        /* All traffic goes to the same host, so the per-route limit is the pool size. Connections
+           live as long as they are in use; only idleness expires them, see below */
+        this.connectionManager = new PoolingHttpClientConnectionManager(registry, null, null, null,
+                -1, TimeUnit.MILLISECONDS);
+        this.connectionManager.setMaxTotal(this.maxConnections);
+        this.connectionManager.setDefaultMaxPerRoute(this.maxConnections);
+        
+        final RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout((int) this.connectTimeout)
+            .setSocketTimeout((int) this.readTimeout)
+            .setConnectionRequestTimeout((int) this.connectionRequestTimeout)
+            .build();
+        
+        final long maxKeepAlive = this.keepAliveTimeout;
+        final ConnectionKeepAliveStrategy keepAliveStrategy = new ConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(final HttpResponse response, final HttpContext context) {
+                final long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                return duration > 0 ? Math.min(duration, maxKeepAlive) : maxKeepAlive;
+            }
+        };
+        
+        /* Retries are left to the caller, an OAuth exchange must not be replayed blindly. Pooled
+           connections idle for longer than the keep-alive timeout are closed in the background */
+        this.httpClient = HttpClients.custom()
+            .setConnectionManager(this.connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            .setKeepAliveStrategy(keepAliveStrategy)
+            .evictExpiredConnections()
+            .evictIdleConnections(this.keepAliveTimeout, TimeUnit.MILLISECONDS)
+            .disableAutomaticRetries()
+            .disableCookieManagement()
+            .disableRedirectHandling()
+            .build();
+        
+        log.debug("{} Initialized HTTP transport with {} pooled connections", this.logPrefix, this.maxConnections);
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    protected void doDestroy() {
+        if (this.httpClient != null) {
+            try {
+                this.httpClient.close();
+            } catch (final IOException e) {
+                log.warn("{} Error closing HTTP client: {}", this.logPrefix, e.getMessage());
+            }
+            this.httpClient = null;
+            this.connectionManager = null;
+        }
+        super.doDestroy();
+    }
+    
+    /**
+     * POST a form to the given URL.
+     * 
+     * The response body is always consumed in full so that the connection goes back to the pool.
+     * 
+     * @param url the URL
+     * @param authorization value of the Authorization header, if any
+     * @param parameters the form parameters
+     * 
+     * @return the response
+     * 
+     * @throws IOException if the request could not be performed
+     */
+    @Nonnull public Response post(@Nonnull final String url, @Nullable final String authorization,
+            @Nonnull final List<NameValuePair> parameters) throws IOException {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        
+        final HttpPost post = new HttpPost(url);
+        if (authorization != null) {
+            post.setHeader(HttpHeaders.AUTHORIZATION, authorization);
+        }
+        post.setEntity(new UrlEncodedFormEntity(parameters, Consts.UTF_8));
+        
+        return execute(post);
+    }
+    
+    /**
+     * GET the given URL.
+     * 
+     * The response body is always consumed in full so that the connection goes back to the pool.
+     * 
+     * @param url the URL, including any query string
+     * @param authorization value of the Authorization header, if any
+     * 
+     * @return the response
+     * 
+     * @throws IOException if the request could not be performed
+     */
+    @Nonnull public Response get(@Nonnull final String url, @Nullable final String authorization) throws IOException {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        
+        final HttpGet get = new HttpGet(url);
+        if (authorization != null) {
+            get.setHeader(HttpHeaders.AUTHORIZATION, authorization);
+        }
+        
+        return execute(get);
+    }
+    
+    /**
+     * Perform a request and read the response in full.
+     * 
+     * @param request the request
+     * 
+     * @return the response
+     * 
+     * @throws IOException if the request could not be performed
+     */
+    @Nonnull private Response execute(@Nonnull final HttpUriRequest request) throws IOException {
+        try (final CloseableHttpResponse response = this.httpClient.execute(request)) {
+            final String body = response.getEntity() != null
+                    ? EntityUtils.toString(response.getEntity(), Consts.UTF_8) : "";
+            return new Response(response.getStatusLine().getStatusCode(), body, response.getAllHeaders());
+        }
+    }
+    
+    /** An HTTP response whose body has been read in full */
+    public static final class Response {
+        /** HTTP status code */
+        private final int statusCode;
+        
+        /** Response body */
+        @Nonnull private final String body;
+        
+        /** Response headers */
+        @Nonnull private final Header[] headers;
+        
+        /**
+         * Constructor
+         * 
+         * @param statusCode the HTTP status code
+         * @param body the response body
+         * @param headers the response headers
+         */
+        Response(final int statusCode, @Nonnull final String body, @Nonnull final Header[] headers) {
+            this.statusCode = statusCode;
+            this.body = body;
+            this.headers = headers;
+        }
+        
+        public int getStatusCode() {
+            return this.statusCode;
+        }
+        
+        @Nonnull public String getBody() {
+            return this.body;
+        }
+        
+        /**
+         * Get the value of the first header with the given name
+         * 
+         * @param name the header name, case insensitive
+         * 
+         * @return the header value or null
+         */
+        @Nullable public String getHeader(@Nonnull final String name) {
+            for (final Header header : this.headers) {
+                if (name.equalsIgnoreCase(header.getName())) {
+                    return header.getValue();
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -15,49 +15,82 @@ package org.mla.cbox.shibboleth.idp.authn.impl;
 
 import javax.annotation.Nonnull;
 import com.google.common.base.MoreObjects;
-import com.google.gson.Gson;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import net.shibboleth.idp.authn.principal.CloneablePrincipal;
 import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
-import twitter4j.auth.AccessToken;
 
 /** Principal based on ID asserted by Twitter */
 public class TwitterIdPrincipal implements CloneablePrincipal {
+    /** Shared instances handed out by {@link #valueOf(long)}, released once no longer referenced */
+    @Nonnull private static final Interner<TwitterIdPrincipal> INTERNER = Interners.newWeakInterner();
+    
     /** User ID asserted by Twitter */
-    private String userId;
+    private final long userId;
+    
+    /** Decimal form of the user ID, computed on first use */
+    private String name;
     
     /**
-     * Constructor
+     * Constructor from Twitter access token
      */
-    public TwitterIdPrincipal() {
-        
+    public TwitterIdPrincipal(TwitterAccessToken token) {
+        this(token.getUserId());
     }
     
     /**
-     * Constructor from Twitter access token
+     * Constructor from Twitter user ID
      */
-    public TwitterIdPrincipal(AccessToken token) {
-        this.userId = Long.toString(token.getUserId());
+    public TwitterIdPrincipal(long userId) {
+        this.userId = userId;
+    }
+    
+    /**
+     * Get a shared principal for a Twitter user ID. Repeated calls for the same user ID
+     * return the same instance for as long as it is referenced elsewhere.
+     * 
+     * @param userId the Twitter user ID
+     * 
+     * @return the principal
+     */
+    @Nonnull public static TwitterIdPrincipal valueOf(final long userId) {
+        return INTERNER.intern(new TwitterIdPrincipal(userId));
     }
     
     /**
      * Get the user ID
      * 
+     * @return the user ID
+     */
+    public long getId() {
+        return this.userId;
+    }
+    
+    /**
+     * Get the user ID in decimal form
+     * 
      * @return userId, always asserted by Twitter
      */
     public String getUserId() {
-        return this.userId;
+        return getName();
     }
     
     /** {@inheritDoc} */
     @Override
     @Nonnull @NotEmpty public String getName() {
-        return this.userId;
+        /* Racy but safe: every thread computes the same immutable String */
+        String result = this.name;
+        if (result == null) {
+            result = Long.toString(this.userId);
+            this.name = result;
+        }
+        return result;
     }
     
     /** {@inheritDoc} */
     @Override
     public int hashCode() {
-        return this.userId.hashCode();
+        return (int) (this.userId ^ (this.userId >>> 32));
     }
     
     /** {@inheritDoc} */
@@ -72,29 +105,21 @@ public class TwitterIdPrincipal implements CloneablePrincipal {
         }
 
         if (other instanceof TwitterIdPrincipal) {
-            return this.userId.equals(((TwitterIdPrincipal) other).getUserId());
+            return this.userId == ((TwitterIdPrincipal) other).userId;
         }
 
         return false;
     }
     
-    /** Serialize to JSON */
-    public String serialize() {
-        Gson gson = new Gson();
-        return gson.toJson(this);
-    }
-    
     /** {@inheritDoc} */
     @Override
     public String toString() {
-        return MoreObjects.toStringHelper(this).add("TwitterIdPrincipal", this.getUserId()).toString();
+        return MoreObjects.toStringHelper(this).add("TwitterIdPrincipal", this.userId).toString();
     }
     
     /** {@inheritDoc} */
     @Override
     public TwitterIdPrincipal clone() throws CloneNotSupportedException {
-        TwitterIdPrincipal copy = (TwitterIdPrincipal) super.clone();
-        copy.userId = this.userId;
-        return copy;
+        return (TwitterIdPrincipal) super.clone();
     }
 }
@@ -15,38 +15,70 @@ package org.mla.cbox.shibboleth.idp.authn.impl;
 
 import java.io.IOException;
 import java.io.StringReader;
-import java.io.StringWriter;
 import java.security.Principal;
-import java.util.regex.Pattern;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
+import javax.json.JsonException;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
 import javax.json.JsonString;
 import javax.json.JsonStructure;
-import javax.json.stream.JsonGenerator;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import com.google.common.base.Strings;
-import com.google.gson.Gson;
 import net.shibboleth.idp.authn.principal.AbstractPrincipalSerializer;
 import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
 
 /**
  * Principal serializer for TwitterIdPrincipal
+ * 
+ * Principals are written as <code>{"TW":12345}</code> with the user ID as a JSON number.
+ * The nested format written by earlier versions, <code>{"Twitter":"{\"userId\":\"12345\"}"}</code>,
+ * is still read so that stored sessions survive an upgrade.
+ * 
+ * With principal interning enabled, sessions of the same user share one principal instance.
  */
 @ThreadSafe
 public class TwitterIdPrincipalSerializer extends AbstractPrincipalSerializer<String> {
 
-    /** Field name of TwitterIdPrincipal */
-    @Nonnull @NotEmpty private static final String TWITTER_TOKEN_FIELD = "Twitter";
-
-    /** Pattern used to determine if input is supported */
-    @Nonnull private static final Pattern JSON_PATTERN = Pattern.compile("^\\{\"Twitter\":.*\\}$");
+    /** Prefix of the compact format, up to the user ID */
+    @Nonnull @NotEmpty private static final String COMPACT_PREFIX = "{\"TW\":";
+    
+    /** Prefix of the nested format written by earlier versions */
+    @Nonnull @NotEmpty private static final String LEGACY_PREFIX = "{\"Twitter\":";
 
-    /** Class logger */
-    @Nonnull private final Logger log = LoggerFactory.getLogger(TwitterIdPrincipalSerializer.class);
+    /** Field name of TwitterIdPrincipal in the nested format */
+    @Nonnull @NotEmpty private static final String TWITTER_TOKEN_FIELD = "Twitter";
+    
+    /** Field name of the user ID inside the nested format */
+    @Nonnull @NotEmpty private static final String USER_ID_FIELD = "userId";
+    
+    /** Largest number of digits of a user ID */
+    private static final int MAX_USER_ID_DIGITS = 19;
+    
+    /** Whether deserialized principals are shared through {@link TwitterIdPrincipal#valueOf(long)} */
+    private boolean internPrincipals;
+    
+    /**
+     * Get whether deserialized principals are shared between sessions
+     * 
+     * @return true if principals are interned
+     */
+    public boolean isInternPrincipals() {
+        return this.internPrincipals;
+    }
+    
+    /**
+     * Set whether deserialized principals are shared between sessions
+     * 
+     * @param flag true to intern principals
+     * @return instance of this class
+     */
+    public TwitterIdPrincipalSerializer setInternPrincipals(final boolean flag) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.internPrincipals = flag;
+        return this;
+    }
 
     /** {@inheritDoc} */
     @Override
@@ -57,45 +89,116 @@ public class TwitterIdPrincipalSerializer extends AbstractPrincipalSerializer<St
     /** {@inheritDoc} */
     @Override
     @Nonnull @NotEmpty public String serialize(@Nonnull final Principal principal) throws IOException {
-        TwitterIdPrincipal twitterPrincipal = (TwitterIdPrincipal) principal;
-        
-        final StringWriter sink = new StringWriter(32);
-        final JsonGenerator gen = getJsonGenerator(sink);
-        gen.writeStartObject()
-            .write(TWITTER_TOKEN_FIELD, twitterPrincipal.serialize())
-            .writeEnd();
-        gen.close();
-        return sink.toString();
+        return new StringBuilder(COMPACT_PREFIX.length() + MAX_USER_ID_DIGITS + 1)
+            .append(COMPACT_PREFIX)
+            .append(((TwitterIdPrincipal) principal).getId())
+            .append('}')
+            .toString();
     }
 
     /** {@inheritDoc} */
     @Override
     public boolean supports(@Nonnull @NotEmpty final String value) {
-        return JSON_PATTERN.matcher(value).matches();
+        return value.startsWith(COMPACT_PREFIX) || value.startsWith(LEGACY_PREFIX);
     }
 
     /** {@inheritDoc} */
     @Override
     @Nullable public TwitterIdPrincipal deserialize(@Nonnull @NotEmpty final String value) throws IOException {
+        if (value.startsWith(COMPACT_PREFIX)) {
+            return newPrincipal(parseCompact(value));
+        }
+        return deserializeLegacy(value);
+    }
+    
+    /**
+     * Build a principal, interning it if configured.
+     * 
+     * @param userId the Twitter user ID
+     * 
+     * @return the principal
+     */
+    @Nonnull private TwitterIdPrincipal newPrincipal(final long userId) {
+        return this.internPrincipals ? TwitterIdPrincipal.valueOf(userId) : new TwitterIdPrincipal(userId);
+    }
+    
+    /**
+     * Read the user ID from the compact format.
+     * 
+     * @param value the serialized principal
+     * 
+     * @return the user ID
+     * 
+     * @throws IOException if the value is not a well formed compact principal
+     */
+    private long parseCompact(@Nonnull final String value) throws IOException {
+        final int start = COMPACT_PREFIX.length();
+        final int end = value.length() - 1;
+        if (end <= start || end - start > MAX_USER_ID_DIGITS || value.charAt(end) != '}') {
+            throw new IOException("Found invalid data structure while parsing TwitterIdPrincipal");
+        }
+        
+        long userId = 0;
+        for (int i = start; i < end; i++) {
+            final int digit = value.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || userId > (Long.MAX_VALUE - digit) / 10) {
+                throw new IOException("Found invalid user ID while parsing TwitterIdPrincipal");
+            }
+            userId = userId * 10 + digit;
+        }
+        return userId;
+    }
+    
+    /**
+     * Read a principal written in the nested format of earlier versions.
+     * 
+     * @param value the serialized principal
+     * 
+     * @return the principal, or null if the value holds no user ID
+     * 
+     * @throws IOException if the value could not be parsed
+     */
+    @Nullable private TwitterIdPrincipal deserializeLegacy(@Nonnull final String value) throws IOException {
+        final JsonObject outer = readObject(value);
+        final JsonString str = outer.getJsonString(TWITTER_TOKEN_FIELD);
+        if (str == null || Strings.isNullOrEmpty(str.getString())) {
+            return null;
+        }
+        
+        final JsonString userId = readObject(str.getString()).getJsonString(USER_ID_FIELD);
+        if (userId == null || Strings.isNullOrEmpty(userId.getString())) {
+            return null;
+        }
+        
+        try {
+            return newPrincipal(Long.parseLong(userId.getString()));
+        } catch (final NumberFormatException e) {
+            throw new IOException("Found invalid user ID while parsing TwitterIdPrincipal", e);
+        }
+    }
+    
+    /**
+     * Parse a JSON object.
+     * 
+     * @param value the JSON text
+     * 
+     * @return the object
+     * 
+     * @throws IOException if the text is not a JSON object
+     */
+    @Nonnull private JsonObject readObject(@Nonnull final String value) throws IOException {
         final JsonReader reader = getJsonReader(new StringReader(value));
         JsonStructure st = null;
         try {
             st = reader.read();
+        } catch (final JsonException e) {
+            throw new IOException("Found invalid data structure while parsing TwitterIdPrincipal", e);
         } finally {
             reader.close();
         }
         if (!(st instanceof JsonObject)) {
             throw new IOException("Found invalid data structure while parsing TwitterIdPrincipal");
         }
-        final JsonString str = ((JsonObject) st).getJsonString(TWITTER_TOKEN_FIELD);
-        if (str != null) {
-            final String serializedTwitterIdPrincipal = str.getString();
-            if (!Strings.isNullOrEmpty(serializedTwitterIdPrincipal)) {
-                Gson gson = new Gson();
-                TwitterIdPrincipal twitterIdPrincipal = gson.fromJson(serializedTwitterIdPrincipal, TwitterIdPrincipal.class);
-                return twitterIdPrincipal;
-            }
-        }
-        return null;
+        return (JsonObject) st;
     }
 }
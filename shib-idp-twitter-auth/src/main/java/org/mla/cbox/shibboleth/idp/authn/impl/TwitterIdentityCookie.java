@@ -0,0 +1,163 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.component.AbstractInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.net.CookieManager;
+import net.shibboleth.utilities.java.support.security.DataExpiredException;
+import net.shibboleth.utilities.java.support.security.DataSealer;
+import net.shibboleth.utilities.java.support.security.DataSealerException;
+
+/**
+ * Issues and reads a cookie that carries the Twitter user ID of the last login, encrypted and
+ * authenticated by a {@link DataSealer} together with its expiration.
+ * 
+ * The cookie lets a user log in again within its lifetime without going to Twitter. It outlives
+ * the IdP session, so the lifetime should be kept short.
+ */
+@ThreadSafe
+public class TwitterIdentityCookie extends AbstractInitializableComponent {
+    /** Default cookie name */
+    @Nonnull @NotEmpty public static final String DEFAULT_COOKIE_NAME = "shib_idp_twitter";
+    
+    /** Prefix of the sealed value, so that values sealed for other purposes are not accepted */
+    @Nonnull @NotEmpty private static final String VALUE_PREFIX = "twitter:";
+    
+    /** Data sealer */
+    @Nullable private DataSealer dataSealer;
+    
+    /** Cookie manager */
+    @Nullable private CookieManager cookieManager;
+    
+    /** Cookie name */
+    @Nonnull @NotEmpty private String cookieName = DEFAULT_COOKIE_NAME;
+    
+    /** Time in milliseconds an issued cookie is accepted */
+    @Duration @Positive private long lifetime = 900000;
+    
+    /** Class logger */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(TwitterIdentityCookie.class);
+    
+    /** Log prefix */
+    @Nonnull private final String logPrefix = getClass().getSimpleName() + ":";
+    
+    /** Constructor */
+    public TwitterIdentityCookie() {
+        
+    }
+    
+    @Nullable public DataSealer getDataSealer() {
+        return this.dataSealer;
+    }
+    
+    @Nullable public CookieManager getCookieManager() {
+        return this.cookieManager;
+    }
+    
+    @Nonnull @NotEmpty public String getCookieName() {
+        return this.cookieName;
+    }
+    
+    public long getLifetime() {
+        return this.lifetime;
+    }
+    
+    public TwitterIdentityCookie setDataSealer(@Nonnull final DataSealer sealer) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.dataSealer = Constraint.isNotNull(sealer, "DataSealer cannot be null");
+        return this;
+    }
+    
+    public TwitterIdentityCookie setCookieManager(@Nonnull final CookieManager manager) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.cookieManager = Constraint.isNotNull(manager, "CookieManager cannot be null");
+        return this;
+    }
+    
+    public TwitterIdentityCookie setCookieName(@Nonnull @NotEmpty final String name) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.cookieName = Constraint.isNotEmpty(name, "Cookie name cannot be null or empty");
+        return this;
+    }
+    
+    public TwitterIdentityCookie setLifetime(@Duration @Positive final long time) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.lifetime = Constraint.isGreaterThan(0, time, "Lifetime must be greater than 0");
+        return this;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        
+        if (this.dataSealer == null || this.cookieManager == null) {
+            throw new ComponentInitializationException(this.logPrefix + " DataSealer and CookieManager are required");
+        }
+    }
+    
+    /**
+     * Set the cookie for a Twitter user on the current response.
+     * 
+     * @param userId the Twitter user ID
+     */
+    public void issue(final long userId) {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        try {
+            this.cookieManager.addCookie(this.cookieName,
+                    this.dataSealer.wrap(VALUE_PREFIX + userId, System.currentTimeMillis() + this.lifetime));
+        } catch (final DataSealerException e) {
+            log.warn("{} Unable to seal identity cookie: {}", this.logPrefix, e.getMessage());
+        }
+    }
+    
+    /**
+     * Read the cookie of the current request. An invalid or expired cookie is removed.
+     * 
+     * @return the Twitter user ID, or {@link TwitterContext#NO_USER_ID} if there is no valid cookie
+     */
+    public long read() {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        final String cookie = this.cookieManager.getCookieValue(this.cookieName, null);
+        if (cookie == null || cookie.isEmpty()) {
+            return TwitterContext.NO_USER_ID;
+        }
+        
+        try {
+            final String value = this.dataSealer.unwrap(cookie);
+            if (value.startsWith(VALUE_PREFIX)) {
+                return Long.parseLong(value.substring(VALUE_PREFIX.length()));
+            }
+            log.warn("{} Identity cookie holds a value sealed for another purpose", this.logPrefix);
+        } catch (final DataExpiredException e) {
+            log.debug("{} Identity cookie has expired", this.logPrefix);
+        } catch (final DataSealerException | NumberFormatException e) {
+            log.warn("{} Invalid identity cookie: {}", this.logPrefix, e.getMessage());
+        }
+        
+        this.cookieManager.unsetCookie(this.cookieName);
+        return TwitterContext.NO_USER_ID;
+    }
+}
@@ -13,19 +13,116 @@
 */
 package org.mla.cbox.shibboleth.idp.authn.impl;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import net.shibboleth.utilities.java.support.annotation.constraint.NonnullElements;
+import net.shibboleth.utilities.java.support.component.AbstractInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
 
 /**
- * Represents a Twitter OAuth web application integration
+ * Represents a Twitter OAuth web application integration.
+ * 
+ * The integration owns the OAuth clients and the HTTP transport, which are built once when
+ * the component is initialized and then shared by every login. Only the request and access
+ * tokens are specific to a single login.
+ * 
+ * Several consumer keys may be configured. Each new login uses the key with the most
+ * rate-limit budget left, and the access token exchange is signed with the key the
+ * request token was issued to.
+ * 
+ * If a concurrency limiter is configured calls beyond its limit are shed with a
+ * {@link TwitterOverloadedException}. If a circuit breaker is configured every call is guarded
+ * by it, and calls refused by an open breaker fail at once with a {@link TwitterUnavailableException}.
+ * 
+ * In {@link Mode#OAUTH2} mode logins use the OAuth 2.0 authorization code flow with PKCE instead,
+ * through a single {@link TwitterOAuth2Client} for the configured client ID. The authorization
+ * request is built without calling Twitter, so the only calls are the code exchange and the user
+ * lookup on the callback. Twitter redirects every login to the same registered redirect URI, which
+ * must be served by {@link TwitterOAuth2CallbackServlet}. Consumer keys are not used in this mode.
  */
-public class TwitterIntegration {
+@ThreadSafe
+public class TwitterIntegration extends AbstractInitializableComponent implements TwitterOAuthClient {
+    /** Default base URL of the Twitter API */
+    @Nonnull public static final String DEFAULT_API_BASE_URL = "https://api.twitter.com";
+    
+    /** Identifier of the key built from {@link #oauthConsumerKey} and {@link #oauthConsumerSecret} */
+    @Nonnull public static final String DEFAULT_CONSUMER_KEY_ID = "default";
+    
+    /** Default URL of the Twitter OAuth 2.0 authorization page */
+    @Nonnull public static final String DEFAULT_AUTHORIZE_URL = "https://twitter.com/i/oauth2/authorize";
+    
+    /** Default scopes requested in OAuth 2.0 mode, the least needed to look up the user */
+    @Nonnull public static final String DEFAULT_OAUTH2_SCOPES = "tweet.read users.read";
+    
+    /** Identifier OAuth 2.0 authorization requests are recorded under in place of a consumer key */
+    @Nonnull public static final String OAUTH2_CLIENT_KEY_ID = "oauth2";
+    
+    /** Flow used to authenticate users with Twitter */
+    public enum Mode {
+        /** OAuth 1.0a three-legged flow, with a request token obtained before the redirect */
+        OAUTH1,
+        /** OAuth 2.0 authorization code flow with PKCE, with nothing to obtain before the redirect */
+        OAUTH2,
+    }
+    
+    /** Flow used to authenticate users */
+    @Nonnull private Mode mode = Mode.OAUTH1;
+    
     /** Twitter OAuth Consumer Key */
-    @Nonnull private String oauthConsumerKey;
+    @Nullable private String oauthConsumerKey;
     
     /** Twitter OAuth Consumer Secret */
-    @Nonnull private String oauthConsumerSecret;
+    @Nullable private String oauthConsumerSecret;
+    
+    /** Twitter OAuth 2.0 client ID */
+    @Nullable private String oauth2ClientId;
+    
+    /** Twitter OAuth 2.0 client secret, null for a public client */
+    @Nullable private String oauth2ClientSecret;
+    
+    /** Space separated OAuth 2.0 scopes */
+    @Nonnull private String oauth2Scopes = DEFAULT_OAUTH2_SCOPES;
+    
+    /** URL of the OAuth 2.0 authorization page */
+    @Nonnull private String authorizeUrl = DEFAULT_AUTHORIZE_URL;
+    
+    /** OAuth 2.0 redirect URI registered for the client */
+    @Nullable private String oauth2RedirectUri;
+    
+    /** Additional consumer keys */
+    @Nonnull @NonnullElements private List<TwitterConsumerKey> consumerKeys = Collections.emptyList();
+    
+    /** HTTP transport used for the OAuth exchanges */
+    @Nullable private TwitterHttpTransport httpTransport;
+    
+    /** Whether the HTTP transport was created by this integration and must be destroyed with it */
+    private boolean ownsHttpTransport;
+    
+    /** Circuit breaker guarding the calls to Twitter, if any */
+    @Nullable private TwitterCircuitBreaker circuitBreaker;
+    
+    /** Adaptive limit on concurrent calls to Twitter, if any */
+    @Nullable private TwitterConcurrencyLimiter concurrencyLimiter;
+    
+    /** Base URL of the Twitter API */
+    @Nonnull private String apiBaseUrl = DEFAULT_API_BASE_URL;
+    
+    /** All consumer keys in use, built during initialization */
+    @Nullable private List<TwitterConsumerKey> activeKeys;
+    
+    /** Shared OAuth client for each key, by key identifier, built during initialization */
+    @Nullable private Map<String, TwitterOAuthClient> oauthClients;
     
     /** Class logger */
     @Nonnull private final Logger log = LoggerFactory.getLogger(TwitterIntegration.class);
@@ -38,21 +135,433 @@ public class TwitterIntegration {
         
     }
     
-    public String getOauthConsumerKey() {
+    @Nonnull public Mode getMode() {
+        return this.mode;
+    }
+    
+    @Nullable public String getOauth2ClientId() {
+        return this.oauth2ClientId;
+    }
+    
+    @Nullable public String getOauth2ClientSecret() {
+        return this.oauth2ClientSecret;
+    }
+    
+    @Nonnull public String getOauth2Scopes() {
+        return this.oauth2Scopes;
+    }
+    
+    @Nonnull public String getAuthorizeUrl() {
+        return this.authorizeUrl;
+    }
+    
+    @Nullable public String getOauth2RedirectUri() {
+        return this.oauth2RedirectUri;
+    }
+    
+    @Nullable public String getOauthConsumerKey() {
         return this.oauthConsumerKey;
     }
     
-    public String getOauthConsumerSecret() {
+    @Nullable public String getOauthConsumerSecret() {
         return this.oauthConsumerSecret;
     }
     
+    @Nonnull @NonnullElements public List<TwitterConsumerKey> getConsumerKeys() {
+        return this.consumerKeys;
+    }
+    
+    @Nullable public TwitterHttpTransport getHttpTransport() {
+        return this.httpTransport;
+    }
+    
+    @Nonnull public String getApiBaseUrl() {
+        return this.apiBaseUrl;
+    }
+    
+    @Nullable public TwitterCircuitBreaker getCircuitBreaker() {
+        return this.circuitBreaker;
+    }
+    
+    @Nullable public TwitterConcurrencyLimiter getConcurrencyLimiter() {
+        return this.concurrencyLimiter;
+    }
+    
+    /**
+     * Set the flow used to authenticate users.
+     * 
+     * @param flowMode the flow
+     * @return instance of this class
+     */
+    public TwitterIntegration setMode(@Nonnull final Mode flowMode) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.mode = Constraint.isNotNull(flowMode, "Mode cannot be null");
+        return this;
+    }
+    
+    public TwitterIntegration setOauth2ClientId(@Nullable final String clientId) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.oauth2ClientId = clientId;
+        return this;
+    }
+    
+    /**
+     * Set the OAuth 2.0 client secret. Leave unset for a public client, which is then only
+     * protected by PKCE.
+     * 
+     * @param secret the client secret
+     * @return instance of this class
+     */
+    public TwitterIntegration setOauth2ClientSecret(@Nullable final String secret) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.oauth2ClientSecret = secret;
+        return this;
+    }
+    
+    public TwitterIntegration setOauth2Scopes(@Nonnull final String scopes) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.oauth2Scopes = Constraint.isNotNull(scopes, "OAuth 2.0 scopes cannot be null");
+        return this;
+    }
+    
+    /**
+     * Set the URL of the OAuth 2.0 authorization page, for example to point at a local stub.
+     * 
+     * @param url the URL
+     * @return instance of this class
+     */
+    public TwitterIntegration setAuthorizeUrl(@Nonnull final String url) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.authorizeUrl = Constraint.isNotNull(url, "Authorize URL cannot be null");
+        return this;
+    }
+    
+    /**
+     * Set the OAuth 2.0 redirect URI, the URL {@link TwitterOAuth2CallbackServlet} is mapped to. It
+     * must be registered for the client exactly as given here.
+     * 
+     * @param uri the redirect URI
+     * @return instance of this class
+     */
+    public TwitterIntegration setOauth2RedirectUri(@Nullable final String uri) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.oauth2RedirectUri = uri;
+        return this;
+    }
+    
     public TwitterIntegration setOauthConsumerKey(String key) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
         this.oauthConsumerKey = key;
         return this;
     }
     
     public TwitterIntegration setOauthConsumerSecret(String secret) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
         this.oauthConsumerSecret = secret;
         return this;
     }
+    
+    /**
+     * Set additional consumer keys to spread logins across. These are used together with
+     * the key set by {@link #setOauthConsumerKey(String)}, if any.
+     * 
+     * @param keys the consumer keys
+     * @return instance of this class
+     */
+    public TwitterIntegration setConsumerKeys(@Nullable final List<TwitterConsumerKey> keys) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.consumerKeys = keys != null ? new ArrayList<>(keys) : Collections.<TwitterConsumerKey>emptyList();
+        return this;
+    }
+    
+    /**
+     * Set the HTTP transport used for the OAuth exchanges. If none is set a transport
+     * with default pool size and timeouts is created.
+     * 
+     * @param transport the HTTP transport
+     * @return instance of this class
+     */
+    public TwitterIntegration setHttpTransport(@Nullable final TwitterHttpTransport transport) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.httpTransport = transport;
+        return this;
+    }
+    
+    /**
+     * Set the base URL of the Twitter API, for example to point at a local stub.
+     * 
+     * @param url the base URL, without trailing slash
+     * @return instance of this class
+     */
+    public TwitterIntegration setApiBaseUrl(@Nonnull final String url) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.apiBaseUrl = url;
+        return this;
+    }
+    
+    /**
+     * Set the circuit breaker guarding the calls to Twitter.
+     * 
+     * @param breaker the circuit breaker, or null to always call Twitter
+     * @return instance of this class
+     */
+    public TwitterIntegration setCircuitBreaker(@Nullable final TwitterCircuitBreaker breaker) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.circuitBreaker = breaker;
+        return this;
+    }
+    
+    /**
+     * Set the adaptive limit on concurrent calls to Twitter.
+     * 
+     * @param limiter the concurrency limiter, or null for no limit beyond the connection pool
+     * @return instance of this class
+     */
+    public TwitterIntegration setConcurrencyLimiter(@Nullable final TwitterConcurrencyLimiter limiter) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.concurrencyLimiter = limiter;
+        return this;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        
+        if (this.mode == Mode.OAUTH2) {
+            initializeOAuth2();
+            return;
+        }
+        
+        final List<TwitterConsumerKey> keys = new ArrayList<>(this.consumerKeys.size() + 1);
+        if (this.oauthConsumerKey != null) {
+            keys.add(new TwitterConsumerKey()
+                .setId(DEFAULT_CONSUMER_KEY_ID)
+                .setOauthConsumerKey(this.oauthConsumerKey)
+                .setOauthConsumerSecret(this.oauthConsumerSecret));
+        }
+        keys.addAll(this.consumerKeys);
+        if (keys.isEmpty()) {
+            throw new ComponentInitializationException(this.logPrefix + " At least one OAuth consumer key is required");
+        }
+        
+        initializeHttpTransport();
+        
+        final Map<String, TwitterOAuthClient> clients = new HashMap<>();
+        for (final TwitterConsumerKey key : keys) {
+            if (!key.isInitialized()) {
+                key.initialize();
+            }
+            if (clients.put(key.getId(), new TwitterOAuth1Client(this.httpTransport, key, this.apiBaseUrl)) != null) {
+                throw new ComponentInitializationException(this.logPrefix + " Duplicate consumer key identifier "
+                        + key.getId());
+            }
+            log.debug("{} Initialized OAuth client for consumer key {} ({})", this.logPrefix, key.getId(),
+                    key.getOauthConsumerKey());
+        }
+        
+        this.activeKeys = Collections.unmodifiableList(keys);
+        this.oauthClients = clients;
+    }
+    
+    /**
+     * Build the single OAuth 2.0 client used in {@link Mode#OAUTH2} mode.
+     * 
+     * @throws ComponentInitializationException if no client ID or redirect URI is configured
+     */
+    private void initializeOAuth2() throws ComponentInitializationException {
+        if (this.oauth2ClientId == null || this.oauth2ClientId.isEmpty()) {
+            throw new ComponentInitializationException(this.logPrefix + " An OAuth 2.0 client ID is required");
+        }
+        if (this.oauth2RedirectUri == null || this.oauth2RedirectUri.isEmpty()) {
+            throw new ComponentInitializationException(this.logPrefix + " An OAuth 2.0 redirect URI is required");
+        }
+        if (this.oauthConsumerKey != null || !this.consumerKeys.isEmpty()) {
+            log.warn("{} Consumer keys are not used in OAuth 2.0 mode", this.logPrefix);
+        }
+        
+        initializeHttpTransport();
+        
+        this.activeKeys = Collections.emptyList();
+        this.oauthClients = Collections.<String, TwitterOAuthClient>singletonMap(OAUTH2_CLIENT_KEY_ID,
+                new TwitterOAuth2Client(this.httpTransport, OAUTH2_CLIENT_KEY_ID, this.oauth2ClientId,
+                        this.oauth2ClientSecret, this.oauth2Scopes, this.authorizeUrl, this.oauth2RedirectUri,
+                        this.apiBaseUrl));
+        log.debug("{} Initialized OAuth 2.0 client {}", this.logPrefix, this.oauth2ClientId);
+    }
+    
+    /**
+     * Create an HTTP transport with default settings if none was set.
+     * 
+     * @throws ComponentInitializationException if the transport could not be initialized
+     */
+    private void initializeHttpTransport() throws ComponentInitializationException {
+        if (this.httpTransport == null) {
+            this.httpTransport = new TwitterHttpTransport();
+            this.httpTransport.initialize();
+            this.ownsHttpTransport = true;
+        }
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    protected void doDestroy() {
+        if (this.ownsHttpTransport) {
+            this.httpTransport.destroy();
+        }
+        super.doDestroy();
+    }
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * In {@link Mode#OAUTH2} mode the authorization request is built locally and this never fails.
+     */
+    @Override
+    @Nonnull public TwitterRequestToken getRequestToken(@Nonnull final String callbackUrl)
+            throws TwitterOAuthException {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        
+        if (this.mode == Mode.OAUTH2) {
+            return this.oauthClients.get(OAUTH2_CLIENT_KEY_ID).getRequestToken(callbackUrl);
+        }
+        
+        final TwitterOAuthClient client = this.oauthClients.get(selectKey().getId());
+        return guard(new OAuthCall<TwitterRequestToken>() {
+            @Override
+            public TwitterRequestToken call() throws TwitterOAuthException {
+                return client.getRequestToken(callbackUrl);
+            }
+        });
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    @Nonnull public TwitterAccessToken getAccessToken(@Nonnull final TwitterRequestToken requestToken,
+            @Nonnull final String verifier) throws TwitterOAuthException {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        
+        final TwitterOAuthClient client = this.oauthClients.get(requestToken.getConsumerKeyId());
+        if (client == null) {
+            throw new TwitterOAuthException("Request token was issued to unknown consumer key "
+                    + requestToken.getConsumerKeyId());
+        }
+        return guard(new OAuthCall<TwitterAccessToken>() {
+            @Override
+            public TwitterAccessToken call() throws TwitterOAuthException {
+                return client.getAccessToken(requestToken, verifier);
+            }
+        });
+    }
+    
+    /**
+     * Select the consumer key with the most rate-limit budget left.
+     * 
+     * @return the key
+     * 
+     * @throws TwitterUnavailableException if no key has any budget left
+     */
+    @Nonnull private TwitterConsumerKey selectKey() throws TwitterUnavailableException {
+        TwitterConsumerKey best = null;
+        double bestBudget = 0;
+        for (final TwitterConsumerKey key : this.activeKeys) {
+            final double remaining = key.getRemainingBudget();
+            if (best == null || remaining > bestBudget) {
+                best = key;
+                bestBudget = remaining;
+            }
+        }
+        
+        if (bestBudget < 1) {
+            throw new TwitterUnavailableException("Rate-limit budget of all consumer keys is exhausted");
+        }
+        return best;
+    }
+    
+    /**
+     * Make a call to Twitter through the concurrency limiter and circuit breaker, if any.
+     * 
+     * @param <T> the result type
+     * @param call the call
+     * 
+     * @return the result of the call
+     * 
+     * @throws TwitterOAuthException if the call failed, was shed or was refused by the breaker
+     */
+    @Nonnull private <T> T guard(@Nonnull final OAuthCall<T> call) throws TwitterOAuthException {
+        final TwitterConcurrencyLimiter limiter = this.concurrencyLimiter;
+        final TwitterCircuitBreaker breaker = this.circuitBreaker;
+        
+        if (limiter != null) {
+            try {
+                if (!limiter.tryAcquire()) {
+                    throw new TwitterOverloadedException("Too many concurrent calls to Twitter, call shed");
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TwitterOAuthException("Interrupted while waiting to call Twitter", e);
+            }
+        }
+        
+        if (breaker != null && !breaker.tryAcquirePermission()) {
+            if (limiter != null) {
+                limiter.abandon();
+            }
+            throw new TwitterUnavailableException("Circuit breaker is open, not calling Twitter");
+        }
+        
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            final T result = call.call();
+            failed = false;
+            return result;
+        } catch (final TwitterOAuthException e) {
+            failed = isUpstreamFailure(e);
+            throw e;
+        } finally {
+            final long elapsedNanos = System.nanoTime() - start;
+            final long elapsed = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+            if (breaker != null) {
+                if (failed) {
+                    breaker.onFailure(elapsed);
+                } else {
+                    breaker.onSuccess(elapsed);
+                }
+            }
+            if (limiter != null) {
+                limiter.release(elapsedNanos, failed);
+            }
+        }
+    }
+    
+    /**
+     * Whether a failed call indicates a problem with Twitter rather than with the request,
+     * such as a rejected verifier.
+     * 
+     * @param e the exception
+     * 
+     * @return true iff the failure is Twitter's or the network's
+     */
+    private static boolean isUpstreamFailure(@Nonnull final TwitterOAuthException e) {
+        final int status = e.getStatusCode();
+        return status < 0 || status >= 500 || status == 429;
+    }
+    
+    /**
+     * A call to Twitter.
+     * 
+     * @param <T> the result type
+     */
+    private interface OAuthCall<T> {
+        
+        /**
+         * Make the call.
+         * 
+         * @return the result
+         * 
+         * @throws TwitterOAuthException if the call failed
+         */
+        @Nonnull T call() throws TwitterOAuthException;
+    }
 }
@@ -0,0 +1,404 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import net.shibboleth.utilities.java.support.component.AbstractInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+
+/**
+ * Metrics of the Twitter login flow, recorded into a Dropwizard {@link MetricRegistry}.
+ * 
+ * For each call to Twitter a timer records the latency of every call, a gauge the number of
+ * calls in flight and a counter per outcome, such as success, timeout or the HTTP status
+ * returned by Twitter. A timer records the time users spend at Twitter between the redirect
+ * and the callback, and counters record callbacks rejected before calling Twitter.
+ * 
+ * A {@link TwitterCircuitBreaker} configured with these metrics reports its state in a gauge,
+ * 0 while closed, 1 while open and 2 while half-open, the calls it refused in another, and
+ * counts its transitions into each state.
+ * 
+ * The metrics can be published over JMX by setting a JMX domain. Actions without metrics
+ * configured skip all recording.
+ */
+@ThreadSafe
+public class TwitterMetrics extends AbstractInitializableComponent {
+    
+    /** Outcome of a successful call */
+    public static final String SUCCESS = "success";
+    
+    /** Outcome of a call that did not complete in time */
+    public static final String TIMEOUT = "timeout";
+    
+    /** Outcome of a call refused by the executor */
+    public static final String REJECTED = "rejected";
+    
+    /** Outcome of a call refused by the concurrency limiter */
+    public static final String OVERLOADED = "overloaded";
+    
+    /** Outcome of a call refused by the circuit breaker or without a response */
+    public static final String UNAVAILABLE = "unavailable";
+    
+    /** Outcome of a call that failed without an HTTP status */
+    public static final String ERROR = "error";
+    
+    /** Outcome of a call whose result could not be stored */
+    public static final String STORE_ERROR = "storeError";
+    
+    /** Callback outcome when the flow has no TwitterContext */
+    public static final String MISSING_CONTEXT = "missingContext";
+    
+    /** Callback outcome when the user declined to authorize the application */
+    public static final String DENIED = "denied";
+    
+    /** Callback outcome when the callback has no OAuth verifier */
+    public static final String MISSING_VERIFIER = "missingVerifier";
+    
+    /** Callback outcome when the callback has no OAuth token */
+    public static final String MISSING_TOKEN = "missingToken";
+    
+    /** Callback outcome when the OAuth token of the callback is not the one issued to the flow */
+    public static final String TOKEN_MISMATCH = "tokenMismatch";
+    
+    /** Callback outcome when the OAuth verifier of the callback was already used */
+    public static final String REPLAYED = "replayed";
+    
+    /** Callback outcome when no request token matches the callback */
+    public static final String MISSING_REQUEST_TOKEN = "missingRequestToken";
+    
+    /** Calls to Twitter */
+    public enum Call {
+        /** Request token call at the start of a login */
+        REQUEST_TOKEN("requestToken"),
+        /** Access token call on the callback */
+        ACCESS_TOKEN("accessToken");
+        
+        /** Name of the call within metric names */
+        @Nonnull private final String metricName;
+        
+        /**
+         * Constructor
+         * 
+         * @param name name of the call within metric names
+         */
+        private Call(@Nonnull final String name) {
+            this.metricName = name;
+        }
+    }
+    
+    /** Registry the metrics are recorded into */
+    @Nullable private MetricRegistry metricRegistry;
+    
+    /** Prefix of the metric names */
+    @Nonnull private String prefix = "org.mla.cbox.shibboleth.idp.authn.twitter";
+    
+    /** JMX domain the metrics are published in, or null to not publish them */
+    @Nullable private String jmxDomain;
+    
+    /** Metrics of each call, indexed by {@link Call#ordinal()} */
+    @Nullable private CallMetrics[] calls;
+    
+    /** Time users spend at Twitter */
+    @Nullable private Timer redirectTimer;
+    
+    /** Counters of rejected callbacks by outcome */
+    @Nullable private OutcomeCounters callbackOutcomes;
+    
+    /** Prefix of the circuit breaker metric names */
+    @Nullable private String circuitBreakerName;
+    
+    /** Counters of circuit breaker transitions, indexed by the ordinal of the state entered */
+    @Nullable private volatile Counter[] circuitBreakerTransitions;
+    
+    /** JMX reporter, if the metrics are published */
+    @Nullable private JmxReporter jmxReporter;
+    
+    /** Log prefix */
+    @Nonnull private final String logPrefix = getClass().getSimpleName() + ":";
+    
+    /** Constructor */
+    public TwitterMetrics() {
+        
+    }
+    
+    public TwitterMetrics setMetricRegistry(@Nonnull final MetricRegistry registry) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.metricRegistry = registry;
+        return this;
+    }
+    
+    public TwitterMetrics setPrefix(@Nonnull final String metricPrefix) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.prefix = metricPrefix;
+        return this;
+    }
+    
+    public TwitterMetrics setJmxDomain(@Nullable final String domain) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.jmxDomain = domain;
+        return this;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        
+        if (this.metricRegistry == null) {
+            throw new ComponentInitializationException(this.logPrefix + " MetricRegistry cannot be null");
+        }
+        if (this.prefix == null || this.prefix.isEmpty()) {
+            throw new ComponentInitializationException(this.logPrefix + " Prefix cannot be null or empty");
+        }
+        
+        final Call[] values = Call.values();
+        this.calls = new CallMetrics[values.length];
+        for (final Call call : values) {
+            this.calls[call.ordinal()] = new CallMetrics(MetricRegistry.name(this.prefix, call.metricName));
+        }
+        this.redirectTimer = this.metricRegistry.timer(MetricRegistry.name(this.prefix, "redirect"));
+        this.callbackOutcomes = new OutcomeCounters(MetricRegistry.name(this.prefix, "callback"));
+        this.circuitBreakerName = MetricRegistry.name(this.prefix, "circuitBreaker");
+        
+        if (this.jmxDomain != null) {
+            this.jmxReporter = JmxReporter.forRegistry(this.metricRegistry).inDomain(this.jmxDomain).build();
+            this.jmxReporter.start();
+        }
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    protected void doDestroy() {
+        if (this.jmxReporter != null) {
+            this.jmxReporter.stop();
+            this.jmxReporter = null;
+        }
+        if (this.calls != null) {
+            for (final CallMetrics call : this.calls) {
+                this.metricRegistry.remove(call.inFlightName);
+            }
+        }
+        if (this.circuitBreakerTransitions != null) {
+            this.metricRegistry.remove(MetricRegistry.name(this.circuitBreakerName, "state"));
+            this.metricRegistry.remove(MetricRegistry.name(this.circuitBreakerName, "refused"));
+        }
+        super.doDestroy();
+    }
+    
+    /**
+     * Record the start of a call to Twitter.
+     * 
+     * @param call the call
+     * 
+     * @return the start time, to pass to {@link #callEnded(Call, long, String)}
+     */
+    public long callStarted(@Nonnull final Call call) {
+        this.calls[call.ordinal()].inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+    
+    /**
+     * Record the end of a call to Twitter.
+     * 
+     * @param call the call
+     * @param startNanos the start time returned by {@link #callStarted(Call)}
+     * @param outcome the outcome of the call
+     */
+    public void callEnded(@Nonnull final Call call, final long startNanos, @Nonnull final String outcome) {
+        final CallMetrics metrics = this.calls[call.ordinal()];
+        metrics.timer.update(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        metrics.inFlight.decrementAndGet();
+        metrics.outcomes.increment(outcome);
+    }
+    
+    /**
+     * Record the time a user spent at Twitter.
+     * 
+     * @param redirectTime the time in milliseconds at which the user was sent to Twitter
+     */
+    public void redirectCompleted(final long redirectTime) {
+        final long duration = System.currentTimeMillis() - redirectTime;
+        if (duration >= 0) {
+            this.redirectTimer.update(duration, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * Record a callback rejected before calling Twitter.
+     * 
+     * @param outcome the reason the callback was rejected
+     */
+    public void callbackRejected(@Nonnull final String outcome) {
+        this.callbackOutcomes.increment(outcome);
+    }
+    
+    /**
+     * Start reporting the state of a circuit breaker, replacing any breaker reported before.
+     * 
+     * @param breaker the circuit breaker
+     */
+    public void circuitBreakerStarted(@Nonnull final TwitterCircuitBreaker breaker) {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        
+        final TwitterCircuitBreaker.State[] states = TwitterCircuitBreaker.State.values();
+        final Counter[] transitions = new Counter[states.length];
+        for (final TwitterCircuitBreaker.State state : states) {
+            transitions[state.ordinal()] =
+                    this.metricRegistry.counter(MetricRegistry.name(this.circuitBreakerName, metricName(state)));
+        }
+        this.circuitBreakerTransitions = transitions;
+        
+        final String stateName = MetricRegistry.name(this.circuitBreakerName, "state");
+        this.metricRegistry.remove(stateName);
+        this.metricRegistry.register(stateName, new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return breaker.getState().ordinal();
+            }
+        });
+        final String refusedName = MetricRegistry.name(this.circuitBreakerName, "refused");
+        this.metricRegistry.remove(refusedName);
+        this.metricRegistry.register(refusedName, new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return breaker.getRefusedCalls();
+            }
+        });
+    }
+    
+    /**
+     * Record a transition of the circuit breaker.
+     * 
+     * @param state the state entered
+     */
+    public void circuitBreakerTransitioned(@Nonnull final TwitterCircuitBreaker.State state) {
+        final Counter[] transitions = this.circuitBreakerTransitions;
+        if (transitions != null) {
+            transitions[state.ordinal()].inc();
+        }
+    }
+    
+    /**
+     * Get the name of a circuit breaker state within metric names.
+     * 
+     * @param state the state
+     * 
+     * @return the name
+     */
+    @Nonnull private static String metricName(@Nonnull final TwitterCircuitBreaker.State state) {
+        switch (state) {
+            case OPEN:
+                return "open";
+            case HALF_OPEN:
+                return "halfOpen";
+            default:
+                return "closed";
+        }
+    }
+    
+    /**
+     * Get the outcome of a failed call.
+     * 
+     * @param e the failure
+     * 
+     * @return the outcome
+     */
+    @Nonnull public static String outcomeOf(@Nonnull final TwitterOAuthException e) {
+        if (e instanceof TwitterOverloadedException) {
+            return OVERLOADED;
+        } else if (e instanceof TwitterUnavailableException) {
+            return UNAVAILABLE;
+        } else if (e.getStatusCode() > 0) {
+            return "status" + e.getStatusCode();
+        }
+        return ERROR;
+    }
+    
+    /** Counters of one kind of event by outcome, created as outcomes are first seen */
+    private final class OutcomeCounters {
+        /** Prefix of the counter names */
+        @Nonnull private final String name;
+        
+        /** Counters by outcome */
+        @Nonnull private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+        
+        /**
+         * Constructor
+         * 
+         * @param counterName prefix of the counter names
+         */
+        OutcomeCounters(@Nonnull final String counterName) {
+            this.name = counterName;
+        }
+        
+        /**
+         * Increment the counter of an outcome.
+         * 
+         * @param outcome the outcome
+         */
+        void increment(@Nonnull final String outcome) {
+            Counter counter = this.counters.get(outcome);
+            if (counter == null) {
+                counter = metricRegistry.counter(MetricRegistry.name(this.name, outcome));
+                this.counters.putIfAbsent(outcome, counter);
+            }
+            counter.inc();
+        }
+    }
+    
+    /** Metrics of one call to Twitter */
+    private final class CallMetrics {
+        /** Latency of the calls */
+        @Nonnull private final Timer timer;
+        
+        /** Number of calls in flight */
+        @Nonnull private final AtomicInteger inFlight = new AtomicInteger();
+        
+        /** Name of the in-flight gauge */
+        @Nonnull private final String inFlightName;
+        
+        /** Counters of the calls by outcome */
+        @Nonnull private final OutcomeCounters outcomes;
+        
+        /**
+         * Constructor
+         * 
+         * @param name prefix of the metric names
+         */
+        CallMetrics(@Nonnull final String name) {
+            this.timer = metricRegistry.timer(name);
+            this.outcomes = new OutcomeCounters(name);
+            this.inFlightName = MetricRegistry.name(name, "inFlight");
+            metricRegistry.remove(this.inFlightName);
+            metricRegistry.register(this.inFlightName, new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    return inFlight.get();
+                }
+            });
+        }
+    }
+}
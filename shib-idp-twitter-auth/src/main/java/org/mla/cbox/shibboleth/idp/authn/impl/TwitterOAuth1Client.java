@@ -0,0 +1,157 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import org.apache.http.Consts;
+import org.apache.http.HttpStatus;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.message.BasicNameValuePair;
+
+/**
+ * OAuth 1.0a client performing the two signed POSTs of the three-legged flow for one
+ * consumer key over a shared {@link TwitterHttpTransport}.
+ */
+@ThreadSafe
+public class TwitterOAuth1Client implements TwitterOAuthClient {
+    /** Path of the request token endpoint */
+    @Nonnull private static final String REQUEST_TOKEN_PATH = "/oauth/request_token";
+    
+    /** Path of the access token endpoint */
+    @Nonnull private static final String ACCESS_TOKEN_PATH = "/oauth/access_token";
+    
+    /** Path of the authentication page */
+    @Nonnull private static final String AUTHENTICATE_PATH = "/oauth/authenticate?oauth_token=";
+    
+    /** HTTP transport */
+    @Nonnull private final TwitterHttpTransport transport;
+    
+    /** Consumer key the requests are signed with and accounted to */
+    @Nonnull private final TwitterConsumerKey consumerKey;
+    
+    /** Request token endpoint URL */
+    @Nonnull private final String requestTokenUrl;
+    
+    /** Access token endpoint URL */
+    @Nonnull private final String accessTokenUrl;
+    
+    /** Authentication page URL, missing only the token */
+    @Nonnull private final String authenticateUrlPrefix;
+    
+    /**
+     * Constructor
+     * 
+     * @param transport the HTTP transport
+     * @param consumerKey the initialized consumer key
+     * @param apiBaseUrl the base URL of the Twitter API, e.g. https://api.twitter.com
+     */
+    public TwitterOAuth1Client(@Nonnull final TwitterHttpTransport transport,
+            @Nonnull final TwitterConsumerKey consumerKey, @Nonnull final String apiBaseUrl) {
+        this.transport = transport;
+        this.consumerKey = consumerKey;
+        this.requestTokenUrl = apiBaseUrl + REQUEST_TOKEN_PATH;
+        this.accessTokenUrl = apiBaseUrl + ACCESS_TOKEN_PATH;
+        this.authenticateUrlPrefix = apiBaseUrl + AUTHENTICATE_PATH;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    @Nonnull public TwitterRequestToken getRequestToken(@Nonnull final String callbackUrl)
+            throws TwitterOAuthException {
+        final Map<String, String> response = post(this.requestTokenUrl, null, null,
+                new BasicNameValuePair("oauth_callback", callbackUrl));
+        
+        /* An OAuth 1.0 provider would ignore the callback and send the user elsewhere */
+        if (!"true".equals(response.get("oauth_callback_confirmed"))) {
+            throw new TwitterOAuthException("Request token response did not confirm the callback");
+        }
+        
+        final String token = response.get("oauth_token");
+        return new TwitterRequestToken(token, response.get("oauth_token_secret"),
+                this.authenticateUrlPrefix + TwitterOAuthSigner.percentEncode(token), this.consumerKey.getId());
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    @Nonnull public TwitterAccessToken getAccessToken(@Nonnull final TwitterRequestToken requestToken,
+            @Nonnull final String verifier) throws TwitterOAuthException {
+        final Map<String, String> response = post(this.accessTokenUrl, requestToken.getToken(),
+                requestToken.getTokenSecret(), new BasicNameValuePair("oauth_verifier", verifier));
+        
+        final String userId = response.get("user_id");
+        if (userId == null) {
+            throw new TwitterOAuthException("Access token response did not include a user ID");
+        }
+        
+        try {
+            return new TwitterAccessToken(response.get("oauth_token"), response.get("oauth_token_secret"),
+                    Long.parseLong(userId), response.get("screen_name"));
+        } catch (final NumberFormatException e) {
+            throw new TwitterOAuthException("Access token response included an invalid user ID", e);
+        }
+    }
+    
+    /**
+     * Sign and POST an OAuth request and decode the form encoded response.
+     * 
+     * @param url the endpoint URL
+     * @param token the OAuth token, or null
+     * @param tokenSecret the OAuth token secret, or null
+     * @param parameter the single form parameter of the request
+     * 
+     * @return the decoded response parameters
+     * 
+     * @throws TwitterOAuthException if the request failed or Twitter did not answer 200
+     */
+    @Nonnull private Map<String, String> post(@Nonnull final String url, @Nullable final String token,
+            @Nullable final String tokenSecret, @Nonnull final NameValuePair parameter)
+                    throws TwitterOAuthException {
+        
+        final List<NameValuePair> form = Collections.singletonList(parameter);
+        final String authorization =
+                this.consumerKey.getSigner().authorizationHeader("POST", url, token, tokenSecret, form);
+        
+        this.consumerKey.consume();
+        final TwitterHttpTransport.Response response;
+        try {
+            response = this.transport.post(url, authorization, form);
+        } catch (final IOException e) {
+            throw new TwitterOAuthException("Error calling " + url + ": " + e.getMessage(), e);
+        }
+        this.consumerKey.recordResponse(response);
+        
+        if (response.getStatusCode() != HttpStatus.SC_OK) {
+            throw new TwitterOAuthException(response.getBody(), response.getStatusCode());
+        }
+        
+        final Map<String, String> values = new HashMap<>();
+        for (final NameValuePair pair : URLEncodedUtils.parse(response.getBody(), Consts.UTF_8)) {
+            values.put(pair.getName(), pair.getValue());
+        }
+        
+        if (values.get("oauth_token") == null || values.get("oauth_token_secret") == null) {
+            throw new TwitterOAuthException("Response from " + url + " did not include a token");
+        }
+        
+        return values;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.IOException;
+import javax.annotation.Nonnull;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves the fixed OAuth 2.0 redirect URI registered with Twitter and sends the browser on to the
+ * flow execution of its login.
+ *
+ * Twitter redirects every login to the same registered URI, while the flow execution URL of each
+ * login differs. {@link TwitterOAuth2Client} carries that URL in the state of the authorization
+ * request, and this servlet redirects to it with the query string Twitter sent, so that
+ * {@link ProcessRedirectFromTwitter} receives the state, code and error parameters. Only URLs on
+ * the host the request came in on are followed, as {@link InitializeTwitterContext} builds them.
+ *
+ * Map the servlet in the web.xml of the IdP to the path of the redirect URI, for example
+ * /Authn/Twitter/OAuth2.
+ */
+public class TwitterOAuth2CallbackServlet extends HttpServlet {
+    /** Serial version UID */
+    private static final long serialVersionUID = 1L;
+
+    /** Class logger */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(TwitterOAuth2CallbackServlet.class);
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doGet(final HttpServletRequest request, final HttpServletResponse response)
+            throws IOException {
+        final String returnUrl = TwitterOAuth2Client.getReturnUrl(request.getParameter("state"));
+        if (returnUrl == null) {
+            log.info("No flow execution URL in the state of the OAuth 2.0 callback");
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        /* Never redirect off this host, whatever the state says */
+        final String origin = request.getScheme() + "://" + request.getServerName() + '/';
+        if (!returnUrl.startsWith(origin)) {
+            log.warn("Refusing to redirect the OAuth 2.0 callback to {}", returnUrl);
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        response.setHeader("Cache-Control", "no-store");
+        response.sendRedirect(returnUrl + (returnUrl.indexOf('?') < 0 ? '?' : '&') + request.getQueryString());
+    }
+}
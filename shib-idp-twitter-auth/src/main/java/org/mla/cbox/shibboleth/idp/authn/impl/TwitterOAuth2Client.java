@@ -0,0 +1,243 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import org.apache.http.HttpStatus;
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * OAuth 2.0 client for the authorization code flow with PKCE over a shared {@link TwitterHttpTransport}.
+ * 
+ * The authorization request is built locally, so obtaining the "request token" makes no call to
+ * Twitter. Its token is the state of the request and its secret the PKCE code verifier; only
+ * the S256 challenge of the verifier leaves the IdP. On the callback the code is exchanged for a
+ * bearer token, which is then used once to look up the user ID and username.
+ * 
+ * Twitter only accepts a redirect URI registered for the client, so every authorization request
+ * names the same fixed redirect URI, served by {@link TwitterOAuth2CallbackServlet}. The URL of the
+ * login's own flow execution changes with every login and travels in the state instead: the state
+ * is a random value followed by the encoded return URL, see {@link #getReturnUrl(String)}.
+ */
+@ThreadSafe
+public class TwitterOAuth2Client implements TwitterOAuthClient {
+    /** Path of the token endpoint */
+    @Nonnull private static final String TOKEN_PATH = "/2/oauth2/token";
+    
+    /** Path of the endpoint describing the authenticated user */
+    @Nonnull private static final String USERS_ME_PATH = "/2/users/me";
+    
+    /** Separates the random part of the state from the encoded return URL */
+    private static final char STATE_SEPARATOR = '.';
+    
+    /** Number of random bytes in the state and the code verifier */
+    private static final int RANDOM_BYTES = 32;
+    
+    /** Encoding of the state, verifier and challenge */
+    @Nonnull private static final BaseEncoding BASE64_URL = BaseEncoding.base64Url().omitPadding();
+    
+    /** Source of states and code verifiers */
+    @Nonnull private static final SecureRandom RANDOM = new SecureRandom();
+    
+    /** HTTP transport */
+    @Nonnull private final TwitterHttpTransport transport;
+    
+    /** OAuth 2.0 client ID */
+    @Nonnull private final String clientId;
+    
+    /** Value of the Authorization header of the code exchange, or null for a public client */
+    @Nullable private final String clientAuthorization;
+    
+    /** Identifier the requests are recorded under in place of a consumer key */
+    @Nonnull private final String keyId;
+    
+    /** Redirect URI registered for the client */
+    @Nonnull private final String redirectUri;
+    
+    /** Authorization URL up to the state, which is appended last */
+    @Nonnull private final String authorizeUrlPrefix;
+    
+    /** Token endpoint URL */
+    @Nonnull private final String tokenUrl;
+    
+    /** Authenticated user endpoint URL */
+    @Nonnull private final String usersMeUrl;
+    
+    /**
+     * Constructor
+     * 
+     * @param transport the HTTP transport
+     * @param keyId identifier the requests are recorded under
+     * @param clientId the OAuth 2.0 client ID
+     * @param clientSecret the OAuth 2.0 client secret of a confidential client, or null for a public client
+     * @param scopes the space separated scopes requested
+     * @param authorizeUrl the URL of the Twitter authorization page
+     * @param redirectUri the redirect URI registered for the client
+     * @param apiBaseUrl the base URL of the Twitter API, e.g. https://api.twitter.com
+     */
+    public TwitterOAuth2Client(@Nonnull final TwitterHttpTransport transport, @Nonnull final String keyId,
+            @Nonnull final String clientId, @Nullable final String clientSecret, @Nonnull final String scopes,
+            @Nonnull final String authorizeUrl, @Nonnull final String redirectUri, @Nonnull final String apiBaseUrl) {
+        this.transport = transport;
+        this.keyId = keyId;
+        this.clientId = clientId;
+        this.clientAuthorization = clientSecret != null
+                ? "Basic " + BaseEncoding.base64().encode((clientId + ':' + clientSecret).getBytes(StandardCharsets.UTF_8))
+                : null;
+        this.authorizeUrlPrefix = authorizeUrl + (authorizeUrl.indexOf('?') < 0 ? '?' : '&')
+                + "response_type=code&client_id=" + TwitterOAuthSigner.percentEncode(clientId)
+                + "&scope=" + TwitterOAuthSigner.percentEncode(scopes)
+                + "&redirect_uri=" + TwitterOAuthSigner.percentEncode(redirectUri)
+                + "&code_challenge_method=S256";
+        this.redirectUri = redirectUri;
+        this.tokenUrl = apiBaseUrl + TOKEN_PATH;
+        this.usersMeUrl = apiBaseUrl + USERS_ME_PATH;
+    }
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * The callback URL is where {@link TwitterOAuth2CallbackServlet} sends the browser back to, and
+     * is carried in the state. Twitter itself redirects to the registered redirect URI.
+     */
+    @Override
+    @Nonnull public TwitterRequestToken getRequestToken(@Nonnull final String callbackUrl) {
+        final String state = randomString() + STATE_SEPARATOR
+                + BASE64_URL.encode(callbackUrl.getBytes(StandardCharsets.UTF_8));
+        final String codeVerifier = randomString();
+        final String codeChallenge =
+                BASE64_URL.encode(Hashing.sha256().hashString(codeVerifier, StandardCharsets.US_ASCII).asBytes());
+        
+        final String url = new StringBuilder(this.authorizeUrlPrefix.length() + state.length() + 64)
+            .append(this.authorizeUrlPrefix)
+            .append("&code_challenge=").append(codeChallenge)
+            .append("&state=").append(state)
+            .toString();
+        
+        return new TwitterRequestToken(state, codeVerifier, url, this.keyId);
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    @Nonnull public TwitterAccessToken getAccessToken(@Nonnull final TwitterRequestToken requestToken,
+            @Nonnull final String verifier) throws TwitterOAuthException {
+        if (requestToken.getTokenSecret() == null) {
+            throw new TwitterOAuthException("Authorization request lacks its code verifier");
+        }
+        
+        final List<NameValuePair> form = new ArrayList<>(5);
+        form.add(new BasicNameValuePair("grant_type", "authorization_code"));
+        form.add(new BasicNameValuePair("code", verifier));
+        form.add(new BasicNameValuePair("redirect_uri", this.redirectUri));
+        form.add(new BasicNameValuePair("code_verifier", requestToken.getTokenSecret()));
+        form.add(new BasicNameValuePair("client_id", this.clientId));
+        
+        final TwitterHttpTransport.Response tokenResponse;
+        try {
+            tokenResponse = this.transport.post(this.tokenUrl, this.clientAuthorization, form);
+        } catch (final IOException e) {
+            throw new TwitterOAuthException("Error calling " + this.tokenUrl + ": " + e.getMessage(), e);
+        }
+        final String accessToken = parse(this.tokenUrl, tokenResponse).getString("access_token", null);
+        if (accessToken == null) {
+            throw new TwitterOAuthException("Response from " + this.tokenUrl + " did not include a token");
+        }
+        
+        final TwitterHttpTransport.Response userResponse;
+        try {
+            userResponse = this.transport.get(this.usersMeUrl, "Bearer " + accessToken);
+        } catch (final IOException e) {
+            throw new TwitterOAuthException("Error calling " + this.usersMeUrl + ": " + e.getMessage(), e);
+        }
+        final JsonObject user = parse(this.usersMeUrl, userResponse).getJsonObject("data");
+        final String userId = user != null ? user.getString("id", null) : null;
+        if (userId == null) {
+            throw new TwitterOAuthException("Response from " + this.usersMeUrl + " did not include a user ID");
+        }
+        
+        try {
+            return new TwitterAccessToken(accessToken, null, Long.parseLong(userId), user.getString("username", null));
+        } catch (final NumberFormatException e) {
+            throw new TwitterOAuthException("Response from " + this.usersMeUrl + " included an invalid user ID", e);
+        }
+    }
+    
+    /**
+     * Get the URL of the flow execution an authorization request was made for.
+     * 
+     * @param state the state of the authorization request
+     * 
+     * @return the callback URL the request token was obtained with, or null if the state carries none
+     */
+    @Nullable public static String getReturnUrl(@Nullable final String state) {
+        final int separator = state != null ? state.indexOf(STATE_SEPARATOR) : -1;
+        if (separator < 0) {
+            return null;
+        }
+        try {
+            return new String(BASE64_URL.decode(state.substring(separator + 1)), StandardCharsets.UTF_8);
+        } catch (final IllegalArgumentException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Check the status of a response and parse its JSON body.
+     * 
+     * @param url the endpoint URL
+     * @param response the response
+     * 
+     * @return the JSON object
+     * 
+     * @throws TwitterOAuthException if Twitter did not answer 200 with a JSON object
+     */
+    @Nonnull private static JsonObject parse(@Nonnull final String url,
+            @Nonnull final TwitterHttpTransport.Response response) throws TwitterOAuthException {
+        if (response.getStatusCode() != HttpStatus.SC_OK) {
+            throw new TwitterOAuthException(response.getBody(), response.getStatusCode());
+        }
+        
+        try (final JsonReader reader = Json.createReader(new StringReader(response.getBody()))) {
+            return reader.readObject();
+        } catch (final JsonException | IllegalStateException e) {
+            throw new TwitterOAuthException("Response from " + url + " is not a JSON object", e);
+        }
+    }
+    
+    /**
+     * Generate a random URL-safe string, used for both the state and the code verifier.
+     * 
+     * @return the string of 43 characters
+     */
+    @Nonnull private static String randomString() {
+        final byte[] bytes = new byte[RANDOM_BYTES];
+        RANDOM.nextBytes(bytes);
+        return BASE64_URL.encode(bytes);
+    }
+}
@@ -0,0 +1,49 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Client for the Twitter OAuth 1.0a three-legged flow
+ * 
+ * The OAuth 2.0 authorization code flow is served through the same calls: the request token is
+ * the locally built authorization request and the verifier the authorization code.
+ */
+public interface TwitterOAuthClient {
+    
+    /**
+     * Obtain a request token from Twitter.
+     * 
+     * @param callbackUrl the URL Twitter redirects the browser to after authentication
+     * 
+     * @return the request token
+     * 
+     * @throws TwitterOAuthException if Twitter could not be queried or refused the request
+     */
+    @Nonnull TwitterRequestToken getRequestToken(@Nonnull String callbackUrl) throws TwitterOAuthException;
+    
+    /**
+     * Exchange a request token and verifier for an access token.
+     * 
+     * @param requestToken the request token obtained when the flow was initialized
+     * @param verifier the OAuth verifier returned by Twitter
+     * 
+     * @return the access token
+     * 
+     * @throws TwitterOAuthException if Twitter could not be queried or refused the request
+     */
+    @Nonnull TwitterAccessToken getAccessToken(@Nonnull TwitterRequestToken requestToken, @Nonnull String verifier)
+            throws TwitterOAuthException;
+}
@@ -0,0 +1,78 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import javax.annotation.Nullable;
+
+/**
+ * Signals a failed OAuth exchange with Twitter
+ */
+public class TwitterOAuthException extends Exception {
+    /** Serial version UID */
+    private static final long serialVersionUID = -3870542815216361742L;
+    
+    /** HTTP status code returned by Twitter, or -1 if no response was received */
+    private final int statusCode;
+    
+    /**
+     * Constructor
+     * 
+     * @param message the exception message
+     */
+    public TwitterOAuthException(@Nullable final String message) {
+        this(message, -1, null);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param message the exception message
+     * @param cause the underlying cause
+     */
+    public TwitterOAuthException(@Nullable final String message, @Nullable final Throwable cause) {
+        this(message, -1, cause);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param message the exception message
+     * @param statusCode the HTTP status code returned by Twitter
+     */
+    public TwitterOAuthException(@Nullable final String message, final int statusCode) {
+        this(message, statusCode, null);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param message the exception message
+     * @param statusCode the HTTP status code returned by Twitter
+     * @param cause the underlying cause
+     */
+    public TwitterOAuthException(@Nullable final String message, final int statusCode,
+            @Nullable final Throwable cause) {
+        super(message, cause);
+        this.statusCode = statusCode;
+    }
+    
+    /**
+     * Get the HTTP status code returned by Twitter
+     * 
+     * @return the status code, or -1 if no response was received
+     */
+    public int getStatusCode() {
+        return this.statusCode;
+    }
+}
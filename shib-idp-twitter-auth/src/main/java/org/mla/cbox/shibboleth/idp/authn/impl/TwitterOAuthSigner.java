@@ -0,0 +1,300 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.apache.http.NameValuePair;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Computes OAuth 1.0a HMAC-SHA1 Authorization headers for a single consumer.
+ * 
+ * The percent-encoded consumer key material is computed once, and each thread keeps its
+ * own {@link Mac} instances so that signing neither looks up a provider nor rebuilds the
+ * consumer-only key.
+ */
+@ThreadSafe
+public class TwitterOAuthSigner {
+    /** HMAC-SHA1 algorithm name */
+    @Nonnull private static final String HMAC_SHA1 = "HmacSHA1";
+    
+    /** Hex digits used for the nonce */
+    @Nonnull private static final char[] HEX = "0123456789abcdef".toCharArray();
+    
+    /** Orders parameter pairs by encoded name and then by encoded value */
+    @Nonnull private static final Comparator<String[]> PARAMETER_ORDER = new Comparator<String[]>() {
+        @Override
+        public int compare(final String[] a, final String[] b) {
+            final int byName = a[0].compareTo(b[0]);
+            return byName != 0 ? byName : a[1].compareTo(b[1]);
+        }
+    };
+    
+    /** Percent-encoded consumer key */
+    @Nonnull private final String encodedConsumerKey;
+    
+    /** Percent-encoded consumer secret followed by '&amp;', the prefix of every signing key */
+    @Nonnull private final String signingKeyPrefix;
+    
+    /** Per-thread MAC keyed with the consumer secret only, used when no token is involved */
+    @Nonnull private final ThreadLocal<Mac> consumerMac;
+    
+    /** Per-thread MAC that is re-keyed for each token secret */
+    @Nonnull private final ThreadLocal<Mac> tokenMac;
+    
+    /**
+     * Constructor
+     * 
+     * @param consumerKey the OAuth consumer key
+     * @param consumerSecret the OAuth consumer secret
+     */
+    public TwitterOAuthSigner(@Nonnull final String consumerKey, @Nonnull final String consumerSecret) {
+        this.encodedConsumerKey = percentEncode(consumerKey);
+        this.signingKeyPrefix = percentEncode(consumerSecret) + "&";
+        
+        final SecretKeySpec consumerKeySpec =
+                new SecretKeySpec(this.signingKeyPrefix.getBytes(StandardCharsets.UTF_8), HMAC_SHA1);
+        this.consumerMac = new ThreadLocal<Mac>() {
+            @Override
+            protected Mac initialValue() {
+                final Mac mac = newMac();
+                try {
+                    mac.init(consumerKeySpec);
+                } catch (final GeneralSecurityException e) {
+                    throw new IllegalStateException("Unable to initialize " + HMAC_SHA1, e);
+                }
+                return mac;
+            }
+        };
+        this.tokenMac = new ThreadLocal<Mac>() {
+            @Override
+            protected Mac initialValue() {
+                return newMac();
+            }
+        };
+        
+        /* Fail at configuration time rather than on the first login */
+        this.consumerMac.get();
+    }
+    
+    /**
+     * Compute the Authorization header for a request.
+     * 
+     * @param method the HTTP method
+     * @param url the request URL, without query string
+     * @param token the OAuth token, or null for the request token exchange
+     * @param tokenSecret the OAuth token secret, or null for the request token exchange
+     * @param parameters the form parameters sent with the request
+     * 
+     * @return the Authorization header value
+     */
+    @Nonnull public String authorizationHeader(@Nonnull final String method, @Nonnull final String url,
+            @Nullable final String token, @Nullable final String tokenSecret,
+            @Nonnull final List<NameValuePair> parameters) {
+        return authorizationHeader(method, url, token, tokenSecret, parameters, nonce(),
+                Long.toString(System.currentTimeMillis() / 1000));
+    }
+    
+    /**
+     * Compute the Authorization header for a request with a given nonce and timestamp.
+     * 
+     * @param method the HTTP method
+     * @param url the request URL, without query string
+     * @param token the OAuth token, or null for the request token exchange
+     * @param tokenSecret the OAuth token secret, or null for the request token exchange
+     * @param parameters the form and query parameters sent with the request
+     * @param nonce the nonce, of unreserved characters only
+     * @param timestamp the timestamp in seconds
+     * 
+     * @return the Authorization header value
+     */
+    @Nonnull String authorizationHeader(@Nonnull final String method, @Nonnull final String url,
+            @Nullable final String token, @Nullable final String tokenSecret,
+            @Nonnull final List<NameValuePair> parameters, @Nonnull final String nonce,
+            @Nonnull final String timestamp) {
+        
+        /* Collect the encoded protocol and request parameters in normalized order */
+        final String[][] pairs = new String[(token != null ? 6 : 5) + parameters.size()][];
+        int i = 0;
+        pairs[i++] = new String[] {"oauth_consumer_key", this.encodedConsumerKey};
+        pairs[i++] = new String[] {"oauth_nonce", nonce};
+        pairs[i++] = new String[] {"oauth_signature_method", "HMAC-SHA1"};
+        pairs[i++] = new String[] {"oauth_timestamp", timestamp};
+        if (token != null) {
+            pairs[i++] = new String[] {"oauth_token", percentEncode(token)};
+        }
+        pairs[i++] = new String[] {"oauth_version", "1.0"};
+        for (final NameValuePair parameter : parameters) {
+            pairs[i++] = new String[] {percentEncode(parameter.getName()), percentEncode(parameter.getValue())};
+        }
+        Arrays.sort(pairs, PARAMETER_ORDER);
+        
+        final StringBuilder normalized = new StringBuilder(256);
+        for (int j = 0; j < pairs.length; j++) {
+            if (j > 0) {
+                normalized.append('&');
+            }
+            normalized.append(pairs[j][0]).append('=').append(pairs[j][1]);
+        }
+        
+        final StringBuilder base = new StringBuilder(normalized.length() * 3 / 2 + url.length() + 16);
+        base.append(method).append('&');
+        percentEncode(url, base);
+        base.append('&');
+        percentEncode(normalized, base);
+        
+        final String signature = sign(base.toString(), tokenSecret);
+        
+        final StringBuilder header = new StringBuilder(320);
+        header.append("OAuth oauth_consumer_key=\"").append(this.encodedConsumerKey)
+            .append("\", oauth_nonce=\"").append(nonce)
+            .append("\", oauth_signature=\"");
+        percentEncode(signature, header);
+        header.append("\", oauth_signature_method=\"HMAC-SHA1\", oauth_timestamp=\"").append(timestamp);
+        if (token != null) {
+            header.append("\", oauth_token=\"");
+            percentEncode(token, header);
+        }
+        header.append("\", oauth_version=\"1.0\"");
+        
+        return header.toString();
+    }
+    
+    /**
+     * Compute the base64 HMAC-SHA1 signature of a signature base string.
+     * 
+     * @param base the signature base string
+     * @param tokenSecret the token secret, or null if none
+     * 
+     * @return the signature
+     */
+    @Nonnull private String sign(@Nonnull final String base, @Nullable final String tokenSecret) {
+        final Mac mac;
+        if (tokenSecret == null) {
+            mac = this.consumerMac.get();
+        } else {
+            mac = this.tokenMac.get();
+            try {
+                mac.init(new SecretKeySpec(
+                        (this.signingKeyPrefix + percentEncode(tokenSecret)).getBytes(StandardCharsets.UTF_8),
+                        HMAC_SHA1));
+            } catch (final GeneralSecurityException e) {
+                throw new IllegalStateException("Unable to initialize " + HMAC_SHA1, e);
+            }
+        }
+        return BaseEncoding.base64().encode(mac.doFinal(base.getBytes(StandardCharsets.UTF_8)));
+    }
+    
+    /**
+     * Generate a random nonce of 16 hex digits.
+     * 
+     * @return the nonce
+     */
+    @Nonnull private static String nonce() {
+        long random = ThreadLocalRandom.current().nextLong();
+        final char[] chars = new char[16];
+        for (int i = 15; i >= 0; i--) {
+            chars[i] = HEX[(int) (random & 0xf)];
+            random >>>= 4;
+        }
+        return new String(chars);
+    }
+    
+    /**
+     * Create an HMAC-SHA1 instance.
+     * 
+     * @return the MAC
+     */
+    @Nonnull private static Mac newMac() {
+        try {
+            return Mac.getInstance(HMAC_SHA1);
+        } catch (final GeneralSecurityException e) {
+            throw new IllegalStateException(HMAC_SHA1 + " is not available", e);
+        }
+    }
+    
+    /**
+     * Percent-encode a value as required by RFC 5849.
+     * 
+     * @param value the value
+     * 
+     * @return the encoded value
+     */
+    @Nonnull public static String percentEncode(@Nonnull final CharSequence value) {
+        final StringBuilder builder = new StringBuilder(value.length() + 16);
+        percentEncode(value, builder);
+        return builder.toString();
+    }
+    
+    /**
+     * Percent-encode a value as required by RFC 5849, appending to a builder.
+     * 
+     * @param value the value
+     * @param builder the builder to append to
+     */
+    public static void percentEncode(@Nonnull final CharSequence value, @Nonnull final StringBuilder builder) {
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (isUnreserved(c)) {
+                builder.append(c);
+            } else if (c < 0x80) {
+                appendEscaped(c, builder);
+            } else {
+                /* Rare outside of callback URLs, so let the platform do the UTF-8 encoding */
+                int end = i + 1;
+                while (end < length && value.charAt(end) >= 0x80) {
+                    end++;
+                }
+                for (final byte b : value.subSequence(i, end).toString().getBytes(StandardCharsets.UTF_8)) {
+                    appendEscaped(b & 0xff, builder);
+                }
+                i = end - 1;
+            }
+        }
+    }
+    
+    /**
+     * Whether a character is in the RFC 3986 unreserved set.
+     * 
+     * @param c the character
+     * 
+     * @return true iff the character needs no encoding
+     */
+    private static boolean isUnreserved(final char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == '-' || c == '.' || c == '_' || c == '~';
+    }
+    
+    /**
+     * Append an escaped octet.
+     * 
+     * @param octet the octet
+     * @param builder the builder to append to
+     */
+    private static void appendEscaped(final int octet, @Nonnull final StringBuilder builder) {
+        builder.append('%').append(Character.toUpperCase(HEX[(octet >> 4) & 0xf]))
+            .append(Character.toUpperCase(HEX[octet & 0xf]));
+    }
+}
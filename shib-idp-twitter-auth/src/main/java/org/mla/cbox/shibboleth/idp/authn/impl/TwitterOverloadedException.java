@@ -0,0 +1,33 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import javax.annotation.Nullable;
+
+/**
+ * Signals that a call to Twitter was shed because too many calls are already in flight.
+ */
+public class TwitterOverloadedException extends TwitterOAuthException {
+    /** Serial version UID */
+    private static final long serialVersionUID = -6021815526452793005L;
+    
+    /**
+     * Constructor
+     * 
+     * @param message the exception message
+     */
+    public TwitterOverloadedException(@Nullable final String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import com.google.common.base.MoreObjects;
+
+/**
+ * Public profile of a Twitter user
+ * 
+ * A profile seeded from an access token only carries the screen name until the
+ * full profile has been fetched.
+ */
+public class TwitterProfile {
+    /** Twitter user ID */
+    private final long userId;
+    
+    /** Screen name */
+    @Nonnull private final String screenName;
+    
+    /** Display name */
+    @Nullable private final String name;
+    
+    /** HTTPS URL of the profile image */
+    @Nullable private final String profileImageUrl;
+    
+    /** Whether the profile was fetched from the users endpoint */
+    private final boolean complete;
+    
+    /**
+     * Constructor
+     * 
+     * @param userId the Twitter user ID
+     * @param screenName the screen name
+     * @param name the display name, if known
+     * @param profileImageUrl the HTTPS URL of the profile image, if known
+     * @param complete whether the profile was fetched from the users endpoint
+     */
+    public TwitterProfile(final long userId, @Nonnull final String screenName, @Nullable final String name,
+            @Nullable final String profileImageUrl, final boolean complete) {
+        this.userId = userId;
+        this.screenName = screenName;
+        this.name = name;
+        this.profileImageUrl = profileImageUrl;
+        this.complete = complete;
+    }
+    
+    public long getUserId() {
+        return this.userId;
+    }
+    
+    @Nonnull public String getScreenName() {
+        return this.screenName;
+    }
+    
+    @Nullable public String getName() {
+        return this.name;
+    }
+    
+    @Nullable public String getProfileImageUrl() {
+        return this.profileImageUrl;
+    }
+    
+    public boolean isComplete() {
+        return this.complete;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this).add("userId", this.userId).add("screenName", this.screenName)
+                .add("complete", this.complete).toString();
+    }
+}
@@ -0,0 +1,386 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.component.AbstractInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Bounded cache of Twitter user profiles, keyed by user ID.
+ * 
+ * Profiles are fetched from the users endpoint on the configured executor and never on the
+ * calling thread. A fetch can be started at login, as soon as the user ID is known, and
+ * attribute resolution then waits for it only until a deadline. Entries are evicted by size and
+ * expire after their time to live. An entry read after its refresh interval is refreshed in the
+ * background while the cached profile keeps being served.
+ */
+@ThreadSafe
+public class TwitterProfileCache extends AbstractInitializableComponent {
+    /** Default users endpoint */
+    @Nonnull public static final String DEFAULT_USERS_ENDPOINT = "https://api.twitter.com/1.1/users/show.json";
+    
+    /** HTTP transport */
+    @Nullable private TwitterHttpTransport httpTransport;
+    
+    /** Whether the HTTP transport was created, and must be destroyed, by this component */
+    private boolean ownsHttpTransport;
+    
+    /** Executor profiles are fetched on */
+    @Nullable private ExecutorService executorService;
+    
+    /** URL of the users endpoint, to which user_id is added */
+    @Nonnull private String usersEndpoint = DEFAULT_USERS_ENDPOINT;
+    
+    /** Application bearer token for the users endpoint */
+    @Nullable private String bearerToken;
+    
+    /** Maximum number of cached profiles */
+    @Positive private long maximumSize = 10000;
+    
+    /** Time in milliseconds a profile is kept */
+    @Duration @Positive private long timeToLive = 86400000;
+    
+    /** Time in milliseconds after which a profile that is read is refreshed in the background */
+    @Duration @Positive private long refreshInterval = 3600000;
+    
+    /** The cache */
+    @Nullable private LoadingCache<Long, TwitterProfile> cache;
+    
+    /** Fetches scheduled by {@link #prefetch(long)} that have not completed, by user ID */
+    @Nonnull private final ConcurrentMap<Long, PendingFetch> pendingFetches = new ConcurrentHashMap<>();
+    
+    /** Class logger */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(TwitterProfileCache.class);
+    
+    /** Log prefix */
+    @Nonnull private final String logPrefix = getClass().getSimpleName() + ":";
+    
+    /** Constructor */
+    public TwitterProfileCache() {
+        
+    }
+    
+    @Nullable public TwitterHttpTransport getHttpTransport() {
+        return this.httpTransport;
+    }
+    
+    @Nullable public ExecutorService getExecutorService() {
+        return this.executorService;
+    }
+    
+    @Nonnull public String getUsersEndpoint() {
+        return this.usersEndpoint;
+    }
+    
+    public long getMaximumSize() {
+        return this.maximumSize;
+    }
+    
+    public long getTimeToLive() {
+        return this.timeToLive;
+    }
+    
+    public long getRefreshInterval() {
+        return this.refreshInterval;
+    }
+    
+    /**
+     * Set the HTTP transport. If none is set a transport with default pool size and timeouts is created.
+     * 
+     * @param transport the HTTP transport
+     * @return instance of this class
+     */
+    public TwitterProfileCache setHttpTransport(@Nullable final TwitterHttpTransport transport) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.httpTransport = transport;
+        return this;
+    }
+    
+    /**
+     * Set the executor profiles are fetched on. It should be bounded so that a slow Twitter
+     * cannot accumulate an unbounded number of fetches.
+     * 
+     * @param executor the executor
+     * @return instance of this class
+     */
+    public TwitterProfileCache setExecutorService(@Nonnull final ExecutorService executor) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.executorService = Constraint.isNotNull(executor, "ExecutorService cannot be null");
+        return this;
+    }
+    
+    /**
+     * Set the URL of the users endpoint, for example to point at a local stub.
+     * 
+     * @param url the URL
+     * @return instance of this class
+     */
+    public TwitterProfileCache setUsersEndpoint(@Nonnull final String url) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.usersEndpoint = Constraint.isNotNull(url, "Users endpoint cannot be null");
+        return this;
+    }
+    
+    public TwitterProfileCache setBearerToken(@Nonnull final String token) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.bearerToken = token;
+        return this;
+    }
+    
+    public TwitterProfileCache setMaximumSize(@Positive final long size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.maximumSize = Constraint.isGreaterThan(0, size, "Maximum size must be greater than 0");
+        return this;
+    }
+    
+    public TwitterProfileCache setTimeToLive(@Duration @Positive final long time) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.timeToLive = Constraint.isGreaterThan(0, time, "Time to live must be greater than 0");
+        return this;
+    }
+    
+    public TwitterProfileCache setRefreshInterval(@Duration @Positive final long interval) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.refreshInterval = Constraint.isGreaterThan(0, interval, "Refresh interval must be greater than 0");
+        return this;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        
+        if (this.executorService == null) {
+            throw new ComponentInitializationException(this.logPrefix + " ExecutorService cannot be null");
+        }
+        if (this.bearerToken == null || this.bearerToken.isEmpty()) {
+            throw new ComponentInitializationException(this.logPrefix + " Bearer token cannot be null or empty");
+        }
+        if (this.refreshInterval >= this.timeToLive) {
+            throw new ComponentInitializationException(this.logPrefix
+                    + " Refresh interval must be shorter than the time to live");
+        }
+        
+        if (this.httpTransport == null) {
+            this.httpTransport = new TwitterHttpTransport();
+            this.httpTransport.initialize();
+            this.ownsHttpTransport = true;
+        }
+        
+        final CacheLoader<Long, TwitterProfile> loader = new CacheLoader<Long, TwitterProfile>() {
+            @Override
+            public TwitterProfile load(final Long userId) throws IOException {
+                return fetchProfile(userId);
+            }
+        };
+        this.cache = CacheBuilder.newBuilder()
+            .maximumSize(this.maximumSize)
+            .expireAfterWrite(this.timeToLive, TimeUnit.MILLISECONDS)
+            .refreshAfterWrite(this.refreshInterval, TimeUnit.MILLISECONDS)
+            .build(CacheLoader.asyncReloading(loader, this.executorService));
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    protected void doDestroy() {
+        if (this.cache != null) {
+            this.cache.invalidateAll();
+        }
+        if (this.ownsHttpTransport) {
+            this.httpTransport.destroy();
+        }
+        super.doDestroy();
+    }
+    
+    /**
+     * Get a cached profile. A profile due for refresh is refreshed in the background.
+     * 
+     * @param userId the Twitter user ID
+     * 
+     * @return the profile, or null if not cached
+     */
+    @Nullable public TwitterProfile getIfPresent(final long userId) {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        return this.cache.getIfPresent(userId);
+    }
+    
+    /**
+     * Schedule a fetch of a profile that is not cached, or only seeded, unless one is already pending.
+     * 
+     * @param userId the Twitter user ID
+     */
+    public void prefetch(final long userId) {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        final TwitterProfile cached = this.cache.getIfPresent(userId);
+        if (cached != null && cached.isComplete()) {
+            return;
+        }
+        
+        final PendingFetch fetch = new PendingFetch(new FutureTask<>(new Callable<TwitterProfile>() {
+            @Override
+            public TwitterProfile call() throws IOException {
+                try {
+                    final TwitterProfile profile = fetchProfile(userId);
+                    cache.put(userId, profile);
+                    return profile;
+                } finally {
+                    pendingFetches.remove(userId);
+                }
+            }
+        }));
+        if (this.pendingFetches.putIfAbsent(userId, fetch) != null) {
+            return;
+        }
+        
+        try {
+            this.executorService.execute(fetch.task);
+        } catch (final RejectedExecutionException e) {
+            this.pendingFetches.remove(userId, fetch);
+            log.debug("{} Too many pending profile fetches, not fetching profile of user {}", this.logPrefix,
+                    userId);
+        }
+    }
+    
+    /**
+     * Cache the screen name returned with an access token, if the profile is not cached yet,
+     * and schedule a fetch of the full profile.
+     * 
+     * @param userId the Twitter user ID
+     * @param screenName the screen name
+     */
+    public void seed(final long userId, @Nonnull final String screenName) {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        if (this.cache.asMap().putIfAbsent(userId, new TwitterProfile(userId, screenName, null, null, false)) == null) {
+            prefetch(userId);
+        }
+    }
+    
+    /**
+     * Get a profile, waiting for a pending fetch until the deadline. The deadline is measured
+     * from the start of the fetch, so a fetch started at login has usually completed by the time
+     * attributes are resolved and the wait is short or nil.
+     * 
+     * @param userId the Twitter user ID
+     * @param deadline time in milliseconds from the start of a fetch after which it is no longer waited for
+     * 
+     * @return the full profile if available by the deadline, otherwise whatever is cached
+     */
+    @Nullable public TwitterProfile get(final long userId, @Duration final long deadline) {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        final TwitterProfile cached = this.cache.getIfPresent(userId);
+        if (cached != null && cached.isComplete()) {
+            return cached;
+        }
+        
+        final PendingFetch fetch = this.pendingFetches.get(userId);
+        if (fetch == null) {
+            return cached;
+        }
+        
+        final long remaining = deadline - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - fetch.startNanos);
+        if (remaining <= 0) {
+            return cached;
+        }
+        
+        try {
+            return fetch.task.get(remaining, TimeUnit.MILLISECONDS);
+        } catch (final TimeoutException e) {
+            log.debug("{} Profile of user {} not fetched within {} ms", this.logPrefix, userId, deadline);
+        } catch (final ExecutionException e) {
+            log.warn("{} Unable to fetch profile of user {}: {}", this.logPrefix, userId, e.getCause().getMessage());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return cached;
+    }
+    
+    /**
+     * Fetch a profile from the users endpoint.
+     * 
+     * @param userId the Twitter user ID
+     * 
+     * @return the profile
+     * 
+     * @throws IOException if the profile could not be fetched or parsed
+     */
+    @Nonnull protected TwitterProfile fetchProfile(final long userId) throws IOException {
+        final String url = this.usersEndpoint + (this.usersEndpoint.indexOf('?') < 0 ? '?' : '&')
+                + "user_id=" + userId;
+        final TwitterHttpTransport.Response response = this.httpTransport.get(url, "Bearer " + this.bearerToken);
+        if (response.getStatusCode() != 200) {
+            throw new IOException("Users endpoint returned status " + response.getStatusCode());
+        }
+        
+        final JsonObject json;
+        try (final JsonReader reader = Json.createReader(new StringReader(response.getBody()))) {
+            json = reader.readObject();
+        } catch (final JsonException | IllegalStateException e) {
+            throw new IOException("Users endpoint returned an invalid profile", e);
+        }
+        
+        final String screenName = json.getString("screen_name", null);
+        if (screenName == null) {
+            throw new IOException("Users endpoint returned a profile without screen_name");
+        }
+        log.debug("{} Fetched profile of user {}", this.logPrefix, userId);
+        return new TwitterProfile(userId, screenName, json.getString("name", null),
+                json.getString("profile_image_url_https", null), true);
+    }
+    
+    /** A fetch that has been scheduled and the time it was scheduled */
+    private static final class PendingFetch {
+        /** The fetch */
+        @Nonnull private final FutureTask<TwitterProfile> task;
+        
+        /** Value of {@link System#nanoTime()} when the fetch was scheduled */
+        private final long startNanos;
+        
+        /**
+         * Constructor
+         * 
+         * @param fetchTask the fetch
+         */
+        PendingFetch(@Nonnull final FutureTask<TwitterProfile> fetchTask) {
+            this.task = fetchTask;
+            this.startNanos = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.component.AbstractInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Remembers the OAuth verifiers of recent Twitter callbacks so that replayed callbacks can be
+ * rejected without calling Twitter.
+ * 
+ * Verifiers are kept in two Bloom filters covering consecutive windows. New verifiers go into
+ * the current filter and lookups check both; when a window ends the older filter is dropped. A
+ * verifier is therefore remembered for at least one window and at most two, in fixed memory.
+ * 
+ * A Bloom filter can report a verifier it has never seen, which rejects that login. The filters
+ * are sized from the expected number of callbacks per window so that this stays below the
+ * configured false positive rate.
+ */
+@ThreadSafe
+public class TwitterReplayFilter extends AbstractInitializableComponent {
+    /** Hash function of the verifiers */
+    @Nonnull private static final HashFunction HASH = Hashing.murmur3_128();
+    
+    /** Length in milliseconds of a window */
+    @Duration @Positive private long window = 600000;
+    
+    /** Number of callbacks expected per window */
+    @Positive private int expectedCallbacks = 10000;
+    
+    /** Target rate of fresh verifiers reported as seen */
+    private double falsePositiveRate = 0.000001;
+    
+    /** Number of bits per filter */
+    private int bits;
+    
+    /** Number of bits set per verifier */
+    private int hashes;
+    
+    /** Current and previous filters */
+    @Nullable private AtomicReference<Generations> generations;
+    
+    /** Number of callbacks rejected as replays */
+    @Nonnull private final AtomicLong rejectedCallbacks = new AtomicLong();
+    
+    /** Log prefix */
+    @Nonnull private final String logPrefix = getClass().getSimpleName() + ":";
+    
+    /** Constructor */
+    public TwitterReplayFilter() {
+        
+    }
+    
+    public TwitterReplayFilter setWindow(@Duration @Positive final long duration) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.window = Constraint.isGreaterThan(0, duration, "Window must be greater than 0");
+        return this;
+    }
+    
+    public TwitterReplayFilter setExpectedCallbacks(@Positive final int callbacks) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.expectedCallbacks = (int) Constraint.isGreaterThan(0, callbacks,
+                "Expected callbacks must be greater than 0");
+        return this;
+    }
+    
+    public TwitterReplayFilter setFalsePositiveRate(final double rate) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        Constraint.isTrue(rate > 0 && rate < 1, "False positive rate must be in (0, 1)");
+        this.falsePositiveRate = rate;
+        return this;
+    }
+    
+    /**
+     * Get the number of callbacks rejected as replays
+     * 
+     * @return the number of rejected callbacks since the component was initialized
+     */
+    public long getRejectedCallbacks() {
+        return this.rejectedCallbacks.get();
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        
+        final double ln2 = Math.log(2);
+        final double optimalBits = -this.expectedCallbacks * Math.log(this.falsePositiveRate) / (ln2 * ln2);
+        if (optimalBits > Integer.MAX_VALUE - 63) {
+            throw new ComponentInitializationException(this.logPrefix
+                    + " Expected callbacks and false positive rate need too large a filter");
+        }
+        this.bits = (int) ((Math.ceil(optimalBits) + 63) / 64) * 64;
+        this.hashes = Math.max(1, (int) Math.round((double) this.bits / this.expectedCallbacks * ln2));
+        this.generations = new AtomicReference<>(new Generations(new Filter(this.bits), null,
+                System.currentTimeMillis() + this.window));
+    }
+    
+    /**
+     * Record the use of a verifier.
+     * 
+     * @param verifier the OAuth verifier of a callback
+     * 
+     * @return false if the verifier was probably used before, in which case the callback is a replay
+     */
+    public boolean markUsed(@Nonnull final String verifier) {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        
+        final HashCode hash = HASH.hashString(verifier, StandardCharsets.UTF_8);
+        final byte[] bytes = hash.asBytes();
+        final long hash1 = toLong(bytes, 0);
+        final long hash2 = toLong(bytes, 8);
+        
+        final Generations current = currentGenerations(System.currentTimeMillis());
+        if (current.previous != null && current.previous.mightContain(hash1, hash2, this.hashes)) {
+            this.rejectedCallbacks.incrementAndGet();
+            return false;
+        }
+        if (!current.current.put(hash1, hash2, this.hashes)) {
+            this.rejectedCallbacks.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Get the filters for a time, moving to a new window if the current one has ended.
+     * 
+     * @param now the time in milliseconds
+     * 
+     * @return the filters
+     */
+    @Nonnull private Generations currentGenerations(final long now) {
+        Generations current = this.generations.get();
+        while (now >= current.rotateAt) {
+            /* After a whole idle window the current filter is too old to keep */
+            final Filter previous = now >= current.rotateAt + this.window ? null : current.current;
+            final Generations next = new Generations(new Filter(this.bits), previous, now + this.window);
+            if (this.generations.compareAndSet(current, next)) {
+                return next;
+            }
+            current = this.generations.get();
+        }
+        return current;
+    }
+    
+    /**
+     * Read eight bytes as a little-endian long.
+     * 
+     * @param bytes the bytes
+     * @param offset the position of the first byte
+     * 
+     * @return the value
+     */
+    private static long toLong(@Nonnull final byte[] bytes, final int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (bytes[offset + i] & 0xff);
+        }
+        return value;
+    }
+    
+    /** The filters of the current and previous windows */
+    private static final class Generations {
+        /** Filter new verifiers are added to */
+        @Nonnull private final Filter current;
+        
+        /** Filter of the previous window, if it is recent enough to keep */
+        @Nullable private final Filter previous;
+        
+        /** Time in milliseconds at which the current window ends */
+        private final long rotateAt;
+        
+        /**
+         * Constructor
+         * 
+         * @param currentFilter filter new verifiers are added to
+         * @param previousFilter filter of the previous window, or null
+         * @param end time in milliseconds at which the current window ends
+         */
+        Generations(@Nonnull final Filter currentFilter, @Nullable final Filter previousFilter, final long end) {
+            this.current = currentFilter;
+            this.previous = previousFilter;
+            this.rotateAt = end;
+        }
+    }
+    
+    /** A Bloom filter whose bits are set with compare-and-set */
+    private static final class Filter {
+        /** The bits */
+        @Nonnull private final AtomicLongArray words;
+        
+        /** Number of bits */
+        private final int size;
+        
+        /**
+         * Constructor
+         * 
+         * @param bitCount number of bits, a multiple of 64
+         */
+        Filter(final int bitCount) {
+            this.words = new AtomicLongArray(bitCount / 64);
+            this.size = bitCount;
+        }
+        
+        /**
+         * Check whether a value might have been added.
+         * 
+         * @param hash1 first hash of the value
+         * @param hash2 second hash of the value
+         * @param hashes number of bits per value
+         * 
+         * @return false if the value was certainly not added
+         */
+        boolean mightContain(final long hash1, final long hash2, final int hashes) {
+            long combined = hash1;
+            for (int i = 0; i < hashes; i++) {
+                final int bit = (int) ((combined & Long.MAX_VALUE) % this.size);
+                if ((this.words.get(bit >>> 6) & (1L << bit)) == 0) {
+                    return false;
+                }
+                combined += hash2;
+            }
+            return true;
+        }
+        
+        /**
+         * Add a value.
+         * 
+         * @param hash1 first hash of the value
+         * @param hash2 second hash of the value
+         * @param hashes number of bits per value
+         * 
+         * @return false if all bits of the value were already set, so that it was probably added before
+         */
+        boolean put(final long hash1, final long hash2, final int hashes) {
+            boolean changed = false;
+            long combined = hash1;
+            for (int i = 0; i < hashes; i++) {
+                final int bit = (int) ((combined & Long.MAX_VALUE) % this.size);
+                final int index = bit >>> 6;
+                final long mask = 1L << bit;
+                long word = this.words.get(index);
+                while ((word & mask) == 0) {
+                    if (this.words.compareAndSet(index, word, word | mask)) {
+                        changed = true;
+                        break;
+                    }
+                    word = this.words.get(index);
+                }
+                combined += hash2;
+            }
+            return changed;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import com.google.common.base.MoreObjects;
+
+/**
+ * Twitter OAuth request token
+ * 
+ * In OAuth 2.0 mode the token is the state of the authorization request, the secret its PKCE
+ * code verifier, and the callback URL is kept because the code exchange must repeat it exactly.
+ */
+public class TwitterRequestToken {
+    /** Request token */
+    @Nonnull private final String token;
+    
+    /** Request token secret, null once the secret has been moved to storage */
+    @Nullable private final String tokenSecret;
+    
+    /** URL the browser is sent to in order to authenticate with Twitter, null once no longer needed */
+    @Nullable private final String authenticationUrl;
+    
+    /** Identifier of the consumer key the token was issued to */
+    @Nonnull private final String consumerKeyId;
+    
+    /**
+     * Constructor
+     * 
+     * @param token the request token
+     * @param tokenSecret the request token secret, or null if kept elsewhere
+     * @param authenticationUrl the Twitter authentication URL for this token, or null if no longer needed
+     * @param consumerKeyId identifier of the consumer key the token was issued to
+     */
+    public TwitterRequestToken(@Nonnull final String token, @Nullable final String tokenSecret,
+            @Nullable final String authenticationUrl, @Nonnull final String consumerKeyId) {
+        this.token = token;
+        this.tokenSecret = tokenSecret;
+        this.authenticationUrl = authenticationUrl;
+        this.consumerKeyId = consumerKeyId;
+    }
+    
+    @Nonnull public String getToken() {
+        return this.token;
+    }
+    
+    @Nullable public String getTokenSecret() {
+        return this.tokenSecret;
+    }
+    
+    @Nullable public String getAuthenticationUrl() {
+        return this.authenticationUrl;
+    }
+    
+    @Nonnull public String getConsumerKeyId() {
+        return this.consumerKeyId;
+    }
+    
+    /**
+     * Get a copy of this token without its secret
+     * 
+     * @return the copy
+     */
+    @Nonnull public TwitterRequestToken withoutSecret() {
+        return new TwitterRequestToken(this.token, null, this.authenticationUrl, this.consumerKeyId);
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this).add("token", this.token).add("consumerKeyId", this.consumerKeyId)
+                .toString();
+    }
+}
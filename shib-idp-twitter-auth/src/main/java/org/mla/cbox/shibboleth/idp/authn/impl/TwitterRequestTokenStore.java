@@ -0,0 +1,150 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.IOException;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.StorageService;
+import org.opensaml.storage.VersionMismatchException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import net.shibboleth.utilities.java.support.annotation.Duration;
+import net.shibboleth.utilities.java.support.annotation.constraint.NotEmpty;
+import net.shibboleth.utilities.java.support.annotation.constraint.Positive;
+import net.shibboleth.utilities.java.support.component.AbstractInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Keeps request token secrets in a {@link StorageService}, keyed by the request token, for
+ * the time the user spends at Twitter.
+ * 
+ * Only the secret and the consumer key identifier are stored. A stored token can be taken
+ * back once: it is deleted as it is read, and of concurrent callbacks only the one whose
+ * delete succeeds gets it.
+ * 
+ * The store only moves the secret out of the login session. It is not the record of which
+ * logins are in progress: the request token itself stays in the {@link TwitterContext} of
+ * the login, and a callback is only looked up here once it has matched that token.
+ */
+@ThreadSafe
+public class TwitterRequestTokenStore extends AbstractInitializableComponent {
+    /** Storage context name */
+    @Nonnull @NotEmpty public static final String STORAGE_CONTEXT = TwitterRequestTokenStore.class.getName();
+    
+    /** Storage service */
+    @Nullable private StorageService storageService;
+    
+    /** Time in milliseconds a stored token is kept */
+    @Duration @Positive private long lifetime = 600000;
+    
+    /** Class logger */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(TwitterRequestTokenStore.class);
+    
+    /** Log prefix */
+    @Nonnull private final String logPrefix = getClass().getSimpleName() + ":";
+    
+    /** Constructor */
+    public TwitterRequestTokenStore() {
+        
+    }
+    
+    @Nullable public StorageService getStorageService() {
+        return this.storageService;
+    }
+    
+    public long getLifetime() {
+        return this.lifetime;
+    }
+    
+    public TwitterRequestTokenStore setStorageService(@Nonnull final StorageService storage) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.storageService = Constraint.isNotNull(storage, "StorageService cannot be null");
+        return this;
+    }
+    
+    public TwitterRequestTokenStore setLifetime(@Duration @Positive final long time) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.lifetime = Constraint.isGreaterThan(0, time, "Lifetime must be greater than 0");
+        return this;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    protected void doInitialize() throws ComponentInitializationException {
+        super.doInitialize();
+        
+        if (this.storageService == null) {
+            throw new ComponentInitializationException(this.logPrefix + " StorageService cannot be null");
+        }
+    }
+    
+    /**
+     * Store the secret of a request token.
+     * 
+     * @param requestToken the request token, including its secret
+     * 
+     * @throws IOException if the token could not be stored
+     */
+    public void save(@Nonnull final TwitterRequestToken requestToken) throws IOException {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        
+        /* The secret never contains a space, the key identifier may */
+        final String value = requestToken.getTokenSecret() + ' ' + requestToken.getConsumerKeyId();
+        if (!this.storageService.create(STORAGE_CONTEXT, requestToken.getToken(), value,
+                System.currentTimeMillis() + this.lifetime)) {
+            throw new IOException("Request token " + requestToken.getToken() + " is already stored");
+        }
+    }
+    
+    /**
+     * Take back a stored request token, removing it from storage.
+     * 
+     * @param token the request token returned by Twitter on the callback
+     * 
+     * @return the request token with its secret, or null if unknown, expired or taken concurrently
+     * 
+     * @throws IOException if the storage could not be read
+     */
+    @Nullable public TwitterRequestToken take(@Nonnull final String token) throws IOException {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+        
+        final StorageRecord record = this.storageService.read(STORAGE_CONTEXT, token);
+        if (record == null) {
+            return null;
+        }
+        try {
+            if (!this.storageService.deleteWithVersion(record.getVersion(), STORAGE_CONTEXT, token)) {
+                log.info("{} Request token {} was taken by a concurrent callback", this.logPrefix, token);
+                return null;
+            }
+        } catch (final VersionMismatchException e) {
+            log.info("{} Request token {} was changed by a concurrent callback", this.logPrefix, token);
+            return null;
+        }
+        
+        final String value = record.getValue();
+        final int separator = value.indexOf(' ');
+        if (separator < 0) {
+            log.warn("{} Ignoring malformed stored value for request token {}", this.logPrefix, token);
+            return null;
+        }
+        
+        return new TwitterRequestToken(token, value.substring(0, separator), null, value.substring(separator + 1));
+    }
+}
@@ -0,0 +1,151 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * One timed phase of a traced Twitter login, created by {@link TwitterTracer}.
+ * 
+ * Spans of logins that are not sampled are inert: attributes are dropped and ending them does
+ * nothing, so callers never need to check whether a login is sampled.
+ */
+@NotThreadSafe
+public final class TwitterSpan {
+    /** Span that records nothing */
+    @Nonnull static final TwitterSpan NOT_SAMPLED = new TwitterSpan(null, "", "", 0, 0);
+    
+    /** Sink the span is exported to when it ends, null if the span is not recorded */
+    @Nullable private final TwitterTraceSink sink;
+    
+    /** Correlation ID of the login */
+    @Nonnull private final String traceId;
+    
+    /** Name of the phase */
+    @Nonnull private final String name;
+    
+    /** Time in milliseconds at which the span started */
+    private final long startTime;
+    
+    /** Value of {@link System#nanoTime()} at the start, or 0 if the start is only known in milliseconds */
+    private final long startNanos;
+    
+    /** Duration in nanoseconds, set when the span ends */
+    private long durationNanos = -1;
+    
+    /** Attributes of the span */
+    @Nullable private Map<String, String> attributes;
+    
+    /**
+     * Constructor
+     * 
+     * @param traceSink sink the span is exported to, or null to record nothing
+     * @param trace correlation ID of the login
+     * @param spanName name of the phase
+     * @param start time in milliseconds at which the span started
+     * @param nanos value of {@link System#nanoTime()} at the start, or 0 if unknown
+     */
+    TwitterSpan(@Nullable final TwitterTraceSink traceSink, @Nonnull final String trace,
+            @Nonnull final String spanName, final long start, final long nanos) {
+        this.sink = traceSink;
+        this.traceId = trace;
+        this.name = spanName;
+        this.startTime = start;
+        this.startNanos = nanos;
+    }
+    
+    /**
+     * Add an attribute.
+     * 
+     * @param key the attribute name
+     * @param value the attribute value
+     * 
+     * @return this span
+     */
+    @Nonnull public TwitterSpan attribute(@Nonnull final String key, @Nullable final Object value) {
+        if (this.sink != null) {
+            if (this.attributes == null) {
+                this.attributes = new LinkedHashMap<>(8);
+            }
+            this.attributes.put(key, String.valueOf(value));
+        }
+        return this;
+    }
+    
+    /** End the span and export it. Ending a span again has no effect. */
+    public void end() {
+        if (this.sink == null || this.durationNanos >= 0) {
+            return;
+        }
+        if (this.startNanos != 0) {
+            this.durationNanos = System.nanoTime() - this.startNanos;
+        } else {
+            this.durationNanos = Math.max(0, System.currentTimeMillis() - this.startTime) * 1000000L;
+        }
+        this.sink.export(this);
+    }
+    
+    /**
+     * Get the correlation ID of the login
+     * 
+     * @return the correlation ID
+     */
+    @Nonnull public String getTraceId() {
+        return this.traceId;
+    }
+    
+    /**
+     * Get the name of the phase
+     * 
+     * @return the name
+     */
+    @Nonnull public String getName() {
+        return this.name;
+    }
+    
+    /**
+     * Get the time at which the span started
+     * 
+     * @return the time in milliseconds
+     */
+    public long getStartTime() {
+        return this.startTime;
+    }
+    
+    /**
+     * Get the duration of the span
+     * 
+     * @return the duration in nanoseconds, or -1 if the span has not ended
+     */
+    public long getDurationNanos() {
+        return this.durationNanos;
+    }
+    
+    /**
+     * Get the attributes of the span
+     * 
+     * @return the attributes, in the order they were added
+     */
+    @Nonnull public Map<String, String> getAttributes() {
+        if (this.attributes == null) {
+            return Collections.emptyMap();
+        }
+        return Collections.unmodifiableMap(this.attributes);
+    }
+}
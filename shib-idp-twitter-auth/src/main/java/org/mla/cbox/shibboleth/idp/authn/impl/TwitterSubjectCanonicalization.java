@@ -19,7 +19,9 @@ import javax.annotation.Nullable;
 import net.shibboleth.idp.authn.AbstractSubjectCanonicalizationAction;
 import net.shibboleth.idp.authn.AuthnEventIds;
 import net.shibboleth.idp.authn.SubjectCanonicalizationException;
+import net.shibboleth.idp.authn.context.AuthenticationContext;
 import net.shibboleth.idp.authn.context.SubjectCanonicalizationContext;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
 import org.opensaml.profile.action.ActionSupport;
 import org.opensaml.profile.context.ProfileRequestContext;
 import com.google.common.base.Predicate;
@@ -29,27 +31,37 @@ import com.google.common.base.Predicate;
  * {@link ProfileRequestContext}, and transforms the input {@link javax.security.auth.Subject}
  * into a principal name by searching for one and only one TwitterIdPrincipal custom principal.
  * 
+ * If a {@link TwitterAccountIndex} is configured the principal name is the local username linked
+ * to the Twitter user ID. Without a linked account the Twitter user ID is used, unless a linked
+ * account is required.
+ * 
+ * If a {@link TwitterTracer} is configured canonicalization is recorded as a span of the trace
+ * of the Twitter login, when there is one.
+ * 
+ * The action keeps no request state of its own, so an instance can be reused across requests.
+ * It must not be run by two threads at once, as {@link AbstractSubjectCanonicalizationAction}
+ * holds the canonicalization context in a field while it executes.
  */
 public class TwitterSubjectCanonicalization extends AbstractSubjectCanonicalizationAction {
     
-    /** Supplies logic for pre-execute test */
-    @Nonnull private final ActivationCondition embeddedPredicate;
+    /** Supplies logic for pre-execute test, shared as it holds no state */
+    @Nonnull private static final ActivationCondition EMBEDDED_PREDICATE = new ActivationCondition();
     
-    /** The custom Principal to operate on */
-    @Nullable private TwitterIdPrincipal twitterIdPrincipal;
+    /** Index of linked local accounts, if any */
+    @Nullable private TwitterAccountIndex accountIndex;
     
-    /** Constructor */
-    public TwitterSubjectCanonicalization() {
-        embeddedPredicate = new ActivationCondition();
-    }
+    /** Whether canonicalization fails for a Twitter user without a linked account */
+    private boolean requireLinkedAccount;
+    
+    /** Tracer canonicalization is traced with, if any */
+    @Nullable private TwitterTracer tracer;
     
     /** {@inheritDoc} */
     @Override
     protected boolean doPreExecute(@Nonnull final ProfileRequestContext profileRequestContext, 
             @Nonnull final SubjectCanonicalizationContext c14nContext) {
 
-        if (embeddedPredicate.apply(profileRequestContext, c14nContext, true)) {
-            twitterIdPrincipal = c14nContext.getSubject().getPrincipals(TwitterIdPrincipal.class).iterator().next();
+        if (EMBEDDED_PREDICATE.apply(profileRequestContext, c14nContext, true)) {
             return super.doPreExecute(profileRequestContext, c14nContext);
         }
         
@@ -61,7 +73,106 @@ public class TwitterSubjectCanonicalization extends AbstractSubjectCanonicalizat
     protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext, 
             @Nonnull final SubjectCanonicalizationContext c14nContext) {
         
-        c14nContext.setPrincipalName(twitterIdPrincipal.getName());
+        final TwitterIdPrincipal twitterIdPrincipal =
+                c14nContext.getSubject().getPrincipals(TwitterIdPrincipal.class).iterator().next();
+        final TwitterSpan span = this.tracer != null
+                ? this.tracer.startSpan(findTwitterContext(profileRequestContext), TwitterTracer.C14N_SPAN)
+                : TwitterSpan.NOT_SAMPLED;
+        if (this.accountIndex == null) {
+            c14nContext.setPrincipalName(twitterIdPrincipal.getName());
+            span.end();
+            return;
+        }
+        
+        final String username = this.accountIndex.getUsername(twitterIdPrincipal.getId());
+        span.attribute("linked", username != null);
+        if (username != null) {
+            c14nContext.setPrincipalName(username);
+        } else if (this.requireLinkedAccount) {
+            c14nContext.setException(new SubjectCanonicalizationException("No account linked to Twitter user "
+                    + twitterIdPrincipal.getName()));
+            ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.INVALID_SUBJECT);
+        } else {
+            c14nContext.setPrincipalName(twitterIdPrincipal.getName());
+        }
+        span.end();
+    }
+    
+    /**
+     * Find the context of the Twitter login being canonicalized.
+     * 
+     * @param profileRequestContext the current profile request context
+     * 
+     * @return the Twitter context, or null if the subject did not come from a Twitter login in this request
+     */
+    @Nullable private static TwitterContext findTwitterContext(
+            @Nonnull final ProfileRequestContext profileRequestContext) {
+        final AuthenticationContext authenticationContext =
+                profileRequestContext.getSubcontext(AuthenticationContext.class);
+        return authenticationContext != null ? authenticationContext.getSubcontext(TwitterContext.class) : null;
+    }
+    
+    /**
+     * Get the index of linked local accounts
+     * 
+     * @return the index, or null if the Twitter user ID is used as is
+     */
+    @Nullable public TwitterAccountIndex getAccountIndex() {
+        return this.accountIndex;
+    }
+    
+    /**
+     * Set the index of linked local accounts
+     * 
+     * @param index the index, or null to use the Twitter user ID as is
+     * @return instance of this class
+     */
+    public TwitterSubjectCanonicalization setAccountIndex(@Nullable final TwitterAccountIndex index) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.accountIndex = index;
+        return this;
+    }
+    
+    /**
+     * Get whether canonicalization fails for a Twitter user without a linked account
+     * 
+     * @return true if a linked account is required
+     */
+    public boolean isRequireLinkedAccount() {
+        return this.requireLinkedAccount;
+    }
+    
+    /**
+     * Set whether canonicalization fails for a Twitter user without a linked account
+     * 
+     * @param flag true to require a linked account
+     * @return instance of this class
+     */
+    public TwitterSubjectCanonicalization setRequireLinkedAccount(final boolean flag) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.requireLinkedAccount = flag;
+        return this;
+    }
+    
+    /**
+     * Get the tracer canonicalization is traced with
+     * 
+     * @return the tracer, or null if canonicalization is not traced
+     */
+    @Nullable public TwitterTracer getTracer() {
+        return this.tracer;
+    }
+    
+    /**
+     * Set the tracer canonicalization is traced with
+     * 
+     * @param twitterTracer the tracer, or null to not trace canonicalization
+     * @return instance of this class
+     */
+    public TwitterSubjectCanonicalization setTracer(@Nullable final TwitterTracer twitterTracer) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.tracer = twitterTracer;
+        return this;
     }
      
     /** A predicate that determines if this action can run or not */
@@ -0,0 +1,32 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Destination of the spans recorded by a {@link TwitterTracer}.
+ * 
+ * Sinks are called on the request thread once each span ends, so they should hand spans off
+ * quickly. They must be thread-safe.
+ */
+public interface TwitterTraceSink {
+    
+    /**
+     * Export an ended span.
+     * 
+     * @param span the span
+     */
+    void export(@Nonnull TwitterSpan span);
+}
@@ -0,0 +1,119 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.util.concurrent.ThreadLocalRandom;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import net.shibboleth.utilities.java.support.component.AbstractInitializableComponent;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+
+/**
+ * Traces Twitter logins across the states of the flow.
+ * 
+ * Each login gets a correlation ID on its {@link TwitterContext} when it starts, and a share of
+ * logins given by the sample rate is sampled. Every action that handles a sampled login records
+ * its phase as a {@link TwitterSpan}, which is exported to the {@link TwitterTraceSink} when it
+ * ends. Spans of logins that are not sampled cost one branch and no allocation.
+ * 
+ * The sampling decision travels with the {@link TwitterContext}, so the tracers of different
+ * flows only need to share a sink.
+ */
+@ThreadSafe
+public class TwitterTracer extends AbstractInitializableComponent {
+    /** Span of the request token call */
+    public static final String REQUEST_TOKEN_SPAN = "requestToken";
+    
+    /** Span of the time the user spends at Twitter */
+    public static final String REDIRECT_SPAN = "twitterRedirect";
+    
+    /** Span of the access token call */
+    public static final String ACCESS_TOKEN_SPAN = "accessToken";
+    
+    /** Span of subject canonicalization */
+    public static final String C14N_SPAN = "c14n";
+    
+    /** Share of logins, between 0 and 1, whose spans are recorded */
+    private double sampleRate = 0.01;
+    
+    /** Sink spans are exported to */
+    @Nonnull private TwitterTraceSink sink = new LoggingTwitterTraceSink();
+    
+    /** Constructor */
+    public TwitterTracer() {
+        
+    }
+    
+    public TwitterTracer setSampleRate(final double rate) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        Constraint.isTrue(rate >= 0 && rate <= 1, "Sample rate must be in [0, 1]");
+        this.sampleRate = rate;
+        return this;
+    }
+    
+    public TwitterTracer setSink(@Nonnull final TwitterTraceSink traceSink) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        this.sink = Constraint.isNotNull(traceSink, "Sink cannot be null");
+        return this;
+    }
+    
+    /**
+     * Start the trace of a login by giving it a correlation ID and deciding whether it is sampled.
+     * 
+     * @param twitterContext the context of the login
+     * 
+     * @return the correlation ID
+     */
+    @Nonnull public String startTrace(@Nonnull final TwitterContext twitterContext) {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final String traceId = String.format("%016x", random.nextLong());
+        twitterContext.setTrace(traceId, this.sampleRate > 0 && random.nextDouble() < this.sampleRate);
+        return traceId;
+    }
+    
+    /**
+     * Start a span timed from now.
+     * 
+     * @param twitterContext the context of the login, if any
+     * @param name the name of the phase
+     * 
+     * @return the span, which records nothing if the login is not sampled
+     */
+    @Nonnull public TwitterSpan startSpan(@Nullable final TwitterContext twitterContext, @Nonnull final String name) {
+        if (twitterContext == null || !twitterContext.isTraceSampled()) {
+            return TwitterSpan.NOT_SAMPLED;
+        }
+        return new TwitterSpan(this.sink, twitterContext.getTraceId(), name, System.currentTimeMillis(),
+                System.nanoTime());
+    }
+    
+    /**
+     * Start a span that began at an earlier time, such as on another request.
+     * 
+     * @param twitterContext the context of the login, if any
+     * @param name the name of the phase
+     * @param startTime the time in milliseconds at which the phase began
+     * 
+     * @return the span, which records nothing if the login is not sampled
+     */
+    @Nonnull public TwitterSpan startSpan(@Nullable final TwitterContext twitterContext, @Nonnull final String name,
+            final long startTime) {
+        if (twitterContext == null || !twitterContext.isTraceSampled()) {
+            return TwitterSpan.NOT_SAMPLED;
+        }
+        return new TwitterSpan(this.sink, twitterContext.getTraceId(), name, startTime, 0);
+    }
+}
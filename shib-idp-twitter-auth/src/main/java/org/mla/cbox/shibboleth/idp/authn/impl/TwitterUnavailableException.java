@@ -0,0 +1,34 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import javax.annotation.Nullable;
+
+/**
+ * Signals that a call to Twitter was not attempted because Twitter is considered
+ * unavailable, for example while the circuit breaker is open.
+ */
+public class TwitterUnavailableException extends TwitterOAuthException {
+    /** Serial version UID */
+    private static final long serialVersionUID = 5120962471325874312L;
+    
+    /**
+     * Constructor
+     * 
+     * @param message the exception message
+     */
+    public TwitterUnavailableException(@Nullable final String message) {
+        super(message);
+    }
+}
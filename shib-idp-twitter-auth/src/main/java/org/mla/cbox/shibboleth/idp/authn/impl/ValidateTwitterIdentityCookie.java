@@ -0,0 +1,200 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+* 
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.security.auth.Subject;
+import javax.servlet.http.HttpServletRequest;
+import org.opensaml.profile.action.ActionSupport;
+import org.opensaml.profile.action.EventIds;
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import net.shibboleth.idp.authn.AbstractValidationAction;
+import net.shibboleth.idp.authn.AuthnEventIds;
+import net.shibboleth.idp.authn.context.AuthenticationContext;
+
+/**
+ * An action that completes authentication locally from a {@link TwitterIdentityCookie}
+ * issued by an earlier Twitter login.
+ * 
+ * Without an identity cookie configured, without a valid cookie in the request, or when forced
+ * authentication is requested, the action signals {@link AuthnEventIds#NO_CREDENTIALS} and the
+ * flow goes on to Twitter.
+ * 
+ * If a {@link TwitterAuditLogger} is configured logins completed from the cookie are audited.
+ * 
+ * The action keeps no request state between executions, so an instance can be reused across
+ * requests, one thread at a time.
+ */
+public class ValidateTwitterIdentityCookie extends AbstractValidationAction {
+    /** Identity cookie, or null if the fast path is disabled */
+    @Nullable private TwitterIdentityCookie identityCookie;
+    
+    /** Whether principals are shared through {@link TwitterIdPrincipal#valueOf(long)} */
+    private boolean internPrincipals;
+    
+    /** Audit log logins are written to, if any */
+    @Nullable private TwitterAuditLogger auditLogger;
+    
+    /** Class logger */
+    @Nonnull private final Logger log = LoggerFactory.getLogger(ValidateTwitterIdentityCookie.class);
+    
+    /** Constructor */
+    ValidateTwitterIdentityCookie() {
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    protected boolean doPreExecute(@Nonnull final ProfileRequestContext profileRequestContext,
+            @Nonnull final AuthenticationContext authenticationContext) {
+        
+        if (!super.doPreExecute(profileRequestContext, authenticationContext)) {
+            return false;
+        }
+        
+        if (this.identityCookie == null) {
+            ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.NO_CREDENTIALS);
+            return false;
+        }
+        
+        /* A forced login must go to Twitter, the cookie only proves an earlier one */
+        if (authenticationContext.isForceAuthn()) {
+            log.debug("{} Forced authentication requested, ignoring Twitter identity cookie", getLogPrefix());
+            ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.NO_CREDENTIALS);
+            return false;
+        }
+        
+        if (authenticationContext.getAttemptedFlow() == null) {
+            log.info("{} No attempted flow within authentication context", getLogPrefix());
+            ActionSupport.buildEvent(profileRequestContext, EventIds.INVALID_PROFILE_CTX);
+            return false;
+        }
+        
+        return true;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext,
+            @Nonnull final AuthenticationContext authenticationContext) {
+        
+        final long userId = this.identityCookie.read();
+        if (userId == TwitterContext.NO_USER_ID) {
+            log.debug("{} No valid Twitter identity cookie", getLogPrefix());
+            ActionSupport.buildEvent(profileRequestContext, AuthnEventIds.NO_CREDENTIALS);
+            return;
+        }
+        
+        if (this.auditLogger != null) {
+            final HttpServletRequest servletRequest = getHttpServletRequest();
+            this.auditLogger.log(new TwitterAuditEvent()
+                .setSource(TwitterAuditEvent.SOURCE_COOKIE)
+                .setOutcome(TwitterMetrics.SUCCESS)
+                .setUserId(userId)
+                .setClientAddress(servletRequest != null ? servletRequest.getRemoteAddr() : null));
+            log.debug("{} Login by '{}' succeeded using identity cookie", getLogPrefix(), userId);
+        } else {
+            log.info("{} Login by '{}' succeeded using identity cookie", getLogPrefix(), userId);
+        }
+        
+        buildAuthenticationResult(profileRequestContext, authenticationContext);
+        addPrincipal(authenticationContext, userId);
+        ActionSupport.buildProceedEvent(profileRequestContext);
+    }
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * The subject is built before the user is known to this method, the Twitter principal is
+     * added to the result afterwards by {@link #addPrincipal(AuthenticationContext, long)}.
+     */
+    @Override
+    @Nonnull protected Subject populateSubject(@Nonnull final Subject subject) {
+        return subject;
+    }
+    
+    /**
+     * Add the principal of the Twitter user to the authentication result just built. The user ID
+     * is passed along rather than kept in a field, so the action holds no per-request state.
+     * 
+     * @param authenticationContext the authentication context holding the result
+     * @param userId the Twitter user ID
+     */
+    private void addPrincipal(@Nonnull final AuthenticationContext authenticationContext, final long userId) {
+        authenticationContext.getAuthenticationResult().getSubject().getPrincipals().add(
+                this.internPrincipals ? TwitterIdPrincipal.valueOf(userId) : new TwitterIdPrincipal(userId));
+    }
+    
+    /**
+     * Get the identity cookie
+     * 
+     * @return the identity cookie, or null if the fast path is disabled
+     */
+    @Nullable public TwitterIdentityCookie getIdentityCookie() {
+        return this.identityCookie;
+    }
+    
+    /**
+     * Set the identity cookie
+     * 
+     * @param cookie the identity cookie, or null to disable the fast path
+     * @return instance of this class
+     */
+    public ValidateTwitterIdentityCookie setIdentityCookie(@Nullable final TwitterIdentityCookie cookie) {
+        this.identityCookie = cookie;
+        return this;
+    }
+    
+    /**
+     * Get whether principals are shared between logins of the same user
+     * 
+     * @return true if principals are interned
+     */
+    public boolean isInternPrincipals() {
+        return this.internPrincipals;
+    }
+    
+    /**
+     * Set whether principals are shared between logins of the same user
+     * 
+     * @param flag true to intern principals
+     * @return instance of this class
+     */
+    public ValidateTwitterIdentityCookie setInternPrincipals(final boolean flag) {
+        this.internPrincipals = flag;
+        return this;
+    }
+    
+    /**
+     * Get the audit log logins are written to
+     * 
+     * @return the audit log, or null if logins are not audited
+     */
+    @Nullable public TwitterAuditLogger getAuditLogger() {
+        return this.auditLogger;
+    }
+    
+    /**
+     * Set the audit log logins are written to
+     * 
+     * @param logger the audit log, or null to not audit logins
+     * @return instance of this class
+     */
+    public ValidateTwitterIdentityCookie setAuditLogger(@Nullable final TwitterAuditLogger logger) {
+        this.auditLogger = logger;
+        return this;
+    }
+}
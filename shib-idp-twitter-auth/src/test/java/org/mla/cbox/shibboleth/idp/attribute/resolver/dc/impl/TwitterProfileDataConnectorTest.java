@@ -0,0 +1,183 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.attribute.resolver.dc.impl;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.security.auth.Subject;
+
+import junit.framework.TestCase;
+import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.resolver.context.AttributeResolutionContext;
+import net.shibboleth.idp.attribute.resolver.context.AttributeResolverWorkContext;
+import net.shibboleth.idp.authn.AuthenticationResult;
+import net.shibboleth.idp.authn.context.SubjectContext;
+
+import org.mla.cbox.shibboleth.idp.authn.impl.StubTwitterServer;
+import org.mla.cbox.shibboleth.idp.authn.impl.TwitterIdPrincipal;
+import org.mla.cbox.shibboleth.idp.authn.impl.TwitterProfileCache;
+import org.opensaml.profile.context.ProfileRequestContext;
+
+/**
+ * Tests for {@link TwitterProfileDataConnector} backed by a {@link TwitterProfileCache} reading
+ * the users endpoint of a {@link StubTwitterServer}.
+ */
+public class TwitterProfileDataConnectorTest extends TestCase {
+    /** Stub Twitter API */
+    private StubTwitterServer server;
+
+    /** Executor profiles are fetched on */
+    private ExecutorService executor;
+
+    /** Profile cache */
+    private TwitterProfileCache cache;
+
+    /** {@inheritDoc} */
+    @Override
+    protected void setUp() throws Exception {
+        this.server = new StubTwitterServer().start();
+        this.executor = Executors.newFixedThreadPool(4);
+        this.cache = new TwitterProfileCache()
+            .setExecutorService(this.executor)
+            .setUsersEndpoint(this.server.getUsersEndpoint())
+            .setBearerToken(StubTwitterServer.BEARER_TOKEN);
+        this.cache.initialize();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void tearDown() throws Exception {
+        this.cache.destroy();
+        this.executor.shutdownNow();
+        this.server.stop();
+    }
+
+    /**
+     * The profile of the authenticated user is fetched on the first resolution and served from
+     * the cache afterwards.
+     *
+     * @throws Exception if resolution fails
+     */
+    public void testResolve() throws Exception {
+        final TwitterProfileDataConnector connector = newConnector(2000);
+
+        final Map<String, IdPAttribute> attributes = connector.resolve(newResolutionContext(42));
+        assertEquals(3, attributes.size());
+        assertEquals("user42", valueOf(attributes, TwitterProfileDataConnector.SCREEN_NAME_ATTRIBUTE));
+        assertEquals("User 42", valueOf(attributes, TwitterProfileDataConnector.NAME_ATTRIBUTE));
+        assertEquals("https://pbs.twimg.com/profile_images/42.jpg",
+                valueOf(attributes, TwitterProfileDataConnector.PROFILE_IMAGE_URL_ATTRIBUTE));
+
+        assertEquals(3, connector.resolve(newResolutionContext(42)).size());
+        assertEquals(1, this.server.getUsersCalls());
+    }
+
+    /**
+     * When the users endpoint is too slow, a profile seeded at login still yields the screen name.
+     *
+     * @throws Exception if resolution fails
+     */
+    public void testSeededProfileWhenSlow() throws Exception {
+        this.server.setLatency(1000);
+        final TwitterProfileDataConnector connector = newConnector(50);
+
+        this.cache.seed(43, "user43");
+        final Map<String, IdPAttribute> attributes = connector.resolve(newResolutionContext(43));
+        assertEquals(1, attributes.size());
+        assertEquals("user43", valueOf(attributes, TwitterProfileDataConnector.SCREEN_NAME_ATTRIBUTE));
+    }
+
+    /**
+     * Without a cached profile and with no time to wait for it, nothing is resolved.
+     *
+     * @throws Exception if resolution fails
+     */
+    public void testNothingCachedWithoutDeadline() throws Exception {
+        this.server.setLatency(1000);
+        final TwitterProfileDataConnector connector = newConnector(0);
+
+        assertNull(connector.resolve(newResolutionContext(44)));
+    }
+
+    /**
+     * A subject without a Twitter principal resolves nothing and causes no fetch.
+     *
+     * @throws Exception if resolution fails
+     */
+    public void testNoPrincipal() throws Exception {
+        final TwitterProfileDataConnector connector = newConnector(2000);
+
+        final ProfileRequestContext prc = new ProfileRequestContext();
+        prc.getSubcontext(SubjectContext.class, true).getAuthenticationResults().put("authn/Password",
+                new AuthenticationResult("authn/Password", new Subject()));
+        final AttributeResolutionContext resolutionContext = prc.getSubcontext(AttributeResolutionContext.class, true);
+        resolutionContext.getSubcontext(AttributeResolverWorkContext.class, true);
+
+        assertNull(connector.resolve(resolutionContext));
+        assertEquals(0, this.server.getUsersCalls());
+    }
+
+    /**
+     * Build an initialized connector.
+     *
+     * @param fetchDeadline the fetch deadline in milliseconds
+     *
+     * @return the connector
+     *
+     * @throws Exception if the connector cannot be initialized
+     */
+    private TwitterProfileDataConnector newConnector(final long fetchDeadline) throws Exception {
+        final TwitterProfileDataConnector connector = new TwitterProfileDataConnector()
+            .setProfileCache(this.cache)
+            .setFetchDeadline(fetchDeadline);
+        connector.setId("twitterProfile");
+        connector.initialize();
+        return connector;
+    }
+
+    /**
+     * Build a resolution context for a user authenticated with Twitter.
+     *
+     * @param userId the Twitter user ID
+     *
+     * @return the resolution context
+     */
+    private static AttributeResolutionContext newResolutionContext(final long userId) {
+        final Subject subject = new Subject();
+        subject.getPrincipals().add(new TwitterIdPrincipal(userId));
+
+        final ProfileRequestContext prc = new ProfileRequestContext();
+        prc.getSubcontext(SubjectContext.class, true).getAuthenticationResults().put("authn/Twitter",
+                new AuthenticationResult("authn/Twitter", subject));
+        final AttributeResolutionContext resolutionContext = prc.getSubcontext(AttributeResolutionContext.class, true);
+        resolutionContext.getSubcontext(AttributeResolverWorkContext.class, true);
+        return resolutionContext;
+    }
+
+    /**
+     * Get the single value of an attribute.
+     *
+     * @param attributes the attributes
+     * @param id the attribute ID
+     *
+     * @return the value
+     */
+    private static Object valueOf(final Map<String, IdPAttribute> attributes, final String id) {
+        final IdPAttribute attribute = attributes.get(id);
+        assertNotNull("No attribute " + id, attribute);
+        assertEquals(1, attribute.getValues().size());
+        return attribute.getValues().get(0).getValue();
+    }
+}
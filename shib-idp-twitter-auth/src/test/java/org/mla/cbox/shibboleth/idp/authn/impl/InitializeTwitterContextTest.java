@@ -0,0 +1,275 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.util.Collections;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the hedged request token calls of {@link InitializeTwitterContext}, against a
+ * {@link StubTwitterServer} slowed down call by call.
+ */
+public class InitializeTwitterContextTest extends TestCase {
+    /** Callback URL of the logins */
+    private static final String CALLBACK_URL =
+            "https://idp.example.org/idp/profile/SAML2/Redirect/SSO?execution=e1s1&_eventId=proceed";
+
+    /** Number of latencies recorded before calls are hedged */
+    private static final int MIN_SAMPLES = 5;
+
+    /** Shortest hedge delay in milliseconds */
+    private static final long MIN_DELAY = 50;
+
+    /** Longest hedge delay in milliseconds */
+    private static final long MAX_DELAY = 100;
+
+    /** Latency in milliseconds of a slow call, well beyond the longest hedge delay */
+    private static final long SLOW = 400;
+
+    /** Stub Twitter API */
+    private StubTwitterServer server;
+
+    /** Integration calling the stub */
+    private TwitterIntegration integration;
+
+    /** Executor the calls are made on, counting the calls that end interrupted */
+    private ThreadPoolExecutor executor;
+
+    /** Calls that were interrupted by the time they ended */
+    private AtomicInteger interrupted;
+
+    /** {@inheritDoc} */
+    @Override
+    protected void setUp() throws Exception {
+        this.server = new StubTwitterServer().start();
+        this.integration = new TwitterIntegration()
+            .setConsumerKeys(Collections.singletonList(new TwitterConsumerKey()
+                .setId("default")
+                .setOauthConsumerKey("consumer")
+                .setOauthConsumerSecret(StubTwitterServer.CONSUMER_SECRET)))
+            .setApiBaseUrl(this.server.getBaseUrl());
+        this.integration.initialize();
+
+        this.interrupted = new AtomicInteger();
+        final AtomicInteger interruptedCalls = this.interrupted;
+        this.executor = new ThreadPoolExecutor(4, 4, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>()) {
+            @Override
+            protected void afterExecute(final Runnable task, final Throwable failure) {
+                if (Thread.currentThread().isInterrupted()) {
+                    interruptedCalls.incrementAndGet();
+                }
+            }
+        };
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void tearDown() throws Exception {
+        this.executor.shutdownNow();
+        this.integration.destroy();
+        this.server.stop();
+    }
+
+    /**
+     * Slow calls are not hedged until the policy has recorded enough latencies to know what slow is.
+     *
+     * @throws Exception if a request token cannot be obtained
+     */
+    public void testNoHedgeBeforeMinSamples() throws Exception {
+        final TwitterHedgingPolicy policy = newPolicy(0.5, 10);
+        final InitializeTwitterContext action = newAction(policy);
+        this.server.setLatency(SLOW);
+
+        for (int i = 1; i < MIN_SAMPLES; i++) {
+            assertNotNull(action.fetchRequestToken(CALLBACK_URL));
+            assertEquals(TwitterHedgingPolicy.NO_HEDGE, policy.getHedgeDelay());
+        }
+        assertNotNull(action.fetchRequestToken(CALLBACK_URL));
+        assertEquals(MIN_SAMPLES, this.server.getRequestTokenCalls());
+        assertEquals(0, policy.getHedgesStarted());
+
+        assertEquals(MAX_DELAY, policy.getHedgeDelay());
+        assertNotNull(action.fetchRequestToken(CALLBACK_URL));
+        assertEquals(1, policy.getHedgesStarted());
+        awaitCalls(MIN_SAMPLES + 2);
+    }
+
+    /**
+     * When every call is slow only the budget ratio of them is hedged.
+     *
+     * @throws Exception if a request token cannot be obtained
+     */
+    public void testBudgetCapsHedges() throws Exception {
+        final TwitterHedgingPolicy policy = newPolicy(0.25, 1);
+        final InitializeTwitterContext action = newAction(policy);
+        warmUp(action);
+
+        this.server.setLatency(SLOW);
+        final int calls = 12;
+        for (int i = 0; i < calls; i++) {
+            assertNotNull(action.fetchRequestToken(CALLBACK_URL));
+        }
+
+        /* The burst saved while warming up pays for the first hedge, then one call in four earns the next */
+        assertEquals(calls / 4, policy.getHedgesStarted());
+        assertEquals(calls - policy.getHedgesStarted(), policy.getHedgesRefused());
+        awaitCalls(MIN_SAMPLES + calls + (int) policy.getHedgesStarted());
+    }
+
+    /**
+     * The hedge of a slow call answers first and its token is used, while the slow call is left
+     * to finish without being interrupted.
+     *
+     * @throws Exception if a request token cannot be obtained
+     */
+    public void testFirstSuccessWins() throws Exception {
+        final TwitterHedgingPolicy policy = newPolicy(0.5, 10);
+        final InitializeTwitterContext action = newAction(policy);
+        warmUp(action);
+
+        this.server.scriptRequestToken(SLOW, false);
+        this.server.scriptRequestToken(0, false);
+        final long started = System.currentTimeMillis();
+        assertNotNull(action.fetchRequestToken(CALLBACK_URL));
+        assertTrue(System.currentTimeMillis() - started < SLOW);
+        assertEquals(1, policy.getHedgesStarted());
+        assertEquals(1, policy.getHedgesWon());
+
+        awaitCalls(MIN_SAMPLES + 2);
+        assertEquals(0, this.interrupted.get());
+    }
+
+    /**
+     * A call that fails while its hedge is still waiting for Twitter does not fail the fetch, and
+     * the token of the hedge is used.
+     *
+     * @throws Exception if a request token cannot be obtained
+     */
+    public void testFailureFallsThroughToHedge() throws Exception {
+        final TwitterHedgingPolicy policy = newPolicy(0.5, 10);
+        final InitializeTwitterContext action = newAction(policy);
+        warmUp(action);
+
+        this.server.scriptRequestToken(MAX_DELAY + 100, true);
+        this.server.scriptRequestToken(SLOW, false);
+        assertNotNull(action.fetchRequestToken(CALLBACK_URL));
+        assertEquals(1, policy.getHedgesStarted());
+        assertEquals(1, policy.getHedgesWon());
+        assertEquals(MIN_SAMPLES + 2, this.server.getRequestTokenCalls());
+    }
+
+    /**
+     * A fetch fails once both the call and its hedge have failed.
+     *
+     * @throws Exception if the action cannot be built
+     */
+    public void testBothFail() throws Exception {
+        final TwitterHedgingPolicy policy = newPolicy(0.5, 10);
+        final InitializeTwitterContext action = newAction(policy);
+        warmUp(action);
+
+        this.server.scriptRequestToken(MAX_DELAY + 100, true);
+        this.server.scriptRequestToken(SLOW, true);
+        try {
+            action.fetchRequestToken(CALLBACK_URL);
+            fail("Request token obtained from failed calls");
+        } catch (final TwitterOAuthException e) {
+            assertEquals(MIN_SAMPLES + 2, this.server.getRequestTokenCalls());
+        }
+        assertEquals(1, policy.getHedgesStarted());
+        assertEquals(0, policy.getHedgesWon());
+    }
+
+    /**
+     * Build an initialized hedging policy that hedges after every latency it records once it has
+     * a few, within a short minimum and maximum delay.
+     *
+     * @param budgetRatio the share of calls that may be hedged
+     * @param maxBurst the number of hedges that may be spent at once
+     *
+     * @return the policy
+     *
+     * @throws Exception if the policy cannot be initialized
+     */
+    private static TwitterHedgingPolicy newPolicy(final double budgetRatio, final int maxBurst) throws Exception {
+        final TwitterHedgingPolicy policy = new TwitterHedgingPolicy()
+            .setMinSamples(MIN_SAMPLES)
+            .setReservoirSize(100)
+            .setRecomputeInterval(1)
+            .setMinDelay(MIN_DELAY)
+            .setMaxDelay(MAX_DELAY)
+            .setBudgetRatio(budgetRatio)
+            .setMaxBurst(maxBurst);
+        policy.initialize();
+        return policy;
+    }
+
+    /**
+     * Build an initialized action making hedged calls on the executor.
+     *
+     * @param policy the hedging policy
+     *
+     * @return the action
+     *
+     * @throws Exception if the action cannot be initialized
+     */
+    private InitializeTwitterContext newAction(final TwitterHedgingPolicy policy) throws Exception {
+        final InitializeTwitterContext action = new InitializeTwitterContext()
+            .setTwitterIntegration(this.integration)
+            .setExecutorService(this.executor)
+            .setHedgingPolicy(policy)
+            .setRequestTokenTimeout(5000);
+        action.initialize();
+        return action;
+    }
+
+    /**
+     * Record enough fast calls for the policy to hedge, after the minimum delay unless the first
+     * calls were slowed down by the connection being set up.
+     *
+     * @param action the action
+     *
+     * @throws Exception if a request token cannot be obtained
+     */
+    private void warmUp(final InitializeTwitterContext action) throws Exception {
+        for (int i = 0; i < MIN_SAMPLES; i++) {
+            action.fetchRequestToken(CALLBACK_URL);
+        }
+        assertTrue(action.getHedgingPolicy().getHedgeDelay() >= MIN_DELAY);
+        assertTrue(action.getHedgingPolicy().getHedgeDelay() <= MAX_DELAY);
+        assertEquals(0, action.getHedgingPolicy().getHedgesStarted());
+    }
+
+    /**
+     * Wait for the stub to have answered a number of request token calls, and for the executor
+     * to have finished them.
+     *
+     * @param calls the number of calls
+     *
+     * @throws InterruptedException if interrupted
+     */
+    private void awaitCalls(final int calls) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (this.executor.getCompletedTaskCount() < calls && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(calls, this.server.getRequestTokenCalls());
+        assertEquals(calls, this.executor.getCompletedTaskCount());
+    }
+}
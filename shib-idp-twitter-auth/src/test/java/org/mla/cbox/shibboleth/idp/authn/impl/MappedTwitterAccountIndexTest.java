@@ -0,0 +1,302 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+
+/**
+ * Tests for {@link MappedTwitterAccountIndex}, over index files written by
+ * {@link TwitterAccountIndexBuilder}.
+ */
+public class MappedTwitterAccountIndexTest extends TestCase {
+    /** Directory holding the index files */
+    private File directory;
+
+    /** Index file read by the index under test */
+    private File file;
+
+    /** Index under test */
+    private MappedTwitterAccountIndex index;
+
+    /** {@inheritDoc} */
+    @Override
+    protected void setUp() throws Exception {
+        this.directory = Files.createTempDirectory("twitter-accounts-test").toFile();
+        this.file = new File(this.directory, "accounts.idx");
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void tearDown() throws Exception {
+        if (this.index != null) {
+            this.index.destroy();
+        }
+        final File[] files = this.directory.listFiles();
+        if (files != null) {
+            for (final File leftover : files) {
+                Files.delete(leftover.toPath());
+            }
+        }
+        Files.delete(this.directory.toPath());
+    }
+
+    /**
+     * Every linked ID is found by the binary search and no other, down to the first and last
+     * entries and the IDs around them.
+     *
+     * @throws Exception if the index cannot be built or loaded
+     */
+    public void testLookup() throws Exception {
+        final List<String> lines = new ArrayList<>();
+        for (int i = 1; i <= 1001; i++) {
+            lines.add(2 * i + ",user" + i);
+        }
+        lines.add(Long.MAX_VALUE + ",last");
+        build(this.file, lines.toArray(new String[lines.size()]));
+        this.index = load(this.file, 0);
+
+        assertEquals(1002, this.index.getSize());
+        for (int i = 1; i <= 1001; i++) {
+            assertEquals("user" + i, this.index.getUsername(2 * i));
+            assertNull(this.index.getUsername(2 * i + 1));
+        }
+        assertEquals("last", this.index.getUsername(Long.MAX_VALUE));
+        assertNull(this.index.getUsername(Long.MAX_VALUE - 1));
+        assertNull(this.index.getUsername(0));
+        assertNull(this.index.getUsername(Long.MIN_VALUE));
+
+        final MappedTwitterAccountIndex.Mapping mapping = MappedTwitterAccountIndex.Mapping.load(this.file);
+        assertEquals(0, mapping.find(2));
+        assertEquals(1001, mapping.find(Long.MAX_VALUE));
+        assertEquals(-1, mapping.find(3));
+    }
+
+    /**
+     * Usernames beyond ASCII are returned as written, and an index without accounts finds none.
+     *
+     * @throws Exception if the index cannot be built or loaded
+     */
+    public void testUsernamesAndEmptyIndex() throws Exception {
+        build(this.file, "1,jos\u00e9", "2,\u5c71\u7530", "3,a");
+        this.index = load(this.file, 0);
+        assertEquals("jos\u00e9", this.index.getUsername(1));
+        assertEquals("\u5c71\u7530", this.index.getUsername(2));
+        assertEquals("a", this.index.getUsername(3));
+        this.index.destroy();
+
+        build(this.file, "twitter_id,username");
+        this.index = load(this.file, 0);
+        assertEquals(0, this.index.getSize());
+        assertNull(this.index.getUsername(1));
+        this.index.destroy();
+        assertNull(this.index.getUsername(1));
+    }
+
+    /**
+     * Files that are not complete, consistent indexes are refused.
+     *
+     * @throws Exception if the index cannot be built
+     */
+    public void testCorruptFiles() throws Exception {
+        build(this.file, "10,alice", "20,bob", "30,carol");
+        MappedTwitterAccountIndex.Mapping.load(this.file);
+        final long length = this.file.length();
+
+        /* Header, then IDs at 16, offsets at 40 and usernames at 56 */
+        assertRejected(corrupt(0, 0x12345678, -1), "Not a Twitter account index");
+        assertRejected(corrupt(4, MappedTwitterAccountIndex.VERSION + 1, -1), "Unsupported index version");
+        assertRejected(corrupt(8, 1000, -1), "truncated");
+        assertRejected(corrupt(8, -1, -1), "truncated");
+        assertRejected(corrupt(20, 25, -1), "not sorted");
+        assertRejected(corrupt(48, 0, -1), "not ascending");
+        assertRejected(corrupt(-1, 0, length - 1), "truncated");
+        assertRejected(corrupt(-1, 0, 12), "Not a Twitter account index");
+        assertRejected(corrupt(-1, 0, 0), "Not a Twitter account index");
+    }
+
+    /**
+     * A changed file is swapped in, while a file that fails to load leaves the previous version
+     * in place until a valid one replaces it.
+     *
+     * @throws Exception if an index cannot be built or loaded
+     */
+    public void testReloadIfChanged() throws Exception {
+        build(this.file, "10,alice", "20,bob");
+        this.index = load(this.file, 0);
+        this.index.reloadIfChanged();
+        assertEquals("alice", this.index.getUsername(10));
+
+        replace(build(new File(this.directory, "v2.idx"), "10,alicia", "20,bob", "30,carol"));
+        this.index.reloadIfChanged();
+        assertEquals(3, this.index.getSize());
+        assertEquals("alicia", this.index.getUsername(10));
+
+        final File broken = new File(this.directory, "broken.idx");
+        Files.write(broken.toPath(), Arrays.copyOf(Files.readAllBytes(this.file.toPath()), 40));
+        replace(broken);
+        this.index.reloadIfChanged();
+        assertEquals(3, this.index.getSize());
+        assertEquals("alicia", this.index.getUsername(10));
+        assertEquals("carol", this.index.getUsername(30));
+
+        replace(build(new File(this.directory, "v3.idx"), "40,dave"));
+        this.index.reloadIfChanged();
+        assertEquals(1, this.index.getSize());
+        assertNull(this.index.getUsername(10));
+        assertEquals("dave", this.index.getUsername(40));
+    }
+
+    /**
+     * The check timer picks up a replaced file by itself.
+     *
+     * @throws Exception if an index cannot be built or loaded
+     */
+    public void testCheckTimer() throws Exception {
+        build(this.file, "10,alice");
+        this.index = load(this.file, 20);
+        replace(build(new File(this.directory, "v2.idx"), "10,alicia"));
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!"alicia".equals(this.index.getUsername(10)) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("alicia", this.index.getUsername(10));
+    }
+
+    /**
+     * A missing file fails initialization.
+     */
+    public void testMissingFile() {
+        try {
+            load(this.file, 0);
+            fail("Missing index file was loaded");
+        } catch (final ComponentInitializationException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Build an index file from CSV lines.
+     *
+     * @param output the index file
+     * @param lines the lines
+     *
+     * @return the index file
+     *
+     * @throws IOException if the index cannot be built
+     */
+    private File build(final File output, final String... lines) throws IOException {
+        final File input = new File(this.directory, "input.csv");
+        Files.write(input.toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+        new TwitterAccountIndexBuilder(output, Collections.singletonList(input))
+            .setTmpDirectory(this.directory)
+            .build();
+        Files.delete(input.toPath());
+        return output;
+    }
+
+    /**
+     * Load and initialize an index.
+     *
+     * @param indexFile the index file
+     * @param checkInterval the check interval
+     *
+     * @return the index
+     *
+     * @throws ComponentInitializationException if the index cannot be loaded
+     */
+    private static MappedTwitterAccountIndex load(final File indexFile, final long checkInterval)
+            throws ComponentInitializationException {
+        final MappedTwitterAccountIndex loaded = new MappedTwitterAccountIndex()
+            .setFile(indexFile)
+            .setCheckInterval(checkInterval);
+        loaded.initialize();
+        return loaded;
+    }
+
+    /**
+     * Replace the index file by renaming another file over it, as the builder does, with a
+     * modification time that is certain to differ.
+     *
+     * @param replacement the file to put in place
+     *
+     * @throws IOException if the file cannot be moved
+     */
+    private void replace(final File replacement) throws IOException {
+        final long modified = this.file.lastModified();
+        Files.move(replacement.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        this.file.setLastModified(modified + 2000);
+    }
+
+    /**
+     * Copy the index file with one int overwritten or its length cut.
+     *
+     * @param position the position of the int to overwrite, or -1 for none
+     * @param value the value to write
+     * @param length the length to cut the copy to, or -1 to keep it
+     *
+     * @return the copy
+     *
+     * @throws IOException if the copy cannot be written
+     */
+    private File corrupt(final int position, final int value, final long length) throws IOException {
+        final File copy = File.createTempFile("corrupt-", ".idx", this.directory);
+        Files.copy(this.file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        try (final RandomAccessFile raf = new RandomAccessFile(copy, "rw")) {
+            if (position >= 0) {
+                raf.seek(position);
+                raf.writeInt(value);
+            }
+            if (length >= 0) {
+                raf.setLength(length);
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Assert that a file is refused both when mapped and when an index is initialized with it.
+     *
+     * @param corrupted the file
+     * @param reason part of the expected message
+     */
+    private static void assertRejected(final File corrupted, final String reason) {
+        try {
+            MappedTwitterAccountIndex.Mapping.load(corrupted);
+            fail("Corrupt index was loaded: " + reason);
+        } catch (final IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(reason));
+        }
+        try {
+            load(corrupted, 0);
+            fail("Index was initialized with a corrupt file: " + reason);
+        } catch (final ComponentInitializationException e) {
+            // expected
+        }
+    }
+}
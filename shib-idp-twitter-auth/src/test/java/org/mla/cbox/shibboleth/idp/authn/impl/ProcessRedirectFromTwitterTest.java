@@ -0,0 +1,375 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+import net.shibboleth.idp.authn.AuthenticationFlowDescriptor;
+import net.shibboleth.idp.authn.AuthenticationResult;
+import net.shibboleth.idp.authn.AuthnEventIds;
+import net.shibboleth.idp.authn.context.AuthenticationContext;
+import net.shibboleth.idp.profile.context.SpringRequestContext;
+
+import org.opensaml.profile.action.EventIds;
+import org.opensaml.profile.action.ProfileAction;
+import org.opensaml.profile.context.EventContext;
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.springframework.aop.framework.ProxyFactoryBean;
+import org.springframework.aop.target.ThreadLocalTargetSource;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.beans.factory.support.RootBeanDefinition;
+import org.springframework.webflow.context.servlet.ServletExternalContext;
+import org.springframework.webflow.execution.RequestContext;
+
+/**
+ * Tests for {@link ProcessRedirectFromTwitter} run the way the flow runs it: through a proxy with
+ * a {@link ThreadLocalTargetSource} over a prototype bean, as twitter-authn-beans.xml configures
+ * it, with many threads logging in at once against a {@link StubTwitterServer}.
+ */
+public class ProcessRedirectFromTwitterTest extends TestCase {
+    /** Concurrent logins */
+    private static final int THREADS = 16;
+
+    /** Logins per thread */
+    private static final int LOGINS = 50;
+
+    /** ID of the Twitter authentication flow */
+    private static final String FLOW_ID = "authn/Twitter";
+
+    /** Query parameters of the request on the current thread */
+    private static final ThreadLocal<Map<String, String>> PARAMETERS = new ThreadLocal<>();
+
+    /** Stub Twitter API */
+    private StubTwitterServer server;
+
+    /** Integration calling the stub */
+    private TwitterIntegration integration;
+
+    /** Executor request tokens are fetched on */
+    private ExecutorService requestTokenExecutor;
+
+    /** Factory of the prototype actions */
+    private DefaultListableBeanFactory beanFactory;
+
+    /** Source of the InitializeTwitterContext instance of each thread */
+    private ThreadLocalTargetSource initializeTargetSource;
+
+    /** Source of the ProcessRedirectFromTwitter instance of each thread */
+    private ThreadLocalTargetSource processTargetSource;
+
+    /** InitializeTwitterContextPerThread */
+    private ProfileAction initializeTwitterContext;
+
+    /** ProcessRedirectFromTwitterPerThread */
+    private ProfileAction processRedirectFromTwitter;
+
+    /** {@inheritDoc} */
+    @Override
+    protected void setUp() throws Exception {
+        this.server = new StubTwitterServer().start();
+        this.integration = new TwitterIntegration()
+            .setConsumerKeys(Collections.singletonList(new TwitterConsumerKey()
+                .setId("default")
+                .setOauthConsumerKey("consumer")
+                .setOauthConsumerSecret(StubTwitterServer.CONSUMER_SECRET)))
+            .setApiBaseUrl(this.server.getBaseUrl());
+        this.integration.initialize();
+        this.requestTokenExecutor = Executors.newFixedThreadPool(THREADS);
+
+        this.beanFactory = new DefaultListableBeanFactory();
+        final RootBeanDefinition initialize = new RootBeanDefinition(InitializeTwitterContext.class);
+        initialize.setScope(BeanDefinition.SCOPE_PROTOTYPE);
+        initialize.setInitMethodName("initialize");
+        initialize.getPropertyValues()
+            .add("twitterIntegration", this.integration)
+            .add("executorService", this.requestTokenExecutor)
+            .add("requestTokenTimeout", 5000L);
+        this.beanFactory.registerBeanDefinition("InitializeTwitterContext", initialize);
+        final RootBeanDefinition process = new RootBeanDefinition(ProcessRedirectFromTwitter.class);
+        process.setScope(BeanDefinition.SCOPE_PROTOTYPE);
+        process.setInitMethodName("initialize");
+        process.getPropertyValues()
+            .add("twitterIntegration", this.integration)
+            .add("httpServletRequest", newProxy(HttpServletRequest.class))
+            .add("internPrincipals", true);
+        this.beanFactory.registerBeanDefinition("ProcessRedirectFromTwitter", process);
+
+        this.initializeTargetSource = newTargetSource("InitializeTwitterContext");
+        this.initializeTwitterContext = newPerThreadProxy(this.initializeTargetSource);
+        this.processTargetSource = newTargetSource("ProcessRedirectFromTwitter");
+        this.processRedirectFromTwitter = newPerThreadProxy(this.processTargetSource);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void tearDown() throws Exception {
+        this.initializeTargetSource.destroy();
+        this.processTargetSource.destroy();
+        this.requestTokenExecutor.shutdownNow();
+        this.integration.destroy();
+        this.server.stop();
+    }
+
+    /**
+     * A single login through the proxies authenticates the user of its request token.
+     *
+     * @throws Exception if the login fails
+     */
+    public void testLogin() throws Exception {
+        login();
+        assertEquals(1, this.processTargetSource.getObjectCount());
+    }
+
+    /**
+     * Logins on many threads at once each authenticate the user of their own request token, and
+     * each thread reuses its own instance of the actions for all of its logins.
+     *
+     * @throws Exception if a login fails
+     */
+    public void testConcurrentLogins() throws Exception {
+        this.server.setLatency(2);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            final List<Future<Void>> results = new ArrayList<>(THREADS);
+            for (int t = 0; t < THREADS; t++) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        for (int i = 0; i < LOGINS; i++) {
+                            login();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            for (final Future<Void> result : results) {
+                result.get(120, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(THREADS, this.initializeTargetSource.getObjectCount());
+        assertEquals(THREADS, this.processTargetSource.getObjectCount());
+    }
+
+    /**
+     * A callback carrying another login's request token is refused and authenticates nobody.
+     *
+     * @throws Exception if a login fails
+     */
+    public void testTokenOfAnotherLogin() throws Exception {
+        final ProfileRequestContext first = newProfileRequestContext();
+        this.initializeTwitterContext.execute(first);
+        final ProfileRequestContext second = newProfileRequestContext();
+        this.initializeTwitterContext.execute(second);
+
+        PARAMETERS.set(callbackParameters(twitterContextOf(first).getRequestToken().getToken()));
+        try {
+            this.processRedirectFromTwitter.execute(second);
+        } finally {
+            PARAMETERS.remove();
+        }
+        assertEquals(AuthnEventIds.NO_CREDENTIALS, second.getSubcontext(EventContext.class).getEvent());
+        assertNull(second.getSubcontext(AuthenticationContext.class).getAuthenticationResult());
+        assertEquals(TwitterContext.NO_USER_ID, twitterContextOf(second).getUserId());
+    }
+
+    /**
+     * Run a login through the per-thread proxies and check that it authenticated the user the
+     * stub issued its request token for, and nobody else.
+     *
+     * @throws Exception if the login fails
+     */
+    private void login() throws Exception {
+        final ProfileRequestContext prc = newProfileRequestContext();
+        this.initializeTwitterContext.execute(prc);
+        assertProceeded(prc);
+
+        final TwitterContext twitterContext = twitterContextOf(prc);
+        final String token = twitterContext.getRequestToken().getToken();
+        final long userId = Long.parseLong(token.substring("rt-".length()));
+
+        PARAMETERS.set(callbackParameters(token));
+        try {
+            this.processRedirectFromTwitter.execute(prc);
+        } finally {
+            PARAMETERS.remove();
+        }
+        assertProceeded(prc);
+
+        assertEquals(userId, twitterContext.getUserId());
+        final AuthenticationResult result = prc.getSubcontext(AuthenticationContext.class).getAuthenticationResult();
+        assertNotNull(result);
+        assertEquals(FLOW_ID, result.getAuthenticationFlowId());
+        assertEquals(Collections.singleton(new TwitterIdPrincipal(userId)),
+                new HashSet<>(result.getSubject().getPrincipals()));
+    }
+
+    /**
+     * Build the query parameters of the callback from Twitter.
+     *
+     * @param token the request token
+     *
+     * @return the parameters
+     */
+    private static Map<String, String> callbackParameters(final String token) {
+        final Map<String, String> parameters = new HashMap<>();
+        parameters.put("oauth_token", token);
+        parameters.put("oauth_verifier", "verifier-" + token);
+        return parameters;
+    }
+
+    /**
+     * Check that the last action signalled no event other than proceed.
+     *
+     * @param prc the profile request context
+     */
+    private static void assertProceeded(final ProfileRequestContext prc) {
+        final EventContext event = prc.getSubcontext(EventContext.class);
+        if (event != null) {
+            assertEquals(EventIds.PROCEED_EVENT_ID, event.getEvent());
+        }
+    }
+
+    /**
+     * Get the Twitter context of a login.
+     *
+     * @param prc the profile request context
+     *
+     * @return the Twitter context
+     */
+    private static TwitterContext twitterContextOf(final ProfileRequestContext prc) {
+        final TwitterContext twitterContext =
+                prc.getSubcontext(AuthenticationContext.class).getSubcontext(TwitterContext.class);
+        assertNotNull(twitterContext);
+        return twitterContext;
+    }
+
+    /**
+     * Build the context of a login attempting the Twitter flow within a Spring Web Flow request.
+     *
+     * @return the profile request context
+     */
+    private static ProfileRequestContext newProfileRequestContext() {
+        final AuthenticationFlowDescriptor flow = new AuthenticationFlowDescriptor();
+        flow.setId(FLOW_ID);
+
+        final ProfileRequestContext prc = new ProfileRequestContext();
+        prc.getSubcontext(AuthenticationContext.class, true).setAttemptedFlow(flow);
+        prc.getSubcontext(SpringRequestContext.class, true).setRequestContext(newProxy(RequestContext.class));
+        return prc;
+    }
+
+    /**
+     * Build a per-thread target source over a prototype bean, as twitter-authn-beans.xml does.
+     *
+     * @param beanName the name of the prototype bean
+     *
+     * @return the target source
+     */
+    private ThreadLocalTargetSource newTargetSource(final String beanName) {
+        final ThreadLocalTargetSource targetSource = new ThreadLocalTargetSource();
+        targetSource.setTargetBeanName(beanName);
+        targetSource.setBeanFactory(this.beanFactory);
+        return targetSource;
+    }
+
+    /**
+     * Build the proxy the flow evaluates, as twitter-authn-beans.xml does.
+     *
+     * @param targetSource the per-thread target source
+     *
+     * @return the proxy
+     */
+    private ProfileAction newPerThreadProxy(final ThreadLocalTargetSource targetSource) {
+        final ProxyFactoryBean proxyFactory = new ProxyFactoryBean();
+        proxyFactory.setTargetSource(targetSource);
+        proxyFactory.setBeanFactory(this.beanFactory);
+        return (ProfileAction) proxyFactory.getObject();
+    }
+
+    /**
+     * Build a stand-in for the servlet and web flow objects of the request on the current thread.
+     * The request answers the parameters of {@link #PARAMETERS}, the flow its execution URL and
+     * external context, and everything else the default of its type.
+     *
+     * @param type the interface to implement
+     * @param <T> the interface
+     *
+     * @return the stand-in
+     */
+    private static <T> T newProxy(final Class<T> type) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        switch (method.getName()) {
+                            case "getParameter":
+                                final Map<String, String> parameters = PARAMETERS.get();
+                                return parameters != null ? parameters.get(args[0]) : null;
+                            case "getScheme":
+                                return "https";
+                            case "getServerName":
+                                return "idp.example.org";
+                            case "getRemoteAddr":
+                                return "127.0.0.1";
+                            case "getFlowExecutionUrl":
+                                return "/idp/profile/SAML2/Redirect/SSO?execution=e1s1";
+                            case "getExternalContext":
+                                return new ServletExternalContext(newProxy(ServletContext.class),
+                                        newProxy(HttpServletRequest.class), newProxy(HttpServletResponse.class));
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            case "equals":
+                                return proxy == args[0];
+                            case "toString":
+                                return type.getSimpleName();
+                            default:
+                                if (method.getReturnType() == boolean.class) {
+                                    return false;
+                                } else if (method.getReturnType() == int.class) {
+                                    return 0;
+                                } else if (method.getReturnType() == long.class) {
+                                    return 0L;
+                                }
+                                return null;
+                        }
+                    }
+                }));
+    }
+}
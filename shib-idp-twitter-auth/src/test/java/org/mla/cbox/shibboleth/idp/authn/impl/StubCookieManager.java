@@ -0,0 +1,47 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.shibboleth.utilities.java.support.net.CookieManager;
+
+/**
+ * A stand-in for the cookies of a browser, holding whatever is set on the response and sending
+ * it back with the next request, without a servlet request or response behind it.
+ */
+public class StubCookieManager extends CookieManager {
+    /** Cookies by name */
+    private final Map<String, String> cookies = new HashMap<>();
+
+    /** {@inheritDoc} */
+    @Override
+    public void addCookie(final String name, final String value) {
+        this.cookies.put(name, value);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getCookieValue(final String name, final String defValue) {
+        final String value = this.cookies.get(name);
+        return value != null ? value : defValue;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void unsetCookie(final String name) {
+        this.cookies.remove(name);
+    }
+}
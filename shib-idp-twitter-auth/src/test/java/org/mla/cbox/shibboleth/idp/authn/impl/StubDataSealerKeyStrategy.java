@@ -0,0 +1,82 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.security.KeyException;
+import java.security.NoSuchAlgorithmException;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import net.shibboleth.utilities.java.support.collection.Pair;
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.security.DataSealer;
+import net.shibboleth.utilities.java.support.security.DataSealerKeyStrategy;
+
+/**
+ * A key strategy with one AES key generated for it, in place of the keystore of a deployment.
+ */
+public class StubDataSealerKeyStrategy implements DataSealerKeyStrategy {
+    /** Name of the key */
+    private final String name;
+
+    /** The key */
+    private final SecretKey key;
+
+    /**
+     * Constructor
+     *
+     * @param keyName name of the key
+     *
+     * @throws NoSuchAlgorithmException if AES keys cannot be generated
+     */
+    public StubDataSealerKeyStrategy(final String keyName) throws NoSuchAlgorithmException {
+        final KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(128);
+        this.name = keyName;
+        this.key = generator.generateKey();
+    }
+
+    /**
+     * Build an initialized data sealer over a freshly generated key.
+     *
+     * @param keyName name of the key
+     *
+     * @return the data sealer
+     *
+     * @throws NoSuchAlgorithmException if AES keys cannot be generated
+     * @throws ComponentInitializationException if the sealer cannot be initialized
+     */
+    public static DataSealer newDataSealer(final String keyName)
+            throws NoSuchAlgorithmException, ComponentInitializationException {
+        final DataSealer sealer = new DataSealer();
+        sealer.setKeyStrategy(new StubDataSealerKeyStrategy(keyName));
+        sealer.initialize();
+        return sealer;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Pair<String, SecretKey> getDefaultKey() {
+        return new Pair<>(this.name, this.key);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public SecretKey getKey(final String keyName) throws KeyException {
+        if (!this.name.equals(keyName)) {
+            throw new KeyException("No key named " + keyName);
+        }
+        return this.key;
+    }
+}
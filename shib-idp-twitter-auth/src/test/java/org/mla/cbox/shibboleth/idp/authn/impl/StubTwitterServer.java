@@ -0,0 +1,607 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.CharStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for the Twitter API serving the OAuth 1.0a token endpoints, the OAuth 2.0
+ * authorization code flow and the users endpoint.
+ *
+ * The OAuth 1.0a endpoints check the HMAC-SHA1 signature of each call against the consumer secret
+ * {@link #CONSUMER_SECRET}, shared by every consumer key, and the secret of the request token, and
+ * answer 401 to a call that is not signed correctly. The request token response confirms the
+ * callback unless {@link #setCallbackConfirmed(boolean)} says otherwise.
+ *
+ * Request token N is answered with access token N for user N, and each request token can be
+ * exchanged once, so a login that presents somebody else's token gets somebody else's user ID
+ * and a token presented twice is refused. The calls of each consumer key to these endpoints are
+ * counted, and can be rate limited with {@link #setRateLimit(String, int, boolean)}, with or without
+ * the x-rate-limit headers Twitter sends for some endpoints. The users endpoint at {@link #USERS_PATH} answers
+ * the profile of any positive user ID to the bearer token {@link #BEARER_TOKEN}.
+ *
+ * The OAuth 2.0 authorization page at {@link #OAUTH2_AUTHORIZE_PATH} only accepts the client
+ * {@link #OAUTH2_CLIENT_ID} with the redirect URI {@link #OAUTH2_REDIRECT_URI} registered for it, as
+ * Twitter does, and answers with a redirect carrying code N for user N. A code can be exchanged
+ * once, with that same redirect URI and the PKCE verifier of its challenge. The endpoints
+ * can be slowed down with {@link #setLatency(long)} and record the highest number of calls they
+ * served at once. The latency and outcome of the next request token calls can be scripted one by
+ * one with {@link #scriptRequestToken(long, boolean)}. Further endpoints can be added with {@link #handle(String, HttpHandler)}.
+ */
+public class StubTwitterServer {
+    /** Path of the users endpoint */
+    public static final String USERS_PATH = "/1.1/users/show.json";
+
+    /** Bearer token the users endpoint accepts */
+    public static final String BEARER_TOKEN = "bearer";
+
+    /** Consumer secret of every consumer key */
+    public static final String CONSUMER_SECRET = "secret";
+
+    /** Path of the OAuth 2.0 authorization page */
+    public static final String OAUTH2_AUTHORIZE_PATH = "/i/oauth2/authorize";
+
+    /** OAuth 2.0 client ID the authorization page accepts */
+    public static final String OAUTH2_CLIENT_ID = "client";
+
+    /** Redirect URI registered for {@link #OAUTH2_CLIENT_ID} */
+    public static final String OAUTH2_REDIRECT_URI = "https://idp.example.org/idp/Authn/Twitter/OAuth2";
+
+    /** Encoding of OAuth 1.0a signatures */
+    private static final BaseEncoding BASE64 = BaseEncoding.base64();
+
+    /** Encoding of PKCE challenges */
+    private static final BaseEncoding BASE64_URL = BaseEncoding.base64Url().omitPadding();
+
+    /** Extracts the user ID from a users endpoint query */
+    private static final Pattern USER_ID_PATTERN = Pattern.compile("(?:^|&)user_id=(\\d+)");
+
+    /** Extracts the consumer key from an OAuth Authorization header */
+    private static final Pattern CONSUMER_KEY_PATTERN = Pattern.compile("oauth_consumer_key=\"([^\"]*)\"");
+
+    /** Extracts each parameter from an OAuth Authorization header */
+    private static final Pattern OAUTH_PARAMETER_PATTERN = Pattern.compile("(\\w+)=\"([^\"]*)\"");
+
+    /** Extracts the token from an OAuth Authorization header */
+    private static final Pattern TOKEN_PATTERN = Pattern.compile("oauth_token=\"rt-(\\d+)\"");
+
+    /** HTTP server */
+    private final HttpServer server;
+
+    /** Threads serving requests */
+    private final ExecutorService executor;
+
+    /** Number of the next request token */
+    private final AtomicLong nextToken = new AtomicLong(1);
+
+    /** Request tokens issued and not yet exchanged */
+    private final ConcurrentMap<Long, Boolean> outstanding = new ConcurrentHashMap<>();
+
+    /** OAuth 1.0a calls made with each consumer key */
+    private final ConcurrentMap<String, AtomicInteger> oauthCalls = new ConcurrentHashMap<>();
+
+    /** Calls left to each rate limited consumer key */
+    private final ConcurrentMap<String, AtomicInteger> remainingCalls = new ConcurrentHashMap<>();
+
+    /** Rate limited consumer keys whose budget is reported in x-rate-limit headers */
+    private final Set<String> reportedKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /** Whether request token responses confirm the callback */
+    private volatile boolean callbackConfirmed = true;
+
+    /** PKCE challenge of each authorization code issued and not yet exchanged */
+    private final ConcurrentMap<Long, String> codeChallenges = new ConcurrentHashMap<>();
+
+    /** Calls made to the users endpoint */
+    private final AtomicInteger usersCalls = new AtomicInteger();
+
+    /** Time in milliseconds the endpoints take to answer */
+    private volatile long latency;
+
+    /** Latency and failure, 1 or 0, of the next request token calls, in the order they arrive */
+    private final Queue<long[]> requestTokenScript = new ConcurrentLinkedQueue<>();
+
+    /** Request token calls answered */
+    private final AtomicInteger requestTokenCalls = new AtomicInteger();
+
+    /** Calls being served */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /** Highest number of calls served at once */
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    /**
+     * Constructor
+     *
+     * @throws IOException if the server could not be bound
+     */
+    public StubTwitterServer() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.executor = Executors.newCachedThreadPool();
+        this.server.setExecutor(this.executor);
+
+        handle("/oauth/request_token", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                final long[] script = requestTokenScript.poll();
+                delay(script != null ? script[0] : latency);
+                requestTokenCalls.incrementAndGet();
+                if (rateLimited(exchange) || !verifySignature(exchange, null)) {
+                    return;
+                }
+                if (script != null && script[1] != 0) {
+                    respond(exchange, 503, "Over capacity");
+                    return;
+                }
+                final long n = nextToken.getAndIncrement();
+                outstanding.put(n, Boolean.TRUE);
+                respond(exchange, 200, "oauth_token=rt-" + n + "&oauth_token_secret=rs-" + n
+                        + "&oauth_callback_confirmed=" + callbackConfirmed);
+            }
+        });
+        handle("/oauth/access_token", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                delay();
+                if (rateLimited(exchange)) {
+                    return;
+                }
+                final String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+                final Matcher matcher = TOKEN_PATTERN.matcher(authorization != null ? authorization : "");
+                if (!matcher.find()) {
+                    respond(exchange, 401, "Invalid request token");
+                    return;
+                }
+                if (!verifySignature(exchange, "rs-" + matcher.group(1))) {
+                    return;
+                }
+                if (outstanding.remove(Long.valueOf(matcher.group(1))) == null) {
+                    respond(exchange, 401, "Invalid request token");
+                    return;
+                }
+                final String n = matcher.group(1);
+                respond(exchange, 200, "oauth_token=at-" + n + "&oauth_token_secret=as-" + n + "&user_id=" + n
+                        + "&screen_name=user" + n);
+            }
+        });
+        handle(OAUTH2_AUTHORIZE_PATH, new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                delay();
+                final Map<String, String> query = parse(exchange.getRequestURI().getRawQuery());
+                final String state = query.get("state");
+                final String challenge = query.get("code_challenge");
+                if (!"code".equals(query.get("response_type")) || !OAUTH2_CLIENT_ID.equals(query.get("client_id"))
+                        || !OAUTH2_REDIRECT_URI.equals(query.get("redirect_uri"))
+                        || !"S256".equals(query.get("code_challenge_method")) || challenge == null || state == null) {
+                    respond(exchange, 400, "Invalid authorization request");
+                    return;
+                }
+                final long n = nextToken.getAndIncrement();
+                codeChallenges.put(n, challenge);
+                exchange.getResponseHeaders().set("Location", OAUTH2_REDIRECT_URI + "?state="
+                        + URLEncoder.encode(state, "UTF-8") + "&code=c-" + n);
+                respond(exchange, 302, "");
+            }
+        });
+        handle("/2/oauth2/token", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                delay();
+                final Map<String, String> form;
+                try (final InputStreamReader body =
+                        new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+                    form = parse(CharStreams.toString(body));
+                }
+                final String code = form.get("code");
+                final String verifier = form.get("code_verifier");
+                final String challenge = code != null && code.startsWith("c-")
+                        ? codeChallenges.remove(Long.valueOf(code.substring(2))) : null;
+                if (!"authorization_code".equals(form.get("grant_type"))
+                        || !OAUTH2_CLIENT_ID.equals(form.get("client_id"))
+                        || !OAUTH2_REDIRECT_URI.equals(form.get("redirect_uri"))
+                        || challenge == null || verifier == null
+                        || !challenge.equals(BASE64_URL.encode(
+                                Hashing.sha256().hashString(verifier, StandardCharsets.US_ASCII).asBytes()))) {
+                    respond(exchange, 400, "{\"error\":\"invalid_request\"}");
+                    return;
+                }
+                respond(exchange, 200, "{\"token_type\":\"bearer\",\"access_token\":\"ot-" + code.substring(2)
+                        + "\",\"scope\":\"tweet.read users.read\"}");
+            }
+        });
+        handle("/2/users/me", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                delay();
+                final String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+                if (authorization == null || !authorization.matches("Bearer ot-\\d+")) {
+                    respond(exchange, 401, "{\"title\":\"Unauthorized\"}");
+                    return;
+                }
+                final String n = authorization.substring("Bearer ot-".length());
+                respond(exchange, 200, "{\"data\":{\"id\":\"" + n + "\",\"name\":\"User " + n
+                        + "\",\"username\":\"user" + n + "\"}}");
+            }
+        });
+        handle(USERS_PATH, new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                usersCalls.incrementAndGet();
+                delay();
+                if (!("Bearer " + BEARER_TOKEN).equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+                    respond(exchange, 401, "{\"errors\":[{\"code\":89}]}");
+                    return;
+                }
+                final String query = exchange.getRequestURI().getRawQuery();
+                final Matcher matcher = USER_ID_PATTERN.matcher(query != null ? query : "");
+                if (!matcher.find() || Long.parseLong(matcher.group(1)) <= 0) {
+                    respond(exchange, 404, "{\"errors\":[{\"code\":50}]}");
+                    return;
+                }
+                final String n = matcher.group(1);
+                respond(exchange, 200, "{\"id\":" + n + ",\"screen_name\":\"user" + n + "\",\"name\":\"User " + n
+                        + "\",\"profile_image_url_https\":\"https://pbs.twimg.com/profile_images/" + n + ".jpg\"}");
+            }
+        });
+    }
+
+    /**
+     * Start serving.
+     *
+     * @return this server
+     */
+    public StubTwitterServer start() {
+        this.server.start();
+        return this;
+    }
+
+    /** Stop serving. */
+    public void stop() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Get the base URL to configure as the API base URL.
+     *
+     * @return the base URL
+     */
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + this.server.getAddress().getPort();
+    }
+
+    /**
+     * Get the URL of the users endpoint.
+     *
+     * @return the URL
+     */
+    public String getUsersEndpoint() {
+        return getBaseUrl() + USERS_PATH;
+    }
+
+    /**
+     * Get the number of calls made to the users endpoint.
+     *
+     * @return the number of calls
+     */
+    public int getUsersCalls() {
+        return this.usersCalls.get();
+    }
+
+    /**
+     * Set the time the endpoints take to answer.
+     *
+     * @param millis the latency in milliseconds
+     */
+    public void setLatency(final long millis) {
+        this.latency = millis;
+    }
+
+    /**
+     * Script the next request token call not yet scripted, overriding the latency and, if it
+     * fails, answering 503 instead of a request token.
+     *
+     * @param millis the latency of the call in milliseconds
+     * @param fails whether the call fails
+     */
+    public void scriptRequestToken(final long millis, final boolean fails) {
+        this.requestTokenScript.add(new long[] {millis, fails ? 1 : 0});
+    }
+
+    /**
+     * Get the number of request token calls answered, whether they succeeded or not.
+     *
+     * @return the number of calls
+     */
+    public int getRequestTokenCalls() {
+        return this.requestTokenCalls.get();
+    }
+
+    /**
+     * Allow a consumer key a number of further calls to the OAuth 1.0a endpoints, after which they
+     * are answered 429.
+     *
+     * @param consumerKey the consumer key
+     * @param calls the number of calls allowed
+     * @param reported whether responses report the calls left in x-rate-limit headers
+     */
+    public void setRateLimit(final String consumerKey, final int calls, final boolean reported) {
+        this.remainingCalls.put(consumerKey, new AtomicInteger(calls));
+        if (reported) {
+            this.reportedKeys.add(consumerKey);
+        } else {
+            this.reportedKeys.remove(consumerKey);
+        }
+    }
+
+    /**
+     * Set whether request token responses confirm the callback, as OAuth 1.0a providers do.
+     *
+     * @param confirmed whether to confirm the callback
+     */
+    public void setCallbackConfirmed(final boolean confirmed) {
+        this.callbackConfirmed = confirmed;
+    }
+
+    /**
+     * Get the number of calls made to the OAuth 1.0a endpoints with a consumer key, including
+     * those refused for the rate limit.
+     *
+     * @param consumerKey the consumer key
+     *
+     * @return the number of calls
+     */
+    public int getOAuthCalls(final String consumerKey) {
+        final AtomicInteger calls = this.oauthCalls.get(consumerKey);
+        return calls != null ? calls.get() : 0;
+    }
+
+    /**
+     * Get the highest number of calls served at once and start counting afresh.
+     *
+     * @return the highest number of concurrent calls since the last reset
+     */
+    public int resetMaxInFlight() {
+        return this.maxInFlight.getAndSet(this.inFlight.get());
+    }
+
+    /**
+     * Serve a path with the given handler.
+     *
+     * @param path the path
+     * @param handler the handler
+     */
+    public void handle(final String path, final HttpHandler handler) {
+        this.server.createContext(path, handler);
+    }
+
+    /**
+     * Count a call to the OAuth 1.0a endpoints against its consumer key and answer 429 if the key
+     * has no calls left.
+     *
+     * @param exchange the exchange
+     *
+     * @return true if the call was answered for the rate limit
+     *
+     * @throws IOException if the response could not be written
+     */
+    private boolean rateLimited(final HttpExchange exchange) throws IOException {
+        final String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        final Matcher matcher = CONSUMER_KEY_PATTERN.matcher(authorization != null ? authorization : "");
+        if (!matcher.find()) {
+            return false;
+        }
+        final String consumerKey = matcher.group(1);
+        this.oauthCalls.putIfAbsent(consumerKey, new AtomicInteger());
+        this.oauthCalls.get(consumerKey).incrementAndGet();
+
+        final AtomicInteger remaining = this.remainingCalls.get(consumerKey);
+        if (remaining == null) {
+            return false;
+        }
+        final int left = remaining.decrementAndGet();
+        if (this.reportedKeys.contains(consumerKey)) {
+            exchange.getResponseHeaders().set("x-rate-limit-remaining", String.valueOf(Math.max(0, left)));
+            exchange.getResponseHeaders().set("x-rate-limit-reset",
+                    String.valueOf(TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + 900));
+        }
+        if (left < 0) {
+            respond(exchange, 429, "Rate limit exceeded");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Check the OAuth 1.0a signature of a call and answer 401 if it is wrong. The signature base
+     * string is built here from the request as received, independently of the client's signer.
+     *
+     * @param exchange the exchange
+     * @param tokenSecret the secret of the token the call is made with, or null
+     *
+     * @return true if the signature is valid
+     *
+     * @throws IOException if the request could not be read or the response could not be written
+     */
+    private boolean verifySignature(final HttpExchange exchange, final String tokenSecret) throws IOException {
+        final String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        final Map<String, String> oauth = new HashMap<>();
+        if (authorization != null && authorization.startsWith("OAuth ")) {
+            final Matcher matcher = OAUTH_PARAMETER_PATTERN.matcher(authorization);
+            while (matcher.find()) {
+                oauth.put(matcher.group(1), URLDecoder.decode(matcher.group(2), "UTF-8"));
+            }
+        }
+        final String signature = oauth.remove("oauth_signature");
+        if (signature == null || !"HMAC-SHA1".equals(oauth.get("oauth_signature_method"))
+                || oauth.get("oauth_nonce") == null || oauth.get("oauth_timestamp") == null) {
+            respond(exchange, 401, "Missing OAuth parameters");
+            return false;
+        }
+
+        final Map<String, String> parameters = new TreeMap<>();
+        for (final Map.Entry<String, String> entry : oauth.entrySet()) {
+            parameters.put(encode(entry.getKey()), encode(entry.getValue()));
+        }
+        try (final InputStreamReader body =
+                new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+            for (final Map.Entry<String, String> entry : parse(CharStreams.toString(body)).entrySet()) {
+                parameters.put(encode(entry.getKey()), encode(entry.getValue()));
+            }
+        }
+        final StringBuilder normalized = new StringBuilder();
+        for (final Map.Entry<String, String> entry : parameters.entrySet()) {
+            normalized.append(normalized.length() > 0 ? "&" : "").append(entry.getKey()).append('=')
+                .append(entry.getValue());
+        }
+        final String base = exchange.getRequestMethod() + '&'
+                + encode(getBaseUrl() + exchange.getRequestURI().getPath()) + '&' + encode(normalized.toString());
+        final String key = encode(CONSUMER_SECRET) + '&' + (tokenSecret != null ? encode(tokenSecret) : "");
+
+        final String expected;
+        try {
+            final Mac mac = Mac.getInstance("HmacSHA1");
+            mac.init(new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), "HmacSHA1"));
+            expected = BASE64.encode(mac.doFinal(base.getBytes(StandardCharsets.UTF_8)));
+        } catch (final GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+        if (!expected.equals(signature)) {
+            respond(exchange, 401, "Invalid signature");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Percent-encode a value as RFC 5849 requires.
+     *
+     * @param value the value
+     *
+     * @return the encoded value
+     *
+     * @throws IOException if UTF-8 is not supported
+     */
+    private static String encode(final String value) throws IOException {
+        return URLEncoder.encode(value, "UTF-8").replace("+", "%20").replace("*", "%2A").replace("%7E", "~");
+    }
+
+    /**
+     * Hold a call for the configured latency, counting it as in flight meanwhile.
+     *
+     * @throws IOException if interrupted
+     */
+    private void delay() throws IOException {
+        delay(this.latency);
+    }
+
+    /**
+     * Hold a call for a time, counting it as in flight meanwhile.
+     *
+     * @param millis the time in milliseconds
+     *
+     * @throws IOException if interrupted
+     */
+    private void delay(final long millis) throws IOException {
+        final int current = this.inFlight.incrementAndGet();
+        try {
+            int max = this.maxInFlight.get();
+            while (current > max && !this.maxInFlight.compareAndSet(max, current)) {
+                max = this.maxInFlight.get();
+            }
+            if (millis > 0) {
+                TimeUnit.MILLISECONDS.sleep(millis);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } finally {
+            this.inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * Parse a query string or form.
+     *
+     * @param raw the encoded parameters, or null
+     *
+     * @return the parameters by name
+     *
+     * @throws IOException if the parameters cannot be decoded
+     */
+    private static Map<String, String> parse(final String raw) throws IOException {
+        final Map<String, String> parameters = new HashMap<>();
+        if (raw != null && !raw.isEmpty()) {
+            for (final String parameter : raw.split("&")) {
+                final int equals = parameter.indexOf('=');
+                if (equals > 0) {
+                    parameters.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"),
+                            URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+                }
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * Send a response and close the exchange.
+     *
+     * @param exchange the exchange
+     * @param status the HTTP status code
+     * @param body the response body
+     *
+     * @throws IOException if the response could not be written
+     */
+    public static void respond(final HttpExchange exchange, final int status, final String body) throws IOException {
+        final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length > 0 ? bytes.length : -1);
+        try (final OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link TwitterAccountIndexBuilder}, reading the indexes it writes back through
+ * {@link MappedTwitterAccountIndex}.
+ */
+public class TwitterAccountIndexBuilderTest extends TestCase {
+    /** Directory holding the inputs, the indexes and the run files */
+    private File directory;
+
+    /** {@inheritDoc} */
+    @Override
+    protected void setUp() throws Exception {
+        this.directory = Files.createTempDirectory("twitter-accounts-test").toFile();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void tearDown() throws Exception {
+        final File[] files = this.directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                Files.delete(file.toPath());
+            }
+        }
+        Files.delete(this.directory.toPath());
+    }
+
+    /**
+     * CSV and TSV inputs split into many runs give one link per ID, the last one given.
+     *
+     * @throws Exception if the index cannot be built or read
+     */
+    public void testBuild() throws Exception {
+        final File csv = write("accounts.csv",
+                "twitter_id,username",
+                "30,carol",
+                "10,alice",
+                "\"20\",\"bob\"",
+                "not an id,mallory",
+                "-5,negative",
+                "10,alice2",
+                "40,dave");
+        final File tsv = write("more.tsv",
+                "20\tbobby",
+                "50\t\"eve, jr\"",
+                "10\talice3");
+        final File output = new File(this.directory, "accounts.idx");
+
+        final int accounts = new TwitterAccountIndexBuilder(output, Arrays.asList(csv, tsv))
+            .setChunkSize(2)
+            .setTmpDirectory(this.directory)
+            .build();
+        assertEquals(5, accounts);
+
+        final MappedTwitterAccountIndex index = load(output);
+        try {
+            assertEquals(5, index.getSize());
+            assertEquals("alice3", index.getUsername(10));
+            assertEquals("bobby", index.getUsername(20));
+            assertEquals("carol", index.getUsername(30));
+            assertEquals("dave", index.getUsername(40));
+            assertEquals("eve, jr", index.getUsername(50));
+            assertNull(index.getUsername(-5));
+            assertNull(index.getUsername(15));
+            assertNull(index.getUsername(60));
+        } finally {
+            index.destroy();
+        }
+        assertEquals("Run files were left behind", 3, this.directory.list().length);
+    }
+
+    /**
+     * A delta applied to a base index changes, adds and removes links, and leaves the rest.
+     *
+     * @throws Exception if an index cannot be built or read
+     */
+    public void testDeltaOnBase() throws Exception {
+        final File base = new File(this.directory, "base.idx");
+        final File full = write("full.csv", "1,one", "2,two", "3,three", "4,four");
+        new TwitterAccountIndexBuilder(base, Arrays.asList(full))
+            .setTmpDirectory(this.directory)
+            .build();
+
+        final File delta = write("delta.csv", "2,", "3,drei", "5,five", "4,\"\"", "6,six", "6,");
+        final File output = new File(this.directory, "accounts.idx");
+        final int accounts = new TwitterAccountIndexBuilder(output, Arrays.asList(delta))
+            .setBase(base)
+            .setChunkSize(1)
+            .setTmpDirectory(this.directory)
+            .build();
+        assertEquals(3, accounts);
+
+        final MappedTwitterAccountIndex index = load(output);
+        try {
+            assertEquals("one", index.getUsername(1));
+            assertNull(index.getUsername(2));
+            assertEquals("drei", index.getUsername(3));
+            assertNull(index.getUsername(4));
+            assertEquals("five", index.getUsername(5));
+            assertNull(index.getUsername(6));
+        } finally {
+            index.destroy();
+        }
+    }
+
+    /**
+     * Merging in several passes within a small fan-in gives the same index as a single merge,
+     * and the index holds the last link given for every ID.
+     *
+     * @throws Exception if an index cannot be built or read
+     */
+    public void testMultiPassMerge() throws Exception {
+        final File base = new File(this.directory, "base.idx");
+        new TwitterAccountIndexBuilder(base, Arrays.asList(write("base.csv", "1,base1", "301,base301")))
+            .setTmpDirectory(this.directory)
+            .build();
+        final Map<Long, String> expected = new HashMap<>();
+        expected.put(1L, "base1");
+        expected.put(301L, "base301");
+
+        final Random random = new Random(42);
+        final List<File> inputs = new ArrayList<>();
+        for (int f = 0; f < 3; f++) {
+            final List<String> lines = new ArrayList<>();
+            for (int i = 0; i < 400; i++) {
+                final long twitterId = 1 + random.nextInt(300);
+                final String username = random.nextInt(5) == 0 ? "" : "user" + random.nextInt(100000);
+                lines.add(twitterId + "," + username);
+                if (username.isEmpty()) {
+                    expected.remove(twitterId);
+                } else {
+                    expected.put(twitterId, username);
+                }
+            }
+            inputs.add(write("input" + f + ".csv", lines.toArray(new String[lines.size()])));
+        }
+        final File single = new File(this.directory, "single.idx");
+        new TwitterAccountIndexBuilder(single, inputs)
+            .setBase(base)
+            .setChunkSize(7)
+            .setMaxFanIn(1000)
+            .setTmpDirectory(this.directory)
+            .build();
+        final File multiPass = new File(this.directory, "multi.idx");
+        new TwitterAccountIndexBuilder(multiPass, inputs)
+            .setBase(base)
+            .setChunkSize(7)
+            .setMaxFanIn(3)
+            .setTmpDirectory(this.directory)
+            .build();
+        assertTrue(Arrays.equals(Files.readAllBytes(single.toPath()), Files.readAllBytes(multiPass.toPath())));
+
+        final MappedTwitterAccountIndex index = load(multiPass);
+        try {
+            assertEquals(expected.size(), index.getSize());
+            for (long twitterId = 0; twitterId <= 302; twitterId++) {
+                assertEquals("ID " + twitterId, expected.get(twitterId), index.getUsername(twitterId));
+            }
+        } finally {
+            index.destroy();
+        }
+    }
+
+    /**
+     * A fan-in below two cannot merge.
+     */
+    public void testMaxFanInTooSmall() {
+        try {
+            new TwitterAccountIndexBuilder(new File(this.directory, "accounts.idx"), new ArrayList<File>())
+                .setMaxFanIn(1);
+            fail("Fan-in of 1 accepted");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Write an input file.
+     *
+     * @param name the file name
+     * @param lines the lines
+     *
+     * @return the file
+     *
+     * @throws IOException if the file cannot be written
+     */
+    private File write(final String name, final String... lines) throws IOException {
+        final File file = new File(this.directory, name);
+        Files.write(file.toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+        return file;
+    }
+
+    /**
+     * Load an index without checking it for changes.
+     *
+     * @param file the index file
+     *
+     * @return the initialized index
+     *
+     * @throws Exception if the index cannot be loaded
+     */
+    private static MappedTwitterAccountIndex load(final File file) throws Exception {
+        final MappedTwitterAccountIndex index = new MappedTwitterAccountIndex()
+            .setFile(file)
+            .setCheckInterval(0);
+        index.initialize();
+        return index;
+    }
+}
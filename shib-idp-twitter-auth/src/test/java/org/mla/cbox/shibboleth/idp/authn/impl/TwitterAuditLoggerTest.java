@@ -0,0 +1,119 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link TwitterAuditLogger}.
+ */
+public class TwitterAuditLoggerTest extends TestCase {
+
+    /**
+     * Events are written in the background without waiting for shutdown.
+     *
+     * @throws Exception if the logger cannot be initialized
+     */
+    public void testWritesInBackground() throws Exception {
+        final TwitterAuditLogger logger = new TwitterAuditLogger().setFlushInterval(10);
+        logger.initialize();
+        try {
+            for (int i = 0; i < 100; i++) {
+                assertTrue(logger.log(newEvent(i)));
+            }
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (logger.getWrittenEvents() < 100 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(100, logger.getWrittenEvents());
+            assertTrue(writerAlive());
+        } finally {
+            logger.destroy();
+        }
+    }
+
+    /**
+     * Destroying the logger writes every queued event, however long the writer would otherwise
+     * sleep, and stops the writer; events that did not fit are counted as dropped.
+     *
+     * @throws Exception if the logger cannot be initialized
+     */
+    public void testDrainsAndStopsOnDestroy() throws Exception {
+        final TwitterAuditLogger logger = new TwitterAuditLogger()
+            .setCapacity(16)
+            .setBatchSize(4)
+            .setFlushInterval(600000);
+        logger.initialize();
+        assertTrue(writerAlive());
+
+        /* The writer found nothing to write and is asleep for the flush interval */
+        Thread.sleep(100);
+        int accepted = 0;
+        for (int i = 0; i < 40; i++) {
+            if (logger.log(newEvent(i))) {
+                accepted++;
+            }
+        }
+        assertTrue(logger.getDroppedEvents() > 0);
+
+        final long start = System.nanoTime();
+        logger.destroy();
+        assertTrue("Shutdown waited for the flush interval", System.nanoTime() - start < 5000000000L);
+        assertFalse(writerAlive());
+        assertEquals(accepted, logger.getWrittenEvents());
+        assertEquals(40, logger.getWrittenEvents() + logger.getDroppedEvents());
+    }
+
+    /**
+     * Capacities that are not powers of two are refused.
+     */
+    public void testCapacity() {
+        try {
+            new TwitterAuditLogger().setCapacity(100);
+            fail("Capacity 100 accepted");
+        } catch (final RuntimeException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Build an audit event.
+     *
+     * @param userId the Twitter user ID
+     *
+     * @return the event
+     */
+    private static TwitterAuditEvent newEvent(final long userId) {
+        return new TwitterAuditEvent()
+            .setSource(TwitterAuditEvent.SOURCE_TWITTER)
+            .setOutcome("success")
+            .setUserId(userId)
+            .setConsumerKeyId("default")
+            .setRequestTokenTime(12);
+    }
+
+    /**
+     * Whether a writer thread is running.
+     *
+     * @return true if a thread of the writer's name is alive
+     */
+    private static boolean writerAlive() {
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            if ("TwitterAuditWriter".equals(thread.getName()) && thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link TwitterAuditRingBuffer}.
+ */
+public class TwitterAuditRingBufferTest extends TestCase {
+    /** Producer threads */
+    private static final int PRODUCERS = 8;
+
+    /** Elements offered by each producer */
+    private static final int OFFERS = 50000;
+
+    /**
+     * Elements come out in order, a full buffer refuses more, and slots are reused after wrapping.
+     */
+    public void testSingleThread() {
+        final TwitterAuditRingBuffer<Integer> buffer = new TwitterAuditRingBuffer<>(4);
+        assertNull(buffer.poll());
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 4; i++) {
+                assertTrue(buffer.offer(round * 10 + i));
+            }
+            assertFalse(buffer.offer(-1));
+            for (int i = 0; i < 4; i++) {
+                assertEquals(Integer.valueOf(round * 10 + i), buffer.poll());
+            }
+            assertNull(buffer.poll());
+        }
+    }
+
+    /**
+     * Capacities that are not powers of two are refused.
+     */
+    public void testCapacity() {
+        for (final int capacity : new int[] {0, 1, 3, 6, -8}) {
+            try {
+                new TwitterAuditRingBuffer<Integer>(capacity);
+                fail("Capacity " + capacity + " accepted");
+            } catch (final IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * With many producers and a consumer running at once, the consumer sees every accepted element
+     * exactly once and in each producer's order, and accepted and refused elements add up to the
+     * elements offered.
+     *
+     * @throws Exception if a thread fails
+     */
+    public void testConcurrentProducers() throws Exception {
+        final TwitterAuditRingBuffer<Integer> buffer = new TwitterAuditRingBuffer<>(64);
+        final BitSet[] accepted = new BitSet[PRODUCERS];
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean producing = new AtomicBoolean(true);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(PRODUCERS + 1);
+        try {
+            final Future<List<Integer>> consumer = executor.submit(new Callable<List<Integer>>() {
+                @Override
+                public List<Integer> call() throws Exception {
+                    final List<Integer> delivered = new ArrayList<>();
+                    start.await();
+                    while (true) {
+                        final boolean done = !producing.get();
+                        Integer element;
+                        while ((element = buffer.poll()) != null) {
+                            delivered.add(element);
+                        }
+                        if (done) {
+                            return delivered;
+                        }
+                        Thread.yield();
+                    }
+                }
+            });
+            final List<Future<?>> producers = new ArrayList<>(PRODUCERS);
+            for (int p = 0; p < PRODUCERS; p++) {
+                final int producer = p;
+                accepted[p] = new BitSet(OFFERS);
+                producers.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        for (int i = 0; i < OFFERS; i++) {
+                            if (buffer.offer(producer * OFFERS + i)) {
+                                accepted[producer].set(i);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            for (final Future<?> producer : producers) {
+                producer.get(60, TimeUnit.SECONDS);
+            }
+            producing.set(false);
+            final List<Integer> delivered = consumer.get(60, TimeUnit.SECONDS);
+
+            long acceptedCount = 0;
+            long refusedCount = 0;
+            for (final BitSet bits : accepted) {
+                acceptedCount += bits.cardinality();
+                refusedCount += OFFERS - bits.cardinality();
+            }
+            assertEquals((long) PRODUCERS * OFFERS, acceptedCount + refusedCount);
+            assertEquals(acceptedCount, delivered.size());
+
+            final BitSet[] seen = new BitSet[PRODUCERS];
+            final int[] last = new int[PRODUCERS];
+            for (int p = 0; p < PRODUCERS; p++) {
+                seen[p] = new BitSet(OFFERS);
+                last[p] = -1;
+            }
+            for (final Integer element : delivered) {
+                final int producer = element / OFFERS;
+                final int i = element % OFFERS;
+                assertTrue("Element " + element + " was not accepted", accepted[producer].get(i));
+                assertFalse("Element " + element + " delivered twice", seen[producer].get(i));
+                assertTrue("Element " + element + " out of order", i > last[producer]);
+                seen[producer].set(i);
+                last[producer] = i;
+            }
+            for (int p = 0; p < PRODUCERS; p++) {
+                assertEquals(accepted[p], seen[p]);
+            }
+            assertNull(buffer.poll());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import junit.framework.TestCase;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Tests for {@link TwitterCircuitBreaker}, reporting into {@link TwitterMetrics}.
+ */
+public class TwitterCircuitBreakerTest extends TestCase {
+    /** Prefix of the metric names */
+    private static final String PREFIX = "twitter";
+
+    /** Number of recent calls considered */
+    private static final int WINDOW_SIZE = 4;
+
+    /** Number of probe calls allowed while half-open */
+    private static final int PROBES = 2;
+
+    /** Slow call threshold in milliseconds */
+    private static final long SLOW = 1000;
+
+    /** Open duration in milliseconds */
+    private static final long OPEN_DURATION = 50;
+
+    /** Metric registry */
+    private MetricRegistry registry;
+
+    /** Metrics the breaker reports into */
+    private TwitterMetrics metrics;
+
+    /** Breaker under test */
+    private TwitterCircuitBreaker breaker;
+
+    /** {@inheritDoc} */
+    @Override
+    protected void setUp() throws Exception {
+        this.registry = new MetricRegistry();
+        this.metrics = new TwitterMetrics()
+            .setMetricRegistry(this.registry)
+            .setPrefix(PREFIX);
+        this.metrics.initialize();
+        this.breaker = new TwitterCircuitBreaker()
+            .setWindowSize(WINDOW_SIZE)
+            .setMinimumCalls(WINDOW_SIZE)
+            .setFailureRateThreshold(0.5)
+            .setSlowCallThreshold(SLOW)
+            .setOpenDuration(OPEN_DURATION)
+            .setHalfOpenProbes(PROBES)
+            .setMetrics(this.metrics);
+        this.breaker.initialize();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void tearDown() throws Exception {
+        this.breaker.destroy();
+        this.metrics.destroy();
+    }
+
+    /**
+     * The breaker stays closed until the window is full, opens once half of it is bad, lets a
+     * limited number of probes through after the open duration and closes when they succeed.
+     *
+     * @throws Exception if interrupted
+     */
+    public void testCycle() throws Exception {
+        assertState(TwitterCircuitBreaker.State.CLOSED);
+        assertTransitions(0, 0, 0);
+
+        call(true);
+        call(true);
+        call(false);
+        assertState(TwitterCircuitBreaker.State.CLOSED);
+        assertTrue(Math.abs(2.0 / 3 - this.breaker.getFailureRate()) < 1e-9);
+
+        call(false);
+        assertState(TwitterCircuitBreaker.State.OPEN);
+        assertTransitions(1, 0, 0);
+
+        assertFalse(this.breaker.tryAcquirePermission());
+        assertFalse(this.breaker.tryAcquirePermission());
+        assertEquals(2L, this.registry.getGauges().get(PREFIX + ".circuitBreaker.refused").getValue());
+
+        awaitHalfOpen();
+        for (int i = 0; i < PROBES; i++) {
+            assertTrue(this.breaker.tryAcquirePermission());
+        }
+        assertFalse(this.breaker.tryAcquirePermission());
+        assertTransitions(1, 1, 0);
+
+        this.breaker.onSuccess(0);
+        assertState(TwitterCircuitBreaker.State.HALF_OPEN);
+        this.breaker.onSuccess(0);
+        assertState(TwitterCircuitBreaker.State.CLOSED);
+        assertTransitions(1, 1, 1);
+        assertTrue(this.breaker.getFailureRate() == 0);
+
+        call(true);
+        call(false);
+        call(false);
+        call(false);
+        assertState(TwitterCircuitBreaker.State.CLOSED);
+    }
+
+    /**
+     * A failed or slow probe opens the breaker again for another open duration.
+     *
+     * @throws Exception if interrupted
+     */
+    public void testBadProbeReopens() throws Exception {
+        for (int i = 0; i < WINDOW_SIZE; i++) {
+            call(true);
+        }
+        assertState(TwitterCircuitBreaker.State.OPEN);
+
+        awaitHalfOpen();
+        assertTrue(this.breaker.tryAcquirePermission());
+        this.breaker.onFailure(0);
+        assertState(TwitterCircuitBreaker.State.OPEN);
+        assertFalse(this.breaker.tryAcquirePermission());
+        assertTransitions(2, 1, 0);
+
+        awaitHalfOpen();
+        assertTrue(this.breaker.tryAcquirePermission());
+        this.breaker.onSuccess(SLOW);
+        assertState(TwitterCircuitBreaker.State.OPEN);
+        assertTransitions(3, 2, 0);
+    }
+
+    /**
+     * Slow calls count as bad, and calls made before the breaker opened do not count once it is
+     * open.
+     */
+    public void testSlowCalls() {
+        assertTrue(this.breaker.tryAcquirePermission());
+        assertTrue(this.breaker.tryAcquirePermission());
+        for (int i = 0; i < WINDOW_SIZE - 1; i++) {
+            assertTrue(this.breaker.tryAcquirePermission());
+            this.breaker.onSuccess(i % 2 == 0 ? SLOW : SLOW - 1);
+        }
+        assertState(TwitterCircuitBreaker.State.CLOSED);
+        this.breaker.onSuccess(SLOW);
+        assertState(TwitterCircuitBreaker.State.OPEN);
+
+        this.breaker.onFailure(0);
+        assertState(TwitterCircuitBreaker.State.OPEN);
+        assertTransitions(1, 0, 0);
+    }
+
+    /**
+     * A breaker replacing another in the same metrics takes over the state gauge.
+     *
+     * @throws Exception if the breaker cannot be initialized
+     */
+    public void testReplacedBreaker() throws Exception {
+        for (int i = 0; i < WINDOW_SIZE; i++) {
+            call(true);
+        }
+        assertState(TwitterCircuitBreaker.State.OPEN);
+
+        final TwitterCircuitBreaker other = new TwitterCircuitBreaker().setMetrics(this.metrics);
+        other.initialize();
+        try {
+            assertEquals(TwitterCircuitBreaker.State.CLOSED.ordinal(), stateGauge());
+            assertTransitions(1, 0, 0);
+        } finally {
+            other.destroy();
+        }
+    }
+
+    /**
+     * The breaker gauges are removed with the metrics.
+     */
+    public void testGaugesRemoved() {
+        assertTrue(this.registry.getGauges().containsKey(PREFIX + ".circuitBreaker.state"));
+        assertTrue(this.registry.getGauges().containsKey(PREFIX + ".circuitBreaker.refused"));
+
+        this.metrics.destroy();
+        assertFalse(this.registry.getGauges().containsKey(PREFIX + ".circuitBreaker.state"));
+        assertFalse(this.registry.getGauges().containsKey(PREFIX + ".circuitBreaker.refused"));
+    }
+
+    /**
+     * Make a call that is permitted and ends immediately.
+     *
+     * @param fails whether the call fails
+     */
+    private void call(final boolean fails) {
+        assertTrue(this.breaker.tryAcquirePermission());
+        if (fails) {
+            this.breaker.onFailure(0);
+        } else {
+            this.breaker.onSuccess(0);
+        }
+    }
+
+    /**
+     * Wait for the open duration to pass, then check the breaker reports itself half-open.
+     *
+     * @throws InterruptedException if interrupted
+     */
+    private void awaitHalfOpen() throws InterruptedException {
+        Thread.sleep(OPEN_DURATION + 20);
+        assertState(TwitterCircuitBreaker.State.HALF_OPEN);
+    }
+
+    /**
+     * Check the state of the breaker and the state gauge.
+     *
+     * @param state the expected state
+     */
+    private void assertState(final TwitterCircuitBreaker.State state) {
+        assertEquals(state, this.breaker.getState());
+        assertEquals(state.ordinal(), stateGauge());
+    }
+
+    /**
+     * Get the value of the state gauge.
+     *
+     * @return the value
+     */
+    private int stateGauge() {
+        return (Integer) this.registry.getGauges().get(PREFIX + ".circuitBreaker.state").getValue();
+    }
+
+    /**
+     * Check the transition counters.
+     *
+     * @param opened the expected transitions into the open state
+     * @param halfOpened the expected transitions into the half-open state
+     * @param closed the expected transitions into the closed state
+     */
+    private void assertTransitions(final long opened, final long halfOpened, final long closed) {
+        assertEquals(opened, this.registry.getCounters().get(PREFIX + ".circuitBreaker.open").getCount());
+        assertEquals(halfOpened, this.registry.getCounters().get(PREFIX + ".circuitBreaker.halfOpen").getCount());
+        assertEquals(closed, this.registry.getCounters().get(PREFIX + ".circuitBreaker.closed").getCount());
+    }
+}
@@ -0,0 +1,332 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link TwitterConcurrencyLimiter}, on its own and in front of a {@link StubTwitterServer}.
+ */
+public class TwitterConcurrencyLimiterTest extends TestCase {
+    /** Lowest limit */
+    private static final int MIN_LIMIT = 2;
+
+    /** Highest limit */
+    private static final int MAX_LIMIT = 8;
+
+    /** Threads generating the overload */
+    private static final int THREADS = 32;
+
+    /** Latency of a healthy upstream in milliseconds */
+    private static final long FAST = 50;
+
+    /** Latency of a congested upstream in milliseconds */
+    private static final long SLOW = 500;
+
+    /** Number of calls in each probe interval of a windowed limiter */
+    private static final int PROBE_INTERVAL = 100;
+
+    /** Stub Twitter API */
+    private StubTwitterServer server;
+
+    /** Limiter under test */
+    private TwitterConcurrencyLimiter limiter;
+
+    /** Integration calling the stub through the limiter */
+    private TwitterIntegration integration;
+
+    /** {@inheritDoc} */
+    @Override
+    protected void setUp() throws Exception {
+        this.limiter = new TwitterConcurrencyLimiter()
+            .setInitialLimit(4)
+            .setMinLimit(MIN_LIMIT)
+            .setMaxLimit(MAX_LIMIT)
+            .setLatencyTolerance(3)
+            .setLatencyProbeInterval(1000000)
+            .setMaxQueueWait(20)
+            .setMaxQueueLength(4);
+        this.limiter.initialize();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void tearDown() throws Exception {
+        if (this.integration != null) {
+            this.integration.destroy();
+        }
+        if (this.server != null) {
+            this.server.stop();
+        }
+    }
+
+    /**
+     * Calls beyond the limit and the queue are shed and counted.
+     *
+     * @throws Exception if interrupted
+     */
+    public void testShedsBeyondLimit() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            assertTrue(this.limiter.tryAcquire());
+        }
+        assertEquals(4, this.limiter.getInFlight());
+
+        assertFalse(this.limiter.tryAcquire());
+        assertEquals(1, this.limiter.getShedCalls());
+
+        this.limiter.abandon();
+        assertTrue(this.limiter.tryAcquire());
+        assertEquals(1, this.limiter.getShedCalls());
+    }
+
+    /**
+     * Congestion shrinks the limit down to the minimum and uncongested calls at the limit grow
+     * it back to the maximum.
+     *
+     * @throws Exception if interrupted
+     */
+    public void testBacksOffAndRecovers() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            assertTrue(this.limiter.tryAcquire());
+            this.limiter.release(TimeUnit.MILLISECONDS.toNanos(FAST), true);
+        }
+        assertEquals(MIN_LIMIT, this.limiter.getLimit());
+
+        for (int i = 0; i < 200; i++) {
+            final int limit = this.limiter.getLimit();
+            for (int j = 0; j < limit; j++) {
+                assertTrue(this.limiter.tryAcquire());
+            }
+            for (int j = 0; j < limit; j++) {
+                this.limiter.release(TimeUnit.MILLISECONDS.toNanos(FAST), false);
+            }
+        }
+        assertEquals(MAX_LIMIT, this.limiter.getLimit());
+        assertEquals(0, this.limiter.getInFlight());
+    }
+
+    /**
+     * Calls many times slower than the baseline shrink the limit even though they succeed.
+     *
+     * @throws Exception if interrupted
+     */
+    public void testSlowCallsBackOff() throws Exception {
+        assertTrue(this.limiter.tryAcquire());
+        this.limiter.release(TimeUnit.MILLISECONDS.toNanos(FAST), false);
+        for (int i = 0; i < 50; i++) {
+            assertTrue(this.limiter.tryAcquire());
+            this.limiter.release(TimeUnit.MILLISECONDS.toNanos(SLOW), false);
+        }
+        assertEquals(MIN_LIMIT, this.limiter.getLimit());
+    }
+
+    /**
+     * Sub-millisecond calls still give a baseline, so a call a thousand times slower is noticed.
+     *
+     * @throws Exception if interrupted
+     */
+    public void testSubMillisecondBaseline() throws Exception {
+        assertTrue(this.limiter.tryAcquire());
+        this.limiter.release(TimeUnit.MICROSECONDS.toNanos(200), false);
+        for (int i = 0; i < 50; i++) {
+            assertTrue(this.limiter.tryAcquire());
+            this.limiter.release(TimeUnit.MILLISECONDS.toNanos(SLOW), false);
+        }
+        assertEquals(MIN_LIMIT, this.limiter.getLimit());
+    }
+
+    /**
+     * A steady upstream with jitter keeps the limit at the maximum once a fast outlier has
+     * left the baseline window, rather than being measured against the outlier for good.
+     *
+     * @throws Exception if interrupted
+     */
+    public void testJitterDoesNotCollapseLimit() throws Exception {
+        final TwitterConcurrencyLimiter windowed = newWindowedLimiter();
+        final Random random = new Random(42);
+
+        assertTrue(windowed.tryAcquire());
+        windowed.release(TimeUnit.MILLISECONDS.toNanos(35), false);
+        int calls = 1;
+        while (calls < 50) {
+            calls += runAtLimit(windowed, 60 + random.nextInt(30));
+        }
+        assertEquals(MIN_LIMIT, windowed.getLimit());
+
+        while (calls < 3000) {
+            calls += runAtLimit(windowed, 60 + random.nextInt(30));
+            if (calls >= 2 * PROBE_INTERVAL + 400) {
+                assertEquals("Limit collapsed after " + calls + " calls", MAX_LIMIT, windowed.getLimit());
+            }
+        }
+        assertEquals(MAX_LIMIT, windowed.getLimit());
+    }
+
+    /**
+     * A slowdown spanning the start of a probe interval is still measured against the latency
+     * before it, and only becomes the baseline once the faster interval has left the window.
+     *
+     * @throws Exception if interrupted
+     */
+    public void testBaselineSurvivesIntervalStart() throws Exception {
+        final TwitterConcurrencyLimiter windowed = newWindowedLimiter();
+
+        int calls = 0;
+        while (calls < PROBE_INTERVAL / 2) {
+            calls += runAtLimit(windowed, FAST);
+        }
+        while (calls < 2 * PROBE_INTERVAL - MAX_LIMIT) {
+            calls += runAtLimit(windowed, SLOW);
+        }
+        assertEquals(MIN_LIMIT, windowed.getLimit());
+
+        while (calls < 3 * PROBE_INTERVAL) {
+            calls += runAtLimit(windowed, SLOW);
+        }
+        assertTrue(windowed.getLimit() > MIN_LIMIT);
+    }
+
+    /**
+     * Under a login storm the limiter sheds the excess, never lets more than the maximum limit
+     * reach the upstream, backs off when the upstream slows down and grows back once it recovers.
+     *
+     * @throws Exception if the integration fails
+     */
+    public void testOverloadAgainstStubServer() throws Exception {
+        this.server = new StubTwitterServer().start();
+        this.integration = new TwitterIntegration()
+            .setConsumerKeys(Collections.singletonList(new TwitterConsumerKey()
+                .setId("default")
+                .setOauthConsumerKey("consumer")
+                .setOauthConsumerSecret(StubTwitterServer.CONSUMER_SECRET)))
+            .setApiBaseUrl(this.server.getBaseUrl())
+            .setConcurrencyLimiter(this.limiter);
+        this.integration.initialize();
+
+        this.server.setLatency(FAST);
+        final long[] healthy = storm(1500);
+        assertTrue("No calls succeeded", healthy[0] > 0);
+        assertTrue("No calls were shed", healthy[1] > 0);
+        assertTrue("Upstream saw more calls than the limit", this.server.resetMaxInFlight() <= MAX_LIMIT);
+        assertEquals(MAX_LIMIT, this.limiter.getLimit());
+
+        this.server.setLatency(SLOW);
+        final long[] congested = storm(1500);
+        assertTrue("No calls succeeded", congested[0] > 0);
+        assertTrue("No calls were shed", congested[1] > 0);
+        assertTrue("Upstream saw more calls than the limit", this.server.resetMaxInFlight() <= MAX_LIMIT);
+        final int backedOff = this.limiter.getLimit();
+        assertTrue("Limit did not back off, still " + backedOff, backedOff < MAX_LIMIT);
+
+        this.server.setLatency(FAST);
+        final long[] recovered = storm(1500);
+        assertTrue("No calls succeeded", recovered[0] > 0);
+        assertTrue("Limit did not recover from " + backedOff, this.limiter.getLimit() > backedOff);
+        assertEquals(0, this.limiter.getInFlight());
+    }
+
+    /**
+     * Build an initialized limiter measuring its baseline over short probe intervals.
+     *
+     * @return the limiter
+     *
+     * @throws Exception if the limiter cannot be initialized
+     */
+    private static TwitterConcurrencyLimiter newWindowedLimiter() throws Exception {
+        final TwitterConcurrencyLimiter windowed = new TwitterConcurrencyLimiter()
+            .setInitialLimit(MAX_LIMIT)
+            .setMinLimit(MIN_LIMIT)
+            .setMaxLimit(MAX_LIMIT)
+            .setLatencyTolerance(2)
+            .setLatencyProbeInterval(PROBE_INTERVAL);
+        windowed.initialize();
+        return windowed;
+    }
+
+    /**
+     * Make as many calls at once as the limit allows, all with the same latency.
+     *
+     * @param windowed the limiter
+     * @param latencyMillis the latency of the calls in milliseconds
+     *
+     * @return the number of calls made
+     *
+     * @throws InterruptedException if interrupted
+     */
+    private static int runAtLimit(final TwitterConcurrencyLimiter windowed, final long latencyMillis)
+            throws InterruptedException {
+        final int limit = windowed.getLimit();
+        for (int i = 0; i < limit; i++) {
+            assertTrue(windowed.tryAcquire());
+        }
+        for (int i = 0; i < limit; i++) {
+            windowed.release(TimeUnit.MILLISECONDS.toNanos(latencyMillis), false);
+        }
+        return limit;
+    }
+
+    /**
+     * Run request-token calls from many threads for a while.
+     *
+     * @param millis how long to run
+     *
+     * @return the number of calls that succeeded and the number that were shed
+     *
+     * @throws Exception if a call fails other than by being shed
+     */
+    private long[] storm(final long millis) throws Exception {
+        final AtomicLong succeeded = new AtomicLong();
+        final AtomicLong shed = new AtomicLong();
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            final List<Future<Void>> results = new ArrayList<>(THREADS);
+            for (int t = 0; t < THREADS; t++) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        while (System.nanoTime() < deadline) {
+                            try {
+                                integration.getRequestToken("https://idp.example.org/cb");
+                                succeeded.incrementAndGet();
+                            } catch (final TwitterOverloadedException e) {
+                                shed.incrementAndGet();
+                                TimeUnit.MILLISECONDS.sleep(1);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (final Future<Void> result : results) {
+                result.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return new long[] {succeeded.get(), shed.get()};
+    }
+}
@@ -0,0 +1,307 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import net.shibboleth.utilities.java.support.logic.ConstraintViolationException;
+
+import org.opensaml.messaging.context.BaseContext;
+import twitter4j.Twitter;
+import twitter4j.TwitterFactory;
+import twitter4j.auth.AccessToken;
+import twitter4j.auth.RequestToken;
+
+/**
+ * Tests for {@link TwitterContext}, including a measurement of the state each login in flight
+ * keeps against the twitter4j based context it replaced.
+ */
+public class TwitterContextTest extends TestCase {
+    /** Logins kept in flight for the measurement */
+    private static final int LOGINS = 20000;
+
+    /** Logins started before measuring, so that caches and classes are not counted */
+    private static final int WARMUP = 1000;
+
+    /** Length of a Twitter request token */
+    private static final int TOKEN_LENGTH = 27;
+
+    /** Length of a Twitter request token secret */
+    private static final int SECRET_LENGTH = 32;
+
+    /** Characters of Twitter tokens */
+    private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+
+    /**
+     * Everything but the authentication URL survives serialization.
+     *
+     * @throws Exception if serialization fails
+     */
+    public void testRoundTrip() throws Exception {
+        final TwitterContext context = new TwitterContext()
+            .setRequestToken(new TwitterRequestToken("token", "secret", "https://api.twitter.com/auth", "key2"))
+            .setStartTime(1000)
+            .setRedirectTime(2000)
+            .setTrace("trace", true);
+
+        final TwitterContext copy = (TwitterContext) deserialize(serialize(context));
+        final TwitterRequestToken token = copy.getRequestToken();
+        assertEquals("token", token.getToken());
+        assertEquals("secret", token.getTokenSecret());
+        assertEquals("key2", token.getConsumerKeyId());
+        assertNull(token.getAuthenticationUrl());
+        assertEquals(1000, copy.getStartTime());
+        assertEquals(2000, copy.getRedirectTime());
+        assertEquals("trace", copy.getTraceId());
+        assertTrue(copy.isTraceSampled());
+        assertEquals(TwitterContext.NO_USER_ID, copy.getUserId());
+    }
+
+    /**
+     * A completed login keeps only the user ID once the request token is dropped.
+     *
+     * @throws Exception if serialization fails
+     */
+    public void testRoundTripAfterLogin() throws Exception {
+        final TwitterContext context = new TwitterContext()
+            .setRequestToken(new TwitterRequestToken("token", null, null, "default"))
+            .setAccessToken(new TwitterAccessToken("access", "secret", 12345L, "someone"))
+            .setRequestToken(null);
+
+        final TwitterContext copy = (TwitterContext) deserialize(serialize(context));
+        assertNull(copy.getRequestToken());
+        assertNull(copy.getTraceId());
+        assertEquals(12345L, copy.getUserId());
+    }
+
+    /**
+     * Serialized forms of other versions are refused.
+     *
+     * @throws Exception if the stream cannot be built
+     */
+    public void testRejectsUnknownVersion() throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeByte(2);
+            out.writeByte(0);
+        }
+        try (final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            new TwitterContext().readExternal(in);
+            fail("Version 2 was accepted");
+        } catch (final InvalidObjectException e) {
+            // expected
+        }
+    }
+
+    /**
+     * A request token without a consumer key identifier could not be exchanged and is refused.
+     */
+    public void testRequiresConsumerKeyId() {
+        try {
+            new TwitterContext().setRequestToken(new TwitterRequestToken("token", "secret", null, null));
+            fail("Request token without a consumer key identifier was accepted");
+        } catch (final ConstraintViolationException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Measure the heap retained and the serialized size per login waiting for the user to come
+     * back from Twitter, for the twitter4j based context and for {@link TwitterContext}.
+     *
+     * The request token the twitter4j client also kept internally is not counted, so the figure
+     * for the twitter4j based context is a lower bound.
+     *
+     * @throws Exception if measuring fails
+     */
+    public void testRetainedBytesPerLogin() throws Exception {
+        final Random random = new Random(42);
+
+        final long before = retainedBytesPerLogin(new Login() {
+            @Override
+            public Object start() {
+                /* What InitializeTwitterContext used to do for each login */
+                final Twitter twitter = new TwitterFactory().getInstance();
+                twitter.setOAuthConsumer("consumer", "secret");
+                return new LegacyTwitterContext(twitter,
+                        new RequestToken(randomString(random, TOKEN_LENGTH), randomString(random, SECRET_LENGTH)));
+            }
+        });
+        final long after = retainedBytesPerLogin(new Login() {
+            @Override
+            public Object start() {
+                final String token = randomString(random, TOKEN_LENGTH);
+                return new TwitterContext()
+                    .setStartTime(System.currentTimeMillis())
+                    .setRequestToken(new TwitterRequestToken(token, randomString(random, SECRET_LENGTH),
+                            "https://api.twitter.com/oauth/authenticate?oauth_token=" + token, "default"))
+                    .setRedirectTime(System.currentTimeMillis());
+            }
+        });
+
+        final Twitter twitter = new TwitterFactory().getInstance();
+        twitter.setOAuthConsumer("consumer", "secret");
+        final int serializedBefore = serialize(new LegacyTwitterContext(twitter,
+                new RequestToken(randomString(random, TOKEN_LENGTH), randomString(random, SECRET_LENGTH)))).length;
+        final int serializedAfter = serialize(new TwitterContext()
+            .setStartTime(System.currentTimeMillis())
+            .setRequestToken(new TwitterRequestToken(randomString(random, TOKEN_LENGTH),
+                    randomString(random, SECRET_LENGTH), null, "default"))
+            .setRedirectTime(System.currentTimeMillis())).length;
+
+        System.out.println("Retained bytes per in-flight login: twitter4j context " + before
+                + ", TwitterContext " + after);
+        System.out.println("Serialized bytes per in-flight login: twitter4j context " + serializedBefore
+                + ", TwitterContext " + serializedAfter);
+        assertTrue("TwitterContext retains " + after + " bytes, not less than " + before, after < before);
+        assertTrue("TwitterContext serializes to " + serializedAfter + " bytes, not less than "
+                + serializedBefore, serializedAfter < serializedBefore);
+    }
+
+    /**
+     * Keep {@link #LOGINS} logins in flight and measure the heap they retain.
+     *
+     * @param login starts a login
+     *
+     * @return the retained bytes per login
+     *
+     * @throws InterruptedException if interrupted
+     */
+    private static long retainedBytesPerLogin(final Login login) throws InterruptedException {
+        for (int i = 0; i < WARMUP; i++) {
+            login.start();
+        }
+
+        final Object[] inFlight = new Object[LOGINS];
+        final long before = usedHeap();
+        for (int i = 0; i < LOGINS; i++) {
+            inFlight[i] = login.start();
+        }
+        final long after = usedHeap();
+
+        for (final Object state : inFlight) {
+            assertNotNull(state);
+        }
+        return (after - before) / LOGINS;
+    }
+
+    /**
+     * Get the heap in use after collecting garbage.
+     *
+     * @return the bytes in use
+     *
+     * @throws InterruptedException if interrupted
+     */
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Make a random alphanumeric string such as a token Twitter issues.
+     *
+     * @param random source of randomness
+     * @param length length of the string
+     *
+     * @return the string
+     */
+    private static String randomString(final Random random, final int length) {
+        final char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Serialize an object.
+     *
+     * @param object the object
+     *
+     * @return the serialized form
+     *
+     * @throws IOException if serialization fails
+     */
+    private static byte[] serialize(final Object object) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Deserialize an object.
+     *
+     * @param bytes the serialized form
+     *
+     * @return the object
+     *
+     * @throws Exception if deserialization fails
+     */
+    private static Object deserialize(final byte[] bytes) throws Exception {
+        try (final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        }
+    }
+
+    /** Starts a login and returns the state kept while the user is at Twitter. */
+    private interface Login {
+
+        /**
+         * Start a login.
+         *
+         * @return the state of the login
+         */
+        Object start();
+    }
+
+    /** The state the twitter4j based TwitterContext kept for each login. */
+    private static final class LegacyTwitterContext extends BaseContext implements Serializable {
+        /** Serial version UID */
+        private static final long serialVersionUID = 1L;
+
+        /** Twitter client built for the login */
+        private final Twitter twitter;
+
+        /** Request token */
+        private final RequestToken requestToken;
+
+        /** Access token, set once the user returns */
+        private AccessToken accessToken;
+
+        /**
+         * Constructor
+         *
+         * @param client the Twitter client
+         * @param token the request token
+         */
+        LegacyTwitterContext(final Twitter client, final RequestToken token) {
+            this.twitter = client;
+            this.requestToken = token;
+        }
+    }
+}
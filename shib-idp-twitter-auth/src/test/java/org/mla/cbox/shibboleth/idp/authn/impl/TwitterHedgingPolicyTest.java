@@ -0,0 +1,125 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import junit.framework.TestCase;
+
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+
+/**
+ * Tests for {@link TwitterHedgingPolicy}.
+ */
+public class TwitterHedgingPolicyTest extends TestCase {
+
+    /**
+     * Nothing is hedged until the minimum number of latencies has been recorded.
+     *
+     * @throws Exception if the policy cannot be initialized
+     */
+    public void testNoHedgeBeforeMinSamples() throws Exception {
+        final TwitterHedgingPolicy policy = new TwitterHedgingPolicy()
+            .setMinSamples(10)
+            .setRecomputeInterval(1)
+            .setMinDelay(1)
+            .setMaxDelay(1000);
+        policy.initialize();
+
+        for (int i = 1; i < 10; i++) {
+            policy.recordLatency(100);
+            assertEquals(TwitterHedgingPolicy.NO_HEDGE, policy.getHedgeDelay());
+        }
+        policy.recordLatency(100);
+        assertEquals(100, policy.getHedgeDelay());
+    }
+
+    /**
+     * The hedge delay is the percentile of the recent latencies, within the minimum and maximum
+     * delay, and follows the latencies as the reservoir turns over.
+     *
+     * @throws Exception if the policy cannot be initialized
+     */
+    public void testPercentile() throws Exception {
+        final TwitterHedgingPolicy policy = new TwitterHedgingPolicy()
+            .setPercentile(0.9)
+            .setReservoirSize(100)
+            .setMinSamples(100)
+            .setRecomputeInterval(1)
+            .setMinDelay(5)
+            .setMaxDelay(95);
+        policy.initialize();
+
+        for (int i = 1; i <= 100; i++) {
+            policy.recordLatency(i);
+        }
+        assertEquals(90, policy.getHedgeDelay());
+
+        for (int i = 0; i < 100; i++) {
+            policy.recordLatency(1);
+        }
+        assertEquals(5, policy.getHedgeDelay());
+
+        for (int i = 0; i < 100; i++) {
+            policy.recordLatency(1000);
+        }
+        assertEquals(95, policy.getHedgeDelay());
+    }
+
+    /**
+     * Hedges are limited to the budget ratio of calls, and an accumulated budget only allows a
+     * burst of the configured size.
+     *
+     * @throws Exception if the policy cannot be initialized
+     */
+    public void testBudget() throws Exception {
+        final TwitterHedgingPolicy policy = new TwitterHedgingPolicy()
+            .setBudgetRatio(0.25)
+            .setMaxBurst(3);
+        policy.initialize();
+
+        for (int i = 0; i < 100; i++) {
+            policy.onCall();
+        }
+        int acquired = 0;
+        while (policy.tryAcquireHedge()) {
+            acquired++;
+        }
+        assertEquals(3, acquired);
+        assertEquals(1, policy.getHedgesRefused());
+
+        for (int i = 0; i < 1000; i++) {
+            policy.onCall();
+            if (policy.tryAcquireHedge()) {
+                acquired++;
+            }
+        }
+        assertEquals(3 + 250, acquired);
+        assertEquals(acquired, policy.getHedgesStarted());
+        assertEquals(1 + 1000 - 250, policy.getHedgesRefused());
+    }
+
+    /**
+     * A minimum delay above the maximum fails initialization.
+     */
+    public void testMinDelayAboveMax() {
+        try {
+            new TwitterHedgingPolicy()
+                .setMinDelay(500)
+                .setMaxDelay(100)
+                .initialize();
+            fail("Minimum delay above the maximum accepted");
+        } catch (final ComponentInitializationException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.IOException;
+import java.security.Principal;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link TwitterIdPrincipalSerializer}, in both the compact format it writes and the
+ * nested format earlier versions wrote.
+ */
+public class TwitterIdPrincipalSerializerTest extends TestCase {
+    /** A principal of user 12345 as the earlier serializer wrote it, a JSON string inside a JSON object */
+    private static final String LEGACY = "{\"Twitter\":\"{\\\"userId\\\":\\\"12345\\\"}\"}";
+
+    /** Serializer under test */
+    private TwitterIdPrincipalSerializer serializer;
+
+    /** {@inheritDoc} */
+    @Override
+    protected void setUp() throws Exception {
+        this.serializer = new TwitterIdPrincipalSerializer();
+        this.serializer.initialize();
+    }
+
+    /**
+     * Principals are written in the compact format and read back equal, down to the extremes of
+     * the user ID.
+     *
+     * @throws Exception if a principal cannot be serialized
+     */
+    public void testRoundTrip() throws Exception {
+        for (final long userId : new long[] {0, 1, 12345, 1234567890123456789L, Long.MAX_VALUE}) {
+            final TwitterIdPrincipal principal = new TwitterIdPrincipal(userId);
+            assertTrue(this.serializer.supports(principal));
+
+            final String serialized = this.serializer.serialize(principal);
+            assertEquals("{\"TW\":" + userId + "}", serialized);
+            assertTrue(this.serializer.supports(serialized));
+
+            final TwitterIdPrincipal deserialized = this.serializer.deserialize(serialized);
+            assertEquals(principal, deserialized);
+            assertEquals(userId, deserialized.getId());
+            assertEquals(Long.toString(userId), deserialized.getName());
+        }
+    }
+
+    /**
+     * With interning enabled every principal read for a user is the shared instance.
+     *
+     * @throws Exception if a principal cannot be deserialized
+     */
+    public void testInterned() throws Exception {
+        final TwitterIdPrincipalSerializer interning = new TwitterIdPrincipalSerializer().setInternPrincipals(true);
+        interning.initialize();
+        final TwitterIdPrincipal shared = TwitterIdPrincipal.valueOf(12345);
+
+        assertSame(shared, interning.deserialize("{\"TW\":12345}"));
+        assertSame(shared, interning.deserialize(LEGACY));
+        assertNotSame(shared, this.serializer.deserialize("{\"TW\":12345}"));
+    }
+
+    /**
+     * Principals written by the earlier serializer are recognized and read.
+     *
+     * @throws Exception if a principal cannot be deserialized
+     */
+    public void testLegacy() throws Exception {
+        assertTrue(this.serializer.supports(LEGACY));
+        assertEquals(new TwitterIdPrincipal(12345), this.serializer.deserialize(LEGACY));
+
+        assertNull(this.serializer.deserialize("{\"Twitter\":\"\"}"));
+        assertNull(this.serializer.deserialize("{\"Twitter\":\"{}\"}"));
+        assertNull(this.serializer.deserialize("{\"Twitter\":\"{\\\"userId\\\":\\\"\\\"}\"}"));
+        assertRejected("{\"Twitter\":\"{\\\"userId\\\":\\\"twelve\\\"}\"}");
+        assertRejected("{\"Twitter\":\"not json\"}");
+        assertRejected("{\"Twitter\":");
+    }
+
+    /**
+     * Values of other principal types are not claimed, and compact values that are not a user ID
+     * are refused.
+     */
+    public void testInvalid() {
+        assertFalse(this.serializer.supports("{\"UsernamePrincipal\":\"alice\"}"));
+        assertFalse(this.serializer.supports("{\"tw\":12345}"));
+        assertFalse(this.serializer.supports(new Principal() {
+            @Override
+            public String getName() {
+                return "12345";
+            }
+        }));
+
+        assertRejected("{\"TW\":}");
+        assertRejected("{\"TW\":12345");
+        assertRejected("{\"TW\":-1}");
+        assertRejected("{\"TW\":12a45}");
+        assertRejected("{\"TW\":\"12345\"}");
+        assertRejected("{\"TW\":9223372036854775808}");
+        assertRejected("{\"TW\":12345678901234567890}");
+    }
+
+    /**
+     * Assert that a value is refused.
+     *
+     * @param value the serialized principal
+     */
+    private void assertRejected(final String value) {
+        try {
+            this.serializer.deserialize(value);
+            fail("Deserialized " + value);
+        } catch (final IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import junit.framework.TestCase;
+
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.security.DataSealer;
+
+/**
+ * Tests for {@link TwitterIdentityCookie}, sealed by a {@link DataSealer} over a generated key.
+ */
+public class TwitterIdentityCookieTest extends TestCase {
+    /** Data sealer of the IdP */
+    private DataSealer dataSealer;
+
+    /** Cookies of the browser */
+    private StubCookieManager cookieManager;
+
+    /** Cookie under test */
+    private TwitterIdentityCookie identityCookie;
+
+    /** {@inheritDoc} */
+    @Override
+    protected void setUp() throws Exception {
+        this.dataSealer = StubDataSealerKeyStrategy.newDataSealer("default");
+        this.cookieManager = new StubCookieManager();
+        this.identityCookie = newIdentityCookie(60000);
+    }
+
+    /**
+     * The user ID of an issued cookie is read back, and a request without the cookie has none.
+     */
+    public void testIssueAndRead() {
+        assertEquals(TwitterContext.NO_USER_ID, this.identityCookie.read());
+
+        this.identityCookie.issue(12345);
+        assertNotNull(cookie());
+        assertFalse(cookie().contains("12345"));
+        assertEquals(12345, this.identityCookie.read());
+        assertEquals(12345, this.identityCookie.read());
+    }
+
+    /**
+     * A cookie past its lifetime is not accepted and is removed.
+     *
+     * @throws Exception if the cookie cannot be initialized
+     */
+    public void testExpired() throws Exception {
+        final TwitterIdentityCookie shortLived = newIdentityCookie(1);
+        shortLived.issue(12345);
+        Thread.sleep(20);
+
+        assertEquals(TwitterContext.NO_USER_ID, shortLived.read());
+        assertNull(cookie());
+    }
+
+    /**
+     * A cookie that was altered is not accepted and is removed.
+     */
+    public void testTampered() {
+        this.identityCookie.issue(12345);
+        final String sealed = cookie();
+        final int middle = sealed.length() / 2;
+        final char replacement = sealed.charAt(middle) == 'A' ? 'B' : 'A';
+        this.cookieManager.addCookie(TwitterIdentityCookie.DEFAULT_COOKIE_NAME,
+                sealed.substring(0, middle) + replacement + sealed.substring(middle + 1));
+
+        assertEquals(TwitterContext.NO_USER_ID, this.identityCookie.read());
+        assertNull(cookie());
+
+        this.cookieManager.addCookie(TwitterIdentityCookie.DEFAULT_COOKIE_NAME, "12345");
+        assertEquals(TwitterContext.NO_USER_ID, this.identityCookie.read());
+        assertNull(cookie());
+    }
+
+    /**
+     * A cookie sealed with another key is not accepted.
+     *
+     * @throws Exception if the other sealer cannot be initialized
+     */
+    public void testOtherKey() throws Exception {
+        final DataSealer other = StubDataSealerKeyStrategy.newDataSealer("default");
+        this.cookieManager.addCookie(TwitterIdentityCookie.DEFAULT_COOKIE_NAME,
+                other.wrap("twitter:12345", System.currentTimeMillis() + 60000));
+
+        assertEquals(TwitterContext.NO_USER_ID, this.identityCookie.read());
+        assertNull(cookie());
+    }
+
+    /**
+     * Values sealed by the same sealer for other purposes are not taken for a Twitter user.
+     *
+     * @throws Exception if a value cannot be sealed
+     */
+    public void testWrongPrefix() throws Exception {
+        final long expiration = System.currentTimeMillis() + 60000;
+        for (final String value : new String[] {"12345", "other:12345", "Twitter:12345", "twitter:", "twitter:abc"}) {
+            this.cookieManager.addCookie(TwitterIdentityCookie.DEFAULT_COOKIE_NAME,
+                    this.dataSealer.wrap(value, expiration));
+            assertEquals(value, TwitterContext.NO_USER_ID, this.identityCookie.read());
+            assertNull(value, cookie());
+        }
+    }
+
+    /**
+     * The cookie cannot be used without a data sealer and a cookie manager.
+     */
+    public void testRequiresSealerAndManager() {
+        try {
+            new TwitterIdentityCookie().setCookieManager(this.cookieManager).initialize();
+            fail("Initialized without a data sealer");
+        } catch (final ComponentInitializationException e) {
+            // expected
+        }
+        try {
+            new TwitterIdentityCookie().setDataSealer(this.dataSealer).initialize();
+            fail("Initialized without a cookie manager");
+        } catch (final ComponentInitializationException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Build an initialized identity cookie over the sealer and cookies of the test.
+     *
+     * @param lifetime the lifetime in milliseconds
+     *
+     * @return the identity cookie
+     *
+     * @throws ComponentInitializationException if the cookie cannot be initialized
+     */
+    private TwitterIdentityCookie newIdentityCookie(final long lifetime) throws ComponentInitializationException {
+        final TwitterIdentityCookie cookie = new TwitterIdentityCookie()
+            .setDataSealer(this.dataSealer)
+            .setCookieManager(this.cookieManager)
+            .setLifetime(lifetime);
+        cookie.initialize();
+        return cookie;
+    }
+
+    /**
+     * Get the value of the identity cookie the browser holds.
+     *
+     * @return the value, or null if there is none
+     */
+    private String cookie() {
+        return this.cookieManager.getCookieValue(TwitterIdentityCookie.DEFAULT_COOKIE_NAME, null);
+    }
+}
@@ -0,0 +1,329 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link TwitterIntegration} against a {@link StubTwitterServer}.
+ */
+public class TwitterIntegrationTest extends TestCase {
+    /** Concurrent logins */
+    private static final int THREADS = 16;
+
+    /** Logins per thread */
+    private static final int LOGINS = 50;
+
+    /** Stub Twitter API */
+    private StubTwitterServer server;
+
+    /** Integration under test */
+    private TwitterIntegration integration;
+
+    /** {@inheritDoc} */
+    @Override
+    protected void setUp() throws Exception {
+        this.server = new StubTwitterServer().start();
+        this.integration = new TwitterIntegration()
+            .setConsumerKeys(Collections.singletonList(new TwitterConsumerKey()
+                .setId("default")
+                .setOauthConsumerKey("consumer")
+                .setOauthConsumerSecret(StubTwitterServer.CONSUMER_SECRET)))
+            .setApiBaseUrl(this.server.getBaseUrl());
+        this.integration.initialize();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void tearDown() throws Exception {
+        this.integration.destroy();
+        this.server.stop();
+    }
+
+    /**
+     * A single login gets the user of its own request token.
+     *
+     * @throws Exception if the login fails
+     */
+    public void testLogin() throws Exception {
+        final TwitterRequestToken requestToken = this.integration.getRequestToken("https://idp.example.org/cb");
+        assertEquals("default", requestToken.getConsumerKeyId());
+        assertTrue(requestToken.getAuthenticationUrl().endsWith("oauth_token=" + requestToken.getToken()));
+
+        final TwitterAccessToken accessToken = this.integration.getAccessToken(requestToken, "verifier");
+        assertEquals(userOf(requestToken), accessToken.getUserId());
+        assertEquals("user" + userOf(requestToken), accessToken.getScreenName());
+    }
+
+    /**
+     * Many logins sharing the one OAuth client each get their own request token and exchange
+     * it for their own user, never another login's.
+     *
+     * @throws Exception if a login fails
+     */
+    public void testConcurrentLoginsDoNotShareTokens() throws Exception {
+        final Set<String> requestTokens = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final Set<Long> userIds = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        final CountDownLatch start = new CountDownLatch(1);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            final List<Future<Void>> results = new ArrayList<>(THREADS);
+            for (int t = 0; t < THREADS; t++) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        for (int i = 0; i < LOGINS; i++) {
+                            final TwitterRequestToken requestToken =
+                                    integration.getRequestToken("https://idp.example.org/cb");
+                            assertTrue("Request token issued twice", requestTokens.add(requestToken.getToken()));
+                            assertEquals("rs-" + userOf(requestToken), requestToken.getTokenSecret());
+
+                            final TwitterAccessToken accessToken = integration.getAccessToken(requestToken, "v");
+                            assertEquals("Login got another login's user", userOf(requestToken),
+                                    accessToken.getUserId());
+                            assertEquals("at-" + userOf(requestToken), accessToken.getToken());
+                            assertTrue("User logged in twice", userIds.add(accessToken.getUserId()));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            for (final Future<Void> result : results) {
+                result.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(THREADS * LOGINS, requestTokens.size());
+        assertEquals(THREADS * LOGINS, userIds.size());
+    }
+
+    /**
+     * A request token can only be exchanged once.
+     *
+     * @throws Exception if the first login fails
+     */
+    public void testRequestTokenIsSingleUse() throws Exception {
+        final TwitterRequestToken requestToken = this.integration.getRequestToken("https://idp.example.org/cb");
+        this.integration.getAccessToken(requestToken, "verifier");
+        try {
+            this.integration.getAccessToken(requestToken, "verifier");
+            fail("Request token was accepted twice");
+        } catch (final TwitterOAuthException e) {
+            assertEquals(401, e.getStatusCode());
+        }
+    }
+
+    /**
+     * Twitter refuses calls signed with the wrong consumer secret.
+     *
+     * @throws Exception if the integration cannot be built
+     */
+    public void testWrongConsumerSecret() throws Exception {
+        final TwitterIntegration wrongSecret = newIntegration(newKey("ck1").setOauthConsumerSecret("other"));
+        try {
+            wrongSecret.getRequestToken("https://idp.example.org/cb");
+            fail("Call signed with the wrong secret was accepted");
+        } catch (final TwitterOAuthException e) {
+            assertEquals(401, e.getStatusCode());
+        } finally {
+            wrongSecret.destroy();
+        }
+    }
+
+    /**
+     * Twitter refuses an access token exchange signed with another request token's secret.
+     *
+     * @throws Exception if the request token cannot be obtained
+     */
+    public void testWrongTokenSecret() throws Exception {
+        final TwitterRequestToken requestToken = this.integration.getRequestToken("https://idp.example.org/cb");
+        final TwitterRequestToken otherSecret = new TwitterRequestToken(requestToken.getToken(),
+                this.integration.getRequestToken("https://idp.example.org/cb").getTokenSecret(),
+                requestToken.getAuthenticationUrl(), requestToken.getConsumerKeyId());
+        try {
+            this.integration.getAccessToken(otherSecret, "verifier");
+            fail("Exchange signed with the wrong token secret was accepted");
+        } catch (final TwitterOAuthException e) {
+            assertEquals(401, e.getStatusCode());
+        }
+        assertEquals(userOf(requestToken), this.integration.getAccessToken(requestToken, "verifier").getUserId());
+    }
+
+    /**
+     * A request token whose callback was not confirmed is not used.
+     *
+     * @throws Exception if the call fails other than by the confirmation
+     */
+    public void testCallbackNotConfirmed() throws Exception {
+        this.server.setCallbackConfirmed(false);
+        try {
+            this.integration.getRequestToken("https://idp.example.org/cb");
+            fail("Request token without a confirmed callback was used");
+        } catch (final TwitterOAuthException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("callback"));
+        }
+    }
+
+    /**
+     * A key with no local budget and no figures from Twitter is not limited, beyond the 75 logins
+     * per window a local budget of 150 calls would allow.
+     *
+     * @throws Exception if a login fails
+     */
+    public void testUnboundedWithoutBudget() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            final TwitterRequestToken requestToken = this.integration.getRequestToken("https://idp.example.org/cb");
+            this.integration.getAccessToken(requestToken, "verifier");
+        }
+        assertEquals(200, this.server.getOAuthCalls("consumer"));
+        assertEquals(Double.POSITIVE_INFINITY, this.integration.getConsumerKeys().get(0).getRemainingBudget());
+    }
+
+    /**
+     * Calls move to the next key once the x-rate-limit headers report a key exhausted, and stop
+     * without calling Twitter once every key is.
+     *
+     * @throws Exception if the integration cannot be built
+     */
+    public void testRotationOnReportedBudget() throws Exception {
+        this.server.setRateLimit("ck1", 2, true);
+        this.server.setRateLimit("ck2", 5, true);
+        final TwitterIntegration rotating = newIntegration(newKey("ck1"), newKey("ck2"));
+        try {
+            for (int i = 0; i < 7; i++) {
+                rotating.getRequestToken("https://idp.example.org/cb");
+            }
+            try {
+                rotating.getRequestToken("https://idp.example.org/cb");
+                fail("Call made with every key exhausted");
+            } catch (final TwitterUnavailableException e) {
+                // expected
+            }
+        } finally {
+            rotating.destroy();
+        }
+        assertEquals(2, this.server.getOAuthCalls("ck1"));
+        assertEquals(5, this.server.getOAuthCalls("ck2"));
+    }
+
+    /**
+     * A key answered 429 without figures rests, and the following calls use the next key.
+     *
+     * @throws Exception if the integration cannot be built
+     */
+    public void testRotationOnRateLimitWithoutFigures() throws Exception {
+        this.server.setRateLimit("ck1", 1, false);
+        final TwitterIntegration rotating = newIntegration(newKey("ck1"), newKey("ck2"));
+        try {
+            assertEquals("ck1", rotating.getRequestToken("https://idp.example.org/cb").getConsumerKeyId());
+            try {
+                rotating.getRequestToken("https://idp.example.org/cb");
+                fail("Rate limited call succeeded");
+            } catch (final TwitterOAuthException e) {
+                assertEquals(429, e.getStatusCode());
+            }
+            for (int i = 0; i < 10; i++) {
+                assertEquals("ck2", rotating.getRequestToken("https://idp.example.org/cb").getConsumerKeyId());
+            }
+            assertEquals(0.0, rotating.getConsumerKeys().get(0).getRemainingBudget());
+        } finally {
+            rotating.destroy();
+        }
+        assertEquals(2, this.server.getOAuthCalls("ck1"));
+        assertEquals(10, this.server.getOAuthCalls("ck2"));
+    }
+
+    /**
+     * A configured budget caps the calls of a key locally.
+     *
+     * @throws Exception if the integration cannot be built
+     */
+    public void testLocalBudget() throws Exception {
+        final TwitterIntegration limited = newIntegration(newKey("ck1").setBudget(3));
+        try {
+            for (int i = 0; i < 3; i++) {
+                limited.getRequestToken("https://idp.example.org/cb");
+            }
+            try {
+                limited.getRequestToken("https://idp.example.org/cb");
+                fail("Call made beyond the local budget");
+            } catch (final TwitterUnavailableException e) {
+                // expected
+            }
+        } finally {
+            limited.destroy();
+        }
+        assertEquals(3, this.server.getOAuthCalls("ck1"));
+    }
+
+    /**
+     * Build a consumer key whose ID is its consumer key.
+     *
+     * @param consumerKey the consumer key
+     *
+     * @return the key
+     */
+    private static TwitterConsumerKey newKey(final String consumerKey) {
+        return new TwitterConsumerKey()
+            .setId(consumerKey)
+            .setOauthConsumerKey(consumerKey)
+            .setOauthConsumerSecret(StubTwitterServer.CONSUMER_SECRET);
+    }
+
+    /**
+     * Build an initialized integration against the stub.
+     *
+     * @param keys the consumer keys
+     *
+     * @return the integration
+     *
+     * @throws Exception if the integration cannot be initialized
+     */
+    private TwitterIntegration newIntegration(final TwitterConsumerKey... keys) throws Exception {
+        final TwitterIntegration built = new TwitterIntegration()
+            .setConsumerKeys(Arrays.asList(keys))
+            .setApiBaseUrl(this.server.getBaseUrl());
+        built.initialize();
+        return built;
+    }
+
+    /**
+     * Get the user the stub server issues for a request token.
+     *
+     * @param requestToken the request token
+     *
+     * @return the user ID
+     */
+    private static long userOf(final TwitterRequestToken requestToken) {
+        return Long.parseLong(requestToken.getToken().substring("rt-".length()));
+    }
+}
@@ -0,0 +1,311 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Tests for {@link TwitterOAuth2Client} and {@link TwitterOAuth2CallbackServlet}, following a login
+ * from the authorization page through the redirect URI and the code exchange to the user lookup
+ * against a {@link StubTwitterServer}.
+ */
+public class TwitterOAuth2ClientTest extends TestCase {
+    /** Flow execution URL of a login, as InitializeTwitterContext builds it */
+    private static final String FLOW_URL =
+            "https://idp.example.org/idp/profile/SAML2/Redirect/SSO?execution=e1s2&_eventId=proceed";
+
+    /** Stub Twitter API */
+    private StubTwitterServer server;
+
+    /** Integration in OAuth 2.0 mode */
+    private TwitterIntegration integration;
+
+    /** {@inheritDoc} */
+    @Override
+    protected void setUp() throws Exception {
+        this.server = new StubTwitterServer().start();
+        this.integration = newIntegration(StubTwitterServer.OAUTH2_REDIRECT_URI);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void tearDown() throws Exception {
+        this.integration.destroy();
+        this.server.stop();
+    }
+
+    /**
+     * A login goes to the authorization page with the registered redirect URI, comes back to its own
+     * flow execution through the servlet, and the code yields the user.
+     *
+     * @throws Exception if the login fails
+     */
+    public void testLogin() throws Exception {
+        final TwitterRequestToken requestToken = this.integration.getRequestToken(FLOW_URL);
+        assertEquals(TwitterIntegration.OAUTH2_CLIENT_KEY_ID, requestToken.getConsumerKeyId());
+        assertTrue(requestToken.getAuthenticationUrl().contains(
+                "&redirect_uri=" + TwitterOAuthSigner.percentEncode(StubTwitterServer.OAUTH2_REDIRECT_URI) + "&"));
+        assertEquals(FLOW_URL, TwitterOAuth2Client.getReturnUrl(requestToken.getToken()));
+
+        final String redirect = authorize(requestToken.getAuthenticationUrl());
+        assertTrue(redirect, redirect.startsWith(StubTwitterServer.OAUTH2_REDIRECT_URI + "?"));
+
+        final String callback = callback(redirect);
+        assertTrue(callback, callback.startsWith(FLOW_URL + "&"));
+        final Map<String, String> parameters = parameters(callback);
+        assertEquals(requestToken.getToken(), parameters.get("state"));
+        final String code = parameters.get("code");
+        assertNotNull(code);
+
+        final long userId = Long.parseLong(code.substring("c-".length()));
+        final TwitterAccessToken accessToken = this.integration.getAccessToken(requestToken, code);
+        assertEquals(userId, accessToken.getUserId());
+        assertEquals("user" + userId, accessToken.getScreenName());
+
+        try {
+            this.integration.getAccessToken(requestToken, code);
+            fail("Code was exchanged twice");
+        } catch (final TwitterOAuthException e) {
+            assertEquals(400, e.getStatusCode());
+        }
+    }
+
+    /**
+     * Every login sends the same redirect URI, so the flow execution URL it would once have sent
+     * is refused by Twitter.
+     *
+     * @throws Exception if the integration cannot be built
+     */
+    public void testRedirectUriMustBeRegistered() throws Exception {
+        final String first = this.integration.getRequestToken(FLOW_URL).getAuthenticationUrl();
+        final String second = this.integration.getRequestToken(FLOW_URL.replace("e1s2", "e2s2"))
+            .getAuthenticationUrl();
+        assertEquals(redirectUriOf(first), redirectUriOf(second));
+
+        final TwitterIntegration perLogin = newIntegration(FLOW_URL);
+        try {
+            final HttpURLConnection connection = open(perLogin.getRequestToken(FLOW_URL).getAuthenticationUrl());
+            assertEquals(400, connection.getResponseCode());
+        } finally {
+            perLogin.destroy();
+        }
+    }
+
+    /**
+     * A code is only exchanged with the code verifier of its own authorization request.
+     *
+     * @throws Exception if the login fails other than by the exchange
+     */
+    public void testWrongCodeVerifier() throws Exception {
+        final TwitterRequestToken requestToken = this.integration.getRequestToken(FLOW_URL);
+        final String code = parameters(callback(authorize(requestToken.getAuthenticationUrl()))).get("code");
+
+        final TwitterRequestToken otherVerifier = new TwitterRequestToken(requestToken.getToken(),
+                this.integration.getRequestToken(FLOW_URL).getTokenSecret(), null, requestToken.getConsumerKeyId());
+        try {
+            this.integration.getAccessToken(otherVerifier, code);
+            fail("Code was exchanged with another verifier");
+        } catch (final TwitterOAuthException e) {
+            assertEquals(400, e.getStatusCode());
+        }
+    }
+
+    /**
+     * The servlet refuses a callback whose state carries no URL or a URL on another host.
+     *
+     * @throws Exception if the servlet fails
+     */
+    public void testCallbackStaysOnHost() throws Exception {
+        final String elsewhere = "https://idp.example.org.attacker.example/idp/profile?execution=e1s1";
+        final String state = "nonce." + BaseEncoding.base64Url().omitPadding().encode(
+                elsewhere.getBytes(StandardCharsets.UTF_8));
+
+        final String[] outcome = serve(StubTwitterServer.OAUTH2_REDIRECT_URI + "?state=" + state + "&code=c-1");
+        assertEquals("400", outcome[0]);
+        assertEquals("400", serve(StubTwitterServer.OAUTH2_REDIRECT_URI + "?code=c-1")[0]);
+        assertEquals("400", serve(StubTwitterServer.OAUTH2_REDIRECT_URI + "?state=%21%21&code=c-1")[0]);
+        assertNull(TwitterOAuth2Client.getReturnUrl(null));
+    }
+
+    /**
+     * Build an initialized integration in OAuth 2.0 mode against the stub.
+     *
+     * @param redirectUri the redirect URI
+     *
+     * @return the integration
+     *
+     * @throws Exception if the integration cannot be initialized
+     */
+    private TwitterIntegration newIntegration(final String redirectUri) throws Exception {
+        final TwitterIntegration oauth2 = new TwitterIntegration()
+            .setMode(TwitterIntegration.Mode.OAUTH2)
+            .setOauth2ClientId(StubTwitterServer.OAUTH2_CLIENT_ID)
+            .setOauth2RedirectUri(redirectUri)
+            .setAuthorizeUrl(this.server.getBaseUrl() + StubTwitterServer.OAUTH2_AUTHORIZE_PATH)
+            .setApiBaseUrl(this.server.getBaseUrl());
+        oauth2.initialize();
+        return oauth2;
+    }
+
+    /**
+     * Visit the authorization page as the browser does once the user has approved.
+     *
+     * @param authorizeUrl the URL of the authorization page
+     *
+     * @return the URL Twitter redirects to
+     *
+     * @throws Exception if the page does not redirect
+     */
+    private static String authorize(final String authorizeUrl) throws Exception {
+        final HttpURLConnection connection = open(authorizeUrl);
+        assertEquals(302, connection.getResponseCode());
+        return connection.getHeaderField("Location");
+    }
+
+    /**
+     * Open a connection that does not follow redirects.
+     *
+     * @param url the URL
+     *
+     * @return the connection
+     *
+     * @throws Exception if the connection cannot be opened
+     */
+    private static HttpURLConnection open(final String url) throws Exception {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setInstanceFollowRedirects(false);
+        return connection;
+    }
+
+    /**
+     * Serve the redirect from Twitter with the servlet and expect a redirect.
+     *
+     * @param url the URL Twitter redirected to
+     *
+     * @return the URL the servlet redirects to
+     *
+     * @throws Exception if the servlet fails
+     */
+    private static String callback(final String url) throws Exception {
+        final String[] outcome = serve(url);
+        assertEquals("302", outcome[0]);
+        return outcome[1];
+    }
+
+    /**
+     * Serve a request with the servlet.
+     *
+     * @param url the requested URL
+     *
+     * @return the status and the redirect location, if any
+     *
+     * @throws Exception if the servlet fails
+     */
+    private static String[] serve(final String url) throws Exception {
+        final URI uri = URI.create(url);
+        final Map<String, String> parameters = parameters(url);
+        final String[] outcome = new String[2];
+        final HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(
+                HttpServletRequest.class.getClassLoader(), new Class<?>[] {HttpServletRequest.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        switch (method.getName()) {
+                            case "getScheme":
+                                return uri.getScheme();
+                            case "getServerName":
+                                return uri.getHost();
+                            case "getQueryString":
+                                return uri.getRawQuery();
+                            case "getParameter":
+                                return parameters.get(args[0]);
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    }
+                });
+        final HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(
+                HttpServletResponse.class.getClassLoader(), new Class<?>[] {HttpServletResponse.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        switch (method.getName()) {
+                            case "sendRedirect":
+                                outcome[0] = "302";
+                                outcome[1] = (String) args[0];
+                                return null;
+                            case "sendError":
+                                outcome[0] = String.valueOf(args[0]);
+                                return null;
+                            case "setHeader":
+                                return null;
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    }
+                });
+        new TwitterOAuth2CallbackServlet().doGet(request, response);
+        return outcome;
+    }
+
+    /**
+     * Get the redirect URI an authorization URL names.
+     *
+     * @param authorizeUrl the authorization URL
+     *
+     * @return the redirect URI
+     *
+     * @throws Exception if the URL cannot be decoded
+     */
+    private static String redirectUriOf(final String authorizeUrl) throws Exception {
+        return parameters(authorizeUrl).get("redirect_uri");
+    }
+
+    /**
+     * Parse the query parameters of a URL.
+     *
+     * @param url the URL
+     *
+     * @return the parameters by name
+     *
+     * @throws Exception if the query cannot be decoded
+     */
+    private static Map<String, String> parameters(final String url) throws Exception {
+        final Map<String, String> parameters = new HashMap<>();
+        final String query = URI.create(url).getRawQuery();
+        if (query != null) {
+            for (final String parameter : query.split("&")) {
+                final int equals = parameter.indexOf('=');
+                parameters.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"),
+                        URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return parameters;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+
+/**
+ * Tests for {@link TwitterOAuthSigner}.
+ */
+public class TwitterOAuthSignerTest extends TestCase {
+
+    /**
+     * The signed request of the Twitter "Creating a signature" documentation gets the signature
+     * documented for it.
+     */
+    public void testTwitterDocumentationExample() {
+        final TwitterOAuthSigner signer = new TwitterOAuthSigner("xvz1evFS4wEEPTGEFPHBog",
+                "kAcSOqF21Fu85e7zjz7ZN2U4ZRhfV3WpwPAoE3Z7kBw");
+        final List<NameValuePair> parameters = Arrays.<NameValuePair>asList(
+                new BasicNameValuePair("status", "Hello Ladies + Gentlemen, a signed OAuth request!"),
+                new BasicNameValuePair("include_entities", "true"));
+
+        final String header = signer.authorizationHeader("POST", "https://api.twitter.com/1.1/statuses/update.json",
+                "370773112-GmHxMAgYyLbNEtIKZeRNFsMKPR9EyMZeS9weJAEb", "LswwdoUaIvS8ltyTt5jkRh4J50vUPVVHtR2YPi5kE",
+                parameters, "kYjzVBB8Y0ZFabxSWbWovY3uYSQ2pTgmZeNu2VS4cg", "1318622958");
+
+        assertEquals("OAuth oauth_consumer_key=\"xvz1evFS4wEEPTGEFPHBog\", "
+                + "oauth_nonce=\"kYjzVBB8Y0ZFabxSWbWovY3uYSQ2pTgmZeNu2VS4cg\", "
+                + "oauth_signature=\"hCtSmYh%2BiHYCEqBWrE7C7hYmtUk%3D\", "
+                + "oauth_signature_method=\"HMAC-SHA1\", oauth_timestamp=\"1318622958\", "
+                + "oauth_token=\"370773112-GmHxMAgYyLbNEtIKZeRNFsMKPR9EyMZeS9weJAEb\", oauth_version=\"1.0\"",
+                header);
+    }
+
+    /**
+     * A request without a token, as for a request token, is signed with the consumer secret
+     * alone and names no token.
+     */
+    public void testWithoutToken() {
+        final TwitterOAuthSigner signer = new TwitterOAuthSigner("consumer", "secret");
+        final List<NameValuePair> parameters = Collections.<NameValuePair>singletonList(
+                new BasicNameValuePair("oauth_callback", "https://idp.example.org/idp/profile?execution=e1s1"));
+
+        final String header = signer.authorizationHeader("POST", "https://api.twitter.com/oauth/request_token",
+                null, null, parameters, "0123456789abcdef", "1500000000");
+        assertFalse(header, header.contains("oauth_token"));
+        assertEquals(header, signer.authorizationHeader("POST", "https://api.twitter.com/oauth/request_token",
+                null, null, parameters, "0123456789abcdef", "1500000000"));
+        assertFalse(header.equals(signer.authorizationHeader("POST", "https://api.twitter.com/oauth/request_token",
+                null, null, parameters, "0123456789abcdee", "1500000000")));
+    }
+
+    /**
+     * Values are encoded as RFC 5849 requires: unreserved characters stay, spaces become %20 and
+     * other characters are UTF-8 octets in upper case hex.
+     */
+    public void testPercentEncode() {
+        assertEquals("Ladies%20%2B%20Gentlemen", TwitterOAuthSigner.percentEncode("Ladies + Gentlemen"));
+        assertEquals("An%20encoded%20string%21", TwitterOAuthSigner.percentEncode("An encoded string!"));
+        assertEquals("Dogs%2C%20Cats%20%26%20Mice", TwitterOAuthSigner.percentEncode("Dogs, Cats & Mice"));
+        assertEquals("%E2%98%83", TwitterOAuthSigner.percentEncode("\u2603"));
+        assertEquals("-._~%2A", TwitterOAuthSigner.percentEncode("-._~*"));
+    }
+}
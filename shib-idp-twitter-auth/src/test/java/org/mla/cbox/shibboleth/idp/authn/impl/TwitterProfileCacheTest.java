@@ -0,0 +1,240 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link TwitterProfileCache} against the users endpoint of a {@link StubTwitterServer}.
+ */
+public class TwitterProfileCacheTest extends TestCase {
+    /** Stub Twitter API */
+    private StubTwitterServer server;
+
+    /** Executor profiles are fetched on */
+    private ExecutorService executor;
+
+    /** Cache under test */
+    private TwitterProfileCache cache;
+
+    /** {@inheritDoc} */
+    @Override
+    protected void setUp() throws Exception {
+        this.server = new StubTwitterServer().start();
+        this.executor = Executors.newFixedThreadPool(4);
+        this.cache = new TwitterProfileCache()
+            .setExecutorService(this.executor)
+            .setUsersEndpoint(this.server.getUsersEndpoint())
+            .setBearerToken(StubTwitterServer.BEARER_TOKEN);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void tearDown() throws Exception {
+        this.cache.destroy();
+        this.executor.shutdownNow();
+        this.server.stop();
+    }
+
+    /**
+     * A prefetched profile is fetched once and then served from the cache.
+     *
+     * @throws Exception if the cache cannot be initialized
+     */
+    public void testPrefetch() throws Exception {
+        this.cache.initialize();
+        assertNull(this.cache.getIfPresent(7));
+
+        this.cache.prefetch(7);
+        final TwitterProfile profile = this.cache.get(7, 5000);
+        assertNotNull(profile);
+        assertTrue(profile.isComplete());
+        assertEquals(7, profile.getUserId());
+        assertEquals("user7", profile.getScreenName());
+        assertEquals("User 7", profile.getName());
+        assertEquals("https://pbs.twimg.com/profile_images/7.jpg", profile.getProfileImageUrl());
+
+        this.cache.prefetch(7);
+        assertSame(profile, this.cache.get(7, 5000));
+        assertEquals(1, this.server.getUsersCalls());
+    }
+
+    /**
+     * A seeded screen name is available at once and replaced by the full profile when fetched.
+     *
+     * @throws Exception if the cache cannot be initialized
+     */
+    public void testSeed() throws Exception {
+        this.server.setLatency(300);
+        this.cache.initialize();
+
+        this.cache.seed(8, "user8");
+        final TwitterProfile seeded = this.cache.getIfPresent(8);
+        assertNotNull(seeded);
+        assertFalse(seeded.isComplete());
+        assertEquals("user8", seeded.getScreenName());
+        assertNull(seeded.getName());
+
+        final TwitterProfile profile = this.cache.get(8, 5000);
+        assertTrue(profile.isComplete());
+        assertEquals("User 8", profile.getName());
+        assertEquals(1, this.server.getUsersCalls());
+    }
+
+    /**
+     * A fetch that has not completed by the deadline is not waited for.
+     *
+     * @throws Exception if the cache cannot be initialized
+     */
+    public void testDeadline() throws Exception {
+        this.server.setLatency(1000);
+        this.cache.initialize();
+
+        this.cache.seed(9, "user9");
+        final long start = System.nanoTime();
+        final TwitterProfile profile = this.cache.get(9, 50);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 500);
+        assertFalse(profile.isComplete());
+        assertEquals("user9", profile.getScreenName());
+
+        assertNull(this.cache.get(10, 0));
+    }
+
+    /**
+     * Many resolutions of the same user at once cause a single fetch.
+     *
+     * @throws Exception if a resolution fails
+     */
+    public void testConcurrentPrefetchFetchesOnce() throws Exception {
+        this.server.setLatency(200);
+        this.cache.initialize();
+
+        final int threads = 16;
+        final CountDownLatch start = new CountDownLatch(1);
+        final ExecutorService callers = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<TwitterProfile>> results = new ArrayList<>(threads);
+            for (int t = 0; t < threads; t++) {
+                results.add(callers.submit(new Callable<TwitterProfile>() {
+                    @Override
+                    public TwitterProfile call() throws Exception {
+                        start.await();
+                        cache.prefetch(11);
+                        return cache.get(11, 5000);
+                    }
+                }));
+            }
+            start.countDown();
+            for (final Future<TwitterProfile> result : results) {
+                final TwitterProfile profile = result.get(10, TimeUnit.SECONDS);
+                assertNotNull(profile);
+                assertEquals("user11", profile.getScreenName());
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+        assertEquals(1, this.server.getUsersCalls());
+    }
+
+    /**
+     * A profile that cannot be fetched is not cached.
+     *
+     * @throws Exception if the cache cannot be initialized
+     */
+    public void testFailedFetch() throws Exception {
+        this.cache.initialize();
+
+        this.cache.prefetch(0);
+        assertNull(this.cache.get(0, 5000));
+        assertNull(this.cache.getIfPresent(0));
+    }
+
+    /**
+     * A wrong bearer token yields no profile.
+     *
+     * @throws Exception if the cache cannot be initialized
+     */
+    public void testUnauthorized() throws Exception {
+        this.cache.destroy();
+        this.cache = new TwitterProfileCache()
+            .setExecutorService(this.executor)
+            .setUsersEndpoint(this.server.getUsersEndpoint())
+            .setBearerToken("wrong");
+        this.cache.initialize();
+
+        this.cache.prefetch(12);
+        assertNull(this.cache.get(12, 5000));
+        assertEquals(1, this.server.getUsersCalls());
+    }
+
+    /**
+     * The cache holds no more than its maximum size.
+     *
+     * @throws Exception if the cache cannot be initialized
+     */
+    public void testMaximumSize() throws Exception {
+        this.cache.setMaximumSize(5);
+        this.cache.initialize();
+
+        for (long userId = 1; userId <= 50; userId++) {
+            this.cache.prefetch(userId);
+            assertNotNull(this.cache.get(userId, 5000));
+        }
+
+        int cached = 0;
+        for (long userId = 1; userId <= 50; userId++) {
+            if (this.cache.getIfPresent(userId) != null) {
+                cached++;
+            }
+        }
+        assertTrue("Cache holds " + cached + " profiles", cached <= 5);
+    }
+
+    /**
+     * A profile read after the refresh interval is refreshed in the background, and the cached
+     * profile is served meanwhile.
+     *
+     * @throws Exception if the cache cannot be initialized
+     */
+    public void testRefreshAhead() throws Exception {
+        this.cache.setRefreshInterval(100);
+        this.cache.initialize();
+
+        this.cache.prefetch(13);
+        final TwitterProfile profile = this.cache.get(13, 5000);
+        assertEquals(1, this.server.getUsersCalls());
+
+        Thread.sleep(200);
+        this.server.setLatency(500);
+        final long start = System.nanoTime();
+        assertSame(profile, this.cache.getIfPresent(13));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 250);
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (this.cache.getIfPresent(13) == profile && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+        }
+        assertNotSame(profile, this.cache.getIfPresent(13));
+        assertEquals(2, this.server.getUsersCalls());
+    }
+}
@@ -0,0 +1,132 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link TwitterReplayFilter}, with a window short enough to wait out.
+ */
+public class TwitterReplayFilterTest extends TestCase {
+    /** Length in milliseconds of a window, long enough to stay within one on a busy machine */
+    private static final long WINDOW = 500;
+
+    /** Time in milliseconds into a window the tests aim for */
+    private static final long MARGIN = 100;
+
+    /**
+     * A verifier is rejected for the rest of its window and the next one, and forgotten in the
+     * window after that.
+     *
+     * @throws Exception if the filter cannot be initialized
+     */
+    public void testRememberedForTwoWindows() throws Exception {
+        final TwitterReplayFilter filter = newFilter();
+        final long initialized = System.currentTimeMillis();
+
+        assertTrue(filter.markUsed("verifier"));
+        assertTrue(filter.markUsed("other"));
+        assertFalse(filter.markUsed("verifier"));
+        assertEquals(1, filter.getRejectedCallbacks());
+
+        /* The next window starts with the first call after the first one ends */
+        sleepUntil(initialized + WINDOW + MARGIN);
+        assertFalse(filter.markUsed("verifier"));
+        final long rotated = System.currentTimeMillis();
+        assertFalse(filter.markUsed("other"));
+        assertTrue(filter.markUsed("fresh"));
+        assertEquals(3, filter.getRejectedCallbacks());
+
+        /* The first window's filter is dropped; the second never recorded the replays */
+        sleepUntil(rotated + WINDOW + MARGIN);
+        assertTrue(filter.markUsed("verifier"));
+        assertTrue(filter.markUsed("other"));
+        assertFalse(filter.markUsed("fresh"));
+        assertEquals(4, filter.getRejectedCallbacks());
+    }
+
+    /**
+     * After a whole window without callbacks the old filter is not kept as the previous one.
+     *
+     * @throws Exception if the filter cannot be initialized
+     */
+    public void testIdleWindow() throws Exception {
+        final TwitterReplayFilter filter = newFilter();
+        final long initialized = System.currentTimeMillis();
+        assertTrue(filter.markUsed("verifier"));
+
+        sleepUntil(initialized + 2 * WINDOW + MARGIN);
+        assertTrue(filter.markUsed("verifier"));
+        assertFalse(filter.markUsed("verifier"));
+        assertEquals(1, filter.getRejectedCallbacks());
+    }
+
+    /**
+     * Fresh verifiers are rarely mistaken for replays while the filter holds the expected number
+     * of callbacks.
+     *
+     * @throws Exception if the filter cannot be initialized
+     */
+    public void testFalsePositives() throws Exception {
+        final TwitterReplayFilter filter = new TwitterReplayFilter()
+            .setExpectedCallbacks(20000)
+            .setFalsePositiveRate(0.001);
+        filter.initialize();
+
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(filter.markUsed("seen-" + i));
+        }
+        int rejected = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (!filter.markUsed("fresh-" + i)) {
+                rejected++;
+            }
+        }
+        assertTrue("Rejected " + rejected + " fresh verifiers", rejected < 50);
+        assertEquals(rejected, filter.getRejectedCallbacks());
+        for (int i = 0; i < 10000; i++) {
+            assertFalse(filter.markUsed("seen-" + i));
+        }
+    }
+
+    /**
+     * Build an initialized filter with a short window.
+     *
+     * @return the filter
+     *
+     * @throws Exception if the filter cannot be initialized
+     */
+    private static TwitterReplayFilter newFilter() throws Exception {
+        final TwitterReplayFilter filter = new TwitterReplayFilter()
+            .setWindow(WINDOW)
+            .setExpectedCallbacks(100);
+        filter.initialize();
+        return filter;
+    }
+
+    /**
+     * Sleep until a point in time.
+     *
+     * @param time the time in milliseconds
+     *
+     * @throws InterruptedException if interrupted
+     */
+    private static void sleepUntil(final long time) throws InterruptedException {
+        long remaining = time - System.currentTimeMillis();
+        while (remaining > 0) {
+            Thread.sleep(remaining);
+            remaining = time - System.currentTimeMillis();
+        }
+    }
+}
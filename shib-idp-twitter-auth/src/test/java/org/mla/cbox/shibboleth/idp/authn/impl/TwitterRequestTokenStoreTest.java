@@ -0,0 +1,199 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.impl.MemoryStorageService;
+
+/**
+ * Tests for {@link TwitterRequestTokenStore} over a {@link MemoryStorageService}.
+ */
+public class TwitterRequestTokenStoreTest extends TestCase {
+    /** Storage service */
+    private MemoryStorageService storageService;
+
+    /** Store under test */
+    private TwitterRequestTokenStore store;
+
+    /** {@inheritDoc} */
+    @Override
+    protected void setUp() throws Exception {
+        this.storageService = new MemoryStorageService();
+        this.storageService.setId("test");
+        this.storageService.initialize();
+        this.store = newStore(600000);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void tearDown() throws Exception {
+        this.storageService.destroy();
+    }
+
+    /**
+     * A saved token is taken back once with its secret and consumer key, then no more.
+     *
+     * @throws Exception if the storage fails
+     */
+    public void testTakeOnce() throws Exception {
+        this.store.save(new TwitterRequestToken("rt-1", "rs-1", null, "second key"));
+        this.store.save(new TwitterRequestToken("rt-2", "rs-2", null, "default"));
+
+        final TwitterRequestToken taken = this.store.take("rt-1");
+        assertNotNull(taken);
+        assertEquals("rt-1", taken.getToken());
+        assertEquals("rs-1", taken.getTokenSecret());
+        assertEquals("second key", taken.getConsumerKeyId());
+        assertNull(this.storageService.read(TwitterRequestTokenStore.STORAGE_CONTEXT, "rt-1"));
+        assertNull(this.store.take("rt-1"));
+
+        assertEquals("rs-2", this.store.take("rt-2").getTokenSecret());
+        assertNull(this.store.take("rt-3"));
+    }
+
+    /**
+     * A token cannot be saved twice while the first is stored.
+     *
+     * @throws Exception if the storage fails
+     */
+    public void testSaveTwice() throws Exception {
+        this.store.save(new TwitterRequestToken("rt-1", "rs-1", null, "default"));
+        try {
+            this.store.save(new TwitterRequestToken("rt-1", "other", null, "default"));
+            fail("Token saved twice");
+        } catch (final IOException e) {
+            // expected
+        }
+        assertEquals("rs-1", this.store.take("rt-1").getTokenSecret());
+    }
+
+    /**
+     * A token is not taken back after its lifetime.
+     *
+     * @throws Exception if the storage fails
+     */
+    public void testExpired() throws Exception {
+        final TwitterRequestTokenStore shortLived = newStore(1);
+        shortLived.save(new TwitterRequestToken("rt-1", "rs-1", null, "default"));
+        Thread.sleep(20);
+
+        assertNull(shortLived.take("rt-1"));
+    }
+
+    /**
+     * A callback that read the token just before another callback took it does not get it too.
+     *
+     * @throws Exception if the storage fails
+     */
+    public void testTakenBetweenReadAndDelete() throws Exception {
+        final TwitterRequestTokenStore[] other = new TwitterRequestTokenStore[1];
+        final TwitterRequestToken[] otherTaken = new TwitterRequestToken[1];
+        final MemoryStorageService racing = new MemoryStorageService() {
+            /** Whether the other callback has been let in */
+            private boolean raced;
+
+            @Override
+            public StorageRecord read(final String context, final String key) throws IOException {
+                final StorageRecord record = super.read(context, key);
+                if (!this.raced) {
+                    this.raced = true;
+                    otherTaken[0] = other[0].take(key);
+                }
+                return record;
+            }
+        };
+        racing.setId("racing");
+        racing.initialize();
+        try {
+            final TwitterRequestTokenStore racingStore = new TwitterRequestTokenStore().setStorageService(racing);
+            racingStore.initialize();
+            other[0] = racingStore;
+            racingStore.save(new TwitterRequestToken("rt-1", "rs-1", null, "default"));
+
+            assertNull(racingStore.take("rt-1"));
+            assertNotNull(otherTaken[0]);
+            assertEquals("rs-1", otherTaken[0].getTokenSecret());
+        } finally {
+            racing.destroy();
+        }
+    }
+
+    /**
+     * Of many callbacks presenting the same token at once, exactly one gets its secret.
+     *
+     * @throws Exception if the storage fails
+     */
+    public void testConcurrentTake() throws Exception {
+        final int threads = 8;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int round = 0; round < 200; round++) {
+                final String token = "rt-" + round;
+                this.store.save(new TwitterRequestToken(token, "rs-" + round, null, "default"));
+
+                final CountDownLatch start = new CountDownLatch(1);
+                final List<Future<TwitterRequestToken>> results = new ArrayList<>(threads);
+                for (int t = 0; t < threads; t++) {
+                    results.add(executor.submit(new Callable<TwitterRequestToken>() {
+                        @Override
+                        public TwitterRequestToken call() throws Exception {
+                            start.await();
+                            return store.take(token);
+                        }
+                    }));
+                }
+                start.countDown();
+
+                int taken = 0;
+                for (final Future<TwitterRequestToken> result : results) {
+                    if (result.get(10, TimeUnit.SECONDS) != null) {
+                        taken++;
+                    }
+                }
+                assertEquals(token, 1, taken);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Build an initialized store over the storage service.
+     *
+     * @param lifetime the lifetime of stored tokens in milliseconds
+     *
+     * @return the store
+     *
+     * @throws Exception if the store cannot be initialized
+     */
+    private TwitterRequestTokenStore newStore(final long lifetime) throws Exception {
+        final TwitterRequestTokenStore tokenStore = new TwitterRequestTokenStore()
+            .setStorageService(this.storageService)
+            .setLifetime(lifetime);
+        tokenStore.initialize();
+        return tokenStore;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.Principal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import javax.security.auth.Subject;
+
+import junit.framework.TestCase;
+
+import net.shibboleth.idp.authn.AuthnEventIds;
+import net.shibboleth.idp.authn.SubjectCanonicalizationException;
+import net.shibboleth.idp.authn.context.SubjectCanonicalizationContext;
+
+import org.opensaml.profile.context.EventContext;
+import org.opensaml.profile.context.ProfileRequestContext;
+
+/**
+ * Tests for {@link TwitterSubjectCanonicalization}, with an account index written by
+ * {@link TwitterAccountIndexBuilder}.
+ */
+public class TwitterSubjectCanonicalizationTest extends TestCase {
+    /** Directory holding the index file */
+    private File directory;
+
+    /** Index linking Twitter user 10 to alice */
+    private MappedTwitterAccountIndex accountIndex;
+
+    /** {@inheritDoc} */
+    @Override
+    protected void setUp() throws Exception {
+        this.directory = Files.createTempDirectory("twitter-accounts-test").toFile();
+        final File input = new File(this.directory, "accounts.csv");
+        Files.write(input.toPath(), Arrays.asList("10,alice", "30,carol"), StandardCharsets.UTF_8);
+        final File file = new File(this.directory, "accounts.idx");
+        new TwitterAccountIndexBuilder(file, Collections.singletonList(input))
+            .setTmpDirectory(this.directory)
+            .build();
+
+        this.accountIndex = new MappedTwitterAccountIndex()
+            .setFile(file)
+            .setCheckInterval(0);
+        this.accountIndex.initialize();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void tearDown() throws Exception {
+        this.accountIndex.destroy();
+        final File[] files = this.directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                Files.delete(file.toPath());
+            }
+        }
+        Files.delete(this.directory.toPath());
+    }
+
+    /**
+     * Without an index the principal name is the Twitter user ID.
+     *
+     * @throws Exception if the action cannot be initialized
+     */
+    public void testWithoutIndex() throws Exception {
+        final ProfileRequestContext prc = newContext(new TwitterIdPrincipal(10));
+        final TwitterSubjectCanonicalization action = new TwitterSubjectCanonicalization();
+        action.initialize();
+        action.execute(prc);
+
+        assertEquals(new TwitterIdPrincipal(10).getName(), principalName(prc));
+        assertNull(prc.getSubcontext(EventContext.class));
+    }
+
+    /**
+     * A linked Twitter user gets the local username.
+     *
+     * @throws Exception if the action cannot be initialized
+     */
+    public void testLinked() throws Exception {
+        final ProfileRequestContext prc = newContext(new TwitterIdPrincipal(10));
+        newAction(true).execute(prc);
+
+        assertEquals("alice", principalName(prc));
+        assertNull(prc.getSubcontext(EventContext.class));
+    }
+
+    /**
+     * An unlinked Twitter user keeps the Twitter user ID when no linked account is required.
+     *
+     * @throws Exception if the action cannot be initialized
+     */
+    public void testUnlinked() throws Exception {
+        final ProfileRequestContext prc = newContext(new TwitterIdPrincipal(20));
+        newAction(false).execute(prc);
+
+        assertEquals(new TwitterIdPrincipal(20).getName(), principalName(prc));
+        assertNull(prc.getSubcontext(EventContext.class));
+    }
+
+    /**
+     * An unlinked Twitter user is an invalid subject when a linked account is required.
+     *
+     * @throws Exception if the action cannot be initialized
+     */
+    public void testUnlinkedRequired() throws Exception {
+        final ProfileRequestContext prc = newContext(new TwitterIdPrincipal(20));
+        newAction(true).execute(prc);
+
+        assertNull(principalName(prc));
+        assertEquals(AuthnEventIds.INVALID_SUBJECT, prc.getSubcontext(EventContext.class).getEvent());
+        assertTrue(prc.getSubcontext(SubjectCanonicalizationContext.class).getException()
+                instanceof SubjectCanonicalizationException);
+    }
+
+    /**
+     * A subject with no Twitter principal is an invalid subject.
+     *
+     * @throws Exception if the action cannot be initialized
+     */
+    public void testNoTwitterPrincipal() throws Exception {
+        final ProfileRequestContext prc = newContext();
+        newAction(false).execute(prc);
+
+        assertNull(principalName(prc));
+        assertEquals(AuthnEventIds.INVALID_SUBJECT, prc.getSubcontext(EventContext.class).getEvent());
+    }
+
+    /**
+     * Build an initialized action over the account index.
+     *
+     * @param requireLinkedAccount whether a linked account is required
+     *
+     * @return the action
+     *
+     * @throws Exception if the action cannot be initialized
+     */
+    private TwitterSubjectCanonicalization newAction(final boolean requireLinkedAccount) throws Exception {
+        final TwitterSubjectCanonicalization action = new TwitterSubjectCanonicalization()
+            .setAccountIndex(this.accountIndex)
+            .setRequireLinkedAccount(requireLinkedAccount);
+        action.initialize();
+        return action;
+    }
+
+    /**
+     * Build a profile request context canonicalizing a subject.
+     *
+     * @param principals the principals of the subject
+     *
+     * @return the context
+     */
+    private static ProfileRequestContext newContext(final Principal... principals) {
+        final ProfileRequestContext prc = new ProfileRequestContext();
+        final Set<Principal> set = new HashSet<>(Arrays.asList(principals));
+        prc.getSubcontext(SubjectCanonicalizationContext.class, true)
+            .setSubject(new Subject(false, set, Collections.emptySet(), Collections.emptySet()));
+        return prc;
+    }
+
+    /**
+     * Get the principal name canonicalization produced.
+     *
+     * @param prc the profile request context
+     *
+     * @return the principal name, or null
+     */
+    private static String principalName(final ProfileRequestContext prc) {
+        return prc.getSubcontext(SubjectCanonicalizationContext.class).getPrincipalName();
+    }
+}
@@ -0,0 +1,188 @@
+/*
+* Copyright (C) 2017 Modern Language Association
+*
+* Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+* except in compliance with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software distributed under
+* the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the specific language governing
+* permissions and limitations under the License.
+*/
+package org.mla.cbox.shibboleth.idp.authn.impl;
+
+import java.util.Collections;
+import java.util.HashSet;
+
+import junit.framework.TestCase;
+
+import net.shibboleth.idp.authn.AuthenticationFlowDescriptor;
+import net.shibboleth.idp.authn.AuthenticationResult;
+import net.shibboleth.idp.authn.AuthnEventIds;
+import net.shibboleth.idp.authn.context.AuthenticationContext;
+
+import org.opensaml.profile.action.EventIds;
+import org.opensaml.profile.context.EventContext;
+import org.opensaml.profile.context.ProfileRequestContext;
+
+/**
+ * Tests for {@link ValidateTwitterIdentityCookie}, with an identity cookie issued by an earlier
+ * login in the same browser.
+ */
+public class ValidateTwitterIdentityCookieTest extends TestCase {
+    /** ID of the Twitter authentication flow */
+    private static final String FLOW_ID = "authn/Twitter";
+
+    /** Cookies of the browser */
+    private StubCookieManager cookieManager;
+
+    /** Identity cookie of the IdP */
+    private TwitterIdentityCookie identityCookie;
+
+    /** {@inheritDoc} */
+    @Override
+    protected void setUp() throws Exception {
+        this.cookieManager = new StubCookieManager();
+        this.identityCookie = new TwitterIdentityCookie()
+            .setDataSealer(StubDataSealerKeyStrategy.newDataSealer("default"))
+            .setCookieManager(this.cookieManager)
+            .setLifetime(60000);
+        this.identityCookie.initialize();
+    }
+
+    /**
+     * A valid cookie completes the login with the principal of its user, without going to Twitter.
+     *
+     * @throws Exception if the action cannot be initialized
+     */
+    public void testValidCookie() throws Exception {
+        this.identityCookie.issue(12345);
+        final ProfileRequestContext prc = newProfileRequestContext(false);
+        newAction(this.identityCookie).execute(prc);
+
+        assertProceeded(prc);
+        final AuthenticationResult result = prc.getSubcontext(AuthenticationContext.class).getAuthenticationResult();
+        assertNotNull(result);
+        assertEquals(FLOW_ID, result.getAuthenticationFlowId());
+        assertEquals(Collections.singleton(new TwitterIdPrincipal(12345)),
+                new HashSet<>(result.getSubject().getPrincipals()));
+    }
+
+    /**
+     * Without a cookie in the request the flow goes on to Twitter.
+     *
+     * @throws Exception if the action cannot be initialized
+     */
+    public void testNoCookie() throws Exception {
+        final ProfileRequestContext prc = newProfileRequestContext(false);
+        newAction(this.identityCookie).execute(prc);
+
+        assertNoCredentials(prc);
+    }
+
+    /**
+     * An expired cookie is ignored and removed, and the flow goes on to Twitter.
+     *
+     * @throws Exception if the action cannot be initialized
+     */
+    public void testExpiredCookie() throws Exception {
+        final TwitterIdentityCookie shortLived = new TwitterIdentityCookie()
+            .setDataSealer(this.identityCookie.getDataSealer())
+            .setCookieManager(this.cookieManager)
+            .setLifetime(1);
+        shortLived.initialize();
+        shortLived.issue(12345);
+        Thread.sleep(20);
+
+        final ProfileRequestContext prc = newProfileRequestContext(false);
+        newAction(shortLived).execute(prc);
+
+        assertNoCredentials(prc);
+        assertNull(this.cookieManager.getCookieValue(TwitterIdentityCookie.DEFAULT_COOKIE_NAME, null));
+    }
+
+    /**
+     * A forced login goes to Twitter even with a valid cookie, which is left for later logins.
+     *
+     * @throws Exception if the action cannot be initialized
+     */
+    public void testForceAuthn() throws Exception {
+        this.identityCookie.issue(12345);
+        final ProfileRequestContext prc = newProfileRequestContext(true);
+        newAction(this.identityCookie).execute(prc);
+
+        assertNoCredentials(prc);
+        assertEquals(12345, this.identityCookie.read());
+    }
+
+    /**
+     * Without an identity cookie configured the flow always goes on to Twitter.
+     *
+     * @throws Exception if the action cannot be initialized
+     */
+    public void testUnconfigured() throws Exception {
+        this.identityCookie.issue(12345);
+        final ProfileRequestContext prc = newProfileRequestContext(false);
+        newAction(null).execute(prc);
+
+        assertNoCredentials(prc);
+    }
+
+    /**
+     * Build an initialized action.
+     *
+     * @param cookie the identity cookie, or null for none
+     *
+     * @return the action
+     *
+     * @throws Exception if the action cannot be initialized
+     */
+    private static ValidateTwitterIdentityCookie newAction(final TwitterIdentityCookie cookie) throws Exception {
+        final ValidateTwitterIdentityCookie action = new ValidateTwitterIdentityCookie()
+            .setIdentityCookie(cookie);
+        action.initialize();
+        return action;
+    }
+
+    /**
+     * Build the context of a login attempting the Twitter flow.
+     *
+     * @param forceAuthn whether forced authentication is requested
+     *
+     * @return the profile request context
+     */
+    private static ProfileRequestContext newProfileRequestContext(final boolean forceAuthn) {
+        final AuthenticationFlowDescriptor flow = new AuthenticationFlowDescriptor();
+        flow.setId(FLOW_ID);
+
+        final ProfileRequestContext prc = new ProfileRequestContext();
+        prc.getSubcontext(AuthenticationContext.class, true)
+            .setAttemptedFlow(flow)
+            .setForceAuthn(forceAuthn);
+        return prc;
+    }
+
+    /**
+     * Check that the action signalled no event other than proceed.
+     *
+     * @param prc the profile request context
+     */
+    private static void assertProceeded(final ProfileRequestContext prc) {
+        final EventContext event = prc.getSubcontext(EventContext.class);
+        if (event != null) {
+            assertEquals(EventIds.PROCEED_EVENT_ID, event.getEvent());
+        }
+    }
+
+    /**
+     * Check that the action sent the flow on to Twitter without authenticating anybody.
+     *
+     * @param prc the profile request context
+     */
+    private static void assertNoCredentials(final ProfileRequestContext prc) {
+        assertEquals(AuthnEventIds.NO_CREDENTIALS, prc.getSubcontext(EventContext.class).getEvent());
+        assertNull(prc.getSubcontext(AuthenticationContext.class).getAuthenticationResult());
+    }
+}